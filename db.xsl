@@ -9,6 +9,7 @@
 	<script type="text/javascript">
 		<![CDATA[
 		var root = "";
+		var pageLimit = 100;
 
 		function settings() {
 			root = prompt("please specify a new root directory", root);
@@ -40,6 +41,19 @@
    			window.location = '/' + deviceName + '/html/filelist';
    		}
    		
+   		function sortBy(sort, order) {
+   			// keep the search of this page, but start again from the first page.
+   			var query = '?sort=' + sort + '&order=' + order + '&limit=' + pageLimit;
+   			var params = window.location.search.substring(1).split('&');
+   			for (var i=0; i<params.length; ++i) {
+   				var name = params[i].split('=')[0];
+   				if (name == 'matches' || name == 'contains' || name == 'modifiedsince') {
+   					query += '&' + params[i];
+   				}
+   			}
+   			window.location = query;
+   		}
+   		
    		function logout() {
    			window.location = '/logout';
    		}
@@ -61,6 +75,9 @@
    		}
 		]]>
 	</script>
+	<xsl:if test="/Devices/@limit">
+	  <script type="text/javascript">pageLimit = <xsl:value-of select="/Devices/@limit"/>;</script>
+	</xsl:if>
 
   </head>
 
@@ -89,10 +106,10 @@
 				<table class="files">
 					<tr>
 						<th width="40px"></th>
-						<th>Name</th>
+						<th><a href="javascript:sortBy('name', 'asc')" title="Sort by name">Name</a></th>
 						<th width="100px">Action</th>
-						<th width="70px">Size</th>
-						<th width="110px">Modified (<a href="javascript:searchModified()" title="Search by modified date">search</a>)</th>
+						<th width="70px"><a href="javascript:sortBy('size', 'desc')" title="Sort by size">Size</a></th>
+						<th width="110px"><a href="javascript:sortBy('modified', 'desc')" title="Sort by modified date">Modified</a> (<a href="javascript:searchModified()" title="Search by modified date">search</a>)</th>
 					</tr>
 					<tr><th colspan="5"><hr/></th></tr>
 
@@ -231,6 +248,22 @@
 					</xsl:for-each>
 					
 					<!-- put img src="images/folder.gif" or"images/file.gif" -->
+					
+					<xsl:if test="/Devices/@total">
+					  <tr><th colspan="5"><hr/></th></tr>
+					  <tr>
+						<td colspan="5">
+						  <xsl:value-of select="count(/Devices/Device/FileList/File)"/> of <xsl:value-of select="/Devices/@total"/> files
+						  <xsl:if test="/Devices/@nextquery">
+						    <a>
+						      <xsl:attribute name="href">?<xsl:value-of select="/Devices/@nextquery"/></xsl:attribute>
+						      <xsl:attribute name="title">Show the next page of files</xsl:attribute>
+						      next &gt;&gt;
+						    </a>
+						  </xsl:if>
+						</td>
+					  </tr>
+					</xsl:if>
 				</table>
 			</div>
 
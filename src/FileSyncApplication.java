@@ -11,27 +11,53 @@ import org.restlet.Restlet;
 import org.restlet.Router; 
 import org.restlet.data.Protocol;
 
+import db.Compression;
 import db.Database;
+import db.Log;
+import db.Metrics;
+import db.TaskScheduler;
 import db.Updater;
+import dev.BackupScheduler;
+import dev.BalancedPlacement;
 import dev.BackupThread;
 import dev.BackupdataResource;
+import dev.ChunkStore;
+import dev.ChunksResource;
 import dev.Device;
 import dev.DeviceMulticastUpdater;
 import dev.DeviceUpdater;
+import dev.GossipUpdater;
+import dev.JobsResource;
 import dev.MetadataResource;
 import dev.MetadataUpdater;
+import dev.NameClient;
+import dev.PeerStats;
+import dev.RandomPlacement;
+import dev.Scrubber;
+import dev.Throttle;
+import dev.TimeoutClientHelper;
+import dev.TransferExecutor;
+import dev.WorkerServerHelper;
 import api.DefaultResource;
 import api.FileListResource;
 import api.FileDownloadResource;
 import api.LogoutResource;
+import api.MetricsResource;
+import api.MetricsRouter;
 import api.UploadResource;
 import api.LoginResource;
 import api.SettingsResource;
+import api.RepresentationCache;
+import api.GoogleDocs;
+import api.GoogleDocsCache;
+import api.SessionCache;
 
 /**
  * The main entry point in the server application for File Sync.
  */
 public class FileSyncApplication extends Application {  
+
+    private static final Log log = Log.get(FileSyncApplication.class);
   
     /** 
      * Creates a root Restlet that will receive all incoming calls. 
@@ -39,7 +65,7 @@ public class FileSyncApplication extends Application {
     @Override  
     public Restlet createRoot() {  
         // Create a router Restlet that routes each call to a new resource 
-        Router router = new Router(getContext());  
+        Router router = new MetricsRouter(getContext());  
   
         // Defines route  
         router.attach("/login", LoginResource.class);
@@ -56,12 +82,21 @@ public class FileSyncApplication extends Application {
         router.attach("/{devicename}/html/filelist?contains={contains}", FileListResource.class);
         router.attach("/{devicename}/html/filelist?modifiedsince={date}", FileListResource.class);
         router.attach("/{devicename}/html/filelist?token={token}", FileListResource.class);
+        router.attach("/{devicename}/json/filelist", FileListResource.class);
+        router.attach("/{devicename}/json/filelist?matches={matches}", FileListResource.class);
+        router.attach("/{devicename}/json/filelist?contains={contains}", FileListResource.class);
+        router.attach("/{devicename}/json/filelist?modifiedsince={date}", FileListResource.class);
         router.attach("/xml/gdocsupload/", UploadResource.class);
         router.attach("/html/gdocsupload/", UploadResource.class);
         router.attach("/{devicename}/xml/file/", FileDownloadResource.class);
         router.attach("/{devicename}/html/file/", FileDownloadResource.class);
         router.attach("/metadata", MetadataResource.class);
         router.attach("/backupdata/", BackupdataResource.class);
+        router.attach("/chunks/{hash}", ChunksResource.class);
+        router.attach("/chunks", ChunksResource.class);
+        router.attach("/jobs/{id}", JobsResource.class);
+        router.attach("/jobs", JobsResource.class);
+        router.attach("/metrics", MetricsResource.class);
 
         router.attachDefault(DefaultResource.class);
   
@@ -79,7 +114,7 @@ public class FileSyncApplication extends Application {
         		local_host = InetAddress.getLocalHost().getHostName();
         	} 
         	catch (Exception e) {
-        		System.out.println("Cannot get local host name or IP address. Using localhost.");
+        		log.warn("Cannot get local host name or IP address. Using localhost.");
         		local_ip = "127.0.0.1";
         		local_host = "locahost";
         	}
@@ -92,7 +127,7 @@ public class FileSyncApplication extends Application {
         	}
         	catch (IOException e) {
         		// ignore the error
-        		System.out.println("Ignoring error while reading properties file. Please use a filesync.properties file");
+        		log.warn("Ignoring error while reading properties file. Please use a filesync.properties file");
         	}
         	
         	// define property as variable
@@ -101,21 +136,78 @@ public class FileSyncApplication extends Application {
         	String database = properties.getProperty("database", "db-" + device_name + ".xml");
         	String stylesheet = properties.getProperty("stylesheet", "db.xsl");
         	int update_interval = Integer.valueOf(properties.getProperty("update_interval", "10000")).intValue();
+        	long update_min_interval = Long.valueOf(properties.getProperty("update_min_interval", String.valueOf(update_interval / 4))).longValue();
+        	long update_max_interval = Long.valueOf(properties.getProperty("update_max_interval", String.valueOf(update_interval * 6))).longValue();
         	int backup_interval = Integer.valueOf(properties.getProperty("backup_interval", "19000")).intValue();
+        	int backup_workers = Integer.valueOf(properties.getProperty("backup_workers", "2")).intValue();
+        	String backup_placement = properties.getProperty("backup_placement", "balanced");
+        	int backup_transfers = Integer.valueOf(properties.getProperty("backup_transfers", "4")).intValue();
+        	long backup_timeout = Long.valueOf(properties.getProperty("backup_timeout", "60000")).longValue();
+        	long backup_rate = Long.valueOf(properties.getProperty("backup_rate", "0")).longValue();
+        	long backup_peer_rate = Long.valueOf(properties.getProperty("backup_peer_rate", "0")).longValue();
+        	long backup_max_backoff = Long.valueOf(properties.getProperty("backup_max_backoff", "3600000")).longValue();
+        	String backup_retry_file = properties.getProperty("backup_retry_file", "backup-retry-" + device_name + ".txt");
+        	boolean backup_compress = Boolean.valueOf(properties.getProperty("backup_compress", "false")).booleanValue();
+        	boolean compression = Boolean.valueOf(properties.getProperty("compression", "true")).booleanValue();
+        	int compression_level = Integer.valueOf(properties.getProperty("compression_level", "1")).intValue();
+        	long scrub_rate = Long.valueOf(properties.getProperty("scrub_rate", "1048576")).longValue();
+        	long scrub_interval = Long.valueOf(properties.getProperty("scrub_interval", "86400000")).longValue();
         	int device_interval = Integer.valueOf(properties.getProperty("device_interval", "11000")).intValue();
+        	String beacon_format = properties.getProperty("beacon_format", "binary");
+        	String gossip_seeds = properties.getProperty("gossip_seeds", "").trim();
+        	long gossip_interval = Long.valueOf(properties.getProperty("gossip_interval", "1000")).longValue();
         	String nameserver_ip = properties.getProperty("nameserver_ip", "127.0.0.1");
         	int nameserver_port = Integer.valueOf(properties.getProperty("nameserver_port", "2500"));
         	String backup_dir = properties.getProperty("backup_dir", "backup-" + device_name);
+        	int filelist_cache_size = Integer.valueOf(properties.getProperty("filelist_cache_size", "64")).intValue();
+        	int filelist_page_size = Integer.valueOf(properties.getProperty("filelist_page_size", "0")).intValue();
+        	int filelist_max_page_size = Integer.valueOf(properties.getProperty("filelist_max_page_size", "1000")).intValue();
+        	boolean html_streaming = Boolean.valueOf(properties.getProperty("html_streaming", "true")).booleanValue();
+        	String gdocs_feed_url = properties.getProperty("gdocs_feed_url", GoogleDocs.GDOCS_URL);
+        	long gdocs_ttl = Long.valueOf(properties.getProperty("gdocs_ttl", "60000")).longValue();
+        	long gdocs_max_stale = Long.valueOf(properties.getProperty("gdocs_max_stale", "600000")).longValue();
+        	long gdocs_timeout = Long.valueOf(properties.getProperty("gdocs_timeout", "2000")).longValue();
+        	long session_ttl = Long.valueOf(properties.getProperty("session_ttl", "1800000")).longValue();
+        	int max_workers = Integer.valueOf(properties.getProperty("max_workers", "256")).intValue();
+        	int max_connections = Integer.valueOf(properties.getProperty("max_connections", "4096")).intValue();
+        	String metrics_file = properties.getProperty("metrics_file", "").trim();
+        	long metrics_interval = Long.valueOf(properties.getProperty("metrics_interval", "60000")).longValue();
+        	String log_level = properties.getProperty("log_level", "info");
+        	String log_categories = properties.getProperty("log_categories", "");
+        	String log_file = properties.getProperty("log_file", "").trim();
+        	int log_buffer = Integer.valueOf(properties.getProperty("log_buffer", "8192")).intValue();
         	
         	// validate certain property items.
         	if (port <= 1024 || port >= 65536) {
-        		System.err.println("port must be > 1024 and < 65536. port=" + port);
+        		log.warn("port must be > 1024 and < 65536. port=" + port);
         		return;
         	}
         	
+        	// configure the logging
+        	Log.configure(log_level, log_categories, log_file, log_buffer);
+        	
         	// store the properties in FileListResource
         	FileListResource.stylesheet = stylesheet;
+        	FileListResource.cache = new RepresentationCache(filelist_cache_size);
+        	FileListResource.pageSize = filelist_page_size;
+        	FileListResource.maxPageSize = filelist_max_page_size;
+        	FileListResource.streamHtml = html_streaming;
+        	GoogleDocs.feedUrl = gdocs_feed_url;
+        	GoogleDocsCache.ttl = gdocs_ttl;
+        	GoogleDocsCache.maxStale = gdocs_max_stale;
+        	GoogleDocsCache.timeout = gdocs_timeout;
+        	SessionCache.ttl = session_ttl;
         	BackupdataResource.backup_dir = backup_dir;
+        	Compression.enabled = compression;
+        	Compression.level = compression_level;
+        	ChunkStore.compress = backup_compress;
+        	TaskScheduler.setMaxWorkers(max_workers);
+        	TaskScheduler.setMaxConnections(max_connections);
+        	if (metrics_file.length() > 0)
+        		Metrics.startSnapshots(metrics_file, metrics_interval);
+        	
+        	// use the HTTP client with socket timeouts, before any client is created
+        	TimeoutClientHelper.register();
         	
         	Database db = Database.getInstance();
         	db.setLocalDevice(device_name); // the device name is stored in db
@@ -125,19 +217,27 @@ public class FileSyncApplication extends Application {
         	}
            	catch (FileNotFoundException e) {
            		// ignore the exception
-           		System.out.println("File not found: " + database + ". ignored");
+           		log.info("File not found: " + database + ". ignored");
            	}
            	
            	db.setDeviceStatus(null, "offline"); // set all device status to offline initially
            	db.setDeviceStatus(device_name, "online"); // except this, until nameserver is pinged.
         	
            	// create the local device and name server device
-        	Device nameserver = new Device(nameserver_ip, nameserver_port);
+        	Device[] nameservers = NameClient.parse(nameserver_ip, nameserver_port);
         	Device localdevice = new Device(local_ip, port, device_name, (new Date()).getTime());
         	
         	// create the device updater thread
         	DeviceUpdater.interval = device_interval;
-        	DeviceUpdater deviceUpdater = new DeviceMulticastUpdater(nameserver, localdevice); 
+        	DeviceMulticastUpdater.beaconFormat = beacon_format;
+        	DeviceUpdater deviceUpdater;
+        	if (gossip_seeds.length() > 0) {
+        		GossipUpdater.period = gossip_interval;
+        		deviceUpdater = new GossipUpdater(localdevice, GossipUpdater.parseSeeds(gossip_seeds));
+        	}
+        	else {
+        		deviceUpdater = new DeviceMulticastUpdater(nameservers, localdevice);
+        	}
         	Thread th0 = new Thread(deviceUpdater);
         	th0.start();
         	
@@ -151,18 +251,41 @@ public class FileSyncApplication extends Application {
            	MetadataUpdater mupdater = new MetadataUpdater(deviceUpdater);
            	deviceUpdater.setListener(mupdater);
            	
-           	// create the database updater thread
+           	// create the backup scheduler which is fed by the device and file events
+           	BackupThread.deviceUpdater = deviceUpdater;
+           	BackupThread.placement = ("random".equals(backup_placement) ? new RandomPlacement() : new BalancedPlacement());
+           	BackupThread.transfers = new TransferExecutor(backup_transfers, backup_timeout);
+           	Throttle.rate = backup_rate;
+           	Throttle.peerRate = backup_peer_rate;
+           	PeerStats.maxBackoff = backup_max_backoff;
+           	BackupScheduler.maxBackoff = backup_max_backoff;
+           	BackupScheduler scheduler = new BackupScheduler(db, deviceUpdater, backup_interval);
+           	scheduler.setRetryFile(backup_retry_file);
+           	deviceUpdater.addListener(scheduler);
+           	BackupdataResource.scheduler = scheduler;
+           	
+           	// schedule the database updater task
            	Updater updater = new Updater(db, update_interval, database);
            	updater.setListener(mupdater);
-			Thread th1 = new Thread(updater);
-			th1.start();
+           	updater.setFileListener(scheduler);
+           	updater.setIntervalRange(update_min_interval, update_max_interval);
+           	updater.start();
         	
-           	BackupThread backup = new BackupThread(db, backup_interval);
-           	BackupThread.deviceUpdater = deviceUpdater;
-			Thread th2 = new Thread(backup);
-			th2.start();
+           	// start the backup worker threads
+           	scheduler.start(backup_workers);
+           	
+           	// start the scrubber thread which verifies the backups stored here
+           	if (scrub_interval > 0) {
+           		Scrubber.rate = scrub_rate;
+           		Scrubber.interval = scrub_interval;
+           		Thread th2 = new Thread(new Scrubber(backup_dir, BackupdataResource.getChunkStore(), deviceUpdater));
+           		th2.setPriority(Thread.MIN_PRIORITY);
+           		th2.setDaemon(true);
+           		th2.start();
+           	}
         	
-            // Create a new Component.
+            // Create a new Component, which handles each connection on its own thread.
+            WorkerServerHelper.register();
             Component component = new Component();
 
             // Add a new HTTP server listening on port.
@@ -175,7 +298,7 @@ public class FileSyncApplication extends Application {
             component.start();
         } catch (Exception e) {
             // Something is wrong.
-            e.printStackTrace();
+            log.error(e);
         }
     }
 }  
@@ -49,6 +49,7 @@ public class FileSyncClient {
 		commands.put("cp", CopyCommand.class);
 		commands.put("backup", BackupCommand.class);
 		commands.put("restore", RestoreCommand.class);
+		commands.put("jobs", JobsCommand.class);
 
 		StringBuilder sb = new StringBuilder();
 		for (Iterator<String> it=commands.keySet().iterator(); it.hasNext(); ) {
@@ -4,7 +4,12 @@ import org.restlet.Restlet;
 import org.restlet.Router; 
 import org.restlet.data.Protocol;
 
+import dev.Device;
 import dev.DevicesResource;
+import dev.NameClient;
+import dev.NameReplicator;
+import dev.WorkerServerHelper;
+import db.Log;
 
 
 /**
@@ -15,6 +20,8 @@ import dev.DevicesResource;
  * @author Mamta
  */
 public class NameServer extends Application {  
+
+    private static final Log log = Log.get(NameServer.class);
   
     /** 
      * Creates a root Restlet that will receive all incoming calls. 
@@ -32,7 +39,9 @@ public class NameServer extends Application {
     
     /**
      * The main routine for nameserver. It takes the listening port from
-     * command line argument, which defaults to 2500.
+     * command line argument, which defaults to 2500. The optional second
+     * argument is a comma separated list of "ip:port" of the other name servers
+     * to replicate the devices with.
      * 
      * @param args
      */
@@ -46,14 +55,23 @@ public class NameServer extends Application {
         	}
         	
         	if (port <= 1024 || port >= 65536) {
-        		System.err.println("port must be > 1024 and < 65536. port=" + port);
+        		log.warn("port must be > 1024 and < 65536. port=" + port);
         		return;
         	}
         	
         	// initialize the devices resource
         	DevicesResource.init();
         	
-            // Create a new Component.
+        	// replicate with the other name servers, if any
+        	if (args.length > 1) {
+        		Device[] peers = NameClient.parse(args[1], 2500);
+        		if (peers.length > 0) {
+        			new NameReplicator(peers).start();
+        		}
+        	}
+        	
+            // Create a new Component, which handles each connection on its own thread.
+            WorkerServerHelper.register();
             Component component = new Component();
 
             // Add a new HTTP server listening on port.
@@ -66,7 +84,7 @@ public class NameServer extends Application {
             component.start();
         } catch (Exception e) {
             // Something is wrong.
-            e.printStackTrace();
+            log.error(e);
         }
     }
 }  
@@ -29,13 +29,25 @@ public class BaseResource extends Resource {
     
     /**
      * Perform authentication. This must be called as the first in sub-class
-     * constructor after invoking the base class constructor.
+     * constructor after invoking the base class constructor. If the request has
+     * the username and token of a cached session, then the authenticated object
+     * of that session is used. Otherwise a new object authenticates the request
+     * and is cached for the next request.
      * 
      * @return true on success and false otherwise.
      */
     public boolean authenticate() {
+    	String key = GoogleDocs.findToken(getRequest());
+    	gdocs = SessionCache.get(key);
+    	if (gdocs != null)
+    		return true;
+    	
 		gdocs = new GoogleDocs();
 		String token = gdocs.getToken(getRequest(), getResponse());
+		if (token != null && key != null && gdocs.getUsername() != null 
+				&& key.equals(gdocs.getUsername() + " " + token)) {
+			SessionCache.put(key, gdocs);
+		}
 		return token != null;
     }
     
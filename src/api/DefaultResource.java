@@ -54,10 +54,10 @@ public class DefaultResource extends Resource {
         "  /logout\n" +
         "  /settings\n" +
         "  /settings?rootdir={directory}\n" +
-		"  /{devicename}/{xml|html}/filelist\n" +
-		"  /{devicename}/{xml|html}/filelist?contains={query}\n" + 
-		"  /{devicename}/{xml|html}/filelist?matches={query}\n" +
-		"  /{devicename}/{xml|html}/filelist?modifiedsince={date} where date is MM-dd-yyyy format\n" +
+		"  /{devicename}/{xml|html|json}/filelist\n" +
+		"  /{devicename}/{xml|html|json}/filelist?contains={query}\n" + 
+		"  /{devicename}/{xml|html|json}/filelist?matches={query}\n" +
+		"  /{devicename}/{xml|html|json}/filelist?modifiedsince={date} where date is MM-dd-yyyy format\n" +
 		"  /{devicename}/{xml|html}/file/{path/to/file/and/filename.ext}\n" +
 		"  /gdocs/{xml|html}/filelist\n" + 
 		"  /{xml|html}/gdocsupload/path/to/local/file.ext\n" +
@@ -17,8 +17,10 @@ import org.restlet.resource.ResourceException;
 import org.restlet.resource.StringRepresentation;
 import org.restlet.resource.Variant;  
 
+import db.Compression;
 import db.Database;
 import db.FileUtil;
+import db.Log;
 
 /** 
  * Resource which represents a single file, and is used to download the file content.
@@ -31,6 +33,8 @@ import db.FileUtil;
  * of the files. The upload is done by the client using PUT method.
  */  
 public class FileDownloadResource extends BaseResource {  
+
+	private static final Log log = Log.get(FileDownloadResource.class);
   
 	/**
 	 * Construct a new resource.
@@ -79,7 +83,7 @@ public class FileDownloadResource extends BaseResource {
 	        	// if file name as spaces, it gets URL encoded. So first decode it.
 				filename = URLDecoder.decode(request.getResourceRef().getRemainingPart(), "US-ASCII");
 			} catch (UnsupportedEncodingException e) {
-				e.printStackTrace();
+				log.error(e);
 				response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
 				return new StringRepresentation("Unsupported encoding for filename", MediaType.TEXT_PLAIN);
 			}
@@ -104,10 +108,10 @@ public class FileDownloadResource extends BaseResource {
 		try {
 			filename = FileUtil.getFullPath(filename, db.getUserLocalDir(gdocs.getUsername()));
 		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
 		}
 		
@@ -118,7 +122,11 @@ public class FileDownloadResource extends BaseResource {
     		return new StringRepresentation("Not a valid regular file: " + filename, MediaType.TEXT_PLAIN);
     	}
     	
+    	// compress the content if the client accepts it and the file is not 
+    	// already compressed.
     	Representation result = new FileRepresentation(file, MediaType.APPLICATION_OCTET_STREAM);
+    	if (Compression.isCompressible(file.getName(), file.length()))
+    		result = Compression.encode(result, Compression.getEncoding(getRequest().getClientInfo()));
     	return result;
     }  
     
@@ -145,7 +153,7 @@ public class FileDownloadResource extends BaseResource {
 	        	// if file name as spaces, it gets URL encoded. So first decode it.
 				filename = URLDecoder.decode(request.getResourceRef().getRemainingPart(), "US-ASCII");
 			} catch (UnsupportedEncodingException e) {
-				e.printStackTrace();
+				log.error(e);
 				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Unsupported encoding for filename");
 			}
 			
@@ -164,10 +172,10 @@ public class FileDownloadResource extends BaseResource {
 		try {
 			filename = FileUtil.getFullPath(filename, db.getUserLocalDir(gdocs.getUsername()));
 		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
 		}
 		
@@ -178,7 +186,7 @@ public class FileDownloadResource extends BaseResource {
     	}
     	
     	if (file.exists()) {
-    		System.out.println("overwriting " + file.getPath());
+    		log.info("overwriting " + file.getPath());
     	}
     	
     	boolean done = FileUtil.copyStream(entity, file, false);
@@ -0,0 +1,316 @@
+package api;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import db.Database;
+import db.FileQuery;
+import db.Log;
+
+/**
+ * One page of a file listing. The files are ordered by device name and then by
+ * the sort key within the device, and the page has at most limit files which come
+ * after the cursor in that order. The cursor is an opaque string returned as the
+ * next cursor of the previous page.
+ *
+ * The page is selected in one pass over the database using a bounded priority
+ * queue, so only the selected files are copied. The total is the number of
+ * files matching the query, on all the pages.
+ */
+public class FileListPage {
+
+	private static final Log log = Log.get(FileListPage.class);
+
+	/**
+	 * The allowed sort keys.
+	 */
+	public static final String SORT_PATH = "path";
+	public static final String SORT_NAME = "name";
+	public static final String SORT_MODIFIED = "modified";
+	public static final String SORT_SIZE = "size";
+
+	/**
+	 * A selected file with its order key.
+	 */
+	private static class Entry {
+		String device;
+		String key;
+		Element file;
+	}
+
+	// the selected devices (copy without the file list) indexed by name.
+	private Map<String, Element> devices = new LinkedHashMap<String, Element>();
+
+	// the devices of this page, which have a file in this page.
+	private Map<String, Element> used = new LinkedHashMap<String, Element>();
+
+	// the selected files in order.
+	private List<Entry> entries = new ArrayList<Entry>();
+
+	private int total = 0;
+	private int limit;
+	private String nextCursor;
+
+	/**
+	 * Select a page of files.
+	 *
+	 * @param username
+	 * @param devicename the device name or "all"
+	 * @param query to select the files
+	 * @param sort one of the SORT_ values, defaults to path
+	 * @param descending whether to sort in decreasing order within a device
+	 * @param cursor the next cursor of previous page, or null for first page
+	 * @param limit maximum number of files in the page
+	 * @return
+	 * @throws InterruptedException
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the cursor is invalid
+	 */
+	public static FileListPage select(String username, String devicename, FileQuery query,
+			final String sort, final boolean descending, String cursor, final int limit)
+			throws InterruptedException, IOException {
+
+		final FileListPage page = new FileListPage();
+		page.limit = limit;
+		final Comparator<Entry> order = new Comparator<Entry>() {
+			public int compare(Entry o1, Entry o2) {
+				int result = o1.device.compareTo(o2.device);
+				if (result == 0) {
+					result = o1.key.compareTo(o2.key);
+					if (descending)
+						result = -result;
+				}
+				return result;
+			}
+		};
+
+		final Entry after = decodeCursor(cursor);
+
+		// the queue keeps the first limit entries, with the last one at the head.
+		// It grows as needed, so that a large limit does not allocate up front.
+		final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(Math.min(Math.max(limit, 1), 1024) + 1,
+				Collections.reverseOrder(order));
+		final int[] remaining = new int[1];
+
+		Database.getInstance().visitFiles(username, devicename, query, new Database.Visitor() {
+			private String device;
+
+			public void startDevice(Element deviceNode) {
+				device = FileQuery.getChildText(deviceNode, "Name");
+				if (device == null)
+					device = "";
+			}
+
+			public void file(Element file) {
+				++page.total;
+				Entry entry = new Entry();
+				entry.device = device;
+				entry.key = getSortKey(file, sort);
+				if (after != null && order.compare(entry, after) <= 0)
+					return;
+				++remaining[0];
+				if (queue.size() < limit || order.compare(entry, queue.peek()) < 0) {
+					entry.file = (Element) file.cloneNode(true);
+					queue.add(entry);
+					if (queue.size() > limit)
+						queue.poll();
+				}
+			}
+
+			public void endDevice(Element deviceNode) {
+				// copy the device without its files, in case it has a selected file.
+				if (!page.devices.containsKey(device)) {
+					page.devices.put(device, copyDevice(deviceNode));
+				}
+			}
+		});
+
+		page.entries.addAll(queue);
+		Collections.sort(page.entries, order);
+
+		// the page has only the devices that have a file in this page.
+		for (int i=0; i<page.entries.size(); ++i) {
+			String name = page.entries.get(i).device;
+			if (!page.used.containsKey(name))
+				page.used.put(name, page.devices.get(name));
+		}
+
+		if (remaining[0] > page.entries.size() && page.entries.size() > 0) {
+			page.nextCursor = encodeCursor(page.entries.get(page.entries.size() - 1));
+		}
+		return page;
+	}
+
+	/**
+	 * Copy the device element with all its properties except the file list. This
+	 * is called with the database read-lock held.
+	 *
+	 * @param deviceNode
+	 * @return
+	 */
+	static Element copyDevice(Element deviceNode) {
+		Element copy = (Element) deviceNode.cloneNode(false);
+		for (Node child = deviceNode.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE && !"FileList".equals(child.getNodeName()))
+				copy.appendChild(child.cloneNode(true));
+		}
+		return copy;
+	}
+
+	/**
+	 * Get the names of the devices in this page, in order.
+	 */
+	public List<String> getDeviceNames() {
+		return new ArrayList<String>(used.keySet());
+	}
+
+	/**
+	 * Get the copy of the device element for the given name, without the file list.
+	 */
+	public Element getDevice(String name) {
+		return used.get(name);
+	}
+
+	/**
+	 * Get the copies of all the selected devices indexed by name, including those
+	 * which do not have a file in this page, in the database order.
+	 */
+	Map<String, Element> getSelectedDevices() {
+		return devices;
+	}
+
+	/**
+	 * Get the files of the given device in this page, in order.
+	 */
+	public List<Element> getFiles(String name) {
+		List<Element> result = new ArrayList<Element>();
+		for (int i=0; i<entries.size(); ++i) {
+			if (entries.get(i).device.equals(name))
+				result.add(entries.get(i).file);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the total number of files that match the query.
+	 */
+	public int getTotal() {
+		return total;
+	}
+
+	/**
+	 * Get the maximum number of files in the page.
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Get the cursor for the next page, or null if this is the last page.
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * Get the sort key of the file. The numbers are zero padded so that the
+	 * string comparison works. The path and name are always appended so that
+	 * the order is stable.
+	 *
+	 * @param file
+	 * @param sort
+	 * @return
+	 */
+	static String getSortKey(Element file, String sort) {
+		String path = FileQuery.getChildText(file, "Path");
+		String name = FileQuery.getChildText(file, "Name");
+		String fullname = (path == null || path.length() == 0 ? "" : path.replace('\\', '/') + "/") + name;
+		if (SORT_NAME.equals(sort)) {
+			return name + "\n" + fullname;
+		}
+		else if (SORT_MODIFIED.equals(sort)) {
+			return pad(FileQuery.getChildText(file, "LastModified")) + "\n" + fullname;
+		}
+		else if (SORT_SIZE.equals(sort)) {
+			return pad(FileQuery.getChildText(file, "Size")) + "\n" + fullname;
+		}
+		return fullname;
+	}
+
+	/**
+	 * Zero pad a non-negative number to 20 digits. Anything else, e.g., "unknown"
+	 * size is treated as 0.
+	 */
+	private static String pad(String value) {
+		long number = 0;
+		try {
+			number = Math.max(0, Long.parseLong(value.trim()));
+		} catch (Exception e) {
+			// use 0
+		}
+		String result = String.valueOf(number);
+		StringBuilder sb = new StringBuilder();
+		for (int i=result.length(); i<20; ++i)
+			sb.append('0');
+		return sb.append(result).toString();
+	}
+
+	/**
+	 * Encode the device and key of the entry as a hex string, so that it can be
+	 * used in the URL without escaping.
+	 */
+	private static String encodeCursor(Entry entry) {
+		try {
+			byte[] bytes = (entry.device + "\0" + entry.key).getBytes("UTF-8");
+			StringBuilder sb = new StringBuilder();
+			for (int i=0; i<bytes.length; ++i) {
+				sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (UnsupportedEncodingException e) {
+			log.error(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Decode the cursor to an entry with device and key, or null if the cursor
+	 * is null or empty, i.e., for the first page.
+	 * 
+	 * @throws IllegalArgumentException if the cursor is invalid
+	 */
+	private static Entry decodeCursor(String cursor) {
+		if (cursor == null || cursor.length() == 0)
+			return null;
+		if (cursor.length() % 2 != 0)
+			throw new IllegalArgumentException("invalid cursor " + cursor);
+		try {
+			byte[] bytes = new byte[cursor.length() / 2];
+			for (int i=0; i<bytes.length; ++i) {
+				bytes[i] = (byte) Integer.parseInt(cursor.substring(2*i, 2*i+2), 16);
+			}
+			String value = new String(bytes, "UTF-8");
+			int index = value.indexOf('\0');
+			if (index >= 0) {
+				Entry entry = new Entry();
+				entry.device = value.substring(0, index);
+				entry.key = value.substring(index + 1);
+				return entry;
+			}
+		} catch (Exception e) {
+			// invalid hex or encoding
+		}
+		throw new IllegalArgumentException("invalid cursor " + cursor);
+	}
+}
@@ -0,0 +1,290 @@
+package api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import org.restlet.data.CharacterSet;
+import org.restlet.data.MediaType;
+import org.restlet.resource.OutputRepresentation;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import db.Database;
+import db.FileQuery;
+import db.Log;
+import dev.Device;
+import dev.DeviceUpdater;
+
+/**
+ * The file list representation which writes the selected devices and files from
+ * the database to the response stream, in XML or JSON depending on the media 
+ * type. The files are selected and sorted once, keeping only their sort keys,
+ * and are then copied under the database read-lock in batches of batchSize 
+ * files. Each batch is written after the lock is released, so that a slow client
+ * does not block the updater, and hence all the other readers, while its response
+ * is written, and the files are not all copied at once. The devices are written
+ * in the order of their names, and the files of a device in the order of their
+ * paths. A file which is removed while the list is written is left out.
+ *
+ * The XML has the same format as before: a Devices element with localdevice
+ * attribute, containing a Device element for each selected device. Each Device
+ * has the Name and OnlineStatus, the URL if the device is online, and a FileList
+ * with the selected File elements.
+ * 
+ * If a page is set, then only the files of that page are written, and the Devices
+ * element has the total, limit, next and nextquery attributes. The nextquery is
+ * the request query string for the next page.
+ * 
+ * If a stylesheet is set, then the file list is sent as SAX events to that
+ * stylesheet, and the transformed result, e.g., HTML, is written to the stream.
+ */
+public class FileListRepresentation extends OutputRepresentation {
+
+	private static final Log log = Log.get(FileListRepresentation.class);
+
+	/**
+	 * The number of files copied at a time when writing all the selected files.
+	 */
+	public static int batchSize = 1000;
+
+	/**
+	 * A selected file with its order key. The file is the database node, which
+	 * is read only using Database.copyFiles.
+	 */
+	private static class Entry implements Comparable<Entry> {
+		String device;
+		String key;
+		Element file;
+
+		public int compareTo(Entry other) {
+			int result = device.compareTo(other.device);
+			return (result != 0 ? result : key.compareTo(other.key));
+		}
+	}
+
+	private String username;
+	private String devicename;
+	private FileQuery query;
+	private Node gdocsDevice;
+	private DeviceUpdater deviceUpdater;
+	private FileListPage page;
+	private String nextQuery;
+	private Templates templates;
+
+	/**
+	 * Construct a new representation.
+	 *
+	 * @param mediaType either TEXT_XML or APPLICATION_JSON
+	 * @param username
+	 * @param devicename the device name or "all"
+	 * @param query to select the files
+	 * @param gdocsDevice optional Device element for Google documents to append
+	 * @param deviceUpdater the online devices list to get the device URL
+	 */
+	public FileListRepresentation(MediaType mediaType, String username, String devicename,
+			FileQuery query, Node gdocsDevice, DeviceUpdater deviceUpdater) {
+		super(mediaType);
+		setCharacterSet(CharacterSet.UTF_8);
+		this.username = username;
+		this.devicename = devicename;
+		this.query = query;
+		this.gdocsDevice = gdocsDevice;
+		this.deviceUpdater = deviceUpdater;
+	}
+
+	/**
+	 * Write only the given page of files instead of all the selected files.
+	 *
+	 * @param page
+	 * @param nextQuery the query string for the next page, or null if last page
+	 */
+	public void setPage(FileListPage page, String nextQuery) {
+		this.page = page;
+		this.nextQuery = nextQuery;
+	}
+
+	/**
+	 * Apply the given compiled stylesheet on the file list when writing. The
+	 * media type must be that of the stylesheet output.
+	 *
+	 * @param templates
+	 */
+	public void setTemplates(Templates templates) {
+		this.templates = templates;
+	}
+
+	/**
+	 * Write the file list to the stream.
+	 */
+	@Override
+	public void write(OutputStream out) throws IOException {
+		final FileListWriter writer;
+		if (templates != null) {
+			try {
+				TransformerHandler handler = StylesheetCache.newTransformerHandler(templates);
+				handler.setResult(new StreamResult(out));
+				writer = new SaxFileListWriter(handler);
+			} catch (TransformerConfigurationException e) {
+				log.error(e);
+				throw new IOException("TransformerConfigurationException: " + e.getMessage());
+			}
+		}
+		else if (MediaType.APPLICATION_JSON.equals(getMediaType())) {
+			writer = new JsonFileListWriter(out);
+		}
+		else {
+			writer = new XmlFileListWriter(out);
+		}
+
+		Database db = Database.getInstance();
+		writer.startElement("Devices");
+		writer.attribute("localdevice", db.getLocalDevice());
+
+		if (page != null) {
+			writer.attribute("total", String.valueOf(page.getTotal()));
+			if (page.getLimit() < Integer.MAX_VALUE)
+				writer.attribute("limit", String.valueOf(page.getLimit()));
+			if (page.getNextCursor() != null)
+				writer.attribute("next", page.getNextCursor());
+			if (nextQuery != null)
+				writer.attribute("nextquery", nextQuery);
+
+			List<String> names = page.getDeviceNames();
+			for (int i=0; i<names.size(); ++i) {
+				startDevice(writer, page.getDevice(names.get(i)));
+				List<Element> files = page.getFiles(names.get(i));
+				for (int j=0; j<files.size(); ++j) {
+					writer.writeNode(files.get(j));
+				}
+				writer.endElement(); // FileList
+				writer.endElement(); // Device
+			}
+		}
+		else {
+			// select all the files with their keys in one visit under the read-lock,
+			// and sort them once. The files are copied in batches in that order, and
+			// each batch is written after the lock is released. The selected devices 
+			// without a file are also written.
+			final Map<String, Element> devices = new TreeMap<String, Element>();
+			final List<Entry> entries = new ArrayList<Entry>();
+			try {
+				db.visitFiles(username, devicename, query, new Database.Visitor() {
+					private String device;
+
+					public void startDevice(Element deviceNode) {
+						device = FileQuery.getChildText(deviceNode, "Name");
+						if (device == null)
+							device = "";
+					}
+
+					public void file(Element file) {
+						Entry entry = new Entry();
+						entry.device = device;
+						entry.key = FileListPage.getSortKey(file, FileListPage.SORT_PATH);
+						entry.file = file;
+						entries.add(entry);
+					}
+
+					public void endDevice(Element deviceNode) {
+						if (!devices.containsKey(device))
+							devices.put(device, FileListPage.copyDevice(deviceNode));
+					}
+				});
+			} catch (InterruptedException e) {
+				log.error(e);
+				throw new IOException("InterruptedException");
+			}
+			Collections.sort(entries);
+
+			int next = 0, first = 0;
+			List<Element> batch = Collections.emptyList();
+			for (Iterator<Map.Entry<String, Element>> it=devices.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<String, Element> device = it.next();
+				startDevice(writer, device.getValue());
+				for (; next < entries.size() && entries.get(next).device.equals(device.getKey()); ++next) {
+					if (next >= first + batch.size()) {
+						first = next;
+						batch = copyBatch(entries, first);
+					}
+					Element file = batch.get(next - first);
+					if (file != null)
+						writer.writeNode(file);
+				}
+				writer.endElement(); // FileList
+				writer.endElement(); // Device
+			}
+		}
+
+		if (gdocsDevice != null) {
+			writer.writeNode((Element) gdocsDevice);
+		}
+
+		writer.endElement();
+		writer.close();
+	}
+
+	/**
+	 * Copy the next batch of files starting at the given index of the entries. The
+	 * copied entries are cleared, so that their nodes are not kept any longer.
+	 *
+	 * @param entries the selected files in order
+	 * @param first
+	 * @return the copies, which are null for the removed files
+	 * @throws IOException
+	 */
+	private static List<Element> copyBatch(List<Entry> entries, int first) throws IOException {
+		int end = Math.min(entries.size(), first + Math.max(batchSize, 1));
+		List<Element> files = new ArrayList<Element>(end - first);
+		for (int i=first; i<end; ++i) {
+			files.add(entries.get(i).file);
+			entries.get(i).file = null;
+		}
+		try {
+			return Database.getInstance().copyFiles(files);
+		} catch (InterruptedException e) {
+			log.error(e);
+			throw new IOException("InterruptedException");
+		}
+	}
+
+	/**
+	 * Write the start of the Device element with all its properties except the
+	 * files, and start the FileList element.
+	 *
+	 * @param writer
+	 * @param device
+	 * @throws IOException
+	 */
+	private void startDevice(FileListWriter writer, Element device) throws IOException {
+		writer.startElement("Device");
+		writer.writeAttributes(device);
+
+		String name = null;
+		for (Node child = device.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE && !"FileList".equals(child.getNodeName())) {
+				writer.writeNode((Element) child);
+				if ("Name".equals(child.getNodeName()))
+					name = child.getTextContent();
+			}
+		}
+
+		// add the URL property if the device is online so that user
+		// can visit that device if needed.
+		Device dev = (name != null && deviceUpdater != null ? deviceUpdater.getDevice(name) : null);
+		if (dev != null) {
+			writer.element("URL", dev.getURL());
+		}
+		writer.startElement("FileList");
+	}
+}
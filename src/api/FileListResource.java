@@ -1,44 +1,45 @@
 package api;
 
-import java.io.File;
-import java.net.URISyntaxException;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathExpressionException;
+import javax.xml.transform.Templates;
 
 import org.restlet.Context;  
+import org.restlet.data.Form;
 import org.restlet.data.MediaType;  
 import org.restlet.data.Request;  
 import org.restlet.data.Response;  
 import org.restlet.data.Status;
-import org.restlet.resource.DomRepresentation;
-import org.restlet.resource.FileRepresentation;
+import org.restlet.data.Tag;
 import org.restlet.resource.Representation;  
 import org.restlet.resource.ResourceException;  
 import org.restlet.resource.StringRepresentation;  
 import org.restlet.resource.TransformRepresentation;
 import org.restlet.resource.Variant;  
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import db.Database;
-import dev.Device;
+import db.FileQuery;
+import db.Log;
 import dev.DeviceUpdater;
   
 /** 
- * The filelist resource represents a list of files using XML. It gets attributes
- * such as devicename, contains, matches and date, queries the database for those
- * attributes and returns the results. 
+ * The filelist resource represents a list of files using XML, JSON or HTML. It gets
+ * attributes such as devicename, contains, matches and date, queries the database 
+ * for those attributes and returns the results. 
+ * 
+ * The optional limit, cursor, sort and order parameters return one page of the 
+ * results. The response then has the X-Total-Count header with the number of
+ * matching files, and the X-Next-Cursor header with the cursor for the next page
+ * if any. The same values are in the total and next attributes of the Devices 
+ * element.
  */  
 public class FileListResource extends BaseResource {  
+
+	private static final Log log = Log.get(FileListResource.class);
   
 	/**
 	 * The stylesheet file name that is used in XSL transformation to generate
@@ -51,6 +52,29 @@ public class FileListResource extends BaseResource {
 	 */
 	public static DeviceUpdater deviceUpdater;
 	
+	/**
+	 * The cache of last rendered response per user, device, query and variant.
+	 */
+	public static RepresentationCache cache = new RepresentationCache(64);
+	
+	/**
+	 * The default page size if the request does not have a limit, or 0 to return
+	 * all the files in one response.
+	 */
+	public static int pageSize = 0;
+	
+	/**
+	 * The maximum number of files in a page. A larger limit, or a paged request
+	 * without a limit, gets pages of this size.
+	 */
+	public static int maxPageSize = 1000;
+	
+	/**
+	 * Whether the HTML is rendered by sending the file list directly to the
+	 * stylesheet, instead of transforming the XML representation.
+	 */
+	public static boolean streamHtml = true;
+	
 	/**
 	 * Construct a new resource and authenticate.
 	 * 
@@ -67,12 +91,16 @@ public class FileListResource extends BaseResource {
 		List<String> seg = request.getResourceRef().getSegments();
 		if (seg.size() >= 2 && "html".equals(seg.get(1)))
 			getVariants().add(new Variant(MediaType.TEXT_HTML));
+		else if (seg.size() >= 2 && "json".equals(seg.get(1)))
+			getVariants().add(new Variant(MediaType.APPLICATION_JSON));
 		else
 			getVariants().add(new Variant(MediaType.TEXT_XML));
 	}  
 	 
     /** 
-	 * Returns the XML of HTML file list response. 
+	 * Returns the XML, JSON or HTML file list response. The XML and JSON are
+	 * streamed from the database using FileListRepresentation. The HTML applies
+	 * the cached compiled stylesheet on that stream.
 	 */  
 	@Override  
 	public Representation represent(Variant variant) throws ResourceException {
@@ -84,138 +112,225 @@ public class FileListResource extends BaseResource {
 		
 		String devicename = (String) request.getAttributes().get("devicename");
 		String query = request.getResourceRef().getQuery();
-		String contains = (String) request.getAttributes().get("contains");
-		String matches = (String) request.getAttributes().get("matches");
-		String date = (String) request.getAttributes().get("date");
 		
-		// create a new DOM for result
-		Document doc;
+		FileQuery fileQuery;
 		try {
-			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-		} catch (ParserConfigurationException e1) {
-			e1.printStackTrace();
-			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "ParserConfigurationException");
-		}
-		
-		// use the Database class to get the files list.
-		try {
-			
-			// get the selected XML node with all the devices and files.
-			Node node = getDatabaseFiles(gdocs.getUsername(), devicename, query, matches, contains, date);
-
-			if (node != null) {
-				
-				// update the DOM with this XML node. Also add the URL property if the 
-				// device is online so that user can visit that device if needed.
-				
-				node = doc.adoptNode(node);
-				NodeList devices = node.getChildNodes();
-				for (int i=0; devices != null && i<devices.getLength(); ++i) {
-					Element device = (Element) devices.item(i);
-					String name = device.getElementsByTagName("Name").item(0).getTextContent();
-					Device dev = deviceUpdater.getDevice(name);
-					Node filelist = device.getElementsByTagName("FileList").item(0);
-					if (dev != null) {
-						Element url = doc.createElement("URL");
-						url.appendChild(doc.createTextNode(dev.getURL()));
-						device.insertBefore(url, filelist);
-					}
-				}
-				doc.appendChild(doc.adoptNode(node));
-			}
-			
-		} catch (XPathExpressionException e) {
-			e.printStackTrace();
-			response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "XPathExpressionException");
-			return new StringRepresentation("Error: Invalid XPath expression");
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "InterruptedException");
+			fileQuery = getFileQuery(request);
 		} catch (ParseException e) {
-			e.printStackTrace();
+			log.error(e);
 			response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "ParseException");
 			return new StringRepresentation("Error: parsing date string. Use MM-dd-yyyy format");
-		} catch (URISyntaxException e) {
-			e.printStackTrace();
-			response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "URISyntaxException");
-			return new StringRepresentation("Error: " + e.getReason());
 		}
 		
+		// extract the paging parameters.
+		
+		Form form = request.getResourceRef().getQueryAsForm();
+		String cursor = form.getFirstValue("cursor");
+		String sort = form.getFirstValue("sort");
+		String order = form.getFirstValue("order");
+		int limit = pageSize;
+		try {
+			if (form.getFirstValue("limit") != null)
+				limit = Integer.parseInt(form.getFirstValue("limit"));
+		} catch (NumberFormatException e) {
+			limit = -1;
+		}
+		if (limit < 0 || sort != null && !FileListPage.SORT_PATH.equals(sort) && !FileListPage.SORT_NAME.equals(sort)
+				&& !FileListPage.SORT_MODIFIED.equals(sort) && !FileListPage.SORT_SIZE.equals(sort)
+				|| order != null && !"asc".equals(order) && !"desc".equals(order)) {
+			response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid paging parameter");
+			return new StringRepresentation("Error: use limit=number, sort=path|name|modified|size and order=asc|desc");
+		}
+		boolean paged = (limit > 0 || cursor != null || sort != null);
+		if (paged && (limit <= 0 || limit > maxPageSize))
+			limit = Math.max(maxPageSize, 1);
+		
 		// if the devicename is "all" or "gdocs" then add the files from the
-		// Google documents also.
-		if ("all".equals(devicename) || "gdocs".equals(devicename)) {
-			try {
-				// for HTML we also need device nodes
-				Node gdocsFiles = gdocs.viewDocs();
-				doc.getFirstChild().appendChild(doc.adoptNode(gdocsFiles));
-			} catch (Exception e) {
-				e.printStackTrace();
+		// Google documents also. These are not paged, and are returned only in
+		// the first page. The document list is taken from the cache, so that the 
+		// request does not wait for the remote feed unless it is not yet cached. 
+		GoogleDocsCache.Feed feed = null;
+		if (("all".equals(devicename) || "gdocs".equals(devicename)) && cursor == null) {
+			feed = GoogleDocsCache.get(gdocs);
+		}
+		
+		String key = gdocs.getUsername() + "|" + devicename + "|" + query + "|" + variant.getMediaType();
+		if (MediaType.TEXT_HTML.equals(variant.getMediaType()))
+			key += "|" + StylesheetCache.getVersion(FileListResource.stylesheet);
+		Tag tag = getTag(key, feed);
+		
+		// if the client already has this version, return just the tag. The
+		// conditional processing in Resource.handleGet then responds with 304.
+		if (isNoneMatch(tag)) {
+			Representation result = new StringRepresentation("", variant.getMediaType());
+			result.setTag(tag);
+			return result;
+		}
+		
+		// a page is rendered again, so that the response has the paging headers.
+		if (!paged) {
+			Representation result = cache.get(key, tag);
+			if (result != null) {
+				return result;
 			}
-		}		
+		}
+		
+		Node gdocsFiles = (feed != null ? gdocs.toNode(feed.docs) : null);
 		
 		// now create the representation
 		Representation result = null;
 		try {
-			// first create DOM XML
-			DomRepresentation dom = new DomRepresentation(MediaType.TEXT_XML, doc); 
-			if (variant.getMediaType() == MediaType.TEXT_XML){
-				result = dom;
+			// select the page before the response is written so that the headers
+			// have the total count and next cursor.
+			FileListPage page = null;
+			if (paged) {
+				try {
+					page = FileListPage.select(gdocs.getUsername(), devicename, fileQuery, sort, 
+							"desc".equals(order), cursor, limit);
+				} catch (IllegalArgumentException e) {
+					response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid cursor");
+					return new StringRepresentation("Error: " + e.getMessage() + ". Use the next cursor of the previous page");
+				}
+				Form headers = (Form) response.getAttributes().get("org.restlet.http.headers");
+				if (headers == null) {
+					headers = new Form();
+					response.getAttributes().put("org.restlet.http.headers", headers);
+				}
+				headers.add("X-Total-Count", String.valueOf(page.getTotal()));
+				if (page.getNextCursor() != null)
+					headers.add("X-Next-Cursor", page.getNextCursor());
+			}
+			
+			if (variant.getMediaType().equals(MediaType.TEXT_XML) 
+					|| variant.getMediaType().equals(MediaType.APPLICATION_JSON)) {
+				// the streamed response is only tagged, not cached, so that the 
+				// memory used does not depend on the number of files.
+				FileListRepresentation list = new FileListRepresentation(variant.getMediaType(), gdocs.getUsername(), 
+						devicename, fileQuery, gdocsFiles, deviceUpdater);
+				if (page != null)
+					list.setPage(page, getNextQuery(form, page));
+				result = list;
+				result.setTag(tag);
 			}
 			else {
-				// for anything else, e.g., HTML, return the HTML using XSLT
-				result = new TransformRepresentation(getContext(), dom, 
-						new FileRepresentation(new File(FileListResource.stylesheet), MediaType.TEXT_HTML, -1));
+				// for anything else, e.g., HTML, return the HTML using XSLT. The 
+				// compiled stylesheet is reused across requests.
+				FileListRepresentation xml = new FileListRepresentation(MediaType.TEXT_XML, gdocs.getUsername(), 
+						devicename, fileQuery, gdocsFiles, deviceUpdater);
+				if (page != null)
+					xml.setPage(page, getNextQuery(form, page));
+				Templates templates = StylesheetCache.getTemplates(FileListResource.stylesheet);
+				if (streamHtml) {
+					// send the file list directly to the stylesheet without writing
+					// and parsing the XML.
+					xml.setMediaType(variant.getMediaType());
+					xml.setTemplates(templates);
+					result = xml;
+				}
+				else {
+					result = new TransformRepresentation(null, xml, templates);
+					result.setMediaType(variant.getMediaType());
+				}
+				
+				// render once and store it so that the next request with the same
+				// tag does not need to apply the stylesheet again.
+				if (!paged) {
+					String text = result.getText();
+					cache.put(key, tag, text, variant.getMediaType());
+					result = new StringRepresentation(text, variant.getMediaType());
+				}
+				result.setTag(tag);
 			}				
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
 		}
 		
 		return result;
 	}  
-
+	
 	/**
-	 * Get the query result using database functions. The returned element is returned
-	 * in this resource's GET response.
+	 * Get the strong entity tag for the given response key. The tag changes
+	 * whenever the database catalog changes or the online devices list changes,
+	 * since the response has the URL of the online devices. It also changes 
+	 * when the Google documents list changes, if included.
 	 * 
-	 * @param username
-	 * @param devicename
-	 * @param query
-	 * @param matches
-	 * @param contains
-	 * @param date
+	 * @param key
+	 * @param feed the Google documents included in the response, or null
 	 * @return
-	 * @throws XPathExpressionException
-	 * @throws InterruptedException
-	 * @throws ParseException
-	 * @throws URISyntaxException
 	 */
-	private Node getDatabaseFiles(String username, String devicename, String query, 
-			String matches, String contains, String date) 
-			throws XPathExpressionException, InterruptedException, ParseException, URISyntaxException {
-		
-		Node result;
-		
-		Database db = Database.getInstance();
-		
-		if (matches != null) {
-			result = db.matchFilesAlt(username, devicename, matches);
+	private Tag getTag(String key, GoogleDocsCache.Feed feed) {
+		long catalog = Database.getInstance().getCatalogVersion();
+		long devices = (deviceUpdater != null ? deviceUpdater.getVersion() : 0);
+		return new Tag(Long.toHexString(catalog) + "-" + Long.toHexString(devices) 
+				+ "-" + (feed != null ? Long.toHexString(feed.version) : "0")
+				+ "-" + Integer.toHexString(key.hashCode()), false);
+	}
+	
+	/**
+	 * Check whether the request has an If-None-Match condition which matches 
+	 * the given tag.
+	 * 
+	 * @param tag
+	 * @return
+	 */
+	private boolean isNoneMatch(Tag tag) {
+		List<Tag> noneMatch = getRequest().getConditions().getNoneMatch();
+		for (int i=0; noneMatch != null && i<noneMatch.size(); ++i) {
+			Tag other = noneMatch.get(i);
+			if (Tag.ALL.equals(other) || tag.equals(other)) {
+				return true;
+			}
 		}
-		else if (contains != null) {
-			result = db.containFilesAlt(username, devicename, contains);
+		return false;
+	}
+
+	/**
+	 * Get the query string for the next page, which is same as the request query
+	 * but with the next cursor, or null if this is the last page.
+	 * 
+	 * @param form the request query
+	 * @param page
+	 * @return
+	 */
+	private String getNextQuery(Form form, FileListPage page) {
+		if (page.getNextCursor() == null)
+			return null;
+		Form next = new Form();
+		for (int i=0; i<form.size(); ++i) {
+			String name = form.get(i).getName();
+			if (!"cursor".equals(name) && !"token".equals(name))
+				next.add(form.get(i));
 		}
-		else if (date != null) {
+		next.add("cursor", page.getNextCursor());
+		return next.getQueryString();
+	}
+	
+	/**
+	 * Get the file query from the request: matches, contains or modifiedsince date 
+	 * in MM-dd-yyyy format. If none is present, then all files are selected. The 
+	 * query parameters are used instead of the route attributes if present, since 
+	 * the route attribute includes the paging parameters that follow it.
+	 * 
+	 * @param request
+	 * @return
+	 * @throws ParseException
+	 */
+	private FileQuery getFileQuery(Request request) throws ParseException {
+		Form form = request.getResourceRef().getQueryAsForm();
+		FileQuery result = new FileQuery();
+		result.matches = form.getFirstValue("matches");
+		if (result.matches == null)
+			result.matches = (String) request.getAttributes().get("matches");
+		result.contains = form.getFirstValue("contains");
+		if (result.contains == null)
+			result.contains = (String) request.getAttributes().get("contains");
+		String date = form.getFirstValue("modifiedsince");
+		if (date == null)
+			date = (String) request.getAttributes().get("date");
+		if (date != null) {
 			DateFormat format = new SimpleDateFormat("MM-dd-yyyy");
-			Date d = format.parse(date);
-			result = db.modifiedFilesAlt(username, devicename, d);
-		}
-		else { // even if this in invalid query, use no query case
-			result = db.getFilesAlt(username, devicename);
-		}
-		
-		// add the localdevice name
-		if (result != null) {
-			((Element) result).setAttribute("localdevice", db.getLocalDevice());
+			result.modifiedSince = format.parse(date);
 		}
 		return result;
 	}
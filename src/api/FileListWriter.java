@@ -0,0 +1,104 @@
+package api;
+
+import java.io.IOException;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * The base class of the streaming writers used by FileListRepresentation. The
+ * file list is written as a sequence of element, attribute and text events, similar
+ * to a SAX or StAX writer, so that the sub-class can write it in XML or JSON
+ * format without creating a DOM. The attributes of an element must be written
+ * before its text or child elements.
+ */
+public abstract class FileListWriter {
+
+	/**
+	 * Start a new element as a child of the current element.
+	 * @param name
+	 * @throws IOException
+	 */
+	public abstract void startElement(String name) throws IOException;
+
+	/**
+	 * Add an attribute to the current element.
+	 * @param name
+	 * @param value
+	 * @throws IOException
+	 */
+	public abstract void attribute(String name, String value) throws IOException;
+
+	/**
+	 * Add text content to the current element.
+	 * @param value
+	 * @throws IOException
+	 */
+	public abstract void text(String value) throws IOException;
+
+	/**
+	 * End the current element.
+	 * @throws IOException
+	 */
+	public abstract void endElement() throws IOException;
+
+	/**
+	 * End the document and flush the output. This does not close the underlying
+	 * stream.
+	 * @throws IOException
+	 */
+	public abstract void close() throws IOException;
+
+	/**
+	 * Write an element with only text content.
+	 *
+	 * @param name
+	 * @param value
+	 * @throws IOException
+	 */
+	public void element(String name, String value) throws IOException {
+		startElement(name);
+		text(value);
+		endElement();
+	}
+
+	/**
+	 * Write the given DOM element with its attributes and sub-tree. The text
+	 * is written only for elements without child elements, so that the
+	 * indentation whitespace in the database is not copied.
+	 *
+	 * @param element
+	 * @throws IOException
+	 */
+	public void writeNode(Element element) throws IOException {
+		startElement(element.getNodeName());
+		writeAttributes(element);
+
+		boolean hasChildren = false;
+		for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE) {
+				hasChildren = true;
+				writeNode((Element) child);
+			}
+		}
+		if (!hasChildren) {
+			text(element.getTextContent());
+		}
+		endElement();
+	}
+
+	/**
+	 * Write all the attributes of the given DOM element to the current element.
+	 *
+	 * @param element
+	 * @throws IOException
+	 */
+	public void writeAttributes(Element element) throws IOException {
+		NamedNodeMap attrs = element.getAttributes();
+		for (int i=0; attrs != null && i<attrs.getLength(); ++i) {
+			Node attr = attrs.item(i);
+			attribute(attr.getNodeName(), attr.getNodeValue());
+		}
+	}
+}
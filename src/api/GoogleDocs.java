@@ -4,8 +4,10 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -33,12 +35,15 @@ import com.google.gdata.client.docs.DocsService;
 import com.google.gdata.client.http.*;
 
 import db.FileItem;
+import db.Log;
 
 /** 
  * The class handles interaction with GoogleDocs API including login, view and
  * upload.
  */  
 public class GoogleDocs {  
+
+	private static final Log log = Log.get(GoogleDocs.class);
 	
 	// the name of the cookie. The user's email is appended to this COOKIE name.
 	public static final String COOKIE = "gdocs-cookie-msingh4-"; 
@@ -47,6 +52,37 @@ public class GoogleDocs {
 	public static final String GDOCS_BASE_URL = "http://docs.google.com";
 	public static final String GDOCS_DOWNLOAD_URL = "http://docs.google.com/feeds/download/documents/Export?docID=";
 	
+	/**
+	 * The URL of the document list feed. This is GDOCS_URL unless configured
+	 * otherwise, e.g., to use a local test server.
+	 */
+	public static String feedUrl = GDOCS_URL;
+	
+	/**
+	 * A document in the user's GoogleDocs account, as read from the feed.
+	 */
+	public static class Doc {
+		public String title;
+		public long updated;
+		public boolean trashed;
+		public String link;
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Doc))
+				return false;
+			Doc other = (Doc) obj;
+			return updated == other.updated && trashed == other.trashed 
+				&& String.valueOf(title).equals(String.valueOf(other.title))
+				&& String.valueOf(link).equals(String.valueOf(other.link));
+		}
+		
+		@Override
+		public int hashCode() {
+			return String.valueOf(title).hashCode() ^ (int) updated;
+		}
+	}
+	
 	// the document service object for the Google Document API
 	private DocsService service;
 	
@@ -68,7 +104,7 @@ public class GoogleDocs {
 		try {
 			docBuilder = docFactory.newDocumentBuilder();
 		} catch (ParserConfigurationException e) {
-			e.printStackTrace();
+			log.error(e);
 		}
 	}
 	
@@ -109,7 +145,7 @@ public class GoogleDocs {
 		
 		Form authForm = (Form) request.getAttributes().get("org.restlet.http.headers");
 		String nameToken = authForm.getFirstValue("x-token");
-		System.out.println("  x-token " + (nameToken != null ? nameToken.substring(0, 70) : null));
+		log.debug("x-token " + (nameToken != null ? nameToken.substring(0, 70) : null));
 		if (nameToken != null) {
 			return getTokenFromHeader(request, response, nameToken); 
 		}
@@ -118,6 +154,32 @@ public class GoogleDocs {
 		}
 	}
 	
+	/**
+	 * Find the username and token in the x-token header or the cookie of the 
+	 * request, without any remote call or side effect. This is used as the key of
+	 * the SessionCache.
+	 * 
+	 * @param request
+	 * @return the username and token separated by space, or null if not found.
+	 */
+	public static String findToken(Request request) {
+		Form authForm = (Form) request.getAttributes().get("org.restlet.http.headers");
+		String nameToken = (authForm != null ? authForm.getFirstValue("x-token") : null);
+		if (nameToken != null) {
+			return nameToken.indexOf(' ') >= 0 ? nameToken : null;
+		}
+		
+		Series<Cookie> cookies = request.getCookies();
+		for (int i=0; i<cookies.size(); ++i) {
+			Cookie cookie = cookies.get(i);
+			if (cookie.getName().startsWith(COOKIE) && cookie.getName().length() > COOKIE.length()
+					&& cookie.getValue() != null && cookie.getValue().length() > 0) {
+				return cookie.getName().substring(COOKIE.length()) + " " + cookie.getValue();
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * Extract the token from the header of the request. This is used when the client
 	 * is supplying the x-token header with username and token to be used for that
@@ -169,13 +231,13 @@ public class GoogleDocs {
 		String token = cookies.getFirstValue(COOKIE + (email != null ? email : ""));
 		
 		if (token != null) {
-			System.out.println("  token (from cookie)=" + token + " email=" + email);
+			log.debug("token (from cookie)=" + token + " email=" + email);
 		}
 		else {
 			boolean hasToken = request.getAttributes().containsKey("token");
 			if (!hasToken && request.getResourceRef().getQuery() != null) {
 				String query = request.getResourceRef().getQuery();
-				System.out.println("  token query=" + query);
+				log.debug("token query=" + query);
 				int index = query.lastIndexOf("token=");
 				if (index>=0) {
 					token = query.substring(index+6);
@@ -189,30 +251,30 @@ public class GoogleDocs {
 			else {
 				if (token == null) {
 					token = (String) request.getAttributes().get("token");
-					System.out.println("  token (from URL)=" + token);
+					log.debug("token (from URL)=" + token);
 				}
 				try {
 					token = AuthSubUtil.exchangeForSessionToken(token, null);
 				} catch (Exception e) {
-					e.printStackTrace();
+					log.error(e);
 					startAuth(request, response);
 					return null;
 				}
 				
-				System.out.println("  token (session)=" + token);
+				log.debug("token (session)=" + token);
 
 				String cookieName = COOKIE; 
 				try {
 					// try appending user's email to cookieName so that the token is
 					// associated with one user email only.
 					service.setAuthSubToken(token);
-					DocumentListFeed feed = service.getFeed(new URL(GDOCS_URL), DocumentListFeed.class);
-					System.out.println("  email=" + feed.getAuthors().get(0).getEmail());
+					DocumentListFeed feed = service.getFeed(new URL(feedUrl), DocumentListFeed.class);
+					log.debug("email=" + feed.getAuthors().get(0).getEmail());
 					username = feed.getAuthors().get(0).getEmail();
 					cookieName = cookieName + username;
 				}
 				catch (Exception e) {
-					e.printStackTrace();
+					log.error(e);
 				}
 				
 				//Use global path=/ so that auth is reused for upload also.
@@ -223,7 +285,7 @@ public class GoogleDocs {
 			}
 		}
 		
-		System.out.println("  using token=" + token);
+		log.debug("using token=" + token);
 		
 		service.setAuthSubToken(token);
 		return token;
@@ -254,23 +316,62 @@ public class GoogleDocs {
 	/**
 	 * View all the documents available in user's GoogleDocs account.
 	 * It returns a XML Device element which contacts FileList which in turn contains
-	 * File elements. Each File element describes a file in GoogleDocs. The
-	 * generated XML has a URL element which allows the XSLT to use that URL to
-	 * download the file directly from the GoogleDocs. The title of the document is
-	 * used as the File's Name. The File's path is set to empty string. The 
-	 * getUpdated() and isTrashed() methods of the DocumentListEntry give information 
-	 * about LastModified and Deleted elements. The file Size is set as -1 which is
-	 * rendered as "unknown" and represents unknown file size.
+	 * File elements. Each File element describes a file in GoogleDocs. 
 	 * 
+	 * @see #fetchDocs()
+	 * @see #toNode(List)
 	 * @return The Node of <Device/> elements representing files in GoogleDocs account.
 	 * @throws MalformedURLException
 	 * @throws IOException
 	 * @throws ServiceException
 	 */
 	public Node viewDocs() throws MalformedURLException, IOException, ServiceException {
-		DocumentListFeed feed = service.getFeed(new URL(GDOCS_URL), DocumentListFeed.class);
+		return toNode(fetchDocs());
+	}
+	
+	/**
+	 * Fetch the list of documents from the user's GoogleDocs account. This is a
+	 * remote call, hence the FileListResource uses the GoogleDocsCache instead.
+	 * 
+	 * @return
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 * @throws ServiceException
+	 */
+	public List<Doc> fetchDocs() throws MalformedURLException, IOException, ServiceException {
+		DocumentListFeed feed = service.getFeed(new URL(feedUrl), DocumentListFeed.class);
 		
-		Document doc = docBuilder.newDocument();
+		List<Doc> result = new ArrayList<Doc>();
+		for (Iterator<DocumentListEntry> it = feed.getEntries().iterator(); it.hasNext(); ) {
+			DocumentListEntry entry = it.next();
+			Doc doc = new Doc();
+			doc.title = entry.getTitle().getPlainText();
+			doc.updated = entry.getUpdated().getValue();
+			doc.trashed = entry.isTrashed();
+			doc.link = entry.getDocumentLink().getHref();
+			result.add(doc);
+		}
+		return result;
+	}
+	
+	/**
+	 * Create the XML Device element for the given documents. The generated XML 
+	 * has a URL element which allows the XSLT to use that URL to download the file 
+	 * directly from the GoogleDocs. The title of the document is used as the File's 
+	 * Name. The File's path is set to empty string. The updated time and trashed 
+	 * flag of the document give the LastModified and Deleted elements. The file 
+	 * Size is set as -1 which is rendered as "unknown" and represents unknown file 
+	 * size.
+	 * 
+	 * @param docs
+	 * @return The Node of <Device/> elements representing files in GoogleDocs account.
+	 */
+	public Node toNode(List<Doc> docs) {
+		// this object may be shared by the requests of a session.
+		Document doc;
+		synchronized (docBuilder) {
+			doc = docBuilder.newDocument();
+		}
 		Element device = doc.createElement("Device");
 		Element name = doc.createElement("Name");
 		name.appendChild(doc.createTextNode("Google Documents"));
@@ -280,13 +381,13 @@ public class GoogleDocs {
 		url.appendChild(doc.createTextNode(GDOCS_BASE_URL));
 		Element filelist = doc.createElement("FileList");
 		
-		for (Iterator<DocumentListEntry> it = feed.getEntries().iterator(); it.hasNext(); ) {
-			DocumentListEntry entry = it.next();
-			FileItem fi = new FileItem(entry.getTitle().getPlainText(), "", 
-					(new Date(entry.getUpdated().getValue())).getTime(), -1, entry.isTrashed());
+		for (Iterator<Doc> it = docs.iterator(); it.hasNext(); ) {
+			Doc entry = it.next();
+			FileItem fi = new FileItem(entry.title, "", 
+					(new Date(entry.updated)).getTime(), -1, entry.trashed);
 			Element node = (Element) fi.toNode(doc);
 			Element link = doc.createElement("URL");
-			link.setTextContent(entry.getDocumentLink().getHref());
+			link.setTextContent(entry.link);
 			node.appendChild(link);
 			filelist.appendChild(node);
 		}
@@ -312,8 +413,8 @@ public class GoogleDocs {
 		DocumentEntry doc = new DocumentEntry();
 		doc.setTitle(new PlainTextConstruct(file.getName()));
 		doc.setFile(file, mimeType);
-		DocumentListEntry entry = service.insert(new URL(GDOCS_URL), doc);
-		System.out.println("  entry=" + entry.toString());
+		DocumentListEntry entry = service.insert(new URL(feedUrl), doc);
+		log.debug("entry=" + entry.toString());
 	}
 	
 	/**
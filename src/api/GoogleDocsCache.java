@@ -0,0 +1,164 @@
+package api;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import db.Log;
+import db.TaskScheduler;
+
+/**
+ * The per-user cache of the GoogleDocs document list, so that the file listing
+ * does not wait for the remote feed. A cached feed is used as is until it is ttl
+ * old. After that it is still used, but is refreshed in the background. If the
+ * feed is missing or more than maxStale old, then the request waits for the
+ * refresh for at most timeout. If the refresh does not complete in time, then
+ * the stale feed if any is used, and the refresh continues in the background for
+ * the next request. A failed refresh is not tried again until ttl.
+ *
+ * Each feed has a version which changes only when the document list changes, so
+ * that it can be used in the entity tag of the listing.
+ */
+public class GoogleDocsCache {
+
+	private static final Log log = Log.get(GoogleDocsCache.class);
+
+	/**
+	 * The time in milliseconds after which the feed is refreshed.
+	 */
+	public static long ttl = 60000;
+
+	/**
+	 * The time in milliseconds after which the stale feed is not used without
+	 * waiting for the refresh.
+	 */
+	public static long maxStale = 600000;
+
+	/**
+	 * The maximum time in milliseconds a request waits for the refresh.
+	 */
+	public static long timeout = 2000;
+
+	/**
+	 * An immutable document list with its version and fetch time.
+	 */
+	public static class Feed {
+		public final List<GoogleDocs.Doc> docs;
+		public final long version;
+		public final long fetched;
+
+		Feed(List<GoogleDocs.Doc> docs, long version, long fetched) {
+			this.docs = Collections.unmodifiableList(docs);
+			this.version = version;
+			this.fetched = fetched;
+		}
+	}
+
+	/**
+	 * The cache entry of a user.
+	 */
+	private static class Entry {
+		volatile Feed feed;
+		volatile GoogleDocs gdocs; // the latest authenticated object to refresh with
+		Future<?> refresh;         // the pending refresh, if any
+		long failed;               // the time of last failed refresh, or 0
+	}
+
+	private static Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// refreshes two feeds at a time on the shared workers.
+	private static TaskScheduler.Limited executor = new TaskScheduler.Limited("GoogleDocsCache", 2);
+
+	/**
+	 * Get the document list of the user authenticated by the given object. This
+	 * returns null if there is no feed yet and the refresh does not complete within
+	 * the timeout.
+	 *
+	 * @param gdocs
+	 * @return
+	 */
+	public static Feed get(GoogleDocs gdocs) {
+		String username = (gdocs.getUsername() != null ? gdocs.getUsername() : "");
+		Entry entry = entries.get(username);
+		if (entry == null) {
+			synchronized (entries) {
+				entry = entries.get(username);
+				if (entry == null) {
+					entry = new Entry();
+					entries.put(username, entry);
+				}
+			}
+		}
+		entry.gdocs = gdocs;
+
+		long now = System.currentTimeMillis();
+		Feed feed = entry.feed;
+		if (feed != null && now - feed.fetched < ttl) {
+			return feed;
+		}
+
+		Future<?> refresh = refresh(entry, now);
+		if (feed != null && now - feed.fetched < maxStale || refresh == null) {
+			return feed;
+		}
+
+		// wait for the refresh within the timeout budget.
+		try {
+			refresh.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			log.warn("GoogleDocsCache timeout for " + username);
+		} catch (Exception e) {
+			log.error(e);
+		}
+		return entry.feed;
+	}
+
+	/**
+	 * Remove the cached feed of the given user, e.g., on logout.
+	 *
+	 * @param username
+	 */
+	public static void invalidate(String username) {
+		if (username != null)
+			entries.remove(username);
+	}
+
+	/**
+	 * Start the refresh of the entry unless one is pending or the last one failed
+	 * recently.
+	 *
+	 * @return the pending refresh, or null if not started.
+	 */
+	private static Future<?> refresh(final Entry entry, long now) {
+		synchronized (entry) {
+			if (entry.refresh != null && !entry.refresh.isDone())
+				return entry.refresh;
+			if (entry.failed != 0 && now - entry.failed < ttl)
+				return null;
+
+			entry.refresh = executor.submit(new Runnable() {
+				public void run() {
+					try {
+						List<GoogleDocs.Doc> docs = entry.gdocs.fetchDocs();
+						Feed old = entry.feed;
+						long version = (old == null ? 1 : old.docs.equals(docs) ? old.version : old.version + 1);
+						entry.feed = new Feed(docs, version, System.currentTimeMillis());
+						synchronized (entry) {
+							entry.failed = 0;
+						}
+					} catch (Exception e) {
+						log.error(e);
+						synchronized (entry) {
+							entry.failed = System.currentTimeMillis();
+						}
+					}
+				}
+			});
+			return entry.refresh;
+		}
+	}
+}
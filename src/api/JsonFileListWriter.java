@@ -0,0 +1,222 @@
+package api;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Write the file list in JSON. The mapping from the XML elements is as follows:
+ * an element with only text is a string member, e.g., "Name": "file.txt". Any
+ * other element is an object with its attributes as string members, its child
+ * elements as members and its text, if any, as the "value" member. The Devices,
+ * Device, FileList, File and Backup elements are always objects. The repeating
+ * Device, File and Location elements are collected in an array member of that
+ * name in the parent object, e.g., "FileList": {"File": [...]}.
+ *
+ * Since the type of an element is known only after its first attribute or child,
+ * each element is kept pending until then.
+ */
+public class JsonFileListWriter extends FileListWriter {
+
+	// the element names which are written as array items.
+	private static final Set<String> ARRAY_ITEMS = new HashSet<String>(Arrays.asList(
+			new String[] {"Device", "File", "Location"}));
+	
+	// the element names which are always written as objects, even if empty.
+	private static final Set<String> OBJECTS = new HashSet<String>(Arrays.asList(
+			new String[] {"Devices", "Device", "FileList", "File", "Backup"}));
+
+	/**
+	 * The state of an open element.
+	 */
+	private static class Frame {
+		String name;
+		boolean arrayItem;     // whether this is an item of an array in parent
+		boolean object;        // whether "{" is written, else pending
+		boolean first = true;  // whether no member is written yet in this object
+		boolean hasChildren;   // whether a child element is written
+		String openArray;      // name of the currently open array member
+		boolean firstItem;     // whether no item is written yet in the open array
+		StringBuilder text = new StringBuilder();
+	}
+
+	private Writer out;
+	private List<Frame> stack = new ArrayList<Frame>();
+
+	/**
+	 * Construct a new writer on the given stream using UTF-8 encoding.
+	 *
+	 * @param stream
+	 * @throws IOException
+	 */
+	public JsonFileListWriter(OutputStream stream) throws IOException {
+		out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+	}
+
+	@Override
+	public void startElement(String name) throws IOException {
+		Frame parent = top();
+		if (parent != null) {
+			startObject(parent);
+			parent.hasChildren = true;
+		}
+		Frame frame = new Frame();
+		frame.name = name;
+		frame.arrayItem = (parent != null && ARRAY_ITEMS.contains(name));
+		stack.add(frame);
+	}
+
+	@Override
+	public void attribute(String name, String value) throws IOException {
+		Frame frame = top();
+		startObject(frame);
+		closeArray(frame);
+		separator(frame);
+		writeString(name);
+		out.write(':');
+		writeString(value);
+	}
+
+	@Override
+	public void text(String value) throws IOException {
+		if (value != null)
+			top().text.append(value);
+	}
+
+	@Override
+	public void endElement() throws IOException {
+		Frame frame = top();
+		if (!frame.object && OBJECTS.contains(frame.name)) {
+			startObject(frame);
+		}
+		if (!frame.object) {
+			// an element with only text
+			startMember(frame);
+			writeString(frame.text.toString());
+		}
+		else {
+			closeArray(frame);
+			String text = frame.text.toString();
+			if (!frame.hasChildren && text.trim().length() > 0) {
+				separator(frame);
+				writeString("value");
+				out.write(':');
+				writeString(text);
+			}
+			out.write('}');
+		}
+		stack.remove(stack.size() - 1);
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Get the current element, or null at the top.
+	 */
+	private Frame top() {
+		return stack.isEmpty() ? null : stack.get(stack.size() - 1);
+	}
+
+	/**
+	 * Get the parent element of the given element, or null for the top element.
+	 */
+	private Frame parentOf(Frame frame) {
+		int index = stack.lastIndexOf(frame);
+		return index > 0 ? stack.get(index - 1) : null;
+	}
+
+	/**
+	 * Write the "{" for the given element if not already done.
+	 */
+	private void startObject(Frame frame) throws IOException {
+		if (!frame.object) {
+			startMember(frame);
+			out.write('{');
+			frame.object = true;
+		}
+	}
+
+	/**
+	 * Write the member name, or the array item separator, for the given element
+	 * in its parent.
+	 */
+	private void startMember(Frame frame) throws IOException {
+		Frame parent = parentOf(frame);
+		if (parent == null)
+			return;
+
+		if (frame.arrayItem) {
+			if (!frame.name.equals(parent.openArray)) {
+				closeArray(parent);
+				separator(parent);
+				writeString(frame.name);
+				out.write(":[");
+				parent.openArray = frame.name;
+				parent.firstItem = true;
+			}
+			if (!parent.firstItem)
+				out.write(',');
+			parent.firstItem = false;
+		}
+		else {
+			closeArray(parent);
+			separator(parent);
+			writeString(frame.name);
+			out.write(':');
+		}
+	}
+
+	/**
+	 * Write the member separator in the given object if needed.
+	 */
+	private void separator(Frame frame) throws IOException {
+		if (!frame.first)
+			out.write(',');
+		frame.first = false;
+	}
+
+	/**
+	 * Close the open array member of the given object, if any.
+	 */
+	private void closeArray(Frame frame) throws IOException {
+		if (frame.openArray != null) {
+			out.write(']');
+			frame.openArray = null;
+		}
+	}
+
+	/**
+	 * Write a quoted and escaped JSON string.
+	 */
+	private void writeString(String value) throws IOException {
+		out.write('"');
+		for (int i=0; i<value.length(); ++i) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"': out.write("\\\""); break;
+			case '\\': out.write("\\\\"); break;
+			case '\n': out.write("\\n"); break;
+			case '\r': out.write("\\r"); break;
+			case '\t': out.write("\\t"); break;
+			default:
+				if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				}
+				else {
+					out.write(c);
+				}
+			}
+		}
+		out.write('"');
+	}
+}
@@ -9,6 +9,7 @@ import org.restlet.data.Response;
 import org.restlet.data.Status;
 
 import db.Database;
+import db.Log;
   
 /**
  * The login resource performs authentication using GoogleDocs's class and
@@ -20,6 +21,8 @@ import db.Database;
  */
 public class LoginResource extends BaseResource {  
 
+	private static final Log log = Log.get(LoginResource.class);
+
 	public static final String FILE_LIST_URL = "/all/html/filelist";
 	
 	/**
@@ -41,11 +44,11 @@ public class LoginResource extends BaseResource {
 		try {
 			db.addUsername(username);
 		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+			log.error(e);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error(e);
 		} catch (NamingException e) {
-			e.printStackTrace();
+			log.error(e);
 		}
 		
 		response.setLocationRef(FILE_LIST_URL);
@@ -11,7 +11,8 @@ import org.restlet.resource.StringRepresentation;
 import org.restlet.resource.Variant;
   
 /**
- * The logout resource clears the cookies and sends the user to the login page.
+ * The logout resource clears the cookies and the cached session, and sends the user 
+ * to the login page.
  * 
  * @see GoogleDocs
  */
@@ -28,6 +29,13 @@ public class LogoutResource extends Resource {
     	
         super(context, request, response);
   
+		// remove the cached session and documents list of this user.
+		String key = GoogleDocs.findToken(request);
+		if (key != null) {
+			SessionCache.invalidate(key);
+			GoogleDocsCache.invalidate(key.substring(0, key.indexOf(' ')));
+		}
+		
 		GoogleDocs gdocs = new GoogleDocs();
 		gdocs.clearCookie(request, response);
 
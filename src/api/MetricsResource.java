@@ -0,0 +1,52 @@
+package api;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.restlet.Context;  
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;  
+import org.restlet.data.Response;  
+import org.restlet.data.Status;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Resource;  
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.StringRepresentation;
+import org.restlet.resource.Variant;
+
+import db.Metrics;
+  
+/**
+ * The metrics resource returns the counters, gauges and latency histograms of this
+ * device in the Prometheus text format, for GET /metrics.
+ * 
+ * @see Metrics
+ */
+public class MetricsResource extends Resource {  
+  
+	/**
+	 * Construct the resource.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param response
+	 */
+    public MetricsResource(Context context, Request request, Response response) {
+        super(context, request, response);
+		getVariants().add(new Variant(MediaType.TEXT_PLAIN));
+    }
+
+    /** 
+	 * Returns the current metrics. 
+	 */  
+	@Override  
+	public Representation represent(Variant variant) throws ResourceException {
+		StringWriter out = new StringWriter();
+		try {
+			Metrics.write(out);
+		} catch (IOException e) {
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e);
+		}
+		return new StringRepresentation(out.toString(), MediaType.TEXT_PLAIN);
+    }  
+}
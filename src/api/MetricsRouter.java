@@ -0,0 +1,63 @@
+package api;
+
+import org.restlet.Context;
+import org.restlet.Restlet;
+import org.restlet.Route;
+import org.restlet.Router;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+
+import db.Metrics;
+
+/**
+ * The router which also records the latency and the status of the requests, by the
+ * pattern of the matched route and the method, e.g., 
+ * route="/{devicename}/xml/filelist",method="GET". The route of the default 
+ * resource is "default". The latency is until the resource returns the response, 
+ * and does not include writing the response entity.
+ */
+public class MetricsRouter extends Router {
+
+	private static final String ROUTE = "api.MetricsRouter.route";
+
+	/**
+	 * Construct the router.
+	 * 
+	 * @param context
+	 */
+	public MetricsRouter(Context context) {
+		super(context);
+	}
+
+	/**
+	 * Remember the matched route in the request, for the metrics.
+	 */
+	@Override
+	public Restlet getNext(Request request, Response response) {
+		Restlet result = super.getNext(request, response);
+		if (result instanceof Route) {
+			String pattern = ((Route) result).getTemplate().getPattern();
+			request.getAttributes().put(ROUTE, pattern == null || pattern.length() == 0 ? "default" : pattern);
+		}
+		return result;
+	}
+
+	/**
+	 * Handle the request, and record its latency and status.
+	 */
+	@Override
+	public void handle(Request request, Response response) {
+		long start = System.nanoTime();
+		try {
+			super.handle(request, response);
+		} finally {
+			Object route = request.getAttributes().get(ROUTE);
+			String name = (route != null ? route.toString() : "none");
+			String method = request.getMethod().getName();
+			Metrics.histogram("filesync_request_seconds", "Time to handle the HTTP requests", 
+					"route", name, "method", method).observeNanos(System.nanoTime() - start);
+			Metrics.counter("filesync_requests_total", "Number of the HTTP requests", 
+					"route", name, "method", method, "status", String.valueOf(response.getStatus().getCode())).inc();
+		}
+	}
+}
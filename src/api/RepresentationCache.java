@@ -0,0 +1,86 @@
+package api;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.restlet.data.MediaType;
+import org.restlet.data.Tag;
+import org.restlet.resource.Representation;
+import org.restlet.resource.StringRepresentation;
+
+/**
+ * A small cache of rendered representations, indexed by a key such as
+ * user, device, query and variant. Each entry remembers the entity tag it was
+ * rendered for, so that a lookup with a different tag is a miss. The least
+ * recently used entry is dropped when the cache is full.
+ *
+ * All the methods are thread safe.
+ */
+public class RepresentationCache {
+
+	/**
+	 * A cached entry with the rendered text and its tag.
+	 */
+	private static class Entry {
+		Tag tag;
+		String text;
+		MediaType mediaType;
+	}
+
+	// the entries in access order, so that the eldest is least recently used.
+	private Map<String, Entry> entries;
+
+	/**
+	 * Construct a new cache which keeps at most capacity entries.
+	 *
+	 * @param capacity
+	 */
+	public RepresentationCache(final int capacity) {
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Get the cached representation for the given key if it was rendered for the
+	 * same tag. Otherwise return null.
+	 *
+	 * @param key
+	 * @param tag
+	 * @return
+	 */
+	public synchronized Representation get(String key, Tag tag) {
+		Entry entry = entries.get(key);
+		if (entry == null || !entry.tag.equals(tag))
+			return null;
+		Representation result = new StringRepresentation(entry.text, entry.mediaType);
+		result.setTag(entry.tag);
+		return result;
+	}
+
+	/**
+	 * Store the rendered text for the given key and tag, replacing any older entry.
+	 *
+	 * @param key
+	 * @param tag
+	 * @param text
+	 * @param mediaType
+	 */
+	public synchronized void put(String key, Tag tag, String text, MediaType mediaType) {
+		Entry entry = new Entry();
+		entry.tag = tag;
+		entry.text = text;
+		entry.mediaType = mediaType;
+		entries.put(key, entry);
+	}
+
+	/**
+	 * Remove all the entries.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+}
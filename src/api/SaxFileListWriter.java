@@ -0,0 +1,99 @@
+package api;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Write the file list as SAX events to a content handler, e.g., the transformer
+ * handler of the HTML stylesheet. This avoids writing the XML and parsing it again
+ * before the transformation. Since the SAX start element event needs all the
+ * attributes, the element is kept pending until its first text or child element.
+ */
+public class SaxFileListWriter extends FileListWriter {
+
+	private ContentHandler handler;
+	
+	// the names of the open elements, with the current element first.
+	private LinkedList<String> names = new LinkedList<String>();
+	
+	// the pending element's attributes, or null if no element is pending.
+	private AttributesImpl attributes;
+	
+	/**
+	 * Construct a new writer and start the document.
+	 * 
+	 * @param handler
+	 * @throws IOException
+	 */
+	public SaxFileListWriter(ContentHandler handler) throws IOException {
+		this.handler = handler;
+		try {
+			handler.startDocument();
+		} catch (SAXException e) {
+			throw new IOException("SAXException: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void startElement(String name) throws IOException {
+		flush();
+		names.addFirst(name);
+		attributes = new AttributesImpl();
+	}
+
+	@Override
+	public void attribute(String name, String value) throws IOException {
+		attributes.addAttribute("", name, name, "CDATA", value);
+	}
+
+	@Override
+	public void text(String value) throws IOException {
+		flush();
+		try {
+			if (value != null && value.length() > 0)
+				handler.characters(value.toCharArray(), 0, value.length());
+		} catch (SAXException e) {
+			throw new IOException("SAXException: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void endElement() throws IOException {
+		flush();
+		try {
+			String name = names.removeFirst();
+			handler.endElement("", name, name);
+		} catch (SAXException e) {
+			throw new IOException("SAXException: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			handler.endDocument();
+		} catch (SAXException e) {
+			throw new IOException("SAXException: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Send the start element event of the pending element if any.
+	 */
+	private void flush() throws IOException {
+		if (attributes != null) {
+			try {
+				String name = names.getFirst();
+				handler.startElement("", name, name, attributes);
+			} catch (SAXException e) {
+				throw new IOException("SAXException: " + e.getMessage());
+			} finally {
+				attributes = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package api;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The cache of authenticated sessions, indexed by the username and token of the
+ * request. Each session has the GoogleDocs object that was authenticated with 
+ * that token, so that the next request with the same token reuses it without 
+ * creating a new document service or doing any remote call. A session expires 
+ * after ttl, and is removed on logout.
+ * 
+ * @see BaseResource#authenticate()
+ */
+public class SessionCache {
+
+	/**
+	 * The time in milliseconds after which a session is authenticated again.
+	 */
+	public static long ttl = 1800000;
+	
+	/**
+	 * The number of sessions after which the expired ones are removed.
+	 */
+	public static int capacity = 1000;
+	
+	/**
+	 * A cached session.
+	 */
+	private static class Session {
+		GoogleDocs gdocs;
+		long expires;
+	}
+	
+	private static Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	
+	/**
+	 * Get the authenticated object for the given key if the session has not 
+	 * expired, otherwise null.
+	 * 
+	 * @param key the username and token, see GoogleDocs.findToken
+	 * @return
+	 */
+	public static GoogleDocs get(String key) {
+		if (key == null)
+			return null;
+		Session session = sessions.get(key);
+		if (session == null)
+			return null;
+		if (session.expires < System.currentTimeMillis()) {
+			sessions.remove(key);
+			return null;
+		}
+		return session.gdocs;
+	}
+	
+	/**
+	 * Store the authenticated object for the given key.
+	 * 
+	 * @param key the username and token
+	 * @param gdocs
+	 */
+	public static void put(String key, GoogleDocs gdocs) {
+		long now = System.currentTimeMillis();
+		if (sessions.size() >= capacity) {
+			for (Iterator<Session> it=sessions.values().iterator(); it.hasNext(); ) {
+				if (it.next().expires < now)
+					it.remove();
+			}
+		}
+		
+		Session session = new Session();
+		session.gdocs = gdocs;
+		session.expires = now + ttl;
+		sessions.put(key, session);
+	}
+	
+	/**
+	 * Remove the session for the given key.
+	 * 
+	 * @param key the username and token
+	 */
+	public static void invalidate(String key) {
+		if (key != null)
+			sessions.remove(key);
+	}
+}
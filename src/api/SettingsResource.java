@@ -24,12 +24,15 @@ import org.w3c.dom.Node;
 
 import db.Database;
 import db.LocalDir;
+import db.Log;
   
 /** 
  * The SettingsResource is used to get and set the settings of the
  * user's root directory.
  */  
 public class SettingsResource extends BaseResource {  
+
+	private static final Log log = Log.get(SettingsResource.class);
   
 	/**
 	 * Construct the resource.
@@ -90,7 +93,7 @@ public class SettingsResource extends BaseResource {
 				// this is for setting the local directory
 				newValue = URLDecoder.decode(newValue, "US-ASCII");
 				
-				System.out.println("  set settings=" + newValue);
+				log.info("set settings=" + newValue);
 				Database db = Database.getInstance();
 				
 				db.setUserLocalDir(gdocs.getUsername(), newValue);
@@ -100,16 +103,16 @@ public class SettingsResource extends BaseResource {
 						(localDir != null ? "Changed rootdir to " + localDir : ""), MediaType.TEXT_PLAIN);
 			}
 		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "XPathExpressionException");
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "InterruptedException");
 		} catch (UnsupportedEncodingException e1) {
-			e1.printStackTrace();
+			log.error(e1);
 			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "UnsupportedEncodingException");
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "IOException");
 		}
     }  
@@ -0,0 +1,98 @@
+package api;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamSource;
+import db.Log;
+
+/**
+ * The cache of compiled stylesheets indexed by the file path. The compiled 
+ * Templates object is thread safe, hence it is shared by all the requests. The
+ * stylesheet is compiled again only if the file's modification time or size
+ * changes, so that an edited stylesheet is used without restarting.
+ */
+public class StylesheetCache {
+
+	private static final Log log = Log.get(StylesheetCache.class);
+
+	/**
+	 * A compiled stylesheet with the file state it was compiled from.
+	 */
+	private static class Entry {
+		long lastModified;
+		long length;
+		Templates templates;
+	}
+	
+	private static Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	
+	// the factory is not thread safe, hence all the use is synchronized on it.
+	private static SAXTransformerFactory factory = (SAXTransformerFactory) TransformerFactory.newInstance();
+	
+	/**
+	 * Get the compiled stylesheet for the given file path, compiling it if needed.
+	 * 
+	 * @param path
+	 * @return
+	 * @throws TransformerConfigurationException
+	 */
+	public static Templates getTemplates(String path) throws TransformerConfigurationException {
+		File file = new File(path);
+		long lastModified = file.lastModified();
+		long length = file.length();
+		
+		Entry entry = entries.get(path);
+		if (entry == null || entry.lastModified != lastModified || entry.length != length) {
+			// if two requests compile at the same time, then the last one is kept.
+			entry = new Entry();
+			entry.lastModified = lastModified;
+			entry.length = length;
+			synchronized (factory) {
+				entry.templates = factory.newTemplates(new StreamSource(file));
+			}
+			entries.put(path, entry);
+			log.debug("compiled stylesheet " + path);
+		}
+		return entry.templates;
+	}
+	
+	/**
+	 * Get the version of the stylesheet file, which changes whenever the file is
+	 * modified. This is used in the entity tag of the transformed response.
+	 * 
+	 * @param path
+	 * @return
+	 */
+	public static String getVersion(String path) {
+		File file = new File(path);
+		return Long.toHexString(file.lastModified()) + "." + Long.toHexString(file.length());
+	}
+	
+	/**
+	 * Create a new handler which applies the given stylesheet on the SAX events
+	 * sent to it.
+	 * 
+	 * @param templates
+	 * @return
+	 * @throws TransformerConfigurationException
+	 */
+	public static TransformerHandler newTransformerHandler(Templates templates) throws TransformerConfigurationException {
+		synchronized (factory) {
+			return factory.newTransformerHandler(templates);
+		}
+	}
+	
+	/**
+	 * Remove all the compiled stylesheets.
+	 */
+	public static void clear() {
+		entries.clear();
+	}
+}
@@ -20,6 +20,7 @@ import com.google.gdata.util.AuthenticationException;
 
 import db.Database;
 import db.FileUtil;
+import db.Log;
 
 /** 
  * Resource which represents a single file, and is used to upload the file to 
@@ -29,6 +30,8 @@ import db.FileUtil;
  * successful, it prints the appropriate message for that.
  */  
 public class UploadResource extends BaseResource {  
+
+	private static final Log log = Log.get(UploadResource.class);
   
 	// construct the resource
     public UploadResource(Context context, Request request, Response response) {
@@ -73,10 +76,10 @@ public class UploadResource extends BaseResource {
 			try {
 				filename = FileUtil.getFullPath(filename, db.getUserLocalDir(gdocs.getUsername()));
 			} catch (XPathExpressionException e) {
-				e.printStackTrace();
+				log.error(e);
 				throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				log.error(e);
 				throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
 			}
 	        
@@ -92,17 +95,17 @@ public class UploadResource extends BaseResource {
 			
 			return new StringRepresentation("Upload successful", MediaType.TEXT_PLAIN);
 		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
+			log.error(e);
 			response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
 			return new StringRepresentation("Unsupported encoding for filename", MediaType.TEXT_PLAIN);
 		} catch (AuthenticationException e) {
 			// if there is an authentication error, then re-start the authentication
-			e.printStackTrace();
+			log.error(e);
 			gdocs.startAuth(request, response);
 			return null;
 		} catch (Exception e) {
 			// for all other errors, respond with the error.
-			e.printStackTrace();
+			log.error(e);
     		response.setStatus(Status.SERVER_ERROR_INTERNAL);
 			return new StringRepresentation("Error: " + e.getMessage(), MediaType.TEXT_PLAIN);
 		}
@@ -0,0 +1,83 @@
+package api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Write the file list in XML using the StAX stream writer. The result is same as
+ * the earlier DOM based response, but without indentation.
+ */
+public class XmlFileListWriter extends FileListWriter {
+
+	// the factory is thread safe once configured.
+	private static XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+	private XMLStreamWriter writer;
+
+	/**
+	 * Construct a new writer and write the XML declaration.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public XmlFileListWriter(OutputStream out) throws IOException {
+		try {
+			writer = factory.createXMLStreamWriter(out, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+		} catch (XMLStreamException e) {
+			throw new IOException("XMLStreamException: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void startElement(String name) throws IOException {
+		try {
+			writer.writeStartElement(name);
+		} catch (XMLStreamException e) {
+			throw new IOException("XMLStreamException: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void attribute(String name, String value) throws IOException {
+		try {
+			writer.writeAttribute(name, value);
+		} catch (XMLStreamException e) {
+			throw new IOException("XMLStreamException: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void text(String value) throws IOException {
+		try {
+			if (value != null && value.length() > 0)
+				writer.writeCharacters(value);
+		} catch (XMLStreamException e) {
+			throw new IOException("XMLStreamException: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void endElement() throws IOException {
+		try {
+			writer.writeEndElement();
+		} catch (XMLStreamException e) {
+			throw new IOException("XMLStreamException: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			writer.writeEndDocument();
+			writer.flush();
+			writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("XMLStreamException: " + e.getMessage());
+		}
+	}
+}
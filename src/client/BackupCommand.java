@@ -7,11 +7,18 @@ import org.restlet.data.Response;
  * 
  * >>> backup path/to/file 2
  * GET /backupdata/path/to/file?command=backup&count=2
+ * 
+ * >>> backup path/to/dir/ 2
+ * GET /backupdata/path/to/dir/?command=backup&recursive=true&count=2
+ * >>> backup path/to/dir/*.jpg 2
+ * GET /backupdata/path/to/dir/?command=backup&recursive=true&matches=*.jpg&count=2
  */
 public class BackupCommand implements IClientCommand {
 	
 	public static final String usage = "path/to/file [count]\n" +
 			" initiate backup of the specified file on the logged in computer.\n" +
+			" a path ending with / or having * or ? backs up all the matching files in\n" +
+			" that directory tree as a job, whose progress is shown by the jobs command.\n" +
 			" count controls the number of backups to create other than primary.\n" +
 			" default value for count is 1.";
 	
@@ -21,6 +28,15 @@ public class BackupCommand implements IClientCommand {
 		int count = parts.length < 2 ? 1 : Integer.parseInt(parts[1]);
 		
 		ClientWithToken client = new ClientWithToken();
+		if (JobsCommand.isTree(path)) {
+			Response response = client.get("/backupdata/" + JobsCommand.getTreeQuery(path, "backup") + "&count=" + count);
+			if (response.getStatus().isSuccess())
+				System.out.println("backup initiated as job " + JobsCommand.getJobId(response));
+			else
+				System.out.println("backup failed: " + response.getStatus().toString());
+			return;
+		}
+		
 		Response response = client.get("/backupdata/" + path + "?command=backup&count=" + count);
 		if (response.getStatus().isSuccess()) {
 			System.out.println("backup initiated");
@@ -17,6 +17,11 @@ public class ClientConfig {
 	
 	private static ClientConfig instance;
 	
+	// the maximum time to wait for the responses of a multicast query, and the
+	// time without a response after which the query is done, in milliseconds.
+	private static final long QUERY_WAIT = 300;
+	private static final long QUIET_WAIT = 30;
+	
 	private NameClient nameClient;
 	private DeviceMulticastUpdater updater;
 	
@@ -38,22 +43,13 @@ public class ClientConfig {
 	/**
 	 * Set the name server "address:port". It will create either a client serve name-client
 	 * or a multicast device updater, depending on whether the address is a unicast or
-	 * multicast address.
+	 * multicast address. A comma separated list of replicated name servers may be
+	 * given, and the name-client fails over among them.
 	 *  
 	 * @param value
 	 */
 	public void setNameServer(String value) {
-		String[] parts = value.split(":");
-		String nameserver_ip;
-		int nameserver_port;
-		if (parts.length == 2) {
-			nameserver_ip = parts[0];
-			nameserver_port = Integer.parseInt(parts[1]);
-		}
-		else {
-			nameserver_ip = value;
-			nameserver_port = 2500;
-		}
+		Device[] servers = NameClient.parse(value, 2500);
 		if (updater != null) {
 			updater = null;
 		}
@@ -63,18 +59,17 @@ public class ClientConfig {
 		
 		InetAddress address = null;
 		try {
-			address = InetAddress.getByName(nameserver_ip);
+			address = InetAddress.getByName(servers[0].getIp());
 		} catch (UnknownHostException e) {
 			e.printStackTrace();
 		}
-		Device ns = new Device(nameserver_ip, nameserver_port);
 		if (address == null || address.isMulticastAddress()) {
-			updater = new DeviceMulticastUpdater(ns, null);
+			updater = new DeviceMulticastUpdater(servers[0], null);
         	Thread th0 = new Thread(updater);
         	th0.start();
 		}
 		else {
-			nameClient = new NameClient(ns);
+			nameClient = new NameClient(servers);
 		}
 	}
 	
@@ -100,10 +95,18 @@ public class ClientConfig {
 			result = nameClient.getDevices();
 		}
 		else if (updater != null) {
-			updater.multicastQuery();
+			// wait for the first response, and then until no more responses
+			// arrive for a short time, but not more than the total wait.
 			updater.clearDevices();
+			long version = updater.getVersion();
+			long deadline = System.currentTimeMillis() + QUERY_WAIT;
+			updater.multicastQuery();
 			try {
-				Thread.sleep(300);
+				long current = updater.awaitChange(version, QUERY_WAIT);
+				while (current != version && System.currentTimeMillis() < deadline) {
+					version = current;
+					current = updater.awaitChange(version, Math.min(QUIET_WAIT, deadline - System.currentTimeMillis()));
+				}
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
@@ -9,6 +9,7 @@ import org.restlet.data.Request;
 import org.restlet.data.Response;
 import org.restlet.resource.Representation;
 
+import db.Compression;
 import dev.Device;
 
 /**
@@ -53,6 +54,7 @@ public class ClientWithToken {
 		else
 			url = loginDevice.getURL() + path;
 		Request request = new Request(Method.GET, url);
+		Compression.accept(request.getClientInfo());
 		Form authForm = new Form();
 		authForm.add("x-token", LoginCommand.loadToken());
 		request.getAttributes().put("org.restlet.http.headers", authForm);
@@ -0,0 +1,133 @@
+package client;
+
+import org.restlet.data.Reference;
+import org.restlet.data.Response;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Implement the "jobs" command in the client, which shows the progress of the
+ * backup and restore jobs of directory trees.
+ *
+ * >>> jobs
+ * GET /jobs
+ * >>> jobs 3
+ * GET /jobs/3
+ *
+ * @author Mamta
+ */
+public class JobsCommand implements IClientCommand {
+
+	public static final String usage = "[id]\n" +
+			" show the progress of the backup and restore jobs of the logged in computer.\n" +
+			" if id is specified, then show only that job with its failed files.";
+
+	public void exec(String args) {
+		String id = (args != null ? args.trim() : "");
+		ClientWithToken client = new ClientWithToken();
+		Response response = client.get(id.length() > 0 ? "/jobs/" + id : "/jobs");
+		if (!response.getStatus().isSuccess()) {
+			System.out.println("jobs failed: " + response.getStatus().toString());
+			return;
+		}
+		try {
+			Document doc = response.getEntityAsDom().getDocument();
+			NodeList jobs = doc.getElementsByTagName("Job");
+			for (int i=0; i<jobs.getLength(); ++i) {
+				Element job = (Element) jobs.item(i);
+				print(job);
+				NodeList failed = job.getElementsByTagName("Failed");
+				for (int j=0; id.length() > 0 && j<failed.getLength(); ++j)
+					System.out.println("  failed " + failed.item(j).getTextContent());
+			}
+		} catch (Exception e) {
+			System.out.println("jobs failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Check whether the path is a directory tree, i.e., ends with "/" or has a
+	 * glob pattern in the file name.
+	 *
+	 * @param path
+	 * @return
+	 */
+	static boolean isTree(String path) {
+		return path.endsWith("/") || path.indexOf('*') >= 0 || path.indexOf('?') >= 0;
+	}
+
+	/**
+	 * Get the request path and query for the command on the given directory tree,
+	 * e.g., "photos/*.jpg" becomes "photos/?command=backup&recursive=true&matches=*.jpg".
+	 *
+	 * @param path
+	 * @param command
+	 * @return
+	 */
+	static String getTreeQuery(String path, String command) {
+		String dir = path;
+		String matches = null;
+		if (!path.endsWith("/")) {
+			int index = path.lastIndexOf('/');
+			dir = path.substring(0, index + 1);
+			matches = path.substring(index + 1);
+		}
+		return dir + "?command=" + command + "&recursive=true"
+			+ (matches != null ? "&matches=" + Reference.encode(matches) : "");
+	}
+
+	/**
+	 * Get the job id from the Location of the response, or null.
+	 *
+	 * @param response
+	 * @return
+	 */
+	static String getJobId(Response response) {
+		Reference location = response.getLocationRef();
+		return (location != null ? location.getLastSegment() : null);
+	}
+
+	/**
+	 * Print the progress of the given job and wait until it is finished.
+	 *
+	 * @param client
+	 * @param id
+	 * @throws InterruptedException
+	 */
+	static void waitFor(ClientWithToken client, String id) throws InterruptedException {
+		String last = null;
+		while (true) {
+			Response response = client.get("/jobs/" + id);
+			if (!response.getStatus().isSuccess()) {
+				System.out.println("job " + id + " failed: " + response.getStatus().toString());
+				return;
+			}
+			Element job;
+			try {
+				job = response.getEntityAsDom().getDocument().getDocumentElement();
+			} catch (Exception e) {
+				System.out.println("job " + id + " failed: " + e.getMessage());
+				return;
+			}
+			String progress = job.getAttribute("done") + "/" + job.getAttribute("failed");
+			if (!progress.equals(last)) {
+				print(job);
+				last = progress;
+			}
+			if (!"running".equals(job.getAttribute("state")))
+				return;
+			Thread.sleep(1000);
+		}
+	}
+
+	/**
+	 * Print the given Job element.
+	 */
+	private static void print(Element job) {
+		System.out.println("job " + job.getAttribute("id") + " " + job.getAttribute("command") + " "
+				+ job.getAttribute("path") + " " + job.getAttribute("state") + ": "
+				+ job.getAttribute("done") + " of " + job.getAttribute("total") + " done, "
+				+ job.getAttribute("failed") + " failed");
+	}
+}
@@ -27,23 +27,63 @@ import db.FileItem;
  */
 public class ListCommand implements IClientCommand {
 
-	public static final String usage = "[fname | *part* | dev:fname | dev:*part* | dev:]\n" +
+	public static final String usage = "[-n count] [-s name|path|modified|size] [-r] [fname | *part* | dev:fname | dev:*part* | dev:]\n" +
 		" without any argument, print files in current directory on selected device.\n" +
 		" fname: print the file named 'fname' on any device in any directory.\n" +
 		" *part*: print the file name containing 'part' on any device in any directory.\n" +
 		" dev: work only on the given device name for file listing in all directory.\n" +
-		"   'all' and 'gdocs' are treated as special device names.";
+		"   'all' and 'gdocs' are treated as special device names.\n" +
+		" -n count: fetch the files in pages of at most count files.\n" +
+		" -s key: sort the files of each device by the given key.\n" +
+		" -r: sort in reverse order.";
 
 	private boolean onlyCurrentDir = false; // whether list is called without argument or not?
+	private Set<String> subdir = new HashSet<String>(); // sub-directories already printed
+	private String lastDevice = null; // device name already printed
+	private int count = 0; // number of files printed
 	
 	public void exec(String args) {
-		args = (args != null ? args.trim() : null);
-		onlyCurrentDir = (args == null || args.length() == 0);
+		args = (args != null ? args.trim() : "");
 		
-		Representation entity = getFilesList(args);
-		if (entity != null) {
-			printFiles(entity);
+		// extract the paging options before the file name argument.
+		String paging = "";
+		while (args.startsWith("-")) {
+			String[] parts = args.split("\\s+", 3);
+			if (parts[0].equals("-r")) {
+				paging += "&order=desc";
+				args = (parts.length > 1 ? args.substring(2).trim() : "");
+			}
+			else if ((parts[0].equals("-n") || parts[0].equals("-s")) && parts.length >= 2) {
+				paging += (parts[0].equals("-n") ? "&limit=" : "&sort=") + parts[1];
+				args = (parts.length > 2 ? parts[2] : "");
+			}
+			else {
+				System.out.println("invalid option: " + parts[0]);
+				return;
+			}
 		}
+		if (paging.contains("order=") && !paging.contains("sort="))
+			paging += "&sort=path";
+		
+		onlyCurrentDir = (args.length() == 0);
+		subdir.clear();
+		lastDevice = null;
+		count = 0;
+		
+		// fetch and print the pages until there is no next cursor.
+		String cursor = null;
+		do {
+			String extra = (paging.length() > 0 ? paging.substring(1) : null);
+			if (cursor != null)
+				extra = extra + "&cursor=" + cursor;
+			Representation entity = getFilesList(args, extra);
+			if (entity == null)
+				break;
+			cursor = printFiles(entity);
+		} while (cursor != null);
+		
+		if (paging.length() > 0)
+			System.out.println(count + " files");
 	}
 	
 	/**
@@ -57,6 +97,18 @@ public class ListCommand implements IClientCommand {
 	 * @return
 	 */
 	public static Representation getFilesList(String args) {
+		return getFilesList(args, null);
+	}
+	
+	/**
+	 * Get the list of files as XML representation, with the additional query
+	 * parameters such as limit, sort and cursor for paging.
+	 * 
+	 * @param args
+	 * @param extra additional query parameters, or null
+	 * @return
+	 */
+	public static Representation getFilesList(String args, String extra) {
 		ClientWithToken client = new ClientWithToken();
 		ClientConfig config = ClientConfig.getInstance();
 		String url;
@@ -87,6 +139,10 @@ public class ListCommand implements IClientCommand {
 			}
 		}
 		
+		if (extra != null) {
+			url = url + (url.contains("?") ? "&" : "?") + extra;
+		}
+		
 		Response response = client.get(url);
 		if (response.getStatus().isSuccess()) {
 			return response.getEntity();
@@ -96,17 +152,19 @@ public class ListCommand implements IClientCommand {
 	
 	/**
 	 * Print the listing of files from the XML representation received in the 
-	 * REST response.
+	 * REST response. The device name is printed only once if the same device 
+	 * continues in the next page.
 	 * 
 	 * @param entity
+	 * @return the cursor for the next page if any, otherwise null
 	 */
-	private void printFiles(Representation entity) {
+	private String printFiles(Representation entity) {
 		try {
 			DomRepresentation dom = new DomRepresentation(entity);
 			Document doc = dom.getDocument();
-			NodeList deviceNodes = doc.getFirstChild().getChildNodes();
+			Element root = (Element) doc.getFirstChild();
+			NodeList deviceNodes = root.getChildNodes();
 			if (deviceNodes != null && deviceNodes.getLength() > 0) {
-				Set<String> subdir = new HashSet<String>();
 				ClientConfig config = ClientConfig.getInstance();
 				
 				for (int i=0; i<deviceNodes.getLength(); ++i) {
@@ -114,7 +172,10 @@ public class ListCommand implements IClientCommand {
 					NodeList fileNodes = deviceNode.getElementsByTagName("FileList").item(0).getChildNodes();
 					List<FileItem> fileItems = new LinkedList<FileItem>();
 					
-					if (onlyCurrentDir && config.getCurrentDir().length() > 0) {
+					String deviceName = deviceNode.getElementsByTagName("Name").item(0).getTextContent();
+					boolean sameDevice = deviceName.equals(lastDevice);
+					
+					if (onlyCurrentDir && config.getCurrentDir().length() > 0 && !sameDevice) {
 						FileItem fileItem = new FileItem("..", "", -1, -1, false);
 						fileItems.add(fileItem);
 					}
@@ -154,8 +215,12 @@ public class ListCommand implements IClientCommand {
 					
 					SimpleDateFormat format = new SimpleDateFormat("MM-dd-yyyy HH:mm");
 					
-					System.out.println(deviceNode.getElementsByTagName("Name").item(0).getTextContent() + ": "
-							+ deviceNode.getElementsByTagName("OnlineStatus").item(0).getTextContent());
+					if (!sameDevice) {
+						System.out.println(deviceName + ": "
+								+ deviceNode.getElementsByTagName("OnlineStatus").item(0).getTextContent());
+						lastDevice = deviceName;
+					}
+					count += fileNodes.getLength();
 					for (Iterator<FileItem> it=fileItems.iterator(); it.hasNext(); ) {
 						FileItem fileItem = it.next();
 						
@@ -167,13 +232,17 @@ public class ListCommand implements IClientCommand {
 					}
 				}
 			}
-			else {
+			else if (lastDevice == null) {
 				System.out.println("no files");
 			}
+			
+			if (root.getAttribute("next").length() > 0)
+				return root.getAttribute("next");
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (NamingException e) {
 			e.printStackTrace();
 		}
+		return null;
 	}
 }
@@ -7,16 +7,37 @@ import org.restlet.data.Response;
  * 
  * >>> restore path/to/deleted-file
  * GET /backupdata/path/to/deleted-file?command=restore
+ * >>> restore path/to/dir/
+ * GET /backupdata/path/to/dir/?command=restore&recursive=true
+ * ...
+ * GET /jobs/1
  * 
  * @author Mamta
  */
 public class RestoreCommand implements IClientCommand {
 	
 	public static final String usage = "path/to/deleted-file\n" +
-			" initiate restore of the deleted file on the logged in computer.";
+			" initiate restore of the deleted file on the logged in computer.\n" +
+			" a path ending with / or having * or ? restores all the deleted matching files\n" +
+			" in that directory tree as a job, and waits until the job is finished.";
 	
 	public void exec(String args) {
 		ClientWithToken client = new ClientWithToken();
+		if (args != null && JobsCommand.isTree(args)) {
+			Response response = client.get("/backupdata/" + JobsCommand.getTreeQuery(args, "restore"));
+			String id = JobsCommand.getJobId(response);
+			if (!response.getStatus().isSuccess() || id == null) {
+				System.out.println("restore failed: " + response.getStatus().toString());
+				return;
+			}
+			try {
+				JobsCommand.waitFor(client, id);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
 		Response response = client.get("/backupdata/" + args + "?command=restore");
 		if (response.getStatus().isSuccess()) {
 			System.out.println("restore completed");
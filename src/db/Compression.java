@@ -0,0 +1,181 @@
+package db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.restlet.data.ClientInfo;
+import org.restlet.data.Encoding;
+import org.restlet.data.Preference;
+import org.restlet.resource.OutputRepresentation;
+import org.restlet.resource.Representation;
+
+/**
+ * A helper class for the compression of file data in the HTTP body using the
+ * gzip or deflate content encoding. The response is compressed only if the request
+ * accepts the encoding. The files which are already compressed, e.g., zip, jpeg
+ * or mp3 files, and small files are not compressed.
+ *
+ * The compression level defaults to the fastest, so that the compression does not
+ * slow down the transfer on a fast network.
+ *
+ * @author Mamta
+ */
+public class Compression {
+
+	/**
+	 * Whether the compression is used.
+	 */
+	public static boolean enabled = true;
+
+	/**
+	 * The compression level from 1 (fastest) to 9 (smallest).
+	 */
+	public static int level = Deflater.BEST_SPEED;
+
+	/**
+	 * The files smaller than this many bytes are not compressed.
+	 */
+	public static long minSize = 1024;
+
+	/**
+	 * The file extensions of the already compressed files.
+	 */
+	private static final String[] COMPRESSED = {
+		"7z", "aac", "apk", "avi", "bz2", "cab", "docx", "flac", "gif", "gz", "heic",
+		"jar", "jpeg", "jpg", "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "mpeg", "mpg",
+		"odp", "ods", "odt", "ogg", "png", "pptx", "rar", "tgz", "webm", "webp", "wma",
+		"wmv", "xlsx", "xz", "z", "zip"
+	};
+
+	/**
+	 * Check whether the file with the given name and size is worth compressing.
+	 *
+	 * @param name the file name
+	 * @param size the file size in bytes, or -1 if not known
+	 * @return
+	 */
+	public static boolean isCompressible(String name, long size) {
+		if (!enabled || size >= 0 && size < minSize)
+			return false;
+		int index = name.lastIndexOf('.');
+		if (index >= 0) {
+			String ext = name.substring(index + 1).toLowerCase();
+			for (int i=0; i<COMPRESSED.length; ++i) {
+				if (COMPRESSED[i].equals(ext))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the encoding to use for the response to the client, or null if the
+	 * client does not accept gzip or deflate.
+	 *
+	 * @param clientInfo
+	 * @return
+	 */
+	public static Encoding getEncoding(ClientInfo clientInfo) {
+		if (!enabled || clientInfo == null)
+			return null;
+		boolean deflate = false;
+		List<Preference<Encoding>> accepted = clientInfo.getAcceptedEncodings();
+		for (int i=0; accepted != null && i<accepted.size(); ++i) {
+			Preference<Encoding> pref = accepted.get(i);
+			if (pref.getQuality() <= 0)
+				continue;
+			if (Encoding.GZIP.equals(pref.getMetadata()))
+				return Encoding.GZIP;
+			if (Encoding.DEFLATE.equals(pref.getMetadata()))
+				deflate = true;
+		}
+		return (deflate ? Encoding.DEFLATE : null);
+	}
+
+	/**
+	 * Add the encodings accepted by this application to the request.
+	 *
+	 * @param clientInfo of the request
+	 */
+	public static void accept(ClientInfo clientInfo) {
+		if (enabled) {
+			clientInfo.getAcceptedEncodings().add(new Preference<Encoding>(Encoding.GZIP));
+			clientInfo.getAcceptedEncodings().add(new Preference<Encoding>(Encoding.DEFLATE));
+			clientInfo.getAcceptedEncodings().add(new Preference<Encoding>(Encoding.IDENTITY));
+		}
+	}
+
+	/**
+	 * Wrap the output stream so that the data written to it is compressed with
+	 * the given encoding. The caller must call finish on the result.
+	 *
+	 * @param out
+	 * @param encoding gzip or deflate
+	 * @return
+	 * @throws IOException
+	 */
+	public static DeflaterOutputStream encode(OutputStream out, Encoding encoding) throws IOException {
+		if (Encoding.GZIP.equals(encoding)) {
+			final int gzipLevel = level;
+			return new GZIPOutputStream(out, 8192) {
+				{
+					def.setLevel(gzipLevel);
+				}
+			};
+		}
+		return new DeflaterOutputStream(out, new Deflater(level), 8192);
+	}
+
+	/**
+	 * Get a representation which writes the data of the given representation
+	 * compressed with the given encoding. If the encoding is null, the given
+	 * representation is returned.
+	 *
+	 * @param entity
+	 * @param encoding
+	 * @return
+	 */
+	public static Representation encode(final Representation entity, final Encoding encoding) {
+		if (encoding == null)
+			return entity;
+		Representation result = new OutputRepresentation(entity.getMediaType()) {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				DeflaterOutputStream zip = encode(out, encoding);
+				entity.write(zip);
+				zip.finish();
+			}
+		};
+		result.getEncodings().add(encoding);
+		return result;
+	}
+
+	/**
+	 * Get the stream of the data of the given representation, decompressed if
+	 * it has the gzip or deflate encoding.
+	 *
+	 * @param entity
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream decode(Representation entity) throws IOException {
+		InputStream in = entity.getStream();
+		List<Encoding> encodings = entity.getEncodings();
+		for (int i=encodings.size()-1; in != null && i>=0; --i) {
+			if (Encoding.GZIP.equals(encodings.get(i)))
+				in = new GZIPInputStream(in);
+			else if (Encoding.DEFLATE.equals(encodings.get(i)))
+				in = new InflaterInputStream(in);
+			else if (!Encoding.IDENTITY.equals(encodings.get(i)))
+				throw new IOException("Unsupported encoding: " + encodings.get(i));
+		}
+		return in;
+	}
+}
@@ -1,12 +1,15 @@
 package db;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 //import java.util.concurrent.locks.ReadWriteLock;
 //import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -61,9 +64,16 @@ import com.sun.org.apache.xml.internal.serialize.XMLSerializer;
  * level element is Devices. This gives the device information to the client. Note
  * that these API return clone of the nodes hence changes to return value is not
  * updated on database, unlike the previous APIs.
+ * 
+ * The visitFiles API walks the same selection without cloning, and invokes a 
+ * Visitor for each selected device and file while holding the read-lock. The
+ * visitor copies what it needs, and must not block, e.g., on network I/O, since a
+ * waiting writer, and hence every later reader, waits for it.
  * @author Mamta
  */
 public class Database {
+
+	private static final Log log = Log.get(Database.class);
 	
 	private DocumentBuilderFactory docFactory;
 	private DocumentBuilder docBuilder;
@@ -71,6 +81,7 @@ public class Database {
 	private String localdevice; // the local devicename
 	private boolean dirty = false; // whether something is modified, which needs to be sent
 									// to remote in next update intervale
+	private AtomicLong catalogVersion = new AtomicLong(); // incremented on every change
 	
 	private XPathFactory xpathFactory;
 	
@@ -80,6 +91,13 @@ public class Database {
 	
 	private static Database singleton;
 	
+	// the time of the catalog queries.
+	private static final Metrics.Histogram searchTime = Metrics.histogram("filesync_catalog_query_seconds", "Time of the catalog queries including the lock wait", "query", "search");
+	private static final Metrics.Histogram visitTime = Metrics.histogram("filesync_catalog_query_seconds", "Time of the catalog queries including the lock wait", "query", "visit");
+	private static final Metrics.Histogram getFileTime = Metrics.histogram("filesync_catalog_query_seconds", "Time of the catalog queries including the lock wait", "query", "getFile");
+	private static final Metrics.Histogram getFilesUnderTime = Metrics.histogram("filesync_catalog_query_seconds", "Time of the catalog queries including the lock wait", "query", "getFilesUnder");
+	private static final Metrics.Histogram copyFilesTime = Metrics.histogram("filesync_catalog_query_seconds", "Time of the catalog queries including the lock wait", "query", "copyFiles");
+	
 	/**
 	 * The singleton instance of the database.
 	 */
@@ -88,7 +106,7 @@ public class Database {
 			try {
 				singleton = new Database();
 			} catch (ParserConfigurationException e) {
-				e.printStackTrace();
+				log.error(e);
 			}
 		}
 		return singleton;
@@ -113,7 +131,7 @@ public class Database {
 		xpathFactory = XPathFactory.newInstance();
 	
 		//lock = new ReentrantReadWriteLock();
-		lock = new MyReadWriteLock();
+		lock = new MyReadWriteLock("database");
 	}
 	
 	/**
@@ -151,6 +169,20 @@ public class Database {
 	 */
 	public void setDirty() {
 		dirty = true;
+		catalogVersion.incrementAndGet();
+	}
+	
+	/**
+	 * Get the catalog version of the database. Unlike the per-device version
+	 * attribute which is incremented once per update interval, this is incremented
+	 * on every change to the database, including device status and backup changes.
+	 * Resources use this to tag their responses so that a client can do a
+	 * conditional GET.
+	 * 
+	 * @return
+	 */
+	public long getCatalogVersion() {
+		return catalogVersion.get();
 	}
 	
 	/**
@@ -166,6 +198,7 @@ public class Database {
 		lock.getWriteLock();
 		try {
 			dirty = true;
+			catalogVersion.incrementAndGet();
 			doc = docBuilder.parse(new File(fileName));
 		}
 		finally {
@@ -206,6 +239,7 @@ public class Database {
 	 * @throws InterruptedException 
 	 */
 	public NodeList search(String query) throws XPathExpressionException, InterruptedException{
+		long start = System.nanoTime();
 		lock.getReadLock();
 		try {
 			XPath xpath = xpathFactory.newXPath();
@@ -215,6 +249,7 @@ public class Database {
 		}
 		finally {
 			lock.releaseReadLock();
+			searchTime.observeNanos(System.nanoTime() - start);
 		}
 	}
 	
@@ -293,7 +328,7 @@ public class Database {
 	public Node searchAlt(String deviceQuery, String fileQuery) throws XPathExpressionException, InterruptedException{
 		lock.getReadLock();
 		try {
-			System.out.println("  searchAlt deviceQuery=" + deviceQuery + ", fileQuery=" + fileQuery);
+			log.debug("searchAlt deviceQuery=" + deviceQuery + ", fileQuery=" + fileQuery);
 			XPath xpath = xpathFactory.newXPath();
 			NodeList devices = (NodeList) xpath.evaluate(deviceQuery, doc, XPathConstants.NODESET);
 			Element devicesNode = doc.createElement("Devices");
@@ -341,6 +376,127 @@ public class Database {
 		return searchAlt("/Database/User[@name='" + userName + "']/Devices/Device" + (deviceName.equals("all") ? "" : "[Name='" + deviceName + "']"), "FileList/File");
 	}
 	
+	/**
+	 * The Visitor receives the selected devices and files from visitFiles. The 
+	 * elements are the actual database nodes, not a clone, hence the visitor must
+	 * not modify them, or read them after visitFiles returns except using copyFiles.
+	 */
+	public static interface Visitor {
+		/**
+		 * When a selected device is found, before its files.
+		 * @param device
+		 */
+		public void startDevice(Element device) throws IOException;
+		
+		/**
+		 * For every file of that device which is selected by the query.
+		 * @param file
+		 */
+		public void file(Element file) throws IOException;
+		
+		/**
+		 * After all the files of that device.
+		 * @param device
+		 */
+		public void endDevice(Element device) throws IOException;
+	}
+	
+	/**
+	 * Walk the devices and files of the given user and device, and invoke the visitor
+	 * for the files selected by the query. Unlike the searchAlt functions, this does
+	 * not clone anything, so the visitor can copy only what it needs, e.g., a page.
+	 * The read lock is held while the visitor is invoked, hence the visitor must not
+	 * write to a stream or otherwise block. The devices are visited in the database
+	 * order, and deviceName of "all" selects all devices.
+	 * 
+	 * @param userName
+	 * @param deviceName
+	 * @param query
+	 * @param visitor
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public void visitFiles(String userName, String deviceName, FileQuery query, Visitor visitor) 
+			throws InterruptedException, IOException {
+		long start = System.nanoTime();
+		lock.getReadLock();
+		try {
+			Element userNode = getUserNode(userName);
+			Element devicesNode = (userNode != null ? FileQuery.getChild(userNode, "Devices") : null);
+			if (devicesNode == null)
+				return;
+			
+			for (Node node = devicesNode.getFirstChild(); node != null; node = node.getNextSibling()) {
+				if (node.getNodeType() != Node.ELEMENT_NODE || !"Device".equals(node.getNodeName()))
+					continue;
+				Element deviceNode = (Element) node;
+				if (!"all".equals(deviceName) && !deviceName.equals(FileQuery.getChildText(deviceNode, "Name")))
+					continue;
+				
+				visitor.startDevice(deviceNode);
+				Element filelistNode = FileQuery.getChild(deviceNode, "FileList");
+				for (Node file = (filelistNode != null ? filelistNode.getFirstChild() : null); file != null; file = file.getNextSibling()) {
+					if (file.getNodeType() == Node.ELEMENT_NODE && "File".equals(file.getNodeName())
+							&& query.accept((Element) file)) {
+						visitor.file((Element) file);
+					}
+				}
+				visitor.endDevice(deviceNode);
+			}
+		}
+		finally {
+			lock.releaseReadLock();
+			visitTime.observeNanos(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Get a copy of each of the given File elements, which were received by the
+	 * Visitor of visitFiles, while holding the read lock. This lets the caller
+	 * select the files in one visit, and copy them later a few at a time. The copy
+	 * is null for an element which has been removed from the database since.
+	 * 
+	 * @param files
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public List<Element> copyFiles(List<Element> files) throws InterruptedException {
+		long start = System.nanoTime();
+		lock.getReadLock();
+		try {
+			List<Element> result = new ArrayList<Element>(files.size());
+			for (int i=0; i<files.size(); ++i) {
+				Node node = files.get(i);
+				while (node != null && node != doc)
+					node = node.getParentNode();
+				result.add(node != null ? (Element) files.get(i).cloneNode(true) : null);
+			}
+			return result;
+		}
+		finally {
+			lock.releaseReadLock();
+			copyFilesTime.observeNanos(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Get the User element for the given name, or null if not found. This assumes
+	 * that the lock is held.
+	 * 
+	 * @param userName
+	 * @return
+	 */
+	private Element getUserNode(String userName) {
+		Node databaseNode = doc.getDocumentElement();
+		for (Node node = (databaseNode != null ? databaseNode.getFirstChild() : null); node != null; node = node.getNextSibling()) {
+			if (node.getNodeType() == Node.ELEMENT_NODE && "User".equals(node.getNodeName())
+					&& userName != null && userName.equals(((Element) node).getAttribute("name"))) {
+				return (Element) node;
+			}
+		}
+		return null;
+	}
+	
 	/**
 	 * Add a new fileNode for the given userName and deviceName. If the file already
 	 * exists (with same name and path), then an exception is thrown. Otherwise a
@@ -357,6 +513,7 @@ public class Database {
 		lock.getWriteLock();
 		try {
 			dirty = true;
+			catalogVersion.incrementAndGet();
 			XPath xpath = xpathFactory.newXPath();
 			Element userNode = (Element) xpath.evaluate("/Database/User[@name='" + userName + "']", doc, XPathConstants.NODE);
 			if (userNode == null) {
@@ -427,6 +584,7 @@ public class Database {
 		lock.getWriteLock();
 		try {
 			dirty = true;
+			catalogVersion.incrementAndGet();
 			XPath xpath = xpathFactory.newXPath();
 			Element userNode = (Element) xpath.evaluate("/Database/User[@name='" + userName + "']", doc, XPathConstants.NODE);
 			if (userNode == null) {
@@ -447,10 +605,13 @@ public class Database {
 			}
 			else {
 				NodeList newChildren = newFileNode.getChildNodes(); 
-				System.out.println("newChildren.getLength()=" + newChildren.getLength());
+				boolean debug = log.isDebug();
+				if (debug)
+					log.debug("newChildren.getLength()=" + newChildren.getLength());
 				for (int i=0; i<newChildren.getLength(); ++i) {
 					Node newNode =  newChildren.item(i);
-					System.out.println("checking node " + newNode.getNodeName());
+					if (debug)
+						log.debug("checking node " + newNode.getNodeName());
 					if (newNode.getNodeType() == Node.ELEMENT_NODE) {
 						String nodeName = newNode.getNodeName();
 						Element oldNode = (Element) xpath.evaluate(nodeName, existing, XPathConstants.NODE);
@@ -470,6 +631,281 @@ public class Database {
 		}
 	}
 	
+	/**
+	 * Get a copy of the File element for the given user, device, path and name, or
+	 * null if not found. A copy is returned so that the caller can read it without
+	 * holding the lock.
+	 * 
+	 * @param userName
+	 * @param deviceName
+	 * @param path
+	 * @param name
+	 * @return
+	 * @throws XPathExpressionException
+	 * @throws InterruptedException
+	 */
+	public Element getFile(String userName, String deviceName, String path, String name) 
+				throws XPathExpressionException, InterruptedException {
+		long start = System.nanoTime();
+		lock.getReadLock();
+		try {
+			XPath xpath = xpathFactory.newXPath();
+			Element existing = (Element) xpath.evaluate("/Database/User[@name='" + userName + "']/Devices/Device[string(Name)='" + deviceName 
+					+ "']/FileList/File[string(Name)='" + name + "' and string(Path)='" + path + "']", doc, XPathConstants.NODE);
+			return (existing != null ? (Element) existing.cloneNode(true) : null);
+		}
+		finally {
+			lock.releaseReadLock();
+			getFileTime.observeNanos(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Get a copy of the File elements of the given user and device which are in the
+	 * given directory or its sub-directories, and whose name matches the given glob
+	 * pattern if any. The directory is relative to the local directory, or empty for
+	 * all the files, or it may be the path of a single file.
+	 * 
+	 * @param userName
+	 * @param deviceName
+	 * @param dir
+	 * @param glob the pattern such as "*.jpg", or null
+	 * @return
+	 * @throws XPathExpressionException
+	 * @throws InterruptedException
+	 */
+	public List<Element> getFilesUnder(String userName, String deviceName, String dir, String glob) 
+				throws XPathExpressionException, InterruptedException {
+		List<Element> result = new ArrayList<Element>();
+		long start = System.nanoTime();
+		lock.getReadLock();
+		try {
+			NodeList files = getFileList(userName, deviceName);
+			for (int i=0; i<files.getLength(); ++i) {
+				Element file = (Element) files.item(i);
+				if (isUnder(file, dir, glob))
+					result.add((Element) file.cloneNode(true));
+			}
+		}
+		finally {
+			lock.releaseReadLock();
+			getFilesUnderTime.observeNanos(System.nanoTime() - start);
+		}
+		return result;
+	}
+	
+	/**
+	 * Set the Backup/@count of the files of the given user and device which are not
+	 * deleted and are under the given directory, as for getFilesUnder. The existing
+	 * Location elements are kept, so that the files which already have enough 
+	 * backups are not sent again.
+	 * 
+	 * @param userName
+	 * @param deviceName
+	 * @param dir
+	 * @param glob the pattern such as "*.jpg", or null
+	 * @param count
+	 * @return a copy of the File elements which were changed
+	 * @throws XPathExpressionException
+	 * @throws InterruptedException
+	 */
+	public List<Element> setBackupCountUnder(String userName, String deviceName, String dir, String glob, int count) 
+				throws XPathExpressionException, InterruptedException {
+		List<Element> result = new ArrayList<Element>();
+		lock.getWriteLock();
+		try {
+			NodeList files = getFileList(userName, deviceName);
+			for (int i=0; i<files.getLength(); ++i) {
+				Element file = (Element) files.item(i);
+				if (!isUnder(file, dir, glob) || "yes".equalsIgnoreCase(FileQuery.getChildText(file, "Deleted")))
+					continue;
+				Element backup = (Element) file.getElementsByTagName("Backup").item(0);
+				if (backup == null) {
+					backup = doc.createElement("Backup");
+					file.appendChild(backup);
+				}
+				backup.setAttribute("count", String.valueOf(count));
+				result.add((Element) file.cloneNode(true));
+			}
+			if (!result.isEmpty()) {
+				dirty = true;
+				catalogVersion.incrementAndGet();
+			}
+		}
+		finally {
+			lock.releaseWriteLock();
+		}
+		return result;
+	}
+	
+	/**
+	 * Get the File elements of the given user and device. The caller must hold 
+	 * the lock.
+	 */
+	private NodeList getFileList(String userName, String deviceName) throws XPathExpressionException {
+		XPath xpath = xpathFactory.newXPath();
+		return (NodeList) xpath.evaluate("/Database/User[@name='" + userName + "']/Devices/Device[string(Name)='" + deviceName 
+				+ "']/FileList/File", doc, XPathConstants.NODESET);
+	}
+	
+	/**
+	 * Check whether the given File element is under the given directory, or is the
+	 * file with that path, and its name matches the glob pattern if any.
+	 */
+	private static boolean isUnder(Element file, String dir, String glob) {
+		String path = FileQuery.getChildText(file, "Path");
+		String name = FileQuery.getChildText(file, "Name");
+		if (glob != null && !new GlobMatch().match(name, glob))
+			return false;
+		return dir.length() == 0 || path.equals(dir) || path.startsWith(dir + "/") 
+			|| (path.length() == 0 ? name : path + "/" + name).equals(dir);
+	}
+	
+	/**
+	 * Set the Backup/@count of the given file and remove its existing Location
+	 * elements.
+	 * 
+	 * @param userName
+	 * @param deviceName
+	 * @param path
+	 * @param name
+	 * @param count
+	 * @throws XPathExpressionException
+	 * @throws NameNotFoundException
+	 * @throws InterruptedException
+	 */
+	public void setBackupCount(String userName, String deviceName, String path, String name, int count) 
+				throws XPathExpressionException, NameNotFoundException, InterruptedException {
+		lock.getWriteLock();
+		try {
+			Element backup = getBackupNode(userName, deviceName, path, name);
+			if (backup == null) {
+				throw new NameNotFoundException("File not found for name=" + name + " path=" + path);
+			}
+			backup.setAttribute("count", String.valueOf(count));
+			while (backup.hasChildNodes())
+				backup.removeChild(backup.getFirstChild());
+			dirty = true;
+			catalogVersion.incrementAndGet();
+		}
+		finally {
+			lock.releaseWriteLock();
+		}
+	}
+	
+	/**
+	 * Add or replace the Location element of the given file for the backup on the
+	 * given device. The location is not added if the file was modified since the
+	 * backup was taken, i.e., if the LastModified is not the supplied modified value.
+	 * 
+	 * @param userName
+	 * @param deviceName
+	 * @param path
+	 * @param name
+	 * @param location the device name which has the backup
+	 * @param modified the LastModified value of the file that was backed up
+	 * @param checksum the SHA-1 of the backup data, or null if not known
+	 * @return true if the location was set, else false
+	 * @throws XPathExpressionException
+	 * @throws InterruptedException
+	 */
+	public boolean setBackupLocation(String userName, String deviceName, String path, String name, String location, 
+				String modified, String checksum) throws XPathExpressionException, InterruptedException {
+		lock.getWriteLock();
+		try {
+			Element backup = getBackupNode(userName, deviceName, path, name);
+			if (backup == null || !modified.equals(FileQuery.getChildText((Element) backup.getParentNode(), "LastModified"))) {
+				return false;
+			}
+			Element locationNode = doc.createElement("Location");
+			locationNode.setAttribute("modified", modified);
+			if (checksum != null)
+				locationNode.setAttribute("sha1", checksum);
+			locationNode.appendChild(doc.createTextNode(location));
+			
+			NodeList locations = backup.getElementsByTagName("Location");
+			Node oldLocation = null;
+			for (int i=0; i<locations.getLength(); ++i) {
+				if (location.equals(locations.item(i).getTextContent())) {
+					oldLocation = locations.item(i);
+					break;
+				}
+			}
+			if (oldLocation == null)
+				backup.appendChild(locationNode);
+			else
+				backup.replaceChild(locationNode, oldLocation);
+			dirty = true;
+			catalogVersion.incrementAndGet();
+			return true;
+		}
+		finally {
+			lock.releaseWriteLock();
+		}
+	}
+	
+	/**
+	 * Remove the Location element for the backup on the given device from the 
+	 * files with the given path and name of the given device, of all the users, 
+	 * e.g., if the backup was found to be corrupt.
+	 * 
+	 * @param deviceName
+	 * @param path
+	 * @param name
+	 * @param location the device name which had the backup
+	 * @return the names of the users whose file had the location
+	 * @throws XPathExpressionException
+	 * @throws InterruptedException
+	 */
+	public List<String> removeBackupLocation(String deviceName, String path, String name, String location) 
+				throws XPathExpressionException, InterruptedException {
+		List<String> result = new ArrayList<String>();
+		lock.getWriteLock();
+		try {
+			XPath xpath = xpathFactory.newXPath();
+			NodeList files = (NodeList) xpath.evaluate("/Database/User/Devices/Device[string(Name)='" + deviceName 
+					+ "']/FileList/File[string(Name)='" + name + "' and string(Path)='" + path + "']", doc, XPathConstants.NODESET);
+			for (int i=0; i<files.getLength(); ++i) {
+				NodeList locations = ((Element) files.item(i)).getElementsByTagName("Location");
+				for (int j=locations.getLength()-1; j>=0; --j) {
+					Node locationNode = locations.item(j);
+					if (location.equals(locationNode.getTextContent())) {
+						locationNode.getParentNode().removeChild(locationNode);
+						Element user = (Element) xpath.evaluate("ancestor::User", files.item(i), XPathConstants.NODE);
+						if (user != null && !result.contains(user.getAttribute("name")))
+							result.add(user.getAttribute("name"));
+					}
+				}
+			}
+			if (!result.isEmpty()) {
+				dirty = true;
+				catalogVersion.incrementAndGet();
+			}
+		}
+		finally {
+			lock.releaseWriteLock();
+		}
+		return result;
+	}
+	
+	/**
+	 * Get the Backup element of the given file, or null if not found. The caller
+	 * must hold the lock.
+	 */
+	private Element getBackupNode(String userName, String deviceName, String path, String name) throws XPathExpressionException {
+		XPath xpath = xpathFactory.newXPath();
+		Element existing = (Element) xpath.evaluate("/Database/User[@name='" + userName + "']/Devices/Device[string(Name)='" + deviceName 
+				+ "']/FileList/File[string(Name)='" + name + "' and string(Path)='" + path + "']", doc, XPathConstants.NODE);
+		if (existing == null)
+			return null;
+		Element backup = (Element) xpath.evaluate("Backup", existing, XPathConstants.NODE);
+		if (backup == null) {
+			backup = doc.createElement("Backup");
+			existing.appendChild(backup);
+		}
+		return backup;
+	}
+	
 	/**
 	 * Print a NodeList to OutputStream using XML OutputFormat in UTF-8 encoding and
 	 * using indentation. The Driver calls this to print the result of search queries
@@ -502,6 +938,18 @@ public class Database {
 		serializer.serialize((Element)node);
 	}
 	
+	/**
+	 * Get the XML node as formatted XML, e.g., to log it.
+	 * @param node
+	 * @return
+	 * @throws IOException
+	 */
+	public static String nodeToString(Node node) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		printNode(node, stream);
+		return stream.toString("UTF-8");
+	}
+	
 	/**
 	 * Add the given username in the database if it is not already there.
 	 * 
@@ -537,7 +985,10 @@ public class Database {
 			NodeList statusNodes = (NodeList) xpath.evaluate("/Database/User/Devices/Device" + (devicename != null ? "[Name='" + devicename + "']" : "") + "/OnlineStatus", doc, XPathConstants.NODESET);
 			for (int i=0; i<statusNodes.getLength(); ++i) {
 				Element statusNode = (Element) statusNodes.item(i);
-				statusNode.setTextContent(status);
+				if (!status.equals(statusNode.getTextContent())) {
+					statusNode.setTextContent(status);
+					catalogVersion.incrementAndGet();
+				}
 			}
 		}
 		finally {
@@ -606,6 +1057,7 @@ public class Database {
 		lock.getWriteLock();
 		try {
 			dirty = true;
+			catalogVersion.incrementAndGet();
 			XPath xpath = xpathFactory.newXPath();
 			// find all the users
 			NodeList userNodes = (NodeList) xpath.evaluate("/Database/User", doc, XPathConstants.NODESET);
@@ -617,7 +1069,7 @@ public class Database {
 				if (userName == null || user.equals(userName)) { // default for all user
 					if (!old_dir.equals(localDir)) {
 						// change the local_rootdir attribute
-						System.out.println("  setting localdir to " + localDir);
+						log.debug("setting localdir to " + localDir);
 						userNode.setAttribute("local_rootdir", localDir);
 						
 						//remove the filelist for the user
@@ -651,6 +1103,7 @@ public class Database {
 		lock.getWriteLock();
 		try {
 			dirty = true;
+			catalogVersion.incrementAndGet();
 			XPath xpath = xpathFactory.newXPath();
 			Node node = (Node) xpath.evaluate("/Database/User/Devices/Device[Name='" + deviceName + "']", doc, XPathConstants.NODE);
 			if (node != null) {
@@ -710,7 +1163,7 @@ public class Database {
 		try {
 			if (! "Devices".equals(other.getFirstChild().getNodeName()) ||
 				! ((Element) other.getFirstChild()).hasAttribute("localdevice")) {
-				System.out.println("  metadata update must have Devices tag");
+				log.warn("metadata update must have Devices tag");
 				return;
 			}
 
@@ -718,16 +1171,18 @@ public class Database {
 			String remotedevice = ((Element) other.getFirstChild()).getAttribute("localdevice");
 			String username = ((Element) other.getFirstChild()).getAttribute("username");
 			if (localdevice.equals(remotedevice)) {
-				System.out.println("  ignoring metadata update from this device");
+				log.debug("ignoring metadata update from this device");
 				return;
 			}
 			
+			catalogVersion.incrementAndGet();
+			
 			// create the User element if missing
 			XPath xpath = xpathFactory.newXPath();
 			if (username != null && username.length() > 0) {
 				NodeList userNodes = (NodeList) xpath.evaluate("/Database/User[@name='" + username + "']", doc, XPathConstants.NODESET);
 				if (userNodes.getLength() == 0) {
-					System.out.println("  creating User " + username);
+					log.debug("creating User " + username);
 					Element userNode = doc.createElement("User");
 					userNode.setAttribute("name", username);
 					Element devicesNode = doc.createElement("Devices");
@@ -780,7 +1235,7 @@ public class Database {
 								dirty = true;
 							}
 							
-							System.out.println("  updating with new version for device=" + newName);
+							log.debug("updating with new version for device=" + newName);
 							Node parent = oldDevice.getParentNode();
 							parent.removeChild(oldDevice);
 							parent.appendChild(doc.adoptNode(newDevice.cloneNode(true)));
@@ -792,17 +1247,17 @@ public class Database {
 					oldDevices = (NodeList) xpath.evaluate("/Database/User/Devices", doc, XPathConstants.NODESET);
 					if (oldDevices != null && oldDevices.getLength() > 0) {
 						dirty = true;
-						System.out.println("  adding to devices");
+						log.debug("adding to devices");
 						Element devicesNode = (Element) oldDevices.item(0); // use only first one.
 						devicesNode.appendChild(doc.adoptNode(newDevice.cloneNode(true)));
 					}
 					else {
-						System.out.println("  no devices found");
+						log.debug("no devices found");
 					}
 				}
 			}
 		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+			log.error(e);
 		}
 		finally {
 			lock.releaseWriteLock();
@@ -0,0 +1,75 @@
+package db;
+
+import java.util.Date;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The query to select File elements of a device without using XPath. At most
+ * one of matches, contains or modifiedSince is used, in that order, similar to
+ * the matchFiles, containFiles and modifiedFiles functions of the Database. If
+ * none is set, then all the files are selected.
+ *
+ * @author Mamta
+ */
+public class FileQuery {
+
+	public String matches;
+	public String contains;
+	public Date modifiedSince;
+
+	/**
+	 * Check whether the given File element is selected by this query.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public boolean accept(Element file) {
+		if (matches != null) {
+			return matches.equals(getChildText(file, "Name"));
+		}
+		else if (contains != null) {
+			String name = getChildText(file, "Name");
+			return name != null && name.contains(contains);
+		}
+		else if (modifiedSince != null) {
+			String modified = getChildText(file, "LastModified");
+			try {
+				return modified != null && Long.parseLong(modified.trim()) > modifiedSince.getTime();
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get the text content of the first child element with the given name, or null
+	 * if not found.
+	 *
+	 * @param parent
+	 * @param name
+	 * @return
+	 */
+	public static String getChildText(Element parent, String name) {
+		Element child = getChild(parent, name);
+		return child != null ? child.getTextContent() : null;
+	}
+
+	/**
+	 * Get the first child element with the given name, or null if not found. Unlike
+	 * getElementsByTagName this does not search the whole sub-tree.
+	 *
+	 * @param parent
+	 * @param name
+	 * @return
+	 */
+	public static Element getChild(Element parent, String name) {
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() == Node.ELEMENT_NODE && name.equals(child.getNodeName()))
+				return (Element) child;
+		}
+		return null;
+	}
+}
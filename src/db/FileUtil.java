@@ -175,9 +175,10 @@ public class FileUtil {
 	 */
 	public static void copyStream(InputStream inStream, OutputStream outStream) 
 			throws IOException {
-		int c;
-		while ((c = inStream.read()) != -1) {
-			outStream.write(c);
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = inStream.read(buffer)) != -1) {
+			outStream.write(buffer, 0, count);
 		}
 	}
 	
@@ -194,7 +195,8 @@ public class FileUtil {
 	}
 	
 	/**
-	 * Copy bytes from input representation to the output file.
+	 * Copy bytes from input representation to the output file. The data is
+	 * decompressed if the representation has gzip or deflate encoding.
 	 * 
 	 * @param in
 	 * @param out
@@ -209,7 +211,7 @@ public class FileUtil {
 		FileOutputStream outStream = null;
 
 		try {
-			inStream = in.getStream();
+			inStream = Compression.decode(in);
 			outStream = new FileOutputStream(out);
 			
 			copyStream(inStream, outStream);
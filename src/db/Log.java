@@ -0,0 +1,355 @@
+package db;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The logging of the server. Each class logs in its own category, which is the
+ * class name, e.g., db.Updater or dev.BackupThread, with one of the levels DEBUG,
+ * INFO, WARN and ERROR, e.g.,
+ * <pre>
+ * private static final Log log = Log.get(Updater.class);
+ * ...
+ * log.info("sending updated event");
+ * if (log.isDebug())
+ *     log.debug("updating-add: " + path + "\n" + Database.nodeToString(node));
+ * </pre>
+ * A message below the level of its category is discarded right away. The level of
+ * a category is set by configure, e.g., "info" as the default and
+ * "db=debug,dev.GossipUpdater=warn" for the packages and classes, where the most
+ * specific one applies. The callers check isDebug before building an expensive
+ * message, such as a dump of a node.
+ *
+ * The messages are appended to a bounded ring buffer, and written by a separate
+ * thread, so that the caller, which may be holding the database lock, does not
+ * wait for the console or file I/O. If the buffer is full, then the new message is
+ * dropped instead of blocking the caller, and the number of dropped messages is
+ * logged later.
+ *
+ * @author Mamta
+ */
+public class Log {
+
+	public static final int DEBUG = 0;
+	public static final int INFO  = 1;
+	public static final int WARN  = 2;
+	public static final int ERROR = 3;
+	public static final int OFF   = 4;
+
+	private static final String[] NAMES = {"DEBUG", "INFO", "WARN", "ERROR", "OFF"};
+
+	/**
+	 * A message in the buffer. It is formatted by the writer thread.
+	 */
+	private static class Entry {
+		long time;
+		int level;
+		String thread;
+		String category;
+		String message;
+		Throwable error;
+	}
+
+	// the loggers by category.
+	private static ConcurrentMap<String, Log> logs = new ConcurrentHashMap<String, Log>();
+
+	// the configured levels by category or package, and the default level.
+	private static Map<String, Integer> levels = new ConcurrentHashMap<String, Integer>();
+	private static volatile int defaultLevel = INFO;
+
+	// the ring buffer, guarded by the lock.
+	private static final Object lock = new Object();
+	private static Entry[] buffer = new Entry[8192];
+	private static int head = 0;
+	private static int count = 0;
+	private static long dropped = 0;
+	private static boolean writing = false;
+
+	// the destination, used only by the writer thread after it starts.
+	private static volatile PrintStream out = System.out;
+
+	private static Metrics.Counter droppedCount = Metrics.counter("filesync_log_dropped_total",
+			"Log messages dropped because the buffer was full");
+
+	static {
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "Log");
+		writer.setDaemon(true);
+		writer.start();
+
+		// write the remaining messages on exit.
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				flush(1000);
+			}
+		}));
+	}
+
+	private String category;
+	private volatile int level;
+
+	private Log(String category) {
+		this.category = category;
+		this.level = getConfiguredLevel(category);
+	}
+
+	/**
+	 * Get the logger of the given class.
+	 *
+	 * @param c
+	 * @return
+	 */
+	public static Log get(Class<?> c) {
+		return get(c.getName());
+	}
+
+	/**
+	 * Get the logger of the given category.
+	 *
+	 * @param category
+	 * @return
+	 */
+	public static Log get(String category) {
+		Log result = logs.get(category);
+		if (result == null) {
+			logs.putIfAbsent(category, new Log(category));
+			result = logs.get(category);
+		}
+		return result;
+	}
+
+	/**
+	 * Configure the levels, and optionally the file and buffer size.
+	 *
+	 * @param level the default level, e.g., info
+	 * @param categories the comma separated category=level, e.g., db=debug,dev.Scrubber=warn
+	 * @param fileName the file to append the messages to, or null or empty for the console
+	 * @param size the number of messages in the buffer
+	 * @throws FileNotFoundException
+	 */
+	public static void configure(String level, String categories, String fileName, int size) throws FileNotFoundException {
+		defaultLevel = parseLevel(level);
+		levels.clear();
+		String[] items = (categories != null ? categories.split(",") : new String[0]);
+		for (int i=0; i<items.length; ++i) {
+			int index = items[i].indexOf('=');
+			if (index > 0)
+				levels.put(items[i].substring(0, index).trim(), Integer.valueOf(parseLevel(items[i].substring(index+1))));
+		}
+		for (Iterator<Log> it=logs.values().iterator(); it.hasNext(); ) {
+			Log log = it.next();
+			log.level = getConfiguredLevel(log.category);
+		}
+		synchronized (lock) {
+			if (fileName != null && fileName.length() > 0)
+				out = new PrintStream(new BufferedOutputStream(new FileOutputStream(fileName, true)), false);
+			if (size > 0 && size != buffer.length && count == 0) {
+				buffer = new Entry[size];
+				head = 0;
+			}
+		}
+	}
+
+	/**
+	 * Get the level of the given name, e.g., debug, or INFO if unknown.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public static int parseLevel(String name) {
+		for (int i=0; name != null && i<NAMES.length; ++i) {
+			if (NAMES[i].equalsIgnoreCase(name.trim()))
+				return i;
+		}
+		return INFO;
+	}
+
+	/**
+	 * Wait until the messages in the buffer are written, or until the timeout.
+	 *
+	 * @param timeout in milliseconds
+	 */
+	public static void flush(long timeout) {
+		long end = System.currentTimeMillis() + timeout;
+		synchronized (lock) {
+			long now;
+			while ((count > 0 || writing) && (now = System.currentTimeMillis()) < end) {
+				try {
+					lock.wait(end - now);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if the debug messages of this category are logged
+	 */
+	public boolean isDebug() {
+		return level <= DEBUG;
+	}
+
+	/**
+	 * @param level
+	 * @return true if the messages of the given level are logged in this category
+	 */
+	public boolean isEnabled(int level) {
+		return this.level <= level;
+	}
+
+	/**
+	 * Log a debug message, e.g., a trace of each request or file.
+	 * @param message
+	 */
+	public void debug(String message) {
+		log(DEBUG, message, null);
+	}
+
+	/**
+	 * Log an informational message, e.g., a device is added.
+	 * @param message
+	 */
+	public void info(String message) {
+		log(INFO, message, null);
+	}
+
+	/**
+	 * Log a warning, e.g., a request to another device failed.
+	 * @param message
+	 */
+	public void warn(String message) {
+		log(WARN, message, null);
+	}
+
+	/**
+	 * Log an error with the given exception.
+	 * @param message
+	 * @param error
+	 */
+	public void error(String message, Throwable error) {
+		log(ERROR, message, error);
+	}
+
+	/**
+	 * Log an unexpected exception.
+	 * @param error
+	 */
+	public void error(Throwable error) {
+		log(ERROR, null, error);
+	}
+
+	/**
+	 * Append the message to the buffer if the level is enabled.
+	 */
+	private void log(int level, String message, Throwable error) {
+		if (level < this.level)
+			return;
+		Entry entry = new Entry();
+		entry.time = System.currentTimeMillis();
+		entry.level = level;
+		entry.thread = Thread.currentThread().getName();
+		entry.category = category;
+		entry.message = message;
+		entry.error = error;
+		synchronized (lock) {
+			if (count == buffer.length) {
+				++dropped;
+				droppedCount.inc();
+				return;
+			}
+			buffer[(head + count) % buffer.length] = entry;
+			if (count++ == 0)
+				lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Get the configured level of the category, which is of the longest matching
+	 * category or package.
+	 */
+	private static int getConfiguredLevel(String category) {
+		String name = category;
+		while (true) {
+			Integer result = levels.get(name);
+			if (result != null)
+				return result.intValue();
+			int index = name.lastIndexOf('.');
+			if (index < 0)
+				return defaultLevel;
+			name = name.substring(0, index);
+		}
+	}
+
+	/**
+	 * The writer thread, which takes all the messages in the buffer at a time and
+	 * writes them.
+	 */
+	private static void write() {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		Entry[] batch = new Entry[0];
+		while (true) {
+			int n;
+			long lost;
+			synchronized (lock) {
+				writing = false;
+				lock.notifyAll(); // for flush
+				while (count == 0) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (batch.length < count)
+					batch = new Entry[buffer.length];
+				n = count;
+				for (int i=0; i<n; ++i) {
+					batch[i] = buffer[(head + i) % buffer.length];
+					buffer[(head + i) % buffer.length] = null;
+				}
+				head = (head + n) % buffer.length;
+				count = 0;
+				lost = dropped;
+				dropped = 0;
+				writing = true;
+			}
+
+			PrintStream stream = out;
+			StringBuilder sb = new StringBuilder();
+			for (int i=0; i<n; ++i) {
+				Entry entry = batch[i];
+				batch[i] = null;
+				sb.setLength(0);
+				sb.append(format.format(new Date(entry.time))).append(' ');
+				sb.append(NAMES[entry.level]).append(entry.level == INFO || entry.level == WARN ? "  " : " ");
+				sb.append('[').append(entry.thread).append("] ");
+				sb.append(entry.category).append(": ");
+				if (entry.message != null) {
+					stream.println(sb.append(entry.message));
+					if (entry.error != null)
+						entry.error.printStackTrace(stream);
+				}
+				else {
+					// the stack trace starts with the exception.
+					stream.print(sb);
+					entry.error.printStackTrace(stream);
+				}
+			}
+			if (lost > 0)
+				stream.println(format.format(new Date()) + " WARN  [Log] db.Log: dropped " + lost + " messages");
+			stream.flush();
+		}
+	}
+}
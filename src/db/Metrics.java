@@ -0,0 +1,384 @@
+package db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The metrics of the server, which are counters, gauges and histograms of the
+ * latency, each with a name and optional labels, e.g.,
+ * <pre>
+ * Metrics.Histogram h = Metrics.histogram("filesync_catalog_query_seconds",
+ *     "Time of the catalog queries", "query", "search");
+ * long start = System.nanoTime();
+ * ...
+ * h.observeNanos(System.nanoTime() - start);
+ * </pre>
+ * A short time, such as a lock wait or a catalog query, is measured using the
+ * nanoTime, since most of them take less than a millisecond.
+ * The same object is returned for the same name and labels, hence the callers on
+ * a hot path keep the object instead of looking it up every time. Updating a
+ * metric does not lock.
+ *
+ * The metrics are written in the Prometheus text format, by the MetricsResource
+ * for GET /metrics, and periodically to a file if configured, e.g., for the
+ * textfile collector of the node exporter.
+ *
+ * @author Mamta
+ */
+public class Metrics {
+
+	/**
+	 * A value which only increases.
+	 */
+	public static class Counter {
+		private AtomicLong value = new AtomicLong();
+
+		/**
+		 * Increment the counter by one.
+		 */
+		public void inc() {
+			value.incrementAndGet();
+		}
+
+		/**
+		 * Increment the counter by the given amount.
+		 * @param amount
+		 */
+		public void add(long amount) {
+			value.addAndGet(amount);
+		}
+
+		/**
+		 * Get the current value.
+		 * @return
+		 */
+		public long get() {
+			return value.get();
+		}
+	}
+
+	/**
+	 * A value which is set.
+	 */
+	public static class Gauge {
+		private volatile double value = 0;
+
+		/**
+		 * Set the value.
+		 * @param value
+		 */
+		public void set(double value) {
+			this.value = value;
+		}
+
+		/**
+		 * Get the current value.
+		 * @return
+		 */
+		public double get() {
+			return value;
+		}
+	}
+
+	/**
+	 * The source of a gauge which is computed when the metrics are written.
+	 */
+	public static interface Source {
+		public double value();
+	}
+
+	/**
+	 * The distribution of a time in buckets, and the count and sum.
+	 */
+	public static class Histogram {
+		// the upper bounds of the buckets in microseconds.
+		private static final long[] BOUNDS = {50, 100, 250, 500, 1000, 2000, 5000, 10000, 25000, 50000, 100000, 
+			250000, 500000, 1000000, 2500000, 5000000, 10000000, 30000000, 60000000};
+
+		private AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+		private AtomicLong sum = new AtomicLong(); // in nanoseconds
+
+		/**
+		 * Record a time.
+		 * @param millis
+		 */
+		public void observe(long millis) {
+			observeNanos(millis * 1000000);
+		}
+
+		/**
+		 * Record a time measured using System.nanoTime.
+		 * @param nanos
+		 */
+		public void observeNanos(long nanos) {
+			long micros = nanos / 1000;
+			int i = 0;
+			while (i < BOUNDS.length && micros > BOUNDS[i])
+				++i;
+			buckets.incrementAndGet(i);
+			sum.addAndGet(nanos);
+		}
+
+		/**
+		 * Get the number of times recorded.
+		 * @return
+		 */
+		public long getCount() {
+			long result = 0;
+			for (int i=0; i<buckets.length(); ++i)
+				result += buckets.get(i);
+			return result;
+		}
+	}
+
+	/**
+	 * The metrics of the same name with different labels.
+	 */
+	private static class Family {
+		String name;
+		String help;
+		String type;
+		ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>(); // by labels
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private static ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	/**
+	 * Get the counter of the given name and labels, creating it if needed.
+	 *
+	 * @param name
+	 * @param help the description of the metric
+	 * @param labels the pairs of label name and value
+	 * @return
+	 */
+	public static Counter counter(String name, String help, String... labels) {
+		Family family = getFamily(name, help, "counter");
+		String key = toLabels(labels);
+		Object result = family.metrics.get(key);
+		if (result == null) {
+			family.metrics.putIfAbsent(key, new Counter());
+			result = family.metrics.get(key);
+		}
+		return (Counter) result;
+	}
+
+	/**
+	 * Get the gauge of the given name and labels, creating it if needed.
+	 *
+	 * @param name
+	 * @param help the description of the metric
+	 * @param labels the pairs of label name and value
+	 * @return
+	 */
+	public static Gauge gauge(String name, String help, String... labels) {
+		Family family = getFamily(name, help, "gauge");
+		String key = toLabels(labels);
+		Object result = family.metrics.get(key);
+		if (result == null) {
+			family.metrics.putIfAbsent(key, new Gauge());
+			result = family.metrics.get(key);
+		}
+		return (Gauge) result;
+	}
+
+	/**
+	 * Set the source of the gauge of the given name and labels, replacing any
+	 * existing one.
+	 *
+	 * @param name
+	 * @param help the description of the metric
+	 * @param source
+	 * @param labels the pairs of label name and value
+	 */
+	public static void gauge(String name, String help, Source source, String... labels) {
+		getFamily(name, help, "gauge").metrics.put(toLabels(labels), source);
+	}
+
+	/**
+	 * Get the histogram of the given name and labels, creating it if needed.
+	 *
+	 * @param name
+	 * @param help the description of the metric
+	 * @param labels the pairs of label name and value
+	 * @return
+	 */
+	public static Histogram histogram(String name, String help, String... labels) {
+		Family family = getFamily(name, help, "histogram");
+		String key = toLabels(labels);
+		Object result = family.metrics.get(key);
+		if (result == null) {
+			family.metrics.putIfAbsent(key, new Histogram());
+			result = family.metrics.get(key);
+		}
+		return (Histogram) result;
+	}
+
+	/**
+	 * Remove the metrics of the given name and labels, e.g., of a device which is
+	 * no longer known.
+	 *
+	 * @param name
+	 * @param labels the pairs of label name and value
+	 */
+	public static void remove(String name, String... labels) {
+		Family family = families.get(name);
+		if (family != null)
+			family.metrics.remove(toLabels(labels));
+	}
+
+	/**
+	 * Write all the metrics in the Prometheus text format.
+	 *
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(Writer out) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Iterator<Family> it=families.values().iterator(); it.hasNext(); ) {
+			Family family = it.next();
+			if (family.metrics.isEmpty())
+				continue;
+			sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+			sb.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+			for (Iterator<Map.Entry<String, Object>> it2=family.metrics.entrySet().iterator(); it2.hasNext(); ) {
+				Map.Entry<String, Object> entry = it2.next();
+				String labels = entry.getKey();
+				Object metric = entry.getValue();
+				if (metric instanceof Counter) {
+					sample(sb, family.name, labels, null, ((Counter) metric).get());
+				}
+				else if (metric instanceof Gauge) {
+					sample(sb, family.name, labels, null, ((Gauge) metric).get());
+				}
+				else if (metric instanceof Source) {
+					double value;
+					try {
+						value = ((Source) metric).value();
+					} catch (RuntimeException e) {
+						Log.get(Metrics.class).error(e);
+						continue;
+					}
+					sample(sb, family.name, labels, null, value);
+				}
+				else if (metric instanceof Histogram) {
+					Histogram h = (Histogram) metric;
+					long count = 0;
+					for (int i=0; i<h.buckets.length(); ++i) {
+						count += h.buckets.get(i);
+						String le = (i < Histogram.BOUNDS.length ? String.valueOf(Histogram.BOUNDS[i] / 1000000.0) : "+Inf");
+						sample(sb, family.name + "_bucket", labels, le, count);
+					}
+					sample(sb, family.name + "_sum", labels, null, h.sum.get() / 1000000000.0);
+					sample(sb, family.name + "_count", labels, null, count);
+				}
+			}
+			out.write(sb.toString());
+			sb.setLength(0);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Schedule writing the metrics to the given file every interval. The file is
+	 * replaced only after it is completely written.
+	 *
+	 * @param fileName
+	 * @param interval in milliseconds
+	 * @return the scheduled task
+	 */
+	public static TaskScheduler.Task startSnapshots(final String fileName, long interval) {
+		return TaskScheduler.schedule("Metrics", new Runnable() {
+			public void run() {
+				File file = new File(fileName);
+				File temp = new File(fileName + ".tmp");
+				try {
+					Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+					try {
+						write(out);
+					} finally {
+						out.close();
+					}
+					if (!temp.renameTo(file)) {
+						// some platforms do not replace on rename
+						file.delete();
+						temp.renameTo(file);
+					}
+				} catch (IOException e) {
+					Log.get(Metrics.class).warn("cannot write metrics to " + fileName + ": " + e.getMessage());
+				}
+			}
+		}, interval, interval);
+	}
+
+	/**
+	 * Get the family of the given name, creating it if needed.
+	 */
+	private static Family getFamily(String name, String help, String type) {
+		Family result = families.get(name);
+		if (result == null) {
+			families.putIfAbsent(name, new Family(name, help, type));
+			result = families.get(name);
+		}
+		if (!result.type.equals(type))
+			throw new IllegalArgumentException("Metric " + name + " is a " + result.type);
+		return result;
+	}
+
+	/**
+	 * Get the labels as in the text format, e.g., peer="Home",direction="sent".
+	 */
+	private static String toLabels(String[] labels) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i+1<labels.length; i+=2) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(labels[i]).append("=\"");
+			String value = labels[i+1];
+			for (int j=0; value != null && j<value.length(); ++j) {
+				char c = value.charAt(j);
+				if (c == '\\' || c == '"')
+					sb.append('\\').append(c);
+				else if (c == '\n')
+					sb.append("\\n");
+				else
+					sb.append(c);
+			}
+			sb.append('"');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Append a sample line, with the optional le label of a histogram bucket.
+	 */
+	private static void sample(StringBuilder sb, String name, String labels, String le, double value) {
+		sb.append(name);
+		if (labels.length() > 0 || le != null) {
+			sb.append('{').append(labels);
+			if (le != null)
+				sb.append(labels.length() > 0 ? "," : "").append("le=\"").append(le).append('"');
+			sb.append('}');
+		}
+		sb.append(' ');
+		if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+			sb.append((long) value);
+		else
+			sb.append(value);
+		sb.append('\n');
+	}
+}
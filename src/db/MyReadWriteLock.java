@@ -14,6 +14,8 @@ package db;
  * Modified for lab6 based on comment from lab3: simplified the implementation
  * to have getReadLock, getWriteLock, releaseReadLock and releaseWriteLock.
  * 
+ * A lock with a name records the time spent waiting for the lock in the metrics.
+ * 
  * @author Mamta
  */
 public class MyReadWriteLock {
@@ -21,14 +23,37 @@ public class MyReadWriteLock {
 	private int writersActive = 0; // valid values are only 0 and 1.
 	private int readersActive = 0; // if readers locked, then count of active readers
 	private int writersPending = 0; // pending writers that want to grab write lock
+	
+	// the time waiting for the lock, or null if not named.
+	private Metrics.Histogram readWait;
+	private Metrics.Histogram writeWait;
+	
+	/**
+	 * Construct a lock without metrics.
+	 */
+	public MyReadWriteLock() {
+	}
+	
+	/**
+	 * Construct a lock which records the wait time with the given name.
+	 * 
+	 * @param name
+	 */
+	public MyReadWriteLock(String name) {
+		readWait = Metrics.histogram("filesync_lock_wait_seconds", "Time waiting for a lock", "lock", name, "mode", "read");
+		writeWait = Metrics.histogram("filesync_lock_wait_seconds", "Time waiting for a lock", "lock", name, "mode", "write");
+	}
     
 	/**
 	 * Implement the read lock.
 	 */
 	public synchronized void getReadLock() throws InterruptedException {
+		long start = (readWait != null ? System.nanoTime() : 0);
 		while (writersActive > 0 || writersPending > 0) {
 			wait();
 		}
+		if (readWait != null)
+			readWait.observeNanos(System.nanoTime() - start);
 		++readersActive;
 	}
 
@@ -43,9 +68,12 @@ public class MyReadWriteLock {
 	public synchronized void getWriteLock() throws InterruptedException {
 		++writersPending;
 		
+		long start = (writeWait != null ? System.nanoTime() : 0);
 		while (readersActive > 0 || writersActive > 0) {
 			wait();
 		}
+		if (writeWait != null)
+			writeWait.observeNanos(System.nanoTime() - start);
 		--writersPending;
 		++writersActive;
 	}
@@ -0,0 +1,620 @@
+package db;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The shared execution of the server. The periodic background tasks, such as the
+ * database updater and the device registration, are scheduled on a single timer
+ * thread, and each run is done on a worker thread, so that a slow task does not
+ * delay the others. The next run of a task is scheduled after the previous run
+ * completes, hence a task never runs concurrently with itself.
+ *
+ * The worker threads are also used for the outbound calls to other devices and
+ * the other background work. The workers are created on demand up to maxWorkers,
+ * and an idle worker exits after a minute. When all the workers are busy, the
+ * work waits in a queue; it never runs on the submitting thread, such as the
+ * timer thread. A Limited executor runs at most a given number of its tasks at a
+ * time on the workers, in order, e.g., the backup transfers, and can schedule a
+ * task after a delay.
+ *
+ * The HTTP connections are handled on separate connection threads, one for each
+ * open connection, up to maxConnections. A request may wait for a long time,
+ * e.g., a watch of the devices list or a large download, hence the connections do
+ * not share the bounded workers, where the waiting requests would hold up all
+ * the other work. When all the connection threads are in use, a new connection
+ * is rejected, and the server answers it with 503 Service Unavailable instead of
+ * blocking the accept loop.
+ *
+ * The interval of an Adaptive task changes between its minimum and maximum, so
+ * that it runs more often while it finds work to do, and less often while idle.
+ * The interval is halved after an active run, and increased by half after an
+ * idle run. If a run takes longer than the interval, i.e., overruns, then the
+ * interval is doubled, and the next run is after at least the duration of the
+ * run. The delay is randomized by +/- jitter, so that the tasks of many devices
+ * do not run in lock step. The timing of the runs of each task is kept for the
+ * metrics.
+ *
+ * The invokeAll method calls a number of functions in parallel and returns only
+ * after all of them have completed or have been cancelled, so that no call outlives
+ * its caller.
+ *
+ * The calls for which a worker waits, e.g., the calls of invokeAll or the ranges
+ * of a restore, run on separate subtask threads instead of the workers. Otherwise,
+ * when many such parents run at the same time, they could hold all the workers
+ * while their calls wait in the queue behind them. A subtask must not wait for
+ * another subtask.
+ *
+ * @author Mamta
+ */
+public class TaskScheduler {
+
+	private static final Log log = Log.get(TaskScheduler.class);
+
+	/**
+	 * The fraction of the interval by which the delay of a run is randomized.
+	 */
+	public static double jitter = 0.1;
+
+	/**
+	 * A task which tells whether its last run found work to do, e.g., changed
+	 * files, so that its interval is adapted.
+	 */
+	public static interface Adaptive extends Runnable {
+		/**
+		 * @return true if the last run found work to do
+		 */
+		public boolean isActive();
+	}
+
+	/**
+	 * A periodic task, which can be cancelled. It also has the timing of its runs.
+	 */
+	public static class Task implements Runnable {
+		private String name;
+		private Runnable task;
+		private long minInterval;
+		private long maxInterval;
+		private volatile long interval;
+		private volatile boolean cancelled = false;
+
+		// the metrics, updated only by the run of the task.
+		private volatile long runs = 0;
+		private volatile long failures = 0;
+		private volatile long overruns = 0;
+		private volatile long totalTime = 0;
+		private volatile long maxTime = 0;
+		private volatile long lastTime = 0;
+		private Metrics.Histogram time;
+		private Metrics.Counter overrunCount;
+		private Metrics.Counter failureCount;
+
+		private Task(String name, Runnable task, long interval, long minInterval, long maxInterval) {
+			this.name = name;
+			this.task = task;
+			this.minInterval = Math.max(minInterval, 1);
+			this.maxInterval = Math.max(maxInterval, this.minInterval);
+			this.interval = Math.min(Math.max(interval, this.minInterval), this.maxInterval);
+			this.time = Metrics.histogram("filesync_task_seconds", "Time of the runs of a periodic task", "task", name);
+			Metrics.gauge("filesync_task_interval_seconds", "Current interval of a periodic task", new Metrics.Source() {
+				public double value() {
+					return Task.this.interval / 1000.0;
+				}
+			}, "task", name);
+			this.overrunCount = Metrics.counter("filesync_task_overruns_total", "Runs of a periodic task longer than its interval", "task", name);
+			this.failureCount = Metrics.counter("filesync_task_failures_total", "Runs of a periodic task which failed", "task", name);
+		}
+
+		/**
+		 * Get the name of the task.
+		 * @return
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the current interval in milliseconds.
+		 * @return
+		 */
+		public long getInterval() {
+			return interval;
+		}
+
+		/**
+		 * Get the number of runs.
+		 * @return
+		 */
+		public long getRuns() {
+			return runs;
+		}
+
+		/**
+		 * Get the number of runs which threw an exception.
+		 * @return
+		 */
+		public long getFailures() {
+			return failures;
+		}
+
+		/**
+		 * Get the number of runs which took longer than the interval.
+		 * @return
+		 */
+		public long getOverruns() {
+			return overruns;
+		}
+
+		/**
+		 * Get the total time of all the runs in milliseconds.
+		 * @return
+		 */
+		public long getTotalTime() {
+			return totalTime;
+		}
+
+		/**
+		 * Get the longest time of a run in milliseconds.
+		 * @return
+		 */
+		public long getMaxTime() {
+			return maxTime;
+		}
+
+		/**
+		 * Get the time of the last run in milliseconds.
+		 * @return
+		 */
+		public long getLastTime() {
+			return lastTime;
+		}
+
+		/**
+		 * Cancel the future runs of the task. A run in progress completes.
+		 */
+		public void cancel() {
+			cancelled = true;
+			tasks.remove(this);
+		}
+
+		/**
+		 * Called on the timer thread when the task is due, to run it on a worker.
+		 */
+		public void run() {
+			if (cancelled)
+				return;
+			workers.execute(new Runnable() {
+				public void run() {
+					long start = System.currentTimeMillis();
+					boolean failed = false;
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						failed = true;
+						log.error("task " + name + " failed", e);
+					} finally {
+						completed(System.currentTimeMillis() - start, failed);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Update the metrics and the interval after a run which took the given
+		 * time, and schedule the next run.
+		 */
+		private void completed(long time, boolean failed) {
+			++runs;
+			if (failed) {
+				++failures;
+				failureCount.inc();
+			}
+			totalTime += time;
+			lastTime = time;
+			this.time.observe(time);
+			if (time > maxTime)
+				maxTime = time;
+
+			long next = interval;
+			if (time > interval) {
+				++overruns;
+				overrunCount.inc();
+				log.warn("task " + name + " took " + time + " ms, more than its interval " + interval);
+				next = interval * 2;
+			}
+			else if (task instanceof Adaptive) {
+				next = (((Adaptive) task).isActive() ? interval / 2 : interval + interval / 2);
+			}
+			interval = Math.min(Math.max(next, minInterval), maxInterval);
+
+			long delay = Math.max(interval + (long) (interval * jitter * (2 * random.nextDouble() - 1)), time);
+			if (!cancelled)
+				timer.schedule(this, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * The executor which runs at most the given number of its tasks at a time on
+	 * the shared workers, and the other tasks wait in order. With one at a time,
+	 * the tasks run one after another, e.g., the events of the devices list, as on
+	 * a single thread. A running task which is abandoned, e.g., a transfer which
+	 * timed out and is still blocked, can be detached so that it no longer holds
+	 * up the other tasks.
+	 */
+	public static class Limited extends AbstractExecutorService {
+		private String name;
+		private int parallel;
+		private int active = 0;
+		private boolean shutdown = false;
+		private LinkedList<Runnable> queue = new LinkedList<Runnable>();
+		private Map<Runnable, Boolean> running = new IdentityHashMap<Runnable, Boolean>();
+
+		/**
+		 * Construct an executor with the given name, for the metrics.
+		 *
+		 * @param name
+		 * @param parallel the number of tasks which run at a time
+		 */
+		public Limited(String name, int parallel) {
+			this.name = name;
+			this.parallel = Math.max(parallel, 1);
+			Metrics.gauge("filesync_queued_tasks", "Number of tasks waiting in an executor", new Metrics.Source() {
+				public double value() {
+					synchronized (Limited.this) {
+						return queue.size();
+					}
+				}
+			}, "executor", name);
+		}
+
+		/**
+		 * Get the name of the executor.
+		 * @return
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Set the number of tasks which run at a time.
+		 *
+		 * @param value
+		 */
+		public void setParallel(int value) {
+			synchronized (this) {
+				parallel = Math.max(value, 1);
+			}
+			dispatch();
+		}
+
+		/**
+		 * Run the task when fewer than the given number of tasks are running.
+		 */
+		public void execute(Runnable task) {
+			synchronized (this) {
+				if (shutdown)
+					throw new RejectedExecutionException(name + " is shut down");
+				queue.add(task);
+			}
+			dispatch();
+		}
+
+		/**
+		 * Run the task after the delay.
+		 *
+		 * @param task
+		 * @param delay in milliseconds
+		 */
+		public void schedule(final Runnable task, long delay) {
+			timer.schedule(new Runnable() {
+				public void run() {
+					try {
+						execute(task);
+					} catch (RejectedExecutionException e) {
+						// shut down meanwhile
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Do not count the given running task anymore, so that another task can
+		 * run. The task itself continues until it returns.
+		 *
+		 * @param task as given to execute, e.g., the Future returned by submit
+		 */
+		public void detach(Runnable task) {
+			synchronized (this) {
+				if (running.remove(task) == null)
+					return;
+				--active;
+			}
+			dispatch();
+		}
+
+		/**
+		 * Start the waiting tasks on the workers, up to the limit.
+		 */
+		private void dispatch() {
+			while (true) {
+				final Runnable task;
+				synchronized (this) {
+					if (active >= parallel || queue.isEmpty())
+						return;
+					task = queue.removeFirst();
+					running.put(task, Boolean.TRUE);
+					++active;
+				}
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							log.error(name + " task failed", e);
+						} finally {
+							Thread.interrupted(); // clear a cancel of the task
+							synchronized (Limited.this) {
+								if (running.remove(task) != null)
+									--active;
+								Limited.this.notifyAll();
+							}
+							dispatch();
+						}
+					}
+				});
+			}
+		}
+
+		public synchronized void shutdown() {
+			shutdown = true;
+		}
+
+		public synchronized List<Runnable> shutdownNow() {
+			shutdown = true;
+			List<Runnable> result = new ArrayList<Runnable>(queue);
+			queue.clear();
+			return result;
+		}
+
+		public synchronized boolean isShutdown() {
+			return shutdown;
+		}
+
+		public synchronized boolean isTerminated() {
+			return shutdown && queue.isEmpty() && running.isEmpty();
+		}
+
+		public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			long end = System.currentTimeMillis() + unit.toMillis(timeout);
+			long now;
+			while (!isTerminated() && (now = System.currentTimeMillis()) < end)
+				wait(end - now);
+			return isTerminated();
+		}
+	}
+
+	/**
+	 * Creates daemon threads with the given name and a sequence number.
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+		private String name;
+		private AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	// the scheduled tasks.
+	private static List<Task> tasks = new CopyOnWriteArrayList<Task>();
+
+	// for the jitter.
+	private static Random random = new Random();
+
+	// the timer thread for the periodic tasks.
+	private static ScheduledExecutorService timer = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("TaskScheduler"));
+
+	// the worker threads, created on demand up to the maximum, after which the
+	// work is queued.
+	private static ThreadPoolExecutor workers = new ThreadPoolExecutor(256, 256, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Worker"));
+
+	// the subtask threads, for the calls for which a worker waits, created on
+	// demand up to the maximum, after which the calls are queued.
+	private static ThreadPoolExecutor subtasks = new ThreadPoolExecutor(256, 256, 60, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Subtask"));
+
+	// the connection threads, one for each HTTP connection, rejected at the maximum.
+	private static ThreadPoolExecutor connections = new ThreadPoolExecutor(0, 4096, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new NamedThreadFactory("Connection"), new ThreadPoolExecutor.AbortPolicy());
+
+	static {
+		workers.allowCoreThreadTimeOut(true);
+		subtasks.allowCoreThreadTimeOut(true);
+		Metrics.gauge("filesync_workers", "Number of worker threads", new Metrics.Source() {
+			public double value() {
+				return workers.getPoolSize();
+			}
+		});
+		Metrics.gauge("filesync_workers_active", "Number of busy worker threads", new Metrics.Source() {
+			public double value() {
+				return workers.getActiveCount();
+			}
+		});
+		Metrics.gauge("filesync_workers_queued", "Number of tasks waiting for a worker thread", new Metrics.Source() {
+			public double value() {
+				return workers.getQueue().size();
+			}
+		});
+		Metrics.gauge("filesync_subtasks_queued", "Number of subtasks waiting for a thread", new Metrics.Source() {
+			public double value() {
+				return subtasks.getQueue().size();
+			}
+		});
+		Metrics.gauge("filesync_connections", "Number of HTTP connection threads", new Metrics.Source() {
+			public double value() {
+				return connections.getPoolSize();
+			}
+		});
+	}
+
+	/**
+	 * Set the maximum number of worker threads, and of subtask threads.
+	 *
+	 * @param value
+	 */
+	public static synchronized void setMaxWorkers(int value) {
+		value = Math.max(value, 1);
+		setPoolSize(workers, value);
+		setPoolSize(subtasks, value);
+	}
+
+	/**
+	 * Set the fixed number of threads of the pool.
+	 */
+	private static void setPoolSize(ThreadPoolExecutor pool, int value) {
+		if (value > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(value);
+			pool.setCorePoolSize(value);
+		}
+		else {
+			pool.setCorePoolSize(value);
+			pool.setMaximumPoolSize(value);
+		}
+	}
+
+	/**
+	 * Get the worker threads, to run the outbound calls and background work.
+	 * The work is queued if all the workers are busy.
+	 *
+	 * @return
+	 */
+	public static ExecutorService getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Get the subtask threads, to run the calls for which a worker waits. The
+	 * calls are queued if all the threads are busy.
+	 *
+	 * @return
+	 */
+	public static ExecutorService getSubtasks() {
+		return subtasks;
+	}
+
+	/**
+	 * Set the maximum number of HTTP connection threads.
+	 *
+	 * @param value
+	 */
+	public static void setMaxConnections(int value) {
+		connections.setMaximumPoolSize(Math.max(value, 1));
+	}
+
+	/**
+	 * Get the connection threads, to handle the HTTP connections. The execute
+	 * method throws RejectedExecutionException if all the threads are in use.
+	 *
+	 * @return
+	 */
+	public static ExecutorService getConnections() {
+		return connections;
+	}
+
+	/**
+	 * Get the scheduled tasks, e.g., for their metrics.
+	 *
+	 * @return
+	 */
+	public static List<Task> getTasks() {
+		return new ArrayList<Task>(tasks);
+	}
+
+	/**
+	 * Schedule the given task to run after the delay, and then repeatedly with the
+	 * given interval between the end of a run and the start of the next run.
+	 *
+	 * @param name the name of the task
+	 * @param task
+	 * @param delay in milliseconds before the first run
+	 * @param interval in milliseconds between the runs
+	 * @return the task, to cancel it
+	 */
+	public static Task schedule(String name, Runnable task, long delay, long interval) {
+		return schedule(name, task, delay, interval, interval, interval);
+	}
+
+	/**
+	 * Schedule the given task to run after the delay, and then repeatedly with an
+	 * interval between the given minimum and maximum, starting at the given
+	 * interval. The interval changes if the task is Adaptive, or if a run overruns.
+	 *
+	 * @param name the name of the task
+	 * @param task
+	 * @param delay in milliseconds before the first run
+	 * @param interval in milliseconds between the runs
+	 * @param minInterval
+	 * @param maxInterval
+	 * @return the task, to cancel it
+	 */
+	public static Task schedule(String name, Runnable task, long delay, long interval, long minInterval, long maxInterval) {
+		Task result = new Task(name, task, interval, minInterval, maxInterval);
+		tasks.add(result);
+		timer.schedule(result, delay, TimeUnit.MILLISECONDS);
+		return result;
+	}
+
+	/**
+	 * Call the given functions in parallel on the subtask threads, and wait until
+	 * all of them complete, or until the timeout, after which the remaining calls are
+	 * cancelled. The result of a call which failed or was cancelled is null.
+	 *
+	 * @param calls
+	 * @param timeout in milliseconds
+	 * @return the results in the same order as the calls
+	 * @throws InterruptedException
+	 */
+	public static <T> List<T> invokeAll(List<Callable<T>> calls, long timeout) throws InterruptedException {
+		List<Future<T>> futures = subtasks.invokeAll(calls, timeout, TimeUnit.MILLISECONDS);
+		List<T> result = new ArrayList<T>(futures.size());
+		for (int i=0; i<futures.size(); ++i) {
+			T value = null;
+			try {
+				value = futures.get(i).get();
+			} catch (CancellationException e) {
+				log.warn("call timed out after " + timeout + " ms");
+			} catch (ExecutionException e) {
+				log.error(e.getCause());
+			}
+			result.add(value);
+		}
+		return result;
+	}
+}
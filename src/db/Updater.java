@@ -14,7 +14,7 @@ import org.w3c.dom.NodeList;
 
 
 /**
- * Implements the updater thread with 10 seconds interval. Every 10 seconds, it 
+ * Implements the updater task with 10 seconds interval. Every 10 seconds, it 
  * gets all the top-level user and their local directory from the Database, and 
  * iterates over those sub-directories. It then updates the database with any files
  * that are added, modified or deleted for local device name for that user.
@@ -26,12 +26,21 @@ import org.w3c.dom.NodeList;
  * in this thread detected using the dirty property of the database and the result
  * of filesystem update.
  * 
+ * The interval is adapted between the minimum and maximum interval, so that the
+ * updater runs more often while the files are changing, and less often while 
+ * nothing changes.
+ * 
  * @author Mamta
  */
-public class Updater implements Runnable {
+public class Updater implements TaskScheduler.Adaptive {
+
+	private static final Log log = Log.get(Updater.class);
 	private Database db;
 	private long interval;
+	private long minInterval;
+	private long maxInterval;
 	private String exportTo;
+	private volatile boolean active = false; // whether the last run found a change
 	
 	/**
 	 * Create an updater thread that updates the supplied database using the 
@@ -42,10 +51,21 @@ public class Updater implements Runnable {
 	 */
 	public Updater(Database db, long interval, String exportTo) {
 		this.db = db;
-		this.interval = interval;
+		this.interval = this.minInterval = this.maxInterval = interval;
 		this.exportTo = exportTo;
 	}
 	
+	/**
+	 * Set the range of the interval. This must be called before start.
+	 * 
+	 * @param minInterval the interval while the files are changing
+	 * @param maxInterval the interval while nothing changes
+	 */
+	public void setIntervalRange(long minInterval, long maxInterval) {
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+	}
+	
 	/**
 	 * The Updater invokes the listener object when something is changed in the 
 	 * database, if a listener is set. The static is needed because the interface
@@ -68,69 +88,93 @@ public class Updater implements Runnable {
 	}
 	
 	/**
-	 * The thread runs a loop. In each loop it first waits for the interval. Then
-	 * it gets all the top level users in the database. For each user, it updates
-	 * the database using the local directory of that user.
+	 * The FileListener receives an event for each file that is added or modified
+	 * by this updater, e.g., so that the backup of that file can be scheduled.
+	 */
+	public static interface FileListener {
+		public void changed(String userName, String deviceName, FileItem item);
+	}
+	
+	// the file listener for this updater.
+	private FileListener fileListener;
+	
+	/**
+	 * set the file listener object.
+	 */
+	public void setFileListener(FileListener fileListener) {
+		this.fileListener = fileListener;
+	}
+	
+	/**
+	 * Schedule this updater to run every interval on the TaskScheduler.
+	 * 
+	 * @return the scheduled task
+	 */
+	public TaskScheduler.Task start() {
+		return TaskScheduler.schedule("Updater", this, interval, interval, minInterval, maxInterval);
+	}
+	
+	/**
+	 * Whether the last run found a change in the files or the database.
+	 */
+	public boolean isActive() {
+		return active;
+	}
+	
+	/**
+	 * Each run gets all the top level users in the database. For each user, it 
+	 * updates the database using the local directory of that user.
 	 */
 	public void run() {
-		while (true) {
-			try {
-				System.out.println("  Updater: waiting for " + interval + "...");
-				Thread.sleep(interval);
-				System.out.println("  Updater: wait completed");
-			} catch (InterruptedException e) {				
-				e.printStackTrace();
+		List<LocalDir> list;
+		try {
+			list = db.getLocalDir();
+		} catch (XPathExpressionException e1) {				
+			log.error(e1);
+			return;
+		} catch (InterruptedException e) {				
+			log.error(e);
+			return;
+		}
+		
+		boolean updated = false;
+		for (Iterator<LocalDir> it=list.iterator(); it.hasNext(); ) {
+			LocalDir localDir = it.next();
+			if (update(localDir.userName, localDir.deviceName, localDir.local_dir)) {
+				updated = true;
 			}
-			
-			List<LocalDir> list;
+		}
+		
+		if (updated && db.getLocalDevice() != null) {
+			// increment local device version if something is updated.
 			try {
-				list = db.getLocalDir();
-			} catch (XPathExpressionException e1) {				
-				e1.printStackTrace();
-				break;
-			} catch (InterruptedException e) {				
-				e.printStackTrace();
-				break;
-			}
-			
-			boolean updated = false;
-			for (Iterator<LocalDir> it=list.iterator(); it.hasNext(); ) {
-				LocalDir localDir = it.next();
-				if (update(localDir.userName, localDir.deviceName, localDir.local_dir)) {
-					updated = true;
-				}
-			}
-			
-			if (updated && db.getLocalDevice() != null) {
-				// increment local device version if something is updated.
-				try {
-					//System.out.println("  incrementing version for " + db.getLocalDevice());
-					db.incrVersion(db.getLocalDevice());
-				} catch (XPathExpressionException e) {
-					e.printStackTrace();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-			
-			boolean dirty = db.isDirty();
-			if (dirty)
-				db.resetDirty();
-			
-			if (dirty && listener != null) {
-				System.out.println("  Updater: sending updated event");
-				listener.updated(db);
+				//log.debug("incrementing version for " + db.getLocalDevice());
+				db.incrVersion(db.getLocalDevice());
+			} catch (XPathExpressionException e) {
+				log.error(e);
+			} catch (InterruptedException e) {
+				log.error(e);
 			}
-			
-			if (exportTo != null) {
-				try {
-					//System.out.println("  exportTo " + exportTo);
-					db.exportTo(exportTo);
-				} catch (IOException e) {
-					e.printStackTrace();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+		}
+		
+		boolean dirty = db.isDirty();
+		if (dirty)
+			db.resetDirty();
+		active = updated || dirty;
+		
+		if (dirty && listener != null) {
+			log.debug("sending updated event");
+			listener.updated(db);
+		}
+		
+		if (exportTo != null) {
+			try {
+				//log.debug("exportTo " + exportTo);
+				db.exportTo(exportTo);
+			} catch (IOException e) {
+				log.error(e);
+			} catch (InterruptedException e) {
+				log.error(e);
 			}
 		}
 	}
@@ -190,10 +234,10 @@ public class Updater implements Runnable {
 			oldNodes = db.getFiles(userName, deviceName);
 			rootdir = db.getUserLocalDir(userName);
 		} catch (XPathExpressionException e) {		
-			e.printStackTrace();
+			log.error(e);
 			return false;
 		} catch (InterruptedException e) {			
-			e.printStackTrace();
+			log.error(e);
 			return false;
 		}
 		
@@ -202,7 +246,7 @@ public class Updater implements Runnable {
 			try {
 				oldFiles.add(new FileItem(oldNodes.item(i)));
 			} catch (NamingException e) {
-				e.printStackTrace();
+				log.error(e);
 			}
 		}
 		
@@ -248,22 +292,23 @@ public class Updater implements Runnable {
 				}
 				
 				try {
-					System.out.println("\n--- updating-modify: "  + userName + ", " + deviceName + ", " + path);
-					System.out.println("  old file");
-					Database.printNode(oldItem.toNode(db.getDoc()), System.out);
-					System.out.println("  new file");
-					Database.printNode(foundItem.toNode(db.getDoc()), System.out);
+					if (log.isDebug())
+						log.debug("updating-modify: " + userName + ", " + deviceName + ", " + path
+								+ "\n  old file\n" + Database.nodeToString(oldItem.toNode(db.getDoc()))
+								+ "\n  new file\n" + Database.nodeToString(foundItem.toNode(db.getDoc())));
 					
 					db.modify(userName, deviceName, oldItem.toNode(db.getDoc()), foundItem.toNode(db.getDoc()));
 					updated = true;
+					if (fileListener != null && !foundItem.deleted)
+						fileListener.changed(userName, deviceName, foundItem);
 				} catch (XPathExpressionException e) {					
-					e.printStackTrace();
+					log.error(e);
 				} catch (NameNotFoundException e) {					
-					e.printStackTrace();
+					log.error(e);
 				} catch (IOException e) {					
-					e.printStackTrace();
+					log.error(e);
 				} catch (InterruptedException e) {					
-					e.printStackTrace();
+					log.error(e);
 				}
 			}
 		}
@@ -281,19 +326,22 @@ public class Updater implements Runnable {
 			}
 			if (!found) { // need to add a new item
 				try {
-					System.out.println("\n--- updating-add: " + userName + ", " + deviceName + ", " + path);
-					Database.printNode(newItem.toNode(db.getDoc()), System.out);
+					if (log.isDebug())
+						log.debug("updating-add: " + userName + ", " + deviceName + ", " + path
+								+ "\n" + Database.nodeToString(newItem.toNode(db.getDoc())));
 					
 					db.add(userName, deviceName, newItem.toNode(db.getDoc()));
 					updated = true;
+					if (fileListener != null)
+						fileListener.changed(userName, deviceName, newItem);
 				} catch (XPathExpressionException e) {				
-					e.printStackTrace();
+					log.error(e);
 				} catch (NamingException e) {					
-					e.printStackTrace();
+					log.error(e);
 				} catch (IOException e) {					
-					e.printStackTrace();
+					log.error(e);
 				} catch (InterruptedException e) {				
-					e.printStackTrace();
+					log.error(e);
 				}
 			}
 		}
@@ -0,0 +1,547 @@
+package dev;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import db.Database;
+import db.FileItem;
+import db.FileQuery;
+import db.LocalDir;
+import db.Log;
+import db.TaskScheduler;
+import db.Updater;
+
+/**
+ * The BackupScheduler keeps the queue of files that need more backups, so that
+ * the BackupThread workers do not have to scan all the files periodically. A file
+ * is scheduled when it is added or modified by the Updater, when its backup count
+ * is set by the backup command, or when a device having its backup goes offline.
+ * The queue is ordered by the deficit, i.e., the number of backups still needed,
+ * and then by the age of the file, so that the least protected files are backed
+ * up first.
+ *
+ * A backup on a device counts only if it is of the latest modification and the
+ * device is online. A device going offline is handled after the retry delay, so
+ * that a device which comes back quickly does not cause extra backups. The files
+ * for which no other device is online wait until a device becomes online. All the
+ * files are checked once when started.
+ *
+ * A failed backup is tried again after the retry delay, which is doubled for each
+ * failure of the same file up to maxBackoff. The failed files are saved in the
+ * retry file, so that they are tried again with the same backoff after a restart.
+ *
+ * The files of a directory tree may be scheduled together as a Job, which is told
+ * when each file is backed up or fails.
+ *
+ * @author Mamta
+ */
+public class BackupScheduler implements Updater.FileListener, DeviceUpdater.Listener {
+
+	private static final Log log = Log.get(BackupScheduler.class);
+
+	/**
+	 * A file that needs more backups.
+	 */
+	public static class Task implements Comparable<Task> {
+		public final String userName;
+		public final String deviceName;
+		public final String path;
+		public final String name;
+		public final int deficit;
+		public final long lastModified;
+		final String key;
+		final long seq;
+
+		Task(String userName, String deviceName, String path, String name, int deficit, long lastModified, long seq) {
+			this.userName = userName;
+			this.deviceName = deviceName;
+			this.path = path;
+			this.name = name;
+			this.deficit = deficit;
+			this.lastModified = lastModified;
+			this.key = getKey(userName, deviceName, path, name);
+			this.seq = seq;
+		}
+
+		static String getKey(String userName, String deviceName, String path, String name) {
+			return userName + "\n" + deviceName + "\n" + path + "\n" + name;
+		}
+
+		/**
+		 * Larger deficit first, then older file first, then in the order scheduled.
+		 */
+		public int compareTo(Task other) {
+			if (deficit != other.deficit)
+				return (deficit > other.deficit ? -1 : 1);
+			if (lastModified != other.lastModified)
+				return (lastModified < other.lastModified ? -1 : 1);
+			return (seq < other.seq ? -1 : seq > other.seq ? 1 : 0);
+		}
+
+		public String toString() {
+			return userName + " " + (path.equals("") ? "" : path + "/") + name + " deficit=" + deficit;
+		}
+	}
+
+	/**
+	 * The maximum delay in milliseconds before a failed backup is tried again.
+	 */
+	public static long maxBackoff = 3600000;
+
+	private Database db;
+	private DeviceUpdater deviceUpdater;
+	private Random random = new Random();
+
+	/**
+	 * The file to save the failed backups, or null.
+	 */
+	private String retryFile;
+
+	/**
+	 * The delay in milliseconds before a failed backup is tried again, and before
+	 * the files of a removed device are checked.
+	 */
+	private long retryDelay;
+
+	private PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<Task>();
+	private AtomicLong seq = new AtomicLong();
+
+	// the following are guarded by this object.
+	private Map<String, Task> pending = new HashMap<String, Task>(); // in the queue
+	private Map<String, Task> waiting = new HashMap<String, Task>(); // for a device to be online
+	private Set<String> running = new HashSet<String>();             // being backed up
+	private Set<String> rerun = new HashSet<String>();               // scheduled again while running
+	private Map<String, Task> failed = new LinkedHashMap<String, Task>(); // with number of attempts
+	private Map<String, Integer> attempts = new HashMap<String, Integer>();
+	private Map<String, List<Job>> jobs = new HashMap<String, List<Job>>(); // waiting for the file
+
+	// runs the delayed and device events one at a time on the shared workers.
+	private TaskScheduler.Limited timer = new TaskScheduler.Limited("BackupScheduler", 1);
+
+	/**
+	 * Construct a new scheduler.
+	 *
+	 * @param db
+	 * @param deviceUpdater
+	 * @param retryDelay
+	 */
+	public BackupScheduler(Database db, DeviceUpdater deviceUpdater, long retryDelay) {
+		this.db = db;
+		this.deviceUpdater = deviceUpdater;
+		this.retryDelay = retryDelay;
+	}
+
+	/**
+	 * Set the file to save the failed backups. This must be called before start.
+	 *
+	 * @param retryFile
+	 */
+	public void setRetryFile(String retryFile) {
+		this.retryFile = retryFile;
+	}
+
+	/**
+	 * Start the given number of BackupThread workers, and check all the files
+	 * after the retry delay, by which time the online devices are known. The 
+	 * failed backups from the retry file are scheduled first.
+	 *
+	 * @param workers
+	 */
+	public void start(int workers) {
+		load();
+		final List<Task> tasks;
+		synchronized (this) {
+			tasks = new ArrayList<Task>(failed.values());
+		}
+		timer.execute(new Runnable() {
+			public void run() {
+				for (int i=0; i<tasks.size(); ++i) {
+					Task task = tasks.get(i);
+					schedule(task.userName, task.deviceName, task.path, task.name);
+				}
+			}
+		});
+		for (int i=0; i<Math.max(workers, 1); ++i) {
+			Thread thread = new Thread(new BackupThread(db, this), "BackupThread-" + i);
+			thread.start();
+		}
+		timer.schedule(new Runnable() {
+			public void run() {
+				scan();
+			}
+		}, retryDelay);
+	}
+
+	/**
+	 * Schedule the given file if it needs more backups.
+	 *
+	 * @param userName
+	 * @param deviceName
+	 * @param path
+	 * @param name
+	 */
+	public void schedule(String userName, String deviceName, String path, String name) {
+		try {
+			Element file = db.getFile(userName, deviceName, path, name);
+			if (file != null)
+				schedule(userName, deviceName, file, null);
+		} catch (Exception e) {
+			log.error(e);
+		}
+	}
+
+	/**
+	 * Schedule the given file element if it needs more backups. The file is added
+	 * to the given job if any, which is told when the file is backed up.
+	 *
+	 * @param userName
+	 * @param deviceName
+	 * @param file
+	 * @param job the job of the file, or null
+	 * @return true if the file is scheduled, or false if it does not need more backups
+	 */
+	public boolean schedule(String userName, String deviceName, Element file, Job job) {
+		String path = FileQuery.getChildText(file, "Path");
+		String name = FileQuery.getChildText(file, "Name");
+		String key = Task.getKey(userName, deviceName, path, name);
+		if (job != null)
+			job.add(key);
+		int deficit = getDeficit(file);
+		if (deficit <= 0) {
+			if (job != null)
+				job.succeeded(key);
+			return false;
+		}
+		long lastModified = Long.parseLong(FileQuery.getChildText(file, "LastModified").trim());
+		Task task = new Task(userName, deviceName, path, name, deficit, lastModified, seq.incrementAndGet());
+
+		synchronized (this) {
+			if (job != null) {
+				List<Job> list = jobs.get(key);
+				if (list == null)
+					jobs.put(key, list = new ArrayList<Job>(1));
+				list.add(job);
+			}
+			waiting.remove(task.key);
+			Task old = pending.get(task.key);
+			if (old != null) {
+				if (old.deficit >= task.deficit)
+					return true;
+				queue.remove(old);
+			}
+			pending.put(task.key, task);
+			queue.add(task);
+		}
+		log.debug("scheduled " + task);
+		return true;
+	}
+
+	/**
+	 * Take the next file to backup, waiting if there is none. The caller must
+	 * call done when the backup is complete.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public Task take() throws InterruptedException {
+		while (true) {
+			Task task = queue.take();
+			synchronized (this) {
+				if (pending.get(task.key) == task)
+					pending.remove(task.key);
+				if (running.contains(task.key)) {
+					// another worker has it, which checks it again when done.
+					rerun.add(task.key);
+					continue;
+				}
+				running.add(task.key);
+				return task;
+			}
+		}
+	}
+
+	/**
+	 * Mark the backup of the given file as done.
+	 *
+	 * @param task
+	 */
+	public void done(Task task) {
+		boolean again;
+		synchronized (this) {
+			running.remove(task.key);
+			again = rerun.remove(task.key);
+		}
+		if (again)
+			schedule(task.userName, task.deviceName, task.path, task.name);
+	}
+
+	/**
+	 * Schedule the given file again after the backoff, because the backup failed.
+	 * The backoff is the retry delay doubled for each previous failure, with some
+	 * randomness so that the retries of many files are spread.
+	 *
+	 * @param task
+	 */
+	public void retry(final Task task) {
+		long delay;
+		synchronized (this) {
+			failJobs(task);
+			Integer count = attempts.get(task.key);
+			int n = (count != null ? count.intValue() : 0) + 1;
+			attempts.put(task.key, Integer.valueOf(n));
+			failed.put(task.key, task);
+			save();
+			delay = Math.min(retryDelay << Math.min(n - 1, 20), maxBackoff);
+			delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+		}
+		log.debug("retry " + task + " in " + delay);
+		timer.schedule(new Runnable() {
+			public void run() {
+				schedule(task.userName, task.deviceName, task.path, task.name);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Mark the given file as not needing a retry, because it is backed up or
+	 * does not need a backup anymore.
+	 *
+	 * @param task
+	 */
+	public synchronized void succeeded(Task task) {
+		if (attempts.remove(task.key) != null) {
+			failed.remove(task.key);
+			save();
+		}
+		List<Job> list = jobs.remove(task.key);
+		for (int i=0; list != null && i<list.size(); ++i)
+			list.get(i).succeeded(task.key);
+	}
+
+	/**
+	 * Keep the given file until another device becomes online, because there is
+	 * no online device to backup to.
+	 *
+	 * @param task
+	 */
+	public synchronized void park(Task task) {
+		waiting.put(task.key, task);
+		failJobs(task);
+	}
+
+	/**
+	 * Get the devices which have the backup of the latest modification of the
+	 * given file, whether online or not.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static Set<String> getReplicas(Element file) {
+		Set<String> result = new HashSet<String>();
+		String lastModified = FileQuery.getChildText(file, "LastModified");
+		NodeList locations = file.getElementsByTagName("Location");
+		for (int i=0; i<locations.getLength(); ++i) {
+			Element location = (Element) locations.item(i);
+			if (location.hasAttribute("modified") && location.getAttribute("modified").equals(lastModified))
+				result.add(location.getTextContent());
+		}
+		return result;
+	}
+
+	/**
+	 * Get the number of backups still needed for the given file. This is 0 if
+	 * the file is deleted or does not have a backup count.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public int getDeficit(Element file) {
+		if ("yes".equals(FileQuery.getChildText(file, "Deleted")))
+			return 0;
+		Element backup = (Element) file.getElementsByTagName("Backup").item(0);
+		if (backup == null || !backup.hasAttribute("count"))
+			return 0;
+
+		int count = Integer.parseInt(backup.getAttribute("count"));
+		for (Iterator<String> it=getReplicas(file).iterator(); it.hasNext(); ) {
+			if (deviceUpdater.getDevice(it.next()) != null)
+				--count;
+		}
+		return count;
+	}
+
+	/**
+	 * Schedule a file that is added or modified by the Updater.
+	 */
+	public void changed(String userName, String deviceName, FileItem item) {
+		schedule(userName, deviceName, item.path, item.name);
+	}
+
+	/**
+	 * Schedule all the files that are waiting for a device to be online.
+	 */
+	public void added(Device device) {
+		final List<Task> tasks;
+		synchronized (this) {
+			if (waiting.isEmpty())
+				return;
+			tasks = new ArrayList<Task>(waiting.values());
+			waiting.clear();
+		}
+		timer.execute(new Runnable() {
+			public void run() {
+				for (int i=0; i<tasks.size(); ++i) {
+					Task task = tasks.get(i);
+					schedule(task.userName, task.deviceName, task.path, task.name);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Schedule the files which have a backup on the removed device, after the
+	 * retry delay.
+	 */
+	public void removed(final Device device) {
+		if (device.getName().equals(db.getLocalDevice()))
+			return;
+		timer.schedule(new Runnable() {
+			public void run() {
+				if (deviceUpdater.getDevice(device.getName()) == null)
+					scan("[Backup/Location='" + device.getName() + "']");
+			}
+		}, retryDelay);
+	}
+
+	/**
+	 * Schedule all the local files which have a backup count.
+	 */
+	private void scan() {
+		scan("");
+	}
+
+	/**
+	 * Schedule the local files which have a backup count and match the given
+	 * XPath predicate.
+	 *
+	 * @param predicate
+	 */
+	private void scan(String predicate) {
+		try {
+			List<LocalDir> list = db.getLocalDir();
+			for (Iterator<LocalDir> it=list.iterator(); it.hasNext(); ) {
+				LocalDir localDir = it.next();
+				NodeList files = db.search("/Database/User[@name='" + localDir.userName + "']/Devices/Device[Name='"
+						+ localDir.deviceName + "']/FileList/File[Backup/@count]" + predicate);
+
+				// copy the names first since the nodes may change while scheduling.
+				List<String[]> names = new ArrayList<String[]>();
+				for (int i=0; files != null && i<files.getLength(); ++i) {
+					Element file = (Element) files.item(i);
+					names.add(new String[] {FileQuery.getChildText(file, "Path"), FileQuery.getChildText(file, "Name")});
+				}
+				for (int i=0; i<names.size(); ++i) {
+					schedule(localDir.userName, localDir.deviceName, names.get(i)[0], names.get(i)[1]);
+				}
+			}
+		} catch (Exception e) {
+			log.error(e);
+		}
+	}
+
+	/**
+	 * Mark the given file as failed in its jobs, which keep waiting for it in case
+	 * it succeeds later. The caller must hold the lock of this object.
+	 */
+	private void failJobs(Task task) {
+		List<Job> list = jobs.get(task.key);
+		for (int i=0; list != null && i<list.size(); ++i)
+			list.get(i).failed(task.key, (task.path.equals("") ? "" : task.path + "/") + task.name);
+	}
+
+	/**
+	 * Save the failed backups to the retry file, one per line with the number of
+	 * attempts, user name, device name, path and file name separated by tab. The 
+	 * list is written to a temporary file which is renamed over the retry file, so 
+	 * that a crash does not leave a partial or missing list. The caller must hold 
+	 * the lock of this object.
+	 */
+	private void save() {
+		if (retryFile == null)
+			return;
+		try {
+			File file = new File(retryFile);
+			File temp = new File(retryFile + ".tmp");
+			PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+			for (Iterator<Task> it=failed.values().iterator(); it.hasNext(); ) {
+				Task task = it.next();
+				writer.print(attempts.get(task.key) + "\t" + task.userName + "\t" + task.deviceName 
+						+ "\t" + task.path + "\t" + task.name + "\n");
+			}
+			writer.close();
+			if (!temp.renameTo(file)) {
+				// some platforms do not replace on rename
+				file.delete();
+				if (!temp.renameTo(file))
+					log.warn("cannot save " + retryFile);
+			}
+		} catch (IOException e) {
+			log.error(e);
+		}
+	}
+
+	/**
+	 * Load the failed backups from the retry file.
+	 */
+	private synchronized void load() {
+		if (retryFile == null)
+			return;
+		// the temporary file is complete if the retry file was deleted but not 
+		// yet replaced by it.
+		File file = new File(retryFile);
+		if (!file.exists())
+			file = new File(retryFile + ".tmp");
+		if (!file.exists())
+			return;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] parts = line.split("\t", -1);
+					if (parts.length != 5)
+						continue;
+					Task task = new Task(parts[1], parts[2], parts[3], parts[4], 0, 0, seq.incrementAndGet());
+					failed.put(task.key, task);
+					attempts.put(task.key, Integer.valueOf(parts[0]));
+				}
+			}
+			finally {
+				reader.close();
+			}
+			log.info("loaded " + failed.size() + " failed backups");
+		} catch (Exception e) {
+			log.error(e);
+		}
+	}
+}
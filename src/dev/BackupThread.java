@@ -1,55 +1,80 @@
 package dev;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.util.Iterator;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.naming.NamingException;
 import javax.xml.xpath.XPathExpressionException;
 
 import org.restlet.Client;
 import org.restlet.Context;
+import org.restlet.data.Encoding;
 import org.restlet.data.MediaType;
+import org.restlet.data.Method;
 import org.restlet.data.Protocol;
-import org.restlet.resource.FileRepresentation;
+import org.restlet.data.Reference;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.InputRepresentation;
+import org.restlet.resource.OutputRepresentation;
+import org.restlet.resource.Representation;
+import org.restlet.resource.StringRepresentation;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import db.Compression;
 import db.Database;
 import db.FileItem;
-import db.LocalDir;
+import db.FileQuery;
+import db.Log;
 
 
 /**
- * The BackupThread periodically gathers all the File items for which number of
- * Backup/Location is less than Backup/@count and tries to backup that file to
- * one more online device.
+ * The BackupThread is a worker which takes the files that need more backups from
+ * the BackupScheduler, and tries to backup each file to more online devices until
+ * the number of Backup/Location of the latest modification is Backup/@count.
  * 
  * @author Mamta
  */
 public class BackupThread implements Runnable {
+
+	private static final Log log = Log.get(BackupThread.class);
 	/**
 	 * The configuration for list of current devices is set by main.
 	 */
 	public static DeviceUpdater deviceUpdater;
 	
 	/**
-	 * The associated database.
+	 * The policy to select the device for a backup, set by main.
 	 */
-	private Database db;
+	public static PlacementPolicy placement = new BalancedPlacement();
 	
 	/**
-	 * The periodic interval.
+	 * The thread pool which sends the backup requests, set by main.
 	 */
-	private long interval;
+	public static TransferExecutor transfers = new TransferExecutor(4, 60000);
 	
 	/**
-	 * Random number is used to select a random device for backup.
+	 * The associated database.
 	 */
-	private Random random;
+	private Database db;
+	
+	/**
+	 * The scheduler which gives the files to backup.
+	 */
+	private BackupScheduler scheduler;
 	
 	/**
 	 * The client for restlet.
@@ -57,182 +82,374 @@ public class BackupThread implements Runnable {
 	private Client client;
 	
 	/**
-	 * Construct a new thread object.
+	 * Construct a new worker object.
 	 * 
 	 * @param db
-	 * @param interval
+	 * @param scheduler
 	 */
-	public BackupThread(Database db, long interval) {
+	public BackupThread(Database db, BackupScheduler scheduler) {
 		this.db = db;
-		this.interval = interval;
-		random = new Random();
+		this.scheduler = scheduler;
 		
 		client = new Client(new Context(), Protocol.HTTP);
 		client.getContext().getParameters().add("converter", 
 				"com.noelios.restlet.http.HttpClientConverter");
+		
+		// fail the requests to a device which stops responding.
+		client.setConnectTimeout((int) transfers.getTimeout());
+		client.getContext().getParameters().add("readTimeout", String.valueOf(transfers.getTimeout()));
 	}
 	
 	/**
-	 * The thread function periodically calls the update function on the local device
-	 * for all the users.
+	 * The thread function takes the next file from the scheduler and backs it up.
 	 */
 	public void run() {
 		while (true) {
+			BackupScheduler.Task task;
 			try {
-				System.out.println("  BackupThread: waiting for " + interval + "...");
-				Thread.sleep(interval);
-				System.out.println("  BackupThread: wait completed");
+				task = scheduler.take();
 			} catch (InterruptedException e) {				
-				e.printStackTrace();
+				log.error(e);
+				break;
 			}
 			
-			List<LocalDir> list;
 			try {
-				list = db.getLocalDir();
-			} catch (XPathExpressionException e1) {				
-				e1.printStackTrace();
-				break;
-			} catch (InterruptedException e) {				
-				e.printStackTrace();
-				break;
+				update(task);
 			}
-			
-			for (Iterator<LocalDir> it=list.iterator(); it.hasNext(); ) {
-				LocalDir localDir = it.next();
-				update(localDir.userName, localDir.deviceName);
+			finally {
+				scheduler.done(task);
 			}
 		}
 	}
 	
 	/**
-	 * The update method gets all the files for the given user and device,
-	 * and if a backup is required, then uses sendBackupdata to take a backup
-	 * and add another Location element.
+	 * The update method gets the current state of the file, and if a backup is 
+	 * still required, then uses sendBackupdata to take a backup and add another 
+	 * Location element. If the backup fails, or the database cannot be read, then
+	 * the file is retried later with backoff. If there are not enough online devices, then the file waits for 
+	 * another device.
 	 *  
-	 * @param userName
-	 * @param deviceName
-	 * @return
+	 * @param task
 	 */
-	private void update(String userName, String deviceName) {
+	private void update(BackupScheduler.Task task) {
 		try {
-			// get all the files first
-			NodeList files = db.getFiles(userName, deviceName);
+			Element file = db.getFile(task.userName, task.deviceName, task.path, task.name);
+			if (file == null) {
+				scheduler.succeeded(task);
+				return;
+			}
 			
-			// for each file, check the backup status
-			for (int i=0; files != null && i<files.getLength(); ++i) {
-				Element file = (Element) files.item(i);
-				String deleted = file.getElementsByTagName("Deleted").item(0).getTextContent();
-				Element backup = (Element) file.getElementsByTagName("Backup").item(0);
-				
-				// do not do backup f deleted files or if no count attribute is present
-				if (deleted != null && deleted.equals("yes") || !backup.hasAttribute("count"))
-					continue;
-				
-				
-				int count = Integer.valueOf(backup.getAttribute("count")).intValue();
-				NodeList locations = backup.getElementsByTagName("Location");
-				String lastModified = file.getElementsByTagName("LastModified").item(0).getTextContent();
-				
-				// the number of valid and latest backups
-				int backupCount = 0;
-				for (int j=0; j<locations.getLength(); ++j) {
-					Element location = (Element) locations.item(j);
-					if (location.hasAttribute("modified") && lastModified.equals(location.getAttribute("modified"))) {
-						++backupCount;
+			int deficit = scheduler.getDeficit(file);
+			if (deficit <= 0) {
+				scheduler.succeeded(task);
+				return;
+			}
+			
+			log.debug("backup " + task);
+			String lastModified = FileQuery.getChildText(file, "LastModified");
+			
+			// first find all the remaining online devices from the current
+			// online devices, which are not local and do not have the latest backup.
+			// A device which failed recently is not used, but the file is retried.
+			boolean failed = false;
+			Set<String> replicas = BackupScheduler.getReplicas(file);
+			Device[] onlineDevices = deviceUpdater.getDevices();
+			Vector<Device> remaining = new Vector<Device>();
+			for (int j=0; onlineDevices != null && j<onlineDevices.length; ++j) {
+				if (!db.getLocalDevice().equals(onlineDevices[j].getName()) 
+						&& !replicas.contains(onlineDevices[j].getName())) {
+					if (PeerStats.get(onlineDevices[j].getName()).isBackedOff())
+						failed = true;
+					else
+						remaining.add(onlineDevices[j]);
+				}
+			}
+			
+			// the devices which have an older backup, so that only the delta
+			// needs to be sent to them.
+			Set<String> stale = new HashSet<String>();
+			NodeList locations = file.getElementsByTagName("Location");
+			for (int k=0; k<locations.getLength(); ++k) {
+				Element location = (Element) locations.item(k);
+				if (!lastModified.equals(location.getAttribute("modified")))
+					stale.add(location.getTextContent());
+			}
+			
+			// if there are potential remaining devices, then pick one that
+			// has an older backup, or else use the placement policy to pick one 
+			// and try to send backup to that. Repeat until needed.
+			long size = 0;
+			try {
+				size = Long.parseLong(FileQuery.getChildText(file, "Size").trim());
+			} catch (Exception e) {
+				// unknown size
+			}
+			while (deficit > 0 && !remaining.isEmpty()) {
+				Device dev = null;
+				for (int k=0; k<remaining.size(); ++k) {
+					if (stale.contains(remaining.get(k).getName())) {
+						dev = remaining.get(k);
+						break;
 					}
 				}
+				if (dev == null)
+					dev = placement.select(remaining, size);
+				if (dev == null)
+					break;
+				remaining.remove(dev);
 				
-				// if count is more than current number of backup Location elements
-				// then take more backups
-				if (backupCount < count) {
-					// we need to do some data backup
+				PeerStats stats = PeerStats.get(dev.getName());
+				stats.begin();
+				try {
+					String checksum = sendBackupdata(file, dev, db.getUserLocalDir(task.userName), stale.contains(dev.getName()));
 					
-					// first find all the remaining online devices from the current
-					// online devices, which are not local and not in Location already.
-					Device[] onlineDevices = deviceUpdater.getDevices();
-					Vector<Device> remaining = new Vector<Device>();
-					for (int j=0; j<onlineDevices.length; ++j) {
-						if (db.getLocalDevice().equals(onlineDevices[j].getName()))
-							continue;
-						
-						boolean found = false;
-						for (int k=0; k<locations.getLength(); ++k) {
-							Element location = (Element) locations.item(k);
-							if (onlineDevices[j].getName().equals(location.getTextContent())
-								&& location.hasAttribute("modified")
-								&& lastModified.equals(location.getAttribute("modified"))) {
-								found = true;
-								break;
-							}
-						}
-						
-						if (!found) {
-							remaining.add(onlineDevices[j]);
-						}
-					}
-					
-					// if there are potential remaining devices, then
-					// randomly pick one and try to send backup to that.
-					// Repeat until needed.
-					while (backupCount < count && !remaining.isEmpty()) {
-						int index = random.nextInt(remaining.size());
-						Device dev = remaining.get(index);
-						remaining.remove(index);
-						
-						try {
-							sendBackupdata(file, dev, db.getUserLocalDir(userName));
-							Element location = db.getDoc().createElement("Location");
-							location.setAttribute("modified", lastModified);
-							location.appendChild(db.getDoc().createTextNode(dev.getName()));
-							backupCount += 1;
-							
-							Node oldLocation = null;
-							for (int k=0; k<locations.getLength(); ++k) {
-								Element loc = (Element) locations.item(k);
-								if (loc.getTextContent().equals(location.getTextContent())) {
-									oldLocation = loc;
-									break;
-								}
-							}
-							
-							if (oldLocation == null)
-								backup.appendChild(location);
-							else
-								backup.replaceChild(location, oldLocation);
-							db.incrVersion(db.getLocalDevice());
-							db.setDirty();
-						}
-						catch (Exception e) {
-							e.printStackTrace();
-						}
-						
-						// add a new backup Location
-						locations = backup.getElementsByTagName("Location");
+					// add a new backup Location, unless the file was modified meanwhile
+					// in which case it is scheduled again by the Updater.
+					stats.recordSuccess();
+					if (!db.setBackupLocation(task.userName, task.deviceName, task.path, task.name, dev.getName(), lastModified, checksum)) {
+						scheduler.succeeded(task);
+						return;
 					}
+					db.incrVersion(db.getLocalDevice());
+					deficit -= 1;
+				}
+				catch (Exception e) {
+					log.error(e);
+					stats.recordFailure();
+					failed = true;
+				}
+				finally {
+					stats.end();
 				}
 			}
+			
+			if (deficit <= 0)
+				scheduler.succeeded(task);
+			else if (failed)
+				scheduler.retry(task);
+			else
+				scheduler.park(task);
 		} catch (XPathExpressionException e) {		
-			e.printStackTrace();
-			return;
+			log.error(e);
+			scheduler.retry(task);
 		} catch (InterruptedException e) {			
-			e.printStackTrace();
-			return;
+			log.error(e);
+			scheduler.retry(task);
 		}
 	}
 	
 	/**
-	 * Send a backup of local file to the given device using Restlet client.
+	 * Send a backup of local file to the given device using Restlet client. If
+	 * the device has an older backup, then only the delta is sent. Otherwise the 
+	 * file is split into chunks, and only the chunks that the device does not have
+	 * are sent in parallel, followed by the manifest. If the device does not support 
+	 * chunks, then the whole file is sent. The requests are sent using the transfer
+	 * executor, and the data is throttled. The data is compressed if the device 
+	 * accepts it and the file is not already compressed. The SHA-1 of the file is
+	 * sent with the backup, so that the device verifies and stores it.
 	 *  
 	 * @param fileNode
 	 * @param dev
+	 * @param hasOlder whether the device has an older backup of the file
+	 * @return the SHA-1 of the file in hex
 	 * @throws NamingException
+	 * @throws IOException if the device did not accept the backup
 	 */
-	private void sendBackupdata(Element fileNode, Device dev, String localDir) throws NamingException {
+	private String sendBackupdata(Element fileNode, final Device dev, String localDir, boolean hasOlder) throws NamingException, IOException {
 		FileItem fileItem = new FileItem(fileNode);
 		String url = "http://" + dev.getIp() + ":" + dev.getPort() + "/backupdata/" + (fileItem.path.equals("") ? "" : fileItem.path + "/")  +  fileItem.name;
-		System.out.println("PUT " + dev.getName() + " " + url);
 		String path = (fileItem.path.equals("") ? "" : fileItem.path + "/")  +  fileItem.name;
-		File file = new File(localDir + "/" + path);
-		client.put(url, new FileRepresentation(file, MediaType.APPLICATION_OCTET_STREAM));
+		final File file = new File(localDir + "/" + path);
+		final Encoding encoding = getEncoding(dev, file);
+		String checksum = ChunkStore.checksum(file);
+		String query = "sha1=" + checksum + "&from=" + Reference.encode(db.getLocalDevice());
+		
+		if (hasOlder) {
+			try {
+				sendDelta(file, dev, url, query);
+				return checksum;
+			} catch (IOException e) {
+				log.warn("delta backup failed, sending chunks: " + e.getMessage());
+			}
+		}
+		
+		// first ask which chunks are missing on the device.
+		final String chunksUrl = "http://" + dev.getIp() + ":" + dev.getPort() + "/chunks";
+		List<ChunkStore.Chunk> chunks = ChunkStore.split(file);
+		StringBuilder hashes = new StringBuilder();
+		for (int i=0; i<chunks.size(); ++i)
+			hashes.append(chunks.get(i).hash).append('\n');
+		PeerStats stats = PeerStats.get(dev.getName());
+		long start = System.currentTimeMillis();
+		Response response = handle(Method.POST, chunksUrl, new StringRepresentation(hashes.toString(), MediaType.TEXT_PLAIN), hashes.length());
+		stats.recordRtt(System.currentTimeMillis() - start);
+		
+		if (!response.getStatus().isSuccess()) {
+			log.debug("PUT " + dev.getName() + " " + url);
+			start = System.currentTimeMillis();
+			final String fileUrl = url + "?" + query;
+			response = transfers.handle(new Callable<Response>() {
+				public Response call() throws Exception {
+					InputStream in = new FileInputStream(file);
+					try {
+						return client.put(fileUrl, getEntity(in, file.length(), encoding, dev.getName()));
+					}
+					finally {
+						in.close();
+					}
+				}
+			}, file.length());
+			if (!response.getStatus().isSuccess())
+				throw new IOException("Backup failed: " + response.getStatus());
+			stats.recordTransfer(file.length(), System.currentTimeMillis() - start);
+			return checksum;
+		}
+		
+		Set<String> missing = new HashSet<String>();
+		String text = response.getEntity() != null ? response.getEntity().getText() : null;
+		if (text != null) {
+			String[] lines = text.split("\n");
+			for (int i=0; i<lines.length; ++i) {
+				if (lines[i].trim().length() > 0)
+					missing.add(lines[i].trim());
+			}
+		}
+		log.debug("PUT " + dev.getName() + " " + url + " chunks " + missing.size() + " of " + chunks.size());
+		
+		// send the missing chunks in parallel, and wait for all of them.
+		List<ChunkStore.Chunk> sending = new ArrayList<ChunkStore.Chunk>();
+		List<Future<Response>> futures = new ArrayList<Future<Response>>();
+		start = System.currentTimeMillis();
+		for (int i=0; i<chunks.size(); ++i) {
+			final ChunkStore.Chunk chunk = chunks.get(i);
+			if (missing.remove(chunk.hash)) {
+				sending.add(chunk);
+				futures.add(transfers.submit(new Callable<Response>() {
+					public Response call() throws Exception {
+						byte[] data = ChunkStore.read(file, chunk);
+						return client.put(chunksUrl + "/" + chunk.hash, 
+								getEntity(new ByteArrayInputStream(data), data.length, encoding, dev.getName()));
+					}
+				}));
+			}
+		}
+		long sent = 0;
+		try {
+			for (int i=0; i<futures.size(); ++i) {
+				response = transfers.get(futures.get(i), sending.get(i).length);
+				if (!response.getStatus().isSuccess())
+					throw new IOException("Chunk backup failed: " + response.getStatus());
+				sent += sending.get(i).length;
+			}
+		}
+		finally {
+			for (int i=0; i<futures.size(); ++i)
+				transfers.cancel(futures.get(i));
+		}
+		if (sent > 0)
+			stats.recordTransfer(sent, System.currentTimeMillis() - start);
+		
+		String manifest = ChunkStore.toManifest(chunks);
+		response = handle(Method.PUT, url + "?manifest&" + query, new StringRepresentation(manifest, MediaType.TEXT_PLAIN), manifest.length());
+		if (!response.getStatus().isSuccess())
+			throw new IOException("Manifest backup failed: " + response.getStatus());
+		return checksum;
+	}
+	
+	/**
+	 * Send the delta of the local file against the older backup on the device.
+	 * 
+	 * @param file
+	 * @param dev
+	 * @param url
+	 * @param query the checksum parameters of the PUT
+	 * @throws IOException if the device does not have the older backup or did
+	 *   not accept the delta.
+	 */
+	private void sendDelta(final File file, final Device dev, String url, String query) throws IOException {
+		Response response = handle(Method.GET, url + "?signature", null, 0);
+		if (!response.getStatus().isSuccess())
+			throw new IOException("Signature failed: " + response.getStatus());
+		final String signature = response.getEntity().getText();
+		
+		log.debug("PUT " + dev.getName() + " " + url + " delta");
+		final Encoding encoding = getEncoding(dev, file);
+		Representation entity = new OutputRepresentation(MediaType.APPLICATION_OCTET_STREAM) {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				if (encoding != null) {
+					DeflaterOutputStream zip = Compression.encode(Throttle.wrap(out, dev.getName()), encoding);
+					Delta.writeDelta(file, signature, zip);
+					zip.finish();
+				}
+				else {
+					Delta.writeDelta(file, signature, Throttle.wrap(out, dev.getName()));
+				}
+			}
+		};
+		if (encoding != null)
+			entity.getEncodings().add(encoding);
+		response = handle(Method.PUT, url + "?delta&" + query, entity, file.length());
+		if (!response.getStatus().isSuccess())
+			throw new IOException("Delta backup failed: " + response.getStatus());
+	}
+	
+	/**
+	 * Get the encoding to compress the backup data of the given file sent to the
+	 * given device, or null if the device does not accept it or the file is not
+	 * worth compressing.
+	 * 
+	 * @param dev
+	 * @param file
+	 * @return
+	 */
+	private static Encoding getEncoding(Device dev, File file) {
+		if (dev.accepts(Encoding.DEFLATE.getName()) && Compression.isCompressible(file.getName(), file.length()))
+			return Encoding.DEFLATE;
+		return null;
+	}
+	
+	/**
+	 * Get the request entity which sends the data of the given stream to the 
+	 * device, throttled and compressed with the given encoding if not null.
+	 * 
+	 * @param in
+	 * @param size
+	 * @param encoding
+	 * @param name of the device
+	 * @return
+	 */
+	private static Representation getEntity(InputStream in, long size, final Encoding encoding, final String name) {
+		if (encoding == null)
+			return new InputRepresentation(Throttle.wrap(in, name), MediaType.APPLICATION_OCTET_STREAM, size);
+		final Representation data = new InputRepresentation(in, MediaType.APPLICATION_OCTET_STREAM, size);
+		Representation result = new OutputRepresentation(MediaType.APPLICATION_OCTET_STREAM) {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				DeflaterOutputStream zip = Compression.encode(Throttle.wrap(out, name), encoding);
+				data.write(zip);
+				zip.finish();
+			}
+		};
+		result.getEncodings().add(encoding);
+		return result;
+	}
+	
+	/**
+	 * Send a request using the transfer executor and wait for the response.
+	 * 
+	 * @param method
+	 * @param url
+	 * @param entity
+	 * @param bytes the number of bytes sent
+	 * @return
+	 * @throws IOException if the request failed or timed out
+	 */
+	private Response handle(final Method method, final String url, final Representation entity, long bytes) throws IOException {
+		return transfers.handle(new Callable<Response>() {
+			public Response call() throws Exception {
+				return client.handle(new Request(method, url, entity));
+			}
+		}, bytes);
 	}
 }
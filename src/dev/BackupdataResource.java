@@ -1,30 +1,34 @@
 package dev;
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.xpath.XPathExpressionException;
 
-import org.restlet.Client;
 import org.restlet.Context;  
 import org.restlet.data.Form;
 import org.restlet.data.MediaType;  
-import org.restlet.data.Protocol;
 import org.restlet.data.Request;  
 import org.restlet.data.Response;  
 import org.restlet.data.Status;
 import org.restlet.resource.FileRepresentation;
+import org.restlet.resource.InputRepresentation;
 import org.restlet.resource.Representation;  
 import org.restlet.resource.ResourceException;  
 import org.restlet.resource.StringRepresentation;
@@ -35,8 +39,12 @@ import org.w3c.dom.NodeList;
 
 import api.BaseResource;
 
+import db.Compression;
 import db.Database;
+import db.FileQuery;
 import db.FileUtil;
+import db.Log;
+import db.TaskScheduler;
 
 
 /**
@@ -46,19 +54,50 @@ import db.FileUtil;
  * browser the command= parameter either "backup" or "restore" determines
  * what to do. Without a parameter, this is used for sending backup
  * to another machine or getting backup from another machine (restore).
+ * 
+ * The backup data is either a full copy of the file, or a manifest of chunks in 
+ * the ChunkStore if PUT with the ?manifest parameter. The GET for restore returns
+ * the file data in either case. The data is compressed in the GET response if the
+ * other machine accepts it, and the PUT body may be compressed too.
+ * 
+ * The command from the browser may be for all the files in a directory tree with
+ * the recursive=true parameter, and optionally only the files whose name matches 
+ * the matches= glob pattern. Such a command is started as a Job and the response 
+ * has the job URL at /jobs/{id} to get the progress.
  */
 public class BackupdataResource extends BaseResource {  
+
+	private static final Log log = Log.get(BackupdataResource.class);
   
 	/**
 	 * Configuration set by main to store the list of devices.
 	 */
 	public static DeviceUpdater deviceUpdater;
 	
+	/**
+	 * Configuration set by main to schedule the backups.
+	 */
+	public static BackupScheduler scheduler;
+	
 	/**
 	 * Configuration set by main to store the backup directory.
 	 */
 	public static String backup_dir;
 	
+	// the chunk store in the backup directory, created on first use.
+	private static ChunkStore chunkStore;
+	
+	// the number of backup data or chunks being received.
+	static AtomicInteger load = new AtomicInteger();
+	
+	/**
+	 * The number of files restored in parallel by a restore job.
+	 */
+	public static int restoreWorkers = 2;
+	
+	// runs the restores of the jobs on the shared workers, created on first use.
+	private static TaskScheduler.Limited restoreExecutor;
+	
 	/**
 	 * Construct the resource. Do not call authenticate here, but call it when
 	 * processing the command.
@@ -81,6 +120,14 @@ public class BackupdataResource extends BaseResource {
     	return true;
     }
     
+    /**
+     * POST is supported to report a corrupt backup.
+     */
+    @Override 
+    public boolean allowPost() {
+    	return true;
+    }
+    
     /** 
      * Handle the GET from browser with command=restore or command=backup
      * or GET from another machine for restore.
@@ -103,6 +150,10 @@ public class BackupdataResource extends BaseResource {
 			
 			if (!authenticate())
 				return null;
+			
+			// the command for a directory tree is started as a job.
+			if ("true".equals(form.getFirstValue("recursive")) || form.getFirst("matches") != null)
+				return startJob(command, form.getFirstValue("matches"));
 
 			Element fileNode = null;
 			try {
@@ -128,6 +179,18 @@ public class BackupdataResource extends BaseResource {
 				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid command name: " + command);
 			}
 		}
+		else if (form.getFirst("signature") != null) {
+			// another machine is requesting the signature for a delta backup.
+			result = signature();
+		}
+		else if (form.getFirst("info") != null) {
+			// another machine is requesting the size and checksum for a restore.
+			result = info();
+		}
+		else if (form.getFirst("offset") != null) {
+			// another machine is requesting a part of the file for a restore.
+			result = restoreRange(form.getFirstValue("offset"), form.getFirstValue("length"));
+		}
 		else {
 			// another machine is requesting a restore.
 			result = restore(path);
@@ -136,30 +199,345 @@ public class BackupdataResource extends BaseResource {
 		return result;
     }
     
+    /**
+     * Get the free space in bytes in the backup directory.
+     * 
+     * @return
+     */
+    public static long getFreeSpace() {
+    	File dir = new File(backup_dir);
+    	dir.mkdirs();
+    	return dir.getUsableSpace();
+    }
+    
+    /**
+     * Get the number of backups being received.
+     * 
+     * @return
+     */
+    public static int getLoad() {
+    	return load.get();
+    }
+    
+    /**
+     * Get the chunk store in the backup directory.
+     * 
+     * @return
+     */
+    public static synchronized ChunkStore getChunkStore() {
+    	if (chunkStore == null)
+    		chunkStore = new ChunkStore(backup_dir);
+    	return chunkStore;
+    }
+    
     /**
      * Handle the PUT when other machines sends backup data to this.
-     * It creates a file in the backup_dir
+     * It creates a file in the backup_dir, or if the ?manifest parameter is 
+     * present, it stores the manifest of the chunks that were sent earlier. The
+     * manifest is rejected with the list of missing chunks if any chunk is not
+     * stored. Only one of the file or the manifest is kept for a path.
      */
     @Override
     public void storeRepresentation(Representation entity) throws ResourceException {
+    	load.incrementAndGet();
+    	try {
+    		store(entity);
+    	}
+    	finally {
+    		load.decrementAndGet();
+    	}
+    }
+    
+    /**
+     * Handle the POST from another machine with the ?corrupt=devicename parameter,
+     * which reports that its backup of our file is corrupt and has been deleted. 
+     * The Location of that device is removed from the file and the file is 
+     * scheduled for backup again.
+     */
+    @Override
+    public void acceptRepresentation(Representation entity) throws ResourceException {
+    	String path = getPath();
+    	String location = getRequest().getResourceRef().getQueryAsForm().getFirstValue("corrupt");
+    	if (path == null || location == null)
+    		throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid file name or device name");
+    	
+    	File file = new File(path);
+    	String parent = (file.getParent() != null ? file.getParent().replace('\\', '/') : "");
+    	try {
+    		Database db = Database.getInstance();
+    		log.warn("backup of " + path + " on " + location + " is corrupt");
+    		List<String> users = db.removeBackupLocation(db.getLocalDevice(), parent, file.getName(), location);
+    		if (!users.isEmpty())
+    			db.incrVersion(db.getLocalDevice());
+    		for (int i=0; scheduler != null && i<users.size(); ++i)
+    			scheduler.schedule(users.get(i), db.getLocalDevice(), parent, file.getName());
+    		getResponse().setEntity(new StringRepresentation("Removed " + users.size() + " backup locations", MediaType.TEXT_PLAIN));
+    	} catch (XPathExpressionException e) {
+    		log.error(e);
+    		throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+    	} catch (InterruptedException e) {
+    		log.error(e);
+    		throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+    	}
+    }
+    
+    /**
+     * Store the backup data of the PUT request.
+     */
+    private void store(Representation entity) throws ResourceException {
+    	String path = getPath();
+    	if (path == null)
+    		throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid file name");
+    	
+    	ChunkStore store = getChunkStore();
+    	File file = new File(backup_dir + "/" + path);
+    	Form form = getRequest().getResourceRef().getQueryAsForm();
+    	String checksum = form.getFirstValue("sha1");
+    	String owner = form.getFirstValue("from");
+    	if (checksum != null && !ChunkStore.isHash(checksum))
+    		throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid checksum");
+    	
+    	if (form.getFirst("delta") != null) {
+    		storeDelta(path, entity, checksum, owner);
+    		return;
+    	}
+    	if (form.getFirst("manifest") != null) {
+    		try {
+    			List<ChunkStore.Chunk> chunks = ChunkStore.parseManifest(entity.getText());
+    			List<String> missing = store.getMissing(ChunkStore.getHashes(chunks));
+    			if (!missing.isEmpty()) {
+    				StringBuilder sb = new StringBuilder();
+    				for (int i=0; i<missing.size(); ++i)
+    					sb.append(missing.get(i)).append('\n');
+    				getResponse().setStatus(Status.CLIENT_ERROR_CONFLICT, "Missing chunks");
+    				getResponse().setEntity(new StringRepresentation(sb.toString(), MediaType.TEXT_PLAIN));
+    				return;
+    			}
+    			
+    			// read the stored chunks back to verify the whole file.
+    			if (checksum != null && !checksum.equals(ChunkStore.checksum(store.openStream(chunks))))
+    				throw new IOException("Backup data does not match the checksum");
+    			log.debug("creating backup manifest for " + path + " with " + chunks.size() + " chunks");
+    			store.writeManifest(path, chunks);
+    			file.delete();
+    			setChecksum(path, checksum, owner);
+    		} catch (IOException e) {
+    			log.error(e);
+    			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+    		}
+    		return;
+    	}
+    	
+    	// the data is written to a temporary file, which replaces the backup copy
+    	// only if it matches the checksum.
+    	File temp = null;
 		try {
-			File file = new File(backup_dir + "/" + getRequest().getResourceRef().getRemainingPart());
-			System.out.println("  creating backup at " + file.getPath());
+			log.debug("creating backup at " + file.getPath());
 			File parent = file.getParentFile();
 			parent.mkdirs();
-			FileOutputStream out = new FileOutputStream(file);
-			InputStream in = entity.getStream();
-			int c;
-			while ((c = in.read()) != -1) 
-				out.write(c);
-			out.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			temp = File.createTempFile("backup", ".tmp", parent);
+			FileOutputStream out = new FileOutputStream(temp);
+			DigestInputStream in = new DigestInputStream(Compression.decode(entity), MessageDigest.getInstance("SHA-1"));
+			try {
+				FileUtil.copyStream(in, out);
+			}
+			finally {
+				in.close();
+				out.close();
+			}
+			String actual = ChunkStore.toHex(in.getMessageDigest().digest());
+			if (checksum != null && !checksum.equals(actual))
+				throw new IOException("Backup data does not match the checksum");
+			
+			if (ChunkStore.compress) {
+				// store it as compressed chunks instead of a full copy.
+				store.storeFile(path, temp);
+				file.delete();
+			}
+			else {
+				if (!temp.renameTo(file)) {
+					// some platforms do not replace on rename
+					file.delete();
+					if (!temp.renameTo(file))
+						throw new IOException("Cannot replace the backup copy");
+				}
+				store.getManifestFile(path).delete();
+			}
+			setChecksum(path, actual, owner);
+		} catch (NoSuchAlgorithmException e) {
+			log.error(e);
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(e);
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+		} finally {
+			if (temp != null)
+				temp.delete();
 		}
     }
+    
+    /**
+     * Store the checksum of the backup of the given path, or delete the old one if
+     * the checksum is not known.
+     * 
+     * @param path
+     * @param checksum
+     * @param owner the device which sent the backup
+     * @throws IOException
+     */
+    private void setChecksum(String path, String checksum, String owner) throws IOException {
+    	if (checksum != null)
+    		getChunkStore().writeChecksum(path, checksum, owner);
+    	else
+    		getChunkStore().getChecksumFile(path).delete();
+    }
 
+    /**
+     * Handle the GET from another machine for the signature of our backup copy,
+     * which is a manifest or a full copy.
+     * 
+     * @see Delta
+     * @return
+     */
+    private Representation signature() {
+    	String path = getPath();
+    	if (path == null) {
+    		getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+    		return new StringRepresentation("Invalid file name", MediaType.TEXT_PLAIN);
+    	}
+    	
+    	try {
+    		ChunkStore store = getChunkStore();
+    		List<ChunkStore.Chunk> chunks = store.readManifest(path);
+    		File file = new File(backup_dir + "/" + path);
+    		InputStream in;
+    		long size;
+    		if (chunks != null) {
+    			in = store.openStream(chunks);
+    			size = ChunkStore.getSize(chunks);
+    		}
+    		else if (file.isFile()) {
+    			in = new FileInputStream(file);
+    			size = file.length();
+    		}
+    		else {
+    			getResponse().setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+    			return new StringRepresentation("No backup copy for filename=" + path, MediaType.TEXT_PLAIN);
+    		}
+    		
+    		try {
+    			String text = Delta.signature(in, size);
+    			log.debug("signature returned for " + path);
+    			return new StringRepresentation(text, MediaType.TEXT_PLAIN);
+    		} finally {
+    			in.close();
+    		}
+    	} catch (IOException e) {
+    		log.error(e);
+    		getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+    		return new StringRepresentation("Cannot read backup copy for filename=" + path, MediaType.TEXT_PLAIN);
+    	}
+    }
+    
+    /**
+     * Handle the PUT with the delta of a new version against our backup copy. The
+     * new version is built in a temporary file, and replaces the backup copy only
+     * if it matches the SHA-1 in the delta. If the backup copy is a manifest, then 
+     * the new version is stored as chunks too.
+     * 
+     * @param path
+     * @param entity
+     * @param checksum the SHA-1 of the new version, or null
+     * @param owner the device which sent the delta
+     * @throws ResourceException
+     */
+    private void storeDelta(String path, Representation entity, String checksum, String owner) throws ResourceException {
+    	ChunkStore store = getChunkStore();
+    	File file = new File(backup_dir + "/" + path);
+    	File temp = null;
+    	Delta.Base base = null;
+    	try {
+    		List<ChunkStore.Chunk> chunks = store.readManifest(path);
+    		long size;
+    		if (chunks != null) {
+    			base = new Delta.ChunkBase(store, chunks);
+    			size = ChunkStore.getSize(chunks);
+    		}
+    		else if (file.isFile()) {
+    			base = new Delta.FileBase(file);
+    			size = file.length();
+    		}
+    		else {
+    			throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "No backup copy");
+    		}
+    		
+    		temp = File.createTempFile("delta", ".tmp", file.getParentFile() != null && file.getParentFile().isDirectory() 
+    				? file.getParentFile() : new File(backup_dir));
+    		String actual = Delta.applyDelta(Compression.decode(entity), base, Delta.getBlockSize(size), temp);
+    		base.close();
+    		base = null;
+    		if (checksum != null && !checksum.equals(actual))
+    			throw new IOException("Backup data does not match the checksum");
+    		
+    		log.debug("creating backup from delta at " + path);
+    		if (chunks != null || ChunkStore.compress) {
+    			store.storeFile(path, temp);
+    			file.delete();
+    		}
+    		else if (!temp.renameTo(file)) {
+    			// some platforms do not replace on rename
+    			file.delete();
+    			if (!temp.renameTo(file))
+    				throw new IOException("Cannot replace the backup copy");
+    		}
+    		setChecksum(path, actual, owner);
+    	} catch (IOException e) {
+    		log.error(e);
+    		throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+    	} finally {
+    		try {
+    			if (base != null)
+    				base.close();
+    		} catch (IOException e) {
+    			log.error(e);
+    		}
+    		if (temp != null)
+    			temp.delete();
+    	}
+    }
+    
+    /**
+     * Get the decoded file path of the request without the query, or null if the
+     * path is not valid for the backup directory. The path may not be in the
+     * directories of the chunk store, so that a full copy does not replace a
+     * chunk, a manifest or a checksum.
+     * 
+     * @return
+     */
+    private String getPath() {
+    	String path = getRequest().getResourceRef().getRemainingPart();
+		if (path.indexOf('?') >= 0)
+			path = path.substring(0, path.indexOf('?'));
+		try {
+			path = URLDecoder.decode(path, "US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			log.error(e);
+			return null;
+		}
+        if (path.startsWith("/") || path.startsWith("\\") || path.contains(".."))
+        	return null;
+        String[] parts = path.split("[/\\\\]");
+        for (int i=0; i<parts.length; ++i) {
+        	if (parts[i].length() == 0 || parts[i].equals("."))
+        		continue;
+        	if (parts[i].equalsIgnoreCase(".chunks") || parts[i].equalsIgnoreCase(".manifests")
+        			|| parts[i].equalsIgnoreCase(".checksums"))
+        		return null;
+        	break;
+        }
+        return path;
+    }
+    
     /**
      * Get the file element for the given username and path from the XML database.
      * 
@@ -192,33 +570,141 @@ public class BackupdataResource extends BaseResource {
     
     /**
      * Handle the backup command from the browser. It sets the count attribute of the 
-     * file in XML database to be desired number of backups. The background 
-     * thread in BackupThread takes care of actually performing backups.
+     * file in XML database to be desired number of backups, and schedules the file
+     * in the BackupScheduler which takes care of actually performing backups.
      * 
      * @param fileNode
      * @return
      * @throws ResourceException
      */
     private Representation startBackup(Element fileNode) throws ResourceException {
-    	String count = getRequest().getResourceRef().getQueryAsForm().getFirst("count").getValue();
-		Element backup = (Element) fileNode.getElementsByTagName("Backup").item(0);
-		backup.setAttribute("count", count);
-		while (backup.hasChildNodes())
-			backup.removeChild(backup.getFirstChild());
-		System.out.println("  scheduling backup to count=" + count);
-		try {
-			Database.printNode(fileNode, System.out);
-		} catch (Exception e) {
-			// ignore the debug print exception
-		}
+    	int count;
+    	try {
+    		count = Integer.parseInt(getRequest().getResourceRef().getQueryAsForm().getFirstValue("count"));
+    	} catch (NumberFormatException e) {
+    		throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid count");
+    	}
+    	
+    	Database db = Database.getInstance();
+    	String path = FileQuery.getChildText(fileNode, "Path");
+    	String name = FileQuery.getChildText(fileNode, "Name");
+    	try {
+    		db.setBackupCount(gdocs.getUsername(), db.getLocalDevice(), path, name, count);
+    	} catch (Exception e) {
+    		log.error(e);
+    		throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+    	}
+		log.debug("scheduling backup to count=" + count);
+		if (scheduler != null)
+			scheduler.schedule(gdocs.getUsername(), db.getLocalDevice(), path, name);
 		return new StringRepresentation("Backup is scheduled", MediaType.TEXT_PLAIN);
     }
     
+    /**
+     * Handle the backup or restore command from the browser for all the files in a
+     * directory tree, or the files whose names match the given pattern. The backup
+     * sets the backup count of all the files at once, and schedules them together
+     * in the BackupScheduler. The restore fetches the files which are deleted or 
+     * missing locally using a few restore workers. The response status is 202 
+     * with the Location of the job.
+     * 
+     * @param command
+     * @param glob the pattern such as "*.jpg", or null
+     * @return
+     * @throws ResourceException
+     */
+    private Representation startJob(String command, String glob) throws ResourceException {
+    	String dir = getPath();
+    	if (dir == null)
+    		throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid directory name");
+    	while (dir.endsWith("/"))
+    		dir = dir.substring(0, dir.length() - 1);
+    	if (glob != null && glob.length() == 0)
+    		glob = null;
+    	
+    	String username = gdocs.getUsername();
+    	Database db = Database.getInstance();
+    	String pattern = (glob == null ? dir : dir.length() == 0 ? glob : dir + "/" + glob);
+    	Job job;
+    	try {
+	    	if (command.equals("backup")) {
+	        	int count;
+	        	try {
+	        		count = Integer.parseInt(getRequest().getResourceRef().getQueryAsForm().getFirstValue("count"));
+	        	} catch (NumberFormatException e) {
+	        		throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid count");
+	        	}
+	    		List<Element> files = db.setBackupCountUnder(username, db.getLocalDevice(), dir, glob, count);
+	    		if (files.isEmpty())
+	    			throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "No file found");
+	    		log.debug("scheduling backup of " + files.size() + " files to count=" + count);
+	    		job = Job.create(username, command, pattern);
+	    		for (int i=0; scheduler != null && i<files.size(); ++i)
+	    			scheduler.schedule(username, db.getLocalDevice(), files.get(i), job);
+	    		job.close();
+	    	}
+	    	else if (command.equals("restore")) {
+	    		List<Element> files = db.getFilesUnder(username, db.getLocalDevice(), dir, glob);
+	    		if (files.isEmpty())
+	    			throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "No file found");
+	    		String localDir = db.getUserLocalDir(username);
+	    		job = Job.create(username, command, pattern);
+	    		for (int i=0; i<files.size(); ++i) {
+	    			Element fileNode = files.get(i);
+	    			String path = FileQuery.getChildText(fileNode, "Path");
+	    			String name = FileQuery.getChildText(fileNode, "Name");
+	    			path = (path.equals("") ? name : path + "/" + name);
+	    			File file = new File(FileUtil.getFullPath(path, localDir));
+	    			if (!"yes".equals(FileQuery.getChildText(fileNode, "Deleted")) && file.isFile())
+	    				continue;
+	    			job.add(path);
+	    			restore(job, fileNode, path, file);
+	    		}
+	    		job.close();
+	    	}
+	    	else {
+	    		throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid command name: " + command);
+	    	}
+		} catch (XPathExpressionException e) {
+			log.error(e);
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+		} catch (InterruptedException e) {
+			log.error(e);
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+		}
+		
+		getResponse().setStatus(Status.SUCCESS_ACCEPTED);
+		getResponse().setLocationRef("/jobs/" + job.getId());
+		return new StringRepresentation("Job " + job.getId() + " is started", MediaType.TEXT_PLAIN);
+    }
+    
+    /**
+     * Restore the given file of the job using the restore workers.
+     */
+    private void restore(final Job job, final Element fileNode, final String path, final File file) {
+    	synchronized (BackupdataResource.class) {
+    		if (restoreExecutor == null) {
+    			restoreExecutor = new TaskScheduler.Limited("Restore", restoreWorkers);
+    		}
+    	}
+    	restoreExecutor.execute(new Runnable() {
+    		public void run() {
+    			log.info("restore " + path + " of job " + job.getId());
+    			if (ParallelRestore.restore(fileNode, path, file, deviceUpdater))
+    				job.succeeded(path);
+    			else
+    				job.failed(path, path);
+    		}
+    	});
+    }
+    
     /**
      * Handle the restore command from the browser. It locates the File element in the
      * XML database, finds all the File/Backup/Location items and their current IP:port
-     * from the online devices list, and tries to fetch backup from one of that device.
-     * In case of failure, it returns the appropriate error response.
+     * from the online devices list, and fetches the latest backup from all the online
+     * devices which have it in parallel using ParallelRestore. If that fails, then the
+     * older backups are tried. In case of failure, it returns the appropriate error 
+     * response.
      * 
      * @param fileNode
      * @param path
@@ -233,73 +719,155 @@ public class BackupdataResource extends BaseResource {
 			return new StringRepresentation("No backup location found for this file", MediaType.TEXT_PLAIN);
 		}
 		
-		NodeList locationNodes = backup.getElementsByTagName("Location");
-		
-		// sort the locations in decreasing order of modified attribute
-		List<Node> locations = new LinkedList<Node>();
-		for (int i=0; i<locationNodes.getLength(); ++i) {
-			locations.add(locationNodes.item(i));
-		}
-		Comparator<Node> compare = new Comparator<Node>() {
-			public int compare(Node o1, Node o2) {
-				long m1 = Long.parseLong(((Element) o1).getAttribute("modified"));
-				long m2 = Long.parseLong(((Element) o1).getAttribute("modified"));
-				return (int)(m2 - m1);
-			}
-			public boolean equals(Object obj) {
-				return obj == this;
-			}
-		};
-		Collections.sort(locations, compare);
-		
-		// not try to fetch the backup from the locations using REST API
-		Client client = new Client(new Context(), Protocol.HTTP);
-		client.getContext().getParameters().add("converter", 
-				"com.noelios.restlet.http.HttpClientConverter");
-		
-		Database db = Database.getInstance();
-		for (Iterator<Node> it=locations.iterator(); it.hasNext(); ) {
-			Element location = (Element) it.next();
-			Device dev = deviceUpdater.getDevice(location.getTextContent());
-			if (dev != null) {
-				String url = "http://" + dev.getIp() + ":" + dev.getPort() + "/backupdata/" + path; 
-				System.out.println("GET " + dev.getName() + " " + url);
-				Response response = client.get(url);
-				if (response.getStatus().isSuccess()) {
-					Representation repr = response.getEntity();
-					try {
-						String filename = FileUtil.getFullPath(path, db.getUserLocalDir(gdocs.getUsername()));
-						File file = new File(filename);
-						File parent = new File(file.getParent().replace('\\', '/')); // parent path
-						parent.mkdirs();
-						
-						InputStream in = repr.getStream();
-						if (in != null) {
-							FileOutputStream out = new FileOutputStream(file);
-							FileUtil.copyStream(in, out);
-							return new StringRepresentation("Restore complete", MediaType.TEXT_PLAIN);
-						}
-					} catch (FileNotFoundException e) {
-						e.printStackTrace();
-					} catch (IOException e) {
-						e.printStackTrace();
-					} catch (XPathExpressionException e) {
-						e.printStackTrace();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					
-				}
-				else {
-					System.out.println("  received a failure response: " + response.getStatus().toString());
-				}
-			}
+		File file;
+		try {
+			Database db = Database.getInstance();
+			file = new File(FileUtil.getFullPath(path, db.getUserLocalDir(gdocs.getUsername())));
+		} catch (XPathExpressionException e) {
+			log.error(e);
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+		} catch (InterruptedException e) {
+			log.error(e);
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
 		}
+		if (ParallelRestore.restore(fileNode, path, file, deviceUpdater))
+			return new StringRepresentation("Restore complete", MediaType.TEXT_PLAIN);
 		
 		getResponse().setStatus(Status.CLIENT_ERROR_NOT_FOUND, "No active location available");
 		return new StringRepresentation("No active backup location available at this time. Please try again later.", MediaType.TEXT_PLAIN);
     }
     
+    /**
+     * Handle the GET from another machine for the size and SHA-1 of our backup copy,
+     * as text "size sha1". The SHA-1 is empty if not known.
+     * 
+     * @return
+     */
+    private Representation info() {
+    	String path = getPath();
+    	if (path == null) {
+    		getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+    		return new StringRepresentation("Invalid file name", MediaType.TEXT_PLAIN);
+    	}
+    	
+    	try {
+    		ChunkStore store = getChunkStore();
+    		List<ChunkStore.Chunk> chunks = store.readManifest(path);
+    		File file = new File(backup_dir + "/" + path);
+    		long size;
+    		if (chunks != null) {
+    			size = ChunkStore.getSize(chunks);
+    		}
+    		else if (file.isFile()) {
+    			size = file.length();
+    		}
+    		else {
+    			getResponse().setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+    			return new StringRepresentation("No backup copy for filename=" + path, MediaType.TEXT_PLAIN);
+    		}
+    		String[] checksum = store.readChecksum(path);
+    		return new StringRepresentation(size + " " + (checksum != null ? checksum[0] : ""), MediaType.TEXT_PLAIN);
+    	} catch (IOException e) {
+    		log.error(e);
+    		getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+    		return new StringRepresentation("Cannot read backup copy for filename=" + path, MediaType.TEXT_PLAIN);
+    	}
+    }
+    
+    /**
+     * Handle the GET from another machine for a part of our backup copy, from the
+     * given offset and of at most the given length, which defaults to the rest of 
+     * the file. The data is compressed as for the whole file.
+     * 
+     * @param offset
+     * @param length
+     * @return
+     */
+    private Representation restoreRange(String offset, String length) {
+    	String path = getPath();
+    	long start, count;
+    	try {
+    		start = Long.parseLong(offset);
+    		count = (length != null ? Long.parseLong(length) : Long.MAX_VALUE);
+    	} catch (NumberFormatException e) {
+    		start = count = -1;
+    	}
+    	if (path == null || start < 0 || count < 0) {
+    		getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
+    		return new StringRepresentation("Invalid file name, offset or length", MediaType.TEXT_PLAIN);
+    	}
+    	
+    	try {
+    		ChunkStore store = getChunkStore();
+    		List<ChunkStore.Chunk> chunks = store.readManifest(path);
+    		File file = new File(backup_dir + "/" + path);
+    		long size;
+    		InputStream in;
+    		if (chunks != null) {
+    			size = ChunkStore.getSize(chunks);
+    			if (start > size)
+    				start = size;
+    			in = store.openStream(chunks, start);
+    		}
+    		else if (file.isFile()) {
+    			size = file.length();
+    			if (start > size)
+    				start = size;
+    			in = new FileInputStream(file);
+    			long skip = start;
+    			while (skip > 0)
+    				skip -= in.skip(skip);
+    		}
+    		else {
+    			getResponse().setStatus(Status.CLIENT_ERROR_NOT_FOUND);
+    			return new StringRepresentation("No backup copy for filename=" + path, MediaType.TEXT_PLAIN);
+    		}
+    		
+    		count = Math.min(count, size - start);
+    		log.debug("restore returning " + count + " bytes at " + start + " of " + path);
+    		Representation result = new InputRepresentation(limit(in, count), MediaType.APPLICATION_OCTET_STREAM, count);
+    		if (Compression.isCompressible(path, count))
+    			result = Compression.encode(result, Compression.getEncoding(getRequest().getClientInfo()));
+    		return result;
+    	} catch (IOException e) {
+    		log.error(e);
+    		getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+    		return new StringRepresentation("Cannot read backup copy for filename=" + path, MediaType.TEXT_PLAIN);
+    	}
+    }
+    
+    /**
+     * Get the stream which reads at most the given number of bytes from the given 
+     * stream.
+     * 
+     * @param in
+     * @param length
+     * @return
+     */
+    private static InputStream limit(InputStream in, final long length) {
+    	return new FilterInputStream(in) {
+    		private long remaining = length;
+    		
+    		public int read() throws IOException {
+    			if (remaining <= 0)
+    				return -1;
+    			int result = super.read();
+    			if (result >= 0)
+    				--remaining;
+    			return result;
+    		}
+    		
+    		public int read(byte[] b, int off, int len) throws IOException {
+    			if (remaining <= 0)
+    				return -1;
+    			int result = super.read(b, off, (int) Math.min(len, remaining));
+    			if (result > 0)
+    				remaining -= result;
+    			return result;
+    		}
+    	};
+    }
+    
     /**
      * Handle the GET request from another machine by returning the file
      * content from our backup directory. In case of error in file name path
@@ -313,7 +881,7 @@ public class BackupdataResource extends BaseResource {
         	// if file name as spaces, it gets URL encoded. So first decode it.
 			path = URLDecoder.decode(path, "US-ASCII");
 		} catch (UnsupportedEncodingException e) {
-			e.printStackTrace();
+			log.error(e);
 			getResponse().setStatus(Status.CLIENT_ERROR_BAD_REQUEST);
 			return new StringRepresentation("Unsupported encoding for filename", MediaType.TEXT_PLAIN);
 		}
@@ -323,8 +891,28 @@ public class BackupdataResource extends BaseResource {
         	return new StringRepresentation("Invalid file name: cannot start with /, \\ or contain .. for security reason.\nfilename=" + path, MediaType.TEXT_PLAIN);
         }
         
+    	// return the chunks if the backup is a manifest.
+    	try {
+    		List<ChunkStore.Chunk> chunks = getChunkStore().readManifest(path);
+    		if (chunks != null) {
+    			log.debug("restore returning " + chunks.size() + " chunks of " + path);
+    			Representation result = getChunkStore().getRepresentation(chunks);
+    			if (Compression.isCompressible(path, -1))
+    				result = Compression.encode(result, Compression.getEncoding(getRequest().getClientInfo()));
+    			return result;
+    		}
+    	} catch (IOException e) {
+    		log.error(e);
+    		getResponse().setStatus(Status.SERVER_ERROR_INTERNAL);
+    		return new StringRepresentation("Invalid backup manifest for filename=" + path, MediaType.TEXT_PLAIN);
+    	}
+    	
     	String filepath = backup_dir + "/" + path;
-    	System.out.println("  restore returning file " + filepath);
-    	return new FileRepresentation(new File(filepath), MediaType.APPLICATION_OCTET_STREAM);
+    	log.debug("restore returning file " + filepath);
+    	File file = new File(filepath);
+    	Representation result = new FileRepresentation(file, MediaType.APPLICATION_OCTET_STREAM);
+    	if (Compression.isCompressible(path, file.length()))
+    		result = Compression.encode(result, Compression.getEncoding(getRequest().getClientInfo()));
+    	return result;
     }
 }  
@@ -0,0 +1,64 @@
+package dev;
+
+import java.util.List;
+
+/**
+ * The placement policy which balances the storage and the transfer time. The 
+ * devices which advertise less free space than the file size are not selected.
+ * For others, the cost is the estimated transfer time using the measured round
+ * trip time and throughput, multiplied by the number of backups the device is
+ * receiving, and divided by its free space relative to the device with most
+ * free space. The device with the least cost is selected. A device which is not 
+ * measured yet is assumed to have the average throughput, so that it gets tried.
+ * 
+ * @author Mamta
+ */
+public class BalancedPlacement implements PlacementPolicy {
+
+	/**
+	 * The assumed throughput in bytes per millisecond when none is measured.
+	 */
+	public static double defaultThroughput = 1000;
+	
+	/**
+	 * The free space in bytes which is kept on a device in addition to the file.
+	 */
+	public static long reserve = 10 * 1024 * 1024;
+	
+	public Device select(List<Device> candidates, long size) {
+		// find the average throughput and the maximum free space.
+		double sum = 0;
+		int count = 0;
+		long maxFree = 0;
+		for (int i=0; i<candidates.size(); ++i) {
+			Device device = candidates.get(i);
+			double throughput = PeerStats.get(device.getName()).getThroughput();
+			if (throughput > 0) {
+				sum += throughput;
+				++count;
+			}
+			maxFree = Math.max(maxFree, device.getFree());
+		}
+		double average = (count > 0 ? sum / count : defaultThroughput);
+		
+		Device result = null;
+		double minCost = 0;
+		for (int i=0; i<candidates.size(); ++i) {
+			Device device = candidates.get(i);
+			if (device.getFree() >= 0 && device.getFree() < size + reserve)
+				continue;
+			
+			PeerStats stats = PeerStats.get(device.getName());
+			double throughput = (stats.getThroughput() > 0 ? stats.getThroughput() : average);
+			double time = Math.max(stats.getRtt(), 0) + size / throughput + 1;
+			double share = (device.getFree() >= 0 && maxFree > 0 ? Math.max((double) device.getFree() / maxFree, 0.01) : 1);
+			double cost = time * (1 + device.getLoad() + stats.getActive()) / share;
+			
+			if (result == null || cost < minCost) {
+				result = device;
+				minCost = cost;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,800 @@
+package dev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.restlet.data.MediaType;
+import org.restlet.resource.OutputRepresentation;
+import org.restlet.resource.Representation;
+
+import db.Compression;
+
+/**
+ * The content addressed store of backup data. A file is split into chunks at
+ * content defined boundaries, so that an edit in one part of the file changes
+ * only the chunks around it, and the same data in different files or versions
+ * gives the same chunks. Each chunk is stored once under its SHA-1 hash in the
+ * .chunks directory of the backup directory. The backup of a file is a manifest
+ * in the .manifests directory, which lists the chunks of the file in order.
+ *
+ * The boundaries are found using a gear rolling hash over the last 64 bytes. A
+ * boundary is where the top bits of the hash are zero, giving chunks of 8 KB on
+ * average, but not less than 2 KB or more than 64 KB. The gear table is generated
+ * from a fixed seed so that all the devices find the same boundaries.
+ *
+ * If compress is set, a chunk is stored deflated in a file with .z suffix, if 
+ * that is smaller. The chunk data is read using openChunk or readChunk which 
+ * handle both the forms.
+ *
+ * The SHA-1 of the whole file of each backup, and the device which owns the file,
+ * are kept in the .checksums directory, so that the backup can be verified later.
+ *
+ * A chunk may be used by many manifests, hence it is not deleted with a backup.
+ * The chunks which no manifest uses are deleted later by collect. The modified 
+ * time of a chunk is updated whenever a backup reuses it, so that the chunks of 
+ * a backup which is still being received are not collected before its manifest
+ * is written.
+ *
+ * @author Mamta
+ */
+public class ChunkStore {
+
+	public static final int MIN_SIZE = 2048;
+	public static final int MAX_SIZE = 65536;
+
+	/**
+	 * Whether the new chunks are stored compressed.
+	 */
+	public static boolean compress = false;
+
+	// the number of top bits of the hash which must be zero at a boundary.
+	private static final int BITS = 13;
+
+	// the header line of the manifest.
+	private static final String MANIFEST = "FileSync-Manifest 1";
+
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x46696c6553796e63L);
+		for (int i=0; i<GEAR.length; ++i)
+			GEAR[i] = random.nextLong();
+	}
+
+	/**
+	 * A chunk of a file.
+	 */
+	public static class Chunk {
+		public String hash;
+		public long offset;
+		public int length;
+	}
+
+	private File dir;
+	private File chunks;
+	private File manifests;
+	private File checksums;
+
+	/**
+	 * Construct a new store in the given backup directory.
+	 *
+	 * @param backupDir
+	 */
+	public ChunkStore(String backupDir) {
+		dir = new File(backupDir);
+		chunks = new File(backupDir, ".chunks");
+		manifests = new File(backupDir, ".manifests");
+		checksums = new File(backupDir, ".checksums");
+	}
+
+	/**
+	 * Get the SHA-1 in hex of the data of the given file.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static String checksum(File file) throws IOException {
+		return checksum(new FileInputStream(file));
+	}
+
+	/**
+	 * Get the SHA-1 in hex of the data read from the given stream, and close it.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static String checksum(InputStream in) throws IOException {
+		MessageDigest digest = newDigest();
+		try {
+			byte[] buffer = new byte[65536];
+			int count;
+			while ((count = in.read(buffer)) > 0)
+				digest.update(buffer, 0, count);
+		} finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Split the given file into chunks.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Chunk> split(File file) throws IOException {
+		List<Chunk> result = new ArrayList<Chunk>();
+		MessageDigest digest = newDigest();
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+		try {
+			byte[] buffer = new byte[65536];
+			long offset = 0;
+			int length = 0;
+			long hash = 0;
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				int start = 0;
+				for (int i=0; i<count; ++i) {
+					hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+					++length;
+					if (length >= MIN_SIZE && (hash >>> (64 - BITS)) == 0 || length >= MAX_SIZE) {
+						digest.update(buffer, start, i + 1 - start);
+						result.add(newChunk(digest, offset, length));
+						offset += length;
+						length = 0;
+						hash = 0;
+						start = i + 1;
+					}
+				}
+				digest.update(buffer, start, count - start);
+			}
+			if (length > 0) {
+				result.add(newChunk(digest, offset, length));
+			}
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Read the data of the given chunk from the file.
+	 *
+	 * @param file
+	 * @param chunk
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] read(File file, Chunk chunk) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] data = new byte[chunk.length];
+			raf.seek(chunk.offset);
+			raf.readFully(data);
+			return data;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Check whether the given string is a valid chunk hash, i.e., 40 lower case hex
+	 * digits, so that it is safe to use as a file name.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public static boolean isHash(String hash) {
+		if (hash == null || hash.length() != 40)
+			return false;
+		for (int i=0; i<hash.length(); ++i) {
+			char c = hash.charAt(i);
+			if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether the chunk with the given hash is stored.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public boolean has(String hash) {
+		return isHash(hash) && (getFile(hash).exists() || getCompressedFile(hash).exists());
+	}
+
+	/**
+	 * Get the file of the chunk with the given hash, if stored uncompressed.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public File getFile(String hash) {
+		return new File(new File(chunks, hash.substring(0, 2)), hash);
+	}
+
+	/**
+	 * Get the file of the chunk with the given hash, if stored compressed.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public File getCompressedFile(String hash) {
+		return new File(new File(chunks, hash.substring(0, 2)), hash + ".z");
+	}
+
+	/**
+	 * Open the stream to read the data of the chunk with the given hash.
+	 *
+	 * @param hash
+	 * @return
+	 * @throws IOException if the chunk is not stored
+	 */
+	public InputStream openChunk(String hash) throws IOException {
+		File file = getFile(hash);
+		if (file.exists())
+			return new FileInputStream(file);
+		return new InflaterInputStream(new FileInputStream(getCompressedFile(hash)));
+	}
+
+	/**
+	 * Read the data of the chunk with the given hash.
+	 *
+	 * @param hash
+	 * @return
+	 * @throws IOException if the chunk is not stored
+	 */
+	public byte[] readChunk(String hash) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		InputStream in = openChunk(hash);
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) > 0 && out.size() <= MAX_SIZE)
+				out.write(buffer, 0, count);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Store the chunk data read from the given stream. The data is written to a
+	 * temporary file first and renamed only if its hash is correct.
+	 *
+	 * @param hash
+	 * @param in
+	 * @throws IOException if the hash is invalid or does not match the data
+	 */
+	public void put(String hash, InputStream in) throws IOException {
+		if (!isHash(hash))
+			throw new IOException("Invalid chunk hash: " + hash);
+		if (touch(hash)) {
+			return;
+		}
+
+		// read the data, which is small, to check the hash.
+		MessageDigest digest = newDigest();
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int count;
+		while ((count = in.read(buffer)) > 0 && data.size() <= MAX_SIZE) {
+			digest.update(buffer, 0, count);
+			data.write(buffer, 0, count);
+		}
+		if (data.size() > MAX_SIZE || !hash.equals(toHex(digest.digest()))) {
+			throw new IOException("Chunk data does not match the hash: " + hash);
+		}
+
+		// compress it if enabled and if it saves at least one eighth.
+		File file = getFile(hash);
+		byte[] bytes = data.toByteArray();
+		if (compress) {
+			ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+			DeflaterOutputStream zip = new DeflaterOutputStream(zipped, new Deflater(Compression.level));
+			zip.write(bytes);
+			zip.close();
+			if (zipped.size() < bytes.length - bytes.length / 8) {
+				file = getCompressedFile(hash);
+				bytes = zipped.toByteArray();
+			}
+		}
+
+		file.getParentFile().mkdirs();
+		File temp = File.createTempFile("chunk", ".tmp", file.getParentFile());
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file) && !has(hash)) {
+			temp.delete();
+			throw new IOException("Cannot store chunk: " + hash);
+		}
+		temp.delete();
+	}
+
+	/**
+	 * Get the chunks of the given list which are not stored, without duplicates.
+	 * The chunks which are stored are touched, since a manifest will use them.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public List<String> getMissing(List<String> list) {
+		Set<String> result = new LinkedHashSet<String>();
+		for (int i=0; i<list.size(); ++i) {
+			if (!result.contains(list.get(i)) && !touch(list.get(i)))
+				result.add(list.get(i));
+		}
+		return new ArrayList<String>(result);
+	}
+
+	/**
+	 * Update the modified time of the chunk with the given hash, if stored.
+	 *
+	 * @param hash
+	 * @return false if the chunk is not stored
+	 */
+	private boolean touch(String hash) {
+		if (!isHash(hash))
+			return false;
+		long now = System.currentTimeMillis();
+		return getFile(hash).setLastModified(now) || getCompressedFile(hash).setLastModified(now);
+	}
+
+	/**
+	 * Get the manifest file of the backup of the given path.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public File getManifestFile(String path) {
+		return new File(manifests, path);
+	}
+
+	/**
+	 * Store the manifest of the backup of the given path, replacing any older one.
+	 *
+	 * @param path
+	 * @param list
+	 * @throws IOException
+	 */
+	public void writeManifest(String path, List<Chunk> list) throws IOException {
+		File file = getManifestFile(path);
+		replace(file, toManifest(list).getBytes("UTF-8"), "manifest");
+	}
+
+	/**
+	 * Read the manifest of the backup of the given path.
+	 *
+	 * @param path
+	 * @return the chunks, or null if there is no manifest.
+	 * @throws IOException
+	 */
+	public List<Chunk> readManifest(String path) throws IOException {
+		File file = getManifestFile(path);
+		if (!file.exists())
+			return null;
+		return parseManifest(readText(file));
+	}
+
+	/**
+	 * Read the UTF-8 text of the given file.
+	 */
+	private static String readText(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int offset = 0, count;
+			while (offset < data.length && (count = in.read(data, offset, data.length - offset)) > 0)
+				offset += count;
+		} finally {
+			in.close();
+		}
+		return new String(data, "UTF-8");
+	}
+
+	/**
+	 * Get the checksum file of the backup of the given path.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public File getChecksumFile(String path) {
+		return new File(checksums, path);
+	}
+
+	/**
+	 * Store the SHA-1 of the backup of the given path, and the device which owns
+	 * the file, replacing any older one.
+	 *
+	 * @param path
+	 * @param checksum
+	 * @param owner the device name, or null if not known
+	 * @throws IOException
+	 */
+	public void writeChecksum(String path, String checksum, String owner) throws IOException {
+		File file = getChecksumFile(path);
+		replace(file, (checksum + "\n" + (owner != null ? owner : "") + "\n").getBytes("UTF-8"), "checksum");
+	}
+
+	/**
+	 * Replace the given file with the data. The data is written to a new temporary
+	 * file in the same directory, which is then renamed, so that concurrent writes
+	 * of the same file, e.g., of a retried backup, do not mix their data, and the
+	 * reader sees either the old or the new file.
+	 *
+	 * @param file
+	 * @param data
+	 * @param kind for the temporary file name and the error, e.g., manifest
+	 * @throws IOException
+	 */
+	private static void replace(File file, byte[] data, String kind) throws IOException {
+		file.getParentFile().mkdirs();
+		File temp = File.createTempFile(kind, ".tmp", file.getParentFile());
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(file)) {
+				// some platforms do not replace on rename
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Cannot store " + kind + ": " + file.getPath());
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Read the SHA-1 and the owner device of the backup of the given path.
+	 *
+	 * @param path
+	 * @return the SHA-1 and the owner, which is empty if not known, or null if 
+	 *   there is no checksum.
+	 * @throws IOException
+	 */
+	public String[] readChecksum(String path) throws IOException {
+		File file = getChecksumFile(path);
+		if (!file.exists())
+			return null;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String checksum = reader.readLine();
+			String owner = reader.readLine();
+			if (!isHash(checksum))
+				return null;
+			return new String[] {checksum, (owner != null ? owner : "")};
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Delete the backup of the given path, whether a full copy or a manifest, 
+	 * and its checksum. The chunks are not deleted, since other manifests may 
+	 * use them. The unused ones are deleted by the next collect.
+	 *
+	 * @param path
+	 */
+	public void deleteBackup(String path) {
+		new File(dir, path).delete();
+		getManifestFile(path).delete();
+		getChecksumFile(path).delete();
+	}
+
+	/**
+	 * Delete the chunk with the given hash, e.g., if it is corrupt. It is sent
+	 * again by the next backup which needs it.
+	 *
+	 * @param hash
+	 */
+	public void deleteChunk(String hash) {
+		getFile(hash).delete();
+		getCompressedFile(hash).delete();
+	}
+
+	/**
+	 * Delete the chunks which are not used by any manifest, and were not stored
+	 * or reused within the given time, which should be longer than it takes to
+	 * receive a backup.
+	 *
+	 * @param grace the time in milliseconds
+	 * @return the number of deleted chunks
+	 * @throws IOException if a manifest could not be read, in which case no
+	 *   chunk is deleted
+	 */
+	public int collect(long grace) throws IOException {
+		long before = System.currentTimeMillis() - grace;
+		Set<String> used = new HashSet<String>();
+		addHashes(manifests, used);
+
+		int count = 0;
+		File[] dirs = chunks.listFiles();
+		for (int i=0; dirs != null && i<dirs.length; ++i) {
+			File[] files = dirs[i].listFiles();
+			for (int j=0; files != null && j<files.length; ++j) {
+				String name = files[j].getName();
+				String hash = name.endsWith(".z") ? name.substring(0, name.length() - 2) : name;
+				if (isHash(hash) && !used.contains(hash) && files[j].lastModified() < before
+						&& files[j].delete())
+					++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Add the hashes of the chunks used by the manifests in the given directory
+	 * to the set, except the temporary files.
+	 */
+	private static void addHashes(File dir, Set<String> hashes) throws IOException {
+		File[] files = dir.listFiles();
+		for (int i=0; files != null && i<files.length; ++i) {
+			if (files[i].isDirectory()) {
+				addHashes(files[i], hashes);
+			}
+			else if (!files[i].getName().endsWith(".tmp")) {
+				hashes.addAll(getHashes(parseManifest(readText(files[i]))));
+			}
+		}
+	}
+
+	/**
+	 * Store the given file as chunks and write the manifest for the given path.
+	 * Only the chunks which are not already stored are written.
+	 *
+	 * @param path
+	 * @param file
+	 * @throws IOException
+	 */
+	public void storeFile(String path, File file) throws IOException {
+		List<Chunk> list = split(file);
+		for (int i=0; i<list.size(); ++i) {
+			Chunk chunk = list.get(i);
+			if (!touch(chunk.hash)) {
+				put(chunk.hash, new ByteArrayInputStream(read(file, chunk)));
+			}
+		}
+		writeManifest(path, list);
+	}
+
+	/**
+	 * Open a stream which reads the data of the given chunks in order.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public InputStream openStream(final List<Chunk> list) {
+		return openChunks(list, 0);
+	}
+
+	/**
+	 * Open a stream which reads the data of the given chunks in order, starting
+	 * at the given offset. Only the chunks from the offset are read.
+	 *
+	 * @param list
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream openStream(List<Chunk> list, long offset) throws IOException {
+		int first = 0;
+		while (first < list.size() && list.get(first).offset + list.get(first).length <= offset)
+			++first;
+		InputStream result = openChunks(list, first);
+		long skip = (first < list.size() ? offset - list.get(first).offset : 0);
+		while (skip > 0) {
+			long count = result.skip(skip);
+			if (count <= 0)
+				throw new EOFException("Skip beyond the chunk");
+			skip -= count;
+		}
+		return result;
+	}
+
+	/**
+	 * Open a stream which reads the data of the given chunks from the given index.
+	 */
+	private InputStream openChunks(final List<Chunk> list, final int first) {
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+			private int index = first;
+
+			public boolean hasMoreElements() {
+				return index < list.size();
+			}
+
+			public InputStream nextElement() {
+				String hash = list.get(index++).hash;
+				try {
+					return openChunk(hash);
+				} catch (IOException e) {
+					// the missing chunk is read as an error.
+					return new InputStream() {
+						public int read() throws IOException {
+							throw new IOException("Missing chunk");
+						}
+					};
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the representation which writes the data of the given chunks in order.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public Representation getRepresentation(final List<Chunk> list) {
+		long size = 0;
+		for (int i=0; i<list.size(); ++i)
+			size += list.get(i).length;
+
+		Representation result = new OutputRepresentation(MediaType.APPLICATION_OCTET_STREAM, size) {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				byte[] buffer = new byte[8192];
+				for (int i=0; i<list.size(); ++i) {
+					InputStream in = openChunk(list.get(i).hash);
+					try {
+						int count;
+						while ((count = in.read(buffer)) > 0)
+							out.write(buffer, 0, count);
+					} finally {
+						in.close();
+					}
+				}
+			}
+		};
+		return result;
+	}
+
+	/**
+	 * Get the text of the manifest for the given chunks. The first line is the
+	 * header, followed by the total size, followed by a line with hash and length
+	 * for each chunk.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public static String toManifest(List<Chunk> list) {
+		long size = 0;
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<list.size(); ++i) {
+			sb.append(list.get(i).hash).append(' ').append(list.get(i).length).append('\n');
+			size += list.get(i).length;
+		}
+		return MANIFEST + "\n" + size + "\n" + sb.toString();
+	}
+
+	/**
+	 * Parse the text of the manifest.
+	 *
+	 * @param text
+	 * @return
+	 * @throws IOException if the manifest is invalid
+	 */
+	public static List<Chunk> parseManifest(String text) throws IOException {
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		if (!MANIFEST.equals(reader.readLine()))
+			throw new IOException("Invalid manifest header");
+
+		List<Chunk> result = new ArrayList<Chunk>();
+		try {
+			long size = Long.parseLong(reader.readLine().trim());
+			long offset = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().length() == 0)
+					continue;
+				String[] parts = line.trim().split(" ");
+				Chunk chunk = new Chunk();
+				chunk.hash = parts[0];
+				chunk.offset = offset;
+				chunk.length = Integer.parseInt(parts[1]);
+				if (!isHash(chunk.hash) || chunk.length <= 0 || chunk.length > MAX_SIZE)
+					throw new IOException("Invalid manifest chunk: " + line);
+				offset += chunk.length;
+				result.add(chunk);
+			}
+			if (offset != size)
+				throw new IOException("Invalid manifest size: " + size);
+		} catch (RuntimeException e) {
+			throw new IOException("Invalid manifest: " + e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Get the size of the file of the given chunks.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public static long getSize(List<Chunk> list) {
+		return list.isEmpty() ? 0 : list.get(list.size()-1).offset + list.get(list.size()-1).length;
+	}
+
+	/**
+	 * Get the hashes of the given chunks.
+	 *
+	 * @param list
+	 * @return
+	 */
+	public static List<String> getHashes(List<Chunk> list) {
+		List<String> result = new ArrayList<String>();
+		for (int i=0; i<list.size(); ++i)
+			result.add(list.get(i).hash);
+		return result;
+	}
+
+	/**
+	 * Create a new chunk with the hash of the digest, and reset the digest.
+	 */
+	private static Chunk newChunk(MessageDigest digest, long offset, int length) {
+		Chunk chunk = new Chunk();
+		chunk.hash = toHex(digest.digest());
+		chunk.offset = offset;
+		chunk.length = length;
+		return chunk;
+	}
+
+	/**
+	 * Create a new SHA-1 digest.
+	 */
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("NoSuchAlgorithmException: SHA-1");
+		}
+	}
+
+	/**
+	 * Convert the bytes to lower case hex string.
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<bytes.length; ++i) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
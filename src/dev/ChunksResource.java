@@ -0,0 +1,131 @@
+package dev;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.restlet.Context;  
+import org.restlet.data.MediaType;  
+import org.restlet.data.Request;  
+import org.restlet.data.Response;  
+import org.restlet.data.Status;
+import org.restlet.resource.InputRepresentation;
+import org.restlet.resource.Representation;  
+import org.restlet.resource.Resource;  
+import org.restlet.resource.ResourceException;  
+import org.restlet.resource.StringRepresentation;
+import org.restlet.resource.Variant;  
+
+import db.Compression;
+import db.Log;
+
+/**
+ * The chunks resource represents the chunk store of the backup data. Another 
+ * machine which wants to send a backup first POSTs the list of chunk hashes of 
+ * the file, one per line, to /chunks and gets the list of hashes that are not 
+ * stored here. Then it PUTs each of those chunks to /chunks/{hash}, and finally
+ * PUTs the manifest to /backupdata/{path}?manifest. A GET on /chunks/{hash} 
+ * returns the chunk data.
+ * 
+ * @see ChunkStore
+ * @author Mamta
+ */
+public class ChunksResource extends Resource {  
+
+	private static final Log log = Log.get(ChunksResource.class);
+  
+	/**
+	 * Construct a new resource.
+	 * 
+	 * @param context
+	 * @param request
+	 * @param response
+	 */
+    public ChunksResource(Context context, Request request, Response response) {
+    	super(context, request, response);
+    	
+		getVariants().add(new Variant(MediaType.APPLICATION_OCTET_STREAM));
+    }
+  
+    /**
+     * POST is allowed on /chunks to find the missing chunks.
+     */
+	@Override
+	public boolean allowPost() {
+		return true;
+	}
+	
+    /**
+     * PUT is allowed on /chunks/{hash} to store a chunk.
+     */
+	@Override
+	public boolean allowPut() {
+		return true;
+	}
+	
+    /** 
+     * GET returns the chunk data. 
+     */  
+    @Override  
+    public Representation represent(Variant variant) throws ResourceException {
+    	String hash = (String) getRequest().getAttributes().get("hash");
+    	ChunkStore store = BackupdataResource.getChunkStore();
+    	if (!store.has(hash)) {
+    		throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Chunk not found");
+    	}
+    	try {
+    		Representation result = new InputRepresentation(store.openChunk(hash), MediaType.APPLICATION_OCTET_STREAM);
+    		return Compression.encode(result, Compression.getEncoding(getRequest().getClientInfo()));
+    	} catch (IOException e) {
+    		log.error(e);
+    		throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+    	}
+    }
+    
+    /**
+     * POST with the list of hashes returns the list of hashes that are not stored.
+     */
+    @Override
+    public void acceptRepresentation(Representation entity) throws ResourceException {
+    	try {
+    		String[] lines = entity.getText().split("\n");
+    		List<String> hashes = new ArrayList<String>();
+    		for (int i=0; i<lines.length; ++i) {
+    			String hash = lines[i].trim();
+    			if (hash.length() == 0)
+    				continue;
+    			if (!ChunkStore.isHash(hash))
+    				throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid chunk hash: " + hash);
+    			hashes.add(hash);
+    		}
+    		
+    		List<String> missing = BackupdataResource.getChunkStore().getMissing(hashes);
+    		log.debug("chunks missing " + missing.size() + " of " + hashes.size());
+    		StringBuilder sb = new StringBuilder();
+    		for (int i=0; i<missing.size(); ++i)
+    			sb.append(missing.get(i)).append('\n');
+    		getResponse().setEntity(new StringRepresentation(sb.toString(), MediaType.TEXT_PLAIN));
+    	} catch (IOException e) {
+    		log.error(e);
+    		throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+    	}
+    }
+    
+    /**
+     * PUT stores the chunk after verifying its hash.
+     */
+    @Override
+    public void storeRepresentation(Representation entity) throws ResourceException {
+    	String hash = (String) getRequest().getAttributes().get("hash");
+    	BackupdataResource.load.incrementAndGet();
+    	try {
+    		BackupdataResource.getChunkStore().put(hash, Compression.decode(entity));
+    	} catch (IOException e) {
+    		log.error(e);
+    		throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage());
+    	}
+    	finally {
+    		BackupdataResource.load.decrementAndGet();
+    	}
+    }
+}
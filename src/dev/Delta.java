@@ -0,0 +1,454 @@
+package dev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rsync style delta transfer of a modified file to a device which has an older
+ * copy. The device sends the signature of its copy, i.e., the weak rolling checksum
+ * and the MD5 of each fixed size block. The sender finds the blocks of the new
+ * file at any offset which match a block of the old copy, and sends a delta with
+ * the block numbers to copy and the literal data in between. The device rebuilds
+ * the new file from its old copy and the delta in a temporary file, and verifies
+ * the SHA-1 of the result before replacing the old copy.
+ *
+ * The signature is text with the first line "blocksize N" followed by a line of
+ * weak checksum and MD5 in hex for each block. The delta is binary: 'C' with the
+ * first block number and count of blocks to copy, 'D' with the length and literal
+ * data, and finally 'E' with the SHA-1 and length of the new file.
+ *
+ * @author Mamta
+ */
+public class Delta {
+
+	public static final int MIN_BLOCK_SIZE = 2048;
+	public static final int MAX_BLOCK_SIZE = 65536;
+
+	// the maximum literal data in one 'D' operation.
+	private static final int MAX_DATA = 65536;
+
+	/**
+	 * The random access to the old copy.
+	 */
+	public static interface Base {
+		/**
+		 * Read len bytes at the given offset of the old copy into the buffer.
+		 */
+		public void read(long offset, byte[] buffer, int len) throws IOException;
+
+		/**
+		 * Close the old copy.
+		 */
+		public void close() throws IOException;
+	}
+
+	/**
+	 * The old copy which is a plain file.
+	 */
+	public static class FileBase implements Base {
+		private RandomAccessFile file;
+
+		public FileBase(File file) throws IOException {
+			this.file = new RandomAccessFile(file, "r");
+		}
+
+		public void read(long offset, byte[] buffer, int len) throws IOException {
+			file.seek(offset);
+			file.readFully(buffer, 0, len);
+		}
+
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+	/**
+	 * The old copy which is stored as chunks.
+	 */
+	public static class ChunkBase implements Base {
+		private ChunkStore store;
+		private List<ChunkStore.Chunk> chunks;
+
+		private String lastHash;
+		private byte[] lastData;
+
+		public ChunkBase(ChunkStore store, List<ChunkStore.Chunk> chunks) {
+			this.store = store;
+			this.chunks = chunks;
+		}
+
+		public void read(long offset, byte[] buffer, int len) throws IOException {
+			int done = 0;
+			int index = find(offset);
+			while (done < len) {
+				if (index >= chunks.size())
+					throw new EOFException("Read beyond the old copy");
+				ChunkStore.Chunk chunk = chunks.get(index);
+				int start = (int) (offset + done - chunk.offset);
+				int count = Math.min(chunk.length - start, len - done);
+				if (!chunk.hash.equals(lastHash)) {
+					// the chunk may be stored compressed, hence read it all.
+					lastData = store.readChunk(chunk.hash);
+					lastHash = chunk.hash;
+				}
+				if (lastData.length < start + count)
+					throw new EOFException("Chunk is shorter than expected");
+				System.arraycopy(lastData, start, buffer, done, count);
+				done += count;
+				++index;
+			}
+		}
+
+		public void close() {
+		}
+
+		// find the index of the chunk which has the given offset.
+		private int find(long offset) {
+			int low = 0, high = chunks.size() - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				ChunkStore.Chunk chunk = chunks.get(mid);
+				if (offset < chunk.offset)
+					high = mid - 1;
+				else if (offset >= chunk.offset + chunk.length)
+					low = mid + 1;
+				else
+					return mid;
+			}
+			return chunks.size();
+		}
+	}
+
+	/**
+	 * Get the block size for a file of the given size, which is about the square
+	 * root of the size so that the signature and the number of blocks are balanced.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public static int getBlockSize(long size) {
+		int result = (int) Math.sqrt(size) & ~1023;
+		return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, result));
+	}
+
+	/**
+	 * Get the signature of the old copy read from the given stream.
+	 *
+	 * @param in
+	 * @param size the size of the old copy
+	 * @return
+	 * @throws IOException
+	 */
+	public static String signature(InputStream in, long size) throws IOException {
+		int blockSize = getBlockSize(size);
+		MessageDigest md5 = newDigest("MD5");
+		StringBuilder sb = new StringBuilder();
+		sb.append("blocksize ").append(blockSize).append('\n');
+
+		byte[] block = new byte[blockSize];
+		int len;
+		while ((len = readFully(in, block)) > 0) {
+			md5.update(block, 0, len);
+			sb.append(Integer.toHexString(weak(block, 0, len))).append(' ')
+				.append(ChunkStore.toHex(md5.digest())).append('\n');
+			if (len < blockSize)
+				break;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write the delta of the given file against the signature of the old copy.
+	 *
+	 * @param file the new file
+	 * @param signature the signature of the old copy
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void writeDelta(File file, String signature, OutputStream output) throws IOException {
+		// parse the signature to a map from weak checksum to block numbers.
+		BufferedReader reader = new BufferedReader(new StringReader(signature));
+		String line = reader.readLine();
+		if (line == null || !line.startsWith("blocksize "))
+			throw new IOException("Invalid signature");
+		int blockSize = Integer.parseInt(line.substring(10).trim());
+		if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE)
+			throw new IOException("Invalid signature block size: " + blockSize);
+
+		Map<Integer, List<Integer>> weakMap = new HashMap<Integer, List<Integer>>();
+		List<byte[]> strong = new ArrayList<byte[]>();
+		while ((line = reader.readLine()) != null) {
+			String[] parts = line.trim().split(" ");
+			if (parts.length != 2)
+				continue;
+			Integer weak = Integer.valueOf((int) Long.parseLong(parts[0], 16));
+			List<Integer> list = weakMap.get(weak);
+			if (list == null) {
+				list = new ArrayList<Integer>(1);
+				weakMap.put(weak, list);
+			}
+			list.add(strong.size());
+			strong.add(fromHex(parts[1]));
+		}
+
+		DataOutputStream out = new DataOutputStream(output);
+		MessageDigest sha1 = newDigest("SHA-1");
+		MessageDigest md5 = newDigest("MD5");
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+		try {
+			// the window is a circular buffer of the last blockSize bytes.
+			byte[] window = new byte[blockSize];
+			byte[] linear = new byte[blockSize];
+			ByteArrayOutputStream literal = new ByteArrayOutputStream();
+			int copyStart = -1, copyCount = 0;
+			long total = 0;
+
+			int len = readFully(in, window);
+			sha1.update(window, 0, len);
+			total += len;
+			int head = 0; // index of the oldest byte in window
+			int a = 0, b = 0;
+			for (int i=0; i<len; ++i) {
+				a += window[i] & 0xff;
+				b += (len - i) * (window[i] & 0xff);
+			}
+
+			while (len > 0) {
+				int match = -1;
+				if (len == blockSize) {
+					List<Integer> list = weakMap.get(Integer.valueOf((a & 0xffff) | (b << 16)));
+					if (list != null) {
+						System.arraycopy(window, head, linear, 0, blockSize - head);
+						System.arraycopy(window, 0, linear, blockSize - head, head);
+						md5.update(linear, 0, blockSize);
+						byte[] digest = md5.digest();
+						for (int i=0; i<list.size(); ++i) {
+							if (Arrays.equals(digest, strong.get(list.get(i)))) {
+								match = list.get(i);
+								break;
+							}
+						}
+					}
+				}
+
+				if (match >= 0) {
+					// emit the pending literal, and extend or emit the copy.
+					if (literal.size() > 0) {
+						writeCopy(out, copyStart, copyCount);
+						copyCount = 0;
+						writeData(out, literal);
+					}
+					if (copyCount > 0 && copyStart + copyCount == match) {
+						++copyCount;
+					}
+					else {
+						writeCopy(out, copyStart, copyCount);
+						copyStart = match;
+						copyCount = 1;
+					}
+
+					// start a new window after the matched block.
+					len = readFully(in, window);
+					sha1.update(window, 0, len);
+					total += len;
+					head = 0;
+					a = b = 0;
+					for (int i=0; i<len; ++i) {
+						a += window[i] & 0xff;
+						b += (len - i) * (window[i] & 0xff);
+					}
+					continue;
+				}
+
+				// move the oldest byte to the literal, and roll the window by one.
+				int old = window[head] & 0xff;
+				literal.write(old);
+				int c = (len == blockSize ? in.read() : -1);
+				if (c >= 0) {
+					sha1.update((byte) c);
+					++total;
+					window[head] = (byte) c;
+					head = (head + 1) % blockSize;
+					a = a - old + c;
+					b = b - blockSize * old + a;
+				}
+				else {
+					// at the end of file, the remaining window is the literal.
+					for (int i=1; i<len; ++i)
+						literal.write(window[(head + i) % blockSize]);
+					len = 0;
+				}
+
+				if (literal.size() >= MAX_DATA) {
+					writeCopy(out, copyStart, copyCount);
+					copyCount = 0;
+					writeData(out, literal);
+				}
+			}
+
+			if (literal.size() > 0) {
+				writeCopy(out, copyStart, copyCount);
+				copyCount = 0;
+				writeData(out, literal);
+			}
+			writeCopy(out, copyStart, copyCount);
+
+			out.writeByte('E');
+			out.write(sha1.digest());
+			out.writeLong(total);
+			out.flush();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Apply the delta read from the stream on the old copy, and write the new file
+	 * to the target. The target is deleted if the delta is invalid or the result
+	 * does not match the SHA-1 in the delta.
+	 *
+	 * @param input the delta
+	 * @param base the old copy
+	 * @param target the file to write
+	 * @return the SHA-1 of the new file in hex
+	 * @throws IOException
+	 */
+	public static String applyDelta(InputStream input, Base base, int blockSize, File target) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(input, 65536));
+		MessageDigest sha1 = newDigest("SHA-1");
+		OutputStream out = new FileOutputStream(target);
+		boolean success = false;
+		String result = null;
+		try {
+			byte[] buffer = new byte[Math.max(blockSize, MAX_DATA)];
+			long total = 0;
+			while (true) {
+				int op = in.readByte();
+				if (op == 'C') {
+					int start = in.readInt();
+					int count = in.readInt();
+					for (int i=0; i<count; ++i) {
+						base.read((long) (start + i) * blockSize, buffer, blockSize);
+						sha1.update(buffer, 0, blockSize);
+						out.write(buffer, 0, blockSize);
+						total += blockSize;
+					}
+				}
+				else if (op == 'D') {
+					int length = in.readInt();
+					if (length < 0 || length > buffer.length)
+						throw new IOException("Invalid delta data length: " + length);
+					in.readFully(buffer, 0, length);
+					sha1.update(buffer, 0, length);
+					out.write(buffer, 0, length);
+					total += length;
+				}
+				else if (op == 'E') {
+					byte[] expected = new byte[20];
+					in.readFully(expected);
+					long length = in.readLong();
+					if (length != total || !Arrays.equals(expected, sha1.digest()))
+						throw new IOException("Delta result does not match the new file");
+					result = ChunkStore.toHex(expected);
+					break;
+				}
+				else {
+					throw new IOException("Invalid delta operation: " + op);
+				}
+			}
+			success = true;
+		} finally {
+			out.close();
+			if (!success)
+				target.delete();
+		}
+		return result;
+	}
+
+	/**
+	 * Write the copy operation if count is positive.
+	 */
+	private static void writeCopy(DataOutputStream out, int start, int count) throws IOException {
+		if (count > 0) {
+			out.writeByte('C');
+			out.writeInt(start);
+			out.writeInt(count);
+		}
+	}
+
+	/**
+	 * Write the data operations with the literal bytes, each of at most MAX_DATA
+	 * bytes, and reset the literal. The literal may be longer than MAX_DATA, e.g.,
+	 * with the remaining window at the end of file.
+	 */
+	private static void writeData(DataOutputStream out, ByteArrayOutputStream literal) throws IOException {
+		byte[] data = literal.toByteArray();
+		for (int offset=0; offset<data.length; offset+=MAX_DATA) {
+			int length = Math.min(MAX_DATA, data.length - offset);
+			out.writeByte('D');
+			out.writeInt(length);
+			out.write(data, offset, length);
+		}
+		literal.reset();
+	}
+
+	/**
+	 * Get the weak checksum of the given bytes, same as the rolling checksum in
+	 * writeDelta.
+	 */
+	private static int weak(byte[] data, int offset, int len) {
+		int a = 0, b = 0;
+		for (int i=0; i<len; ++i) {
+			a += data[offset + i] & 0xff;
+			b += (len - i) * (data[offset + i] & 0xff);
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * Read as many bytes as possible to fill the buffer.
+	 *
+	 * @return the number of bytes read, which is less than buffer length only at
+	 *   the end of stream.
+	 */
+	private static int readFully(InputStream in, byte[] buffer) throws IOException {
+		int len = 0, count;
+		while (len < buffer.length && (count = in.read(buffer, len, buffer.length - len)) > 0)
+			len += count;
+		return len;
+	}
+
+	private static MessageDigest newDigest(String algorithm) throws IOException {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("NoSuchAlgorithmException: " + algorithm);
+		}
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] result = new byte[hex.length() / 2];
+		for (int i=0; i<result.length; ++i)
+			result[i] = (byte) Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+		return result;
+	}
+}
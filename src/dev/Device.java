@@ -8,7 +8,8 @@ import org.w3c.dom.Node;
 
 /**
  * An object to represent a device information. 
- * This object is immutable.
+ * This object is immutable, except for the expires, free, load and encodings 
+ * attributes which are refreshed by the device.
  */
 public class Device {
 	
@@ -27,6 +28,15 @@ public class Device {
 	// expire at this time
 	private long expires = 0;
 	
+	// the free space in bytes for backups, or -1 if not known
+	private long free = -1;
+	
+	// the number of backups being received by the device
+	private int load = 0;
+	
+	// the comma separated content encodings accepted in the request body, or null
+	private String encodings = null;
+	
 	/**
 	 * Construct a new device object.
 	 * 
@@ -118,6 +128,73 @@ public class Device {
 		return expires;
 	}
 	
+	/**
+	 * Set the free space in bytes for backups on this device.
+	 * 
+	 * @param value
+	 */
+	public void setFree(long value) {
+		free = value;
+	}
+	
+	/**
+	 * Get the free space in bytes for backups on this device, or -1 if not known.
+	 * 
+	 * @return
+	 */
+	public long getFree() {
+		return free;
+	}
+	
+	/**
+	 * Set the number of backups being received by this device.
+	 * 
+	 * @param value
+	 */
+	public void setLoad(int value) {
+		load = value;
+	}
+	
+	/**
+	 * Get the number of backups being received by this device.
+	 * 
+	 * @return
+	 */
+	public int getLoad() {
+		return load;
+	}
+	
+	/**
+	 * Set the content encodings, e.g., "gzip,deflate", that this device accepts 
+	 * in the request body, or null if none.
+	 * 
+	 * @param value
+	 */
+	public void setEncodings(String value) {
+		encodings = value;
+	}
+	
+	/**
+	 * Get the content encodings that this device accepts in the request body, or 
+	 * null if none.
+	 * 
+	 * @return
+	 */
+	public String getEncodings() {
+		return encodings;
+	}
+	
+	/**
+	 * Check whether this device accepts the given content encoding in the request
+	 * body.
+	 * 
+	 * @param encoding
+	 * @return
+	 */
+	public boolean accepts(String encoding) {
+		return encodings != null && ("," + encodings + ",").indexOf("," + encoding + ",") >= 0;
+	}
+	
 	/**
 	 * Check whether the device has expired or not?
 	 */
@@ -161,6 +238,11 @@ public class Device {
     	node.appendChild(ip);
     	node.appendChild(port);
     	node.setAttribute("started", String.valueOf(getStarted()));
+    	if (free >= 0)
+    		node.setAttribute("free", String.valueOf(free));
+    	node.setAttribute("load", String.valueOf(load));
+    	if (encodings != null)
+    		node.setAttribute("encodings", encodings);
     	return node;
 	}
 	
@@ -179,6 +261,15 @@ public class Device {
 			long expires = Long.valueOf(((Element) node).getAttribute("expires")).longValue();
 			result.expires = expires;
 		}
+		if (((Element) node).hasAttribute("free")) {
+			result.free = Long.valueOf(((Element) node).getAttribute("free")).longValue();
+		}
+		if (((Element) node).hasAttribute("load")) {
+			result.load = Integer.valueOf(((Element) node).getAttribute("load")).intValue();
+		}
+		if (((Element) node).hasAttribute("encodings")) {
+			result.encodings = ((Element) node).getAttribute("encodings");
+		}
 		return result;
 	}
 }
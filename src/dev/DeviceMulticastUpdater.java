@@ -1,22 +1,28 @@
 package dev;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.io.UnsupportedEncodingException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
-import java.net.SocketAddress;
-import java.net.SocketTimeoutException;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Enumeration;
 import java.util.List;
 
 import org.restlet.data.MediaType;
 import org.restlet.resource.DomRepresentation;
 import org.restlet.resource.StringRepresentation;
 import org.w3c.dom.Element;
+import db.Log;
 
 /**
  * Extended DeviceUpdater to support multicast device discovery. 
@@ -24,15 +30,80 @@ import org.w3c.dom.Element;
  * Depending on the IP address of the name server it may or may not do multicast
  * device discovery.
  * 
+ * The multicast uses a non-blocking datagram channel with a selector, and reuses
+ * the same direct buffers for every packet. The device information is sent in a
+ * compact binary beacon by default, which is parsed without allocation when the
+ * device is already known, so that the discovery costs little on a busy network.
+ * The XML beacons of the older devices are still understood, and are sent instead
+ * of the binary beacons if beaconFormat is "xml". The binary beacon has the 
+ * following layout in network byte order:
+ * <pre>
+ * offset  size  field
+ *   0      2    magic "FS"
+ *   2      1    version, 1
+ *   3      1    type, 0 for query or 1 for device
+ *   4      2    port
+ *   6      8    started
+ *  14      8    expires
+ *  22      8    free space, or -1
+ *  30      4    load
+ *  34      1    encodings, 1 for gzip and 2 for deflate
+ *  35      1    length of the IP address, 4 or 16
+ *  36      1    length of the UTF-8 name
+ *  37           IP address followed by the name
+ * </pre>
+ * A query has only the first 4 bytes.
+ * 
  * @author Mamta
  */
 public class DeviceMulticastUpdater extends DeviceUpdater {
+
+	private static final Log log = Log.get(DeviceMulticastUpdater.class);
+	
+	/**
+	 * Configuration item for the format of the beacons sent, "binary" or "xml".
+	 */
+	public static String beaconFormat = "binary";
+	
+	// the binary beacon layout.
+	private static final byte MAGIC0 = 'F', MAGIC1 = 'S', VERSION = 1;
+	private static final byte TYPE_QUERY = 0, TYPE_DEVICE = 1;
+	private static final int HEADER = 37;
+	private static final int ENCODING_GZIP = 1, ENCODING_DEFLATE = 2;
+	private static final String[] ENCODINGS = {null, "gzip", "deflate", "gzip,deflate"};
+	
+	// the maximum size of a beacon.
+	private static final int MAX_BEACON = 1500;
+	
+	/**
+	 * A device that sent a binary beacon, with the fields to find it without 
+	 * allocation.
+	 */
+	private static class Peer {
+		byte[] ip;
+		byte[] name;
+		int port;
+		long started;
+		Device device;
+	}
 	
 	// the multicast IP address and port
-	protected SocketAddress address;
+	protected InetSocketAddress address;
+	
+	// the listening and sending channel for multicast, and its selector
+	protected DatagramChannel channel;
+	private Selector selector;
 	
-	// the listening and sending socket for multicast
-	protected MulticastSocket socket;
+	// the reused buffers for receive and send, the send buffer guards sending.
+	private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_BEACON);
+	private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_BEACON);
+	
+	// the devices that sent binary beacons, used only by the thread function.
+	private List<Peer> peers = new ArrayList<Peer>();
+	
+	// the encoded IP address and name of the local device.
+	private byte[] localIp;
+	private byte[] localName;
 	
 	// whether this thread is running or not?
 	private volatile boolean running = false;
@@ -41,31 +112,57 @@ public class DeviceMulticastUpdater extends DeviceUpdater {
 	 * Construct a new multicast updater. If invokes the base class constructor
 	 * which will create the client-server updater if needed.
 	 * If the name server IP address is multicast address, it will also create
-	 * the multicast socket and join the multicast group. The multicast socket
-	 * is set with TTL of 1 so that it does not go beyond local network.
+	 * the multicast channel and join the multicast group on the interface of the
+	 * local device. The multicast is sent with TTL of 1 so that it does not go 
+	 * beyond local network.
 	 * 
 	 * @param ns
 	 * @param local
 	 */
 	public DeviceMulticastUpdater(Device ns, Device local) {
+		this(new Device[] { ns }, local);
+	}
+	
+	/**
+	 * Construct a new multicast updater with a list of replicated name servers. 
+	 * If the first name server IP address is multicast address, then it uses
+	 * multicast as above.
+	 * 
+	 * @param ns
+	 * @param local
+	 */
+	public DeviceMulticastUpdater(Device[] ns, Device local) {
 		super(ns, local);
 
 		try {
-			InetAddress ip = InetAddress.getByName(ns.getIp());
+			InetAddress ip = InetAddress.getByName(ns[0].getIp());
 			if (ip.isMulticastAddress()) {
 				this.client = null;
-				this.address = new InetSocketAddress(ip, ns.getPort());
-				this.socket = new MulticastSocket(ns.getPort());
-				this.socket.setTimeToLive(1);
-				this.socket.setSoTimeout((int) 1000);
-				this.socket.setLoopbackMode(false);
-				this.socket.joinGroup(ip);
-				
+				this.address = new InetSocketAddress(ip, ns[0].getPort());
+				NetworkInterface nif = getInterface(local);
+				if (nif == null)
+					throw new IOException("No multicast network interface");
+				this.channel = DatagramChannel.open(ip instanceof Inet4Address ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+				this.channel.setOption(StandardSocketOptions.SO_REUSEADDR, Boolean.TRUE);
+				this.channel.bind(new InetSocketAddress(ns[0].getPort()));
+				this.channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Integer.valueOf(1));
+				this.channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, Boolean.TRUE);
+				if (nif != null)
+					this.channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+				this.channel.join(ip, nif);
+				this.channel.configureBlocking(false);
+				this.selector = Selector.open();
+				this.channel.register(selector, SelectionKey.OP_READ);
+			}
+			if (local != null) {
+				localIp = InetAddress.getByName(local.getIp()).getAddress();
+				localName = local.getName().getBytes("UTF-8");
 			}
 		} catch (UnknownHostException e) {
-			e.printStackTrace();
+			log.error(e);
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(e);
+			this.channel = null;
 		}
 	}
 	
@@ -74,53 +171,28 @@ public class DeviceMulticastUpdater extends DeviceUpdater {
 	 */
 	public void close() {
 		running = false;
+		if (selector != null)
+			selector.wakeup();
+		if (registration != null)
+			registration.cancel();
 	}
 	
 	/**
-	 * The thread function has four parts: 
-	 * 1. for client-server case, add local device to the name server.
-	 * 2. for client-server case, get list of current online devices from name server.
-	 * 3. remove any expired devices from our list.
-	 * 4. for multicast case, advertise our device information if available.
-	 * 5. for multicast case, receive device information from other devices.
+	 * The thread function has two parts for the multicast case: 
+	 * 1. advertise our device information if available.
+	 * 2. receive device information from other devices.
+	 * For client-server case, the base class watches the devices list at the name
+	 * server and registers the local device periodically, and the thread exits. 
+	 * The expired devices are removed by the base class.
 	 */
 	@Override
 	public void run() {
 		running = true;
+		if (this.client != null) {
+			super.run();
+			return;
+		}
 		while (running) {
-			if (this.local != null && this.client != null) {
-				client.addDevice(this.local);
-			}
-			
-			if (this.client != null) {
-		    	Device[] devices = client.getDevices();
-		    	if (devices == null) {
-		    		// if name server is crashed, do not update list of devices to null.
-		    		System.err.println("ERROR: cannot get list of devices from the name server.");
-		    	}
-		    	else {
-		    		setDevices(devices);
-		    	}
-			}
-			
-			// update expires field
-			if (devices != null && devices.length > 0) {
-				List<Device> available = new LinkedList<Device>();
-				for (int i=0; i<devices.length; ++i) {
-					if (!devices[i].hasExpired())
-						available.add(devices[i]);
-				}
-				if (available.size() != devices.length) {
-					Device[] newDevices = new Device[available.size()];
-					int i = 0;
-					for (Iterator<Device> it=available.iterator(); it.hasNext(); ) {
-						newDevices[i] = it.next();
-						++i;
-					}
-					setDevices(newDevices);
-				}
-			}
-			
 			if (this.local != null) {
 				// this is the server which needs to be broadcast local device info
 				multicastLocalDevice();
@@ -129,150 +201,256 @@ public class DeviceMulticastUpdater extends DeviceUpdater {
 				// this is the client which just receives remote device info.
 			}
 
-			if (this.socket != null) {
-				// receive device information from other devices
-				Date start = new Date();
-				while ((new Date()).getTime() - start.getTime() < interval) {
-					if (!running)
-						break;
-					multicastReceive();
-				}
+			if (this.channel == null) {
+				// the multicast channel could not be created.
+				break;
 			}
-			else {
-				// if not available, then just wait in the interval (client-server case).
+			
+			// receive device information from other devices until the interval.
+			long end = System.currentTimeMillis() + interval;
+			long wait;
+			while (running && (wait = end - System.currentTimeMillis()) > 0) {
 				try {
-					System.out.println("  DeviceUpdater: waiting for " + interval + "...");
-					Thread.sleep(interval);
-					System.out.println("  DeviceUpdater: wait completed");
-				} catch (InterruptedException e) {				
-					e.printStackTrace();
+					if (selector.select(wait) > 0) {
+						selector.selectedKeys().clear();
+						multicastReceive();
+					}
+				} catch (IOException e) {
+					log.error(e);
+					break;
 				}
 			}
 		}
 	}
 	
 	/**
-	 * Multicast the local device information to the group.
+	 * Multicast the local device information to the group, in the beacon format.
 	 * The expired attribute is added so that other devices can remove this
 	 * information if we don't send a refresh.
 	 */
 	protected void multicastLocalDevice() {
-		if (socket != null && address != null && local != null) {
-			try {
-				DomRepresentation dom = new DomRepresentation(MediaType.TEXT_XML);
-				Element deviceNode = (Element) local.toNode(dom.getDocument());
-				long expires = (new Date()).getTime() + DevicesResource.expiration;
-				deviceNode.setAttribute("expires", String.valueOf(expires));
-				dom.getDocument().appendChild(deviceNode);
-				String msg = dom.getText();
-				byte[] buf = msg.getBytes();
-				//System.out.println("sending:\n" + msg);
-				DatagramPacket packet = new DatagramPacket(buf, buf.length);
-				packet.setSocketAddress(address);
-				socket.send(packet);
-			} catch (IOException e) {
-				e.printStackTrace();
-				return;
-			}
-		}
+		multicastLocalDevice("xml".equals(beaconFormat));
 	}
 	
 	/**
-	 * Clear the list of devices. This is called by the client to clear the list
-	 * before fetching a new list, so that it gets the most-up-to-date devices
-	 * list.
+	 * Multicast the local device information to the group in the XML or binary 
+	 * beacon format.
 	 */
-	public void clearDevices() {
-		devices = null;
+	private void multicastLocalDevice(boolean xml) {
+		if (channel != null && address != null && local != null) {
+			refreshLocal();
+			long expires = (new Date()).getTime() + DevicesResource.expiration;
+			if (xml) {
+				try {
+					DomRepresentation dom = new DomRepresentation(MediaType.TEXT_XML);
+					Element deviceNode = (Element) local.toNode(dom.getDocument());
+					deviceNode.setAttribute("expires", String.valueOf(expires));
+					dom.getDocument().appendChild(deviceNode);
+					send(dom.getText().getBytes());
+				} catch (IOException e) {
+					log.error(e);
+				}
+				return;
+			}
+			
+			synchronized (sendBuffer) {
+				sendBuffer.clear();
+				sendBuffer.put(MAGIC0).put(MAGIC1).put(VERSION).put(TYPE_DEVICE);
+				sendBuffer.putShort((short) local.getPort());
+				sendBuffer.putLong(local.getStarted());
+				sendBuffer.putLong(expires);
+				sendBuffer.putLong(local.getFree());
+				sendBuffer.putInt(local.getLoad());
+				sendBuffer.put((byte) ((local.accepts("gzip") ? ENCODING_GZIP : 0) | (local.accepts("deflate") ? ENCODING_DEFLATE : 0)));
+				sendBuffer.put((byte) localIp.length);
+				sendBuffer.put((byte) Math.min(localName.length, 255));
+				sendBuffer.put(localIp);
+				sendBuffer.put(localName, 0, Math.min(localName.length, 255));
+				sendBuffer.flip();
+				try {
+					channel.send(sendBuffer, address);
+				} catch (IOException e) {
+					log.error(e);
+				}
+			}
+		}
 	}
 	
 	/**
-	 * Send a multicast <Query/> command, which triggers the other devices to
-	 * respond immediately with their device information. This is used by the 
+	 * Send a multicast query, which triggers the other devices to respond 
+	 * immediately with their device information. This is used by the 
 	 * client to immediately get the devices list, instead of waiting for 
-	 * the next interval.
+	 * the next interval. The query is the <Query/> command in the XML format.
 	 */
 	public void multicastQuery() {
-		if (socket != null && address != null) {
+		if (channel != null && address != null) {
 			try {
-				String msg = "<Query/>";
-				DatagramPacket packet = new DatagramPacket(msg.getBytes(), msg.length());
-				packet.setSocketAddress(address);
-				socket.send(packet);
+				if ("xml".equals(beaconFormat))
+					send("<Query/>".getBytes());
+				else
+					send(new byte[] {MAGIC0, MAGIC1, VERSION, TYPE_QUERY});
 			} catch (IOException e) {
-				e.printStackTrace();
+				log.error(e);
 				return;
 			}
 		}
 	}
 	
 	/**
-	 * Receive a message on the multicast socket and act on it.
-	 * If it is a <Query/> request, then respond with local device information if
-	 * available.
-	 * If it is a <Device/> message, then update our devices list.
+	 * Receive all the pending messages on the multicast channel and act on them.
+	 * If it is a query, then respond with local device information if
+	 * available, in the XML format for an XML query.
+	 * If it is a device beacon, then update our devices list.
 	 */
 	protected void multicastReceive() {
-		byte[] buf = new byte[1000];
-		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		try {
-			socket.receive(packet);
-			String msg = new String(packet.getData(), 0, packet.getLength());
-			if ("<Query/>".equals(msg)) {
-				// client is requesting the information. send local device information.
-				multicastLocalDevice();
-			}
-			else {
-				//System.out.println("receive: \n" + msg);
-				DomRepresentation dom = new DomRepresentation(new StringRepresentation(msg, MediaType.TEXT_XML));
-				Device newDevice = Device.fromNode(dom.getDocument().getFirstChild());
-				receiveDeviceData(newDevice);
+			while (true) {
+				receiveBuffer.clear();
+				if (channel.receive(receiveBuffer) == null)
+					break;
+				receiveBuffer.flip();
+				if (receiveBuffer.remaining() >= 4 && receiveBuffer.get(0) == MAGIC0 && receiveBuffer.get(1) == MAGIC1) {
+					receiveBinary(receiveBuffer);
+				}
+				else {
+					byte[] buf = new byte[receiveBuffer.remaining()];
+					receiveBuffer.get(buf);
+					String msg = new String(buf);
+					if ("<Query/>".equals(msg)) {
+						// client is requesting the information. send local device information.
+						multicastLocalDevice(true);
+					}
+					else {
+						//log.debug("receive: \n" + msg);
+						DomRepresentation dom = new DomRepresentation(new StringRepresentation(msg, MediaType.TEXT_XML));
+						Device newDevice = Device.fromNode(dom.getDocument().getFirstChild());
+						receiveDeviceData(newDevice);
+					}
+				}
 			}
-		} catch (SocketTimeoutException e) {
-			// do nothing
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(e);
+		} catch (RuntimeException e) {
+			// invalid beacon
+			log.error(e);
 		}
 	}
 	
 	/**
-	 * Receive a new device data from another device, and update local devices list.
-	 * @param newDevice
+	 * Receive a binary beacon. If the device is known and not changed, then only 
+	 * its expires, free space, load and encodings are updated without allocation.
 	 */
-	private void receiveDeviceData(Device newDevice) {
-		Device[] devices = this.devices;
-		boolean found = false;
-		// check if the device name is already found?
-		for (int i=0; devices != null && i<devices.length; ++i) {
-			Device existing = devices[i];
-			if (existing != null && existing.getName().equals(newDevice.getName())) {
-				found = true;
-				if (!existing.equals(newDevice)) {
-					// if matching entry not found, then replace the 
-					// old entry with the new one.
-					devices[i] = newDevice;
-					listener.removed(existing);
-					listener.added(newDevice);
-				}
-				else {
-					// otherwise if matching entry found, then just 
-					// update the expiration time.
-					existing.setExpires(newDevice.getExpires());
-				}
-			}
+	private void receiveBinary(ByteBuffer buf) throws UnknownHostException, UnsupportedEncodingException {
+		if (buf.get(2) != VERSION)
+			return;
+		if (buf.get(3) == TYPE_QUERY) {
+			multicastLocalDevice(false);
+			return;
 		}
+		if (buf.get(3) != TYPE_DEVICE || buf.remaining() < HEADER)
+			return;
+		int port = buf.getShort(4) & 0xffff;
+		long started = buf.getLong(6);
+		long expires = buf.getLong(14);
+		long free = buf.getLong(22);
+		int load = buf.getInt(30);
+		String encodings = ENCODINGS[buf.get(34) & 3];
+		int ipLength = buf.get(35) & 0xff;
+		int nameLength = buf.get(36) & 0xff;
+		if (buf.remaining() < HEADER + ipLength + nameLength)
+			return;
 		
-		// if exiting device name not found, then add a new device information
-		if (!found) {
-			devices = new Device[(devices != null ? devices.length : 0) + 1];
-			int i = 0;
-			for (; this.devices != null && i<this.devices.length; ++i) {
-				devices[i] = this.devices[i];
-			}
-			devices[i] = newDevice;
-			this.devices = devices;
-			if (listener != null)
-				listener.added(newDevice);
+		Peer peer = findPeer(buf, HEADER, ipLength, HEADER + ipLength, nameLength);
+		if (peer != null && peer.port == port && peer.started == started && peer.device != null
+				&& getDevice(peer.device.getName()) == peer.device) {
+			peer.device.setExpires(expires);
+			peer.device.setFree(free);
+			peer.device.setLoad(load);
+			peer.device.setEncodings(encodings);
+			return;
+		}
+		
+		// a new or changed device.
+		if (peer == null) {
+			peer = new Peer();
+			peer.ip = new byte[ipLength];
+			peer.name = new byte[nameLength];
+			buf.position(HEADER);
+			buf.get(peer.ip);
+			buf.get(peer.name);
+			peers.add(peer);
+		}
+		peer.port = port;
+		peer.started = started;
+		Device newDevice = new Device(InetAddress.getByAddress(peer.ip).getHostAddress(), port, 
+				new String(peer.name, "UTF-8"), started);
+		newDevice.setExpires(expires);
+		newDevice.setFree(free);
+		newDevice.setLoad(load);
+		newDevice.setEncodings(encodings);
+		peer.device = putDevice(newDevice);
+	}
+	
+	/**
+	 * Find the peer with the given IP address and name in the buffer.
+	 */
+	private Peer findPeer(ByteBuffer buf, int ipOffset, int ipLength, int nameOffset, int nameLength) {
+		for (int i=0; i<peers.size(); ++i) {
+			Peer peer = peers.get(i);
+			if (equals(peer.name, buf, nameOffset, nameLength) && equals(peer.ip, buf, ipOffset, ipLength))
+				return peer;
+		}
+		return null;
+	}
+	
+	/**
+	 * Check whether the given bytes are the same as in the buffer at the offset.
+	 */
+	private static boolean equals(byte[] data, ByteBuffer buf, int offset, int length) {
+		if (data.length != length)
+			return false;
+		for (int i=0; i<length; ++i) {
+			if (data[i] != buf.get(offset + i))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Send the given message to the group.
+	 */
+	private void send(byte[] msg) throws IOException {
+		synchronized (sendBuffer) {
+			sendBuffer.clear();
+			sendBuffer.put(msg, 0, Math.min(msg.length, sendBuffer.capacity()));
+			sendBuffer.flip();
+			channel.send(sendBuffer, address);
+		}
+	}
+	
+	/**
+	 * Get the network interface of the local device if it supports multicast, or
+	 * else the first interface which is up and supports multicast, or null.
+	 */
+	private static NetworkInterface getInterface(Device local) throws IOException {
+		if (local != null) {
+			NetworkInterface nif = NetworkInterface.getByInetAddress(InetAddress.getByName(local.getIp()));
+			if (nif != null && nif.supportsMulticast())
+				return nif;
+		}
+		for (Enumeration<NetworkInterface> it=NetworkInterface.getNetworkInterfaces(); it != null && it.hasMoreElements(); ) {
+			NetworkInterface nif = it.nextElement();
+			if (nif.isUp() && nif.supportsMulticast() && !nif.isLoopback())
+				return nif;
 		}
+		return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+	}
+	
+	/**
+	 * Receive a new device data from another device, and update local devices list.
+	 * @param newDevice
+	 */
+	private void receiveDeviceData(Device newDevice) {
+		putDevice(newDevice);
 	}
 }
@@ -1,27 +1,73 @@
 package dev;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import db.Compression;
+import db.Log;
+import db.TaskScheduler;
+
 /**
  * The updater thread which periodically refreshes the online devices list
  * by pinging the nameserver. It also refreshes its own entry in the 
  * nameserver.
  * 
+ * The devices are kept in a concurrent map by name, and an immutable array of
+ * the devices is replaced on every change, so that getDevice and getDevices do
+ * not lock or search. The changes are serialized using the lock of the map. The
+ * devices with an expiration time are removed by a timing wheel after they 
+ * expire, and the listeners are called on a separate thread in the order of 
+ * the changes, so that a slow listener does not delay the updates.
+ * 
+ * The devices list is not polled from the name server. Instead a watch thread
+ * waits at the name server for the changes, so that a device that joins or
+ * leaves is known immediately.
+ * 
  * @author Mamta
  */
-public class DeviceUpdater implements Runnable {
+public class DeviceUpdater implements Runnable, TimingWheel.Handler<Device> {
+
+	private static final Log log = Log.get(DeviceUpdater.class);
 	/**
 	 * Configuration item for periodic refresh interval.
 	 * It defaults to 11 seconds.
 	 */
 	public static long interval = 11000;
 	
+	/**
+	 * Configuration item for the time in milliseconds a watch of the devices list
+	 * waits at the name server for a change.
+	 */
+	public static long watchWait = 30000;
+	
 	// the Restlet client.
 	protected NameClient client;
 	
 	// the local device information.
 	protected Device local;
 
-	// the current list of devices.
-	protected Device[] devices;
+	// the current devices by name, and an array of them which is replaced on change.
+	private ConcurrentMap<String, Device> registry = new ConcurrentHashMap<String, Device>();
+	private volatile Device[] snapshot;
+	
+	// to remove the expired devices.
+	private TimingWheel<Device> wheel = new TimingWheel<Device>("DeviceExpiry", 250, 512, this);
+	
+	// to call the listeners in order, one at a time on the shared workers.
+	private TaskScheduler.Limited events = new TaskScheduler.Limited("DeviceListener", 1);
+	
+	// incremented whenever a device is added, removed or changed in the list.
+	protected volatile long version = 0;
+	
+	// the periodic registration of the local device with the name server.
+	protected TaskScheduler.Task registration;
 	
 	/**
 	 * Construct a new object with the given nameserver and local device.
@@ -33,6 +79,16 @@ public class DeviceUpdater implements Runnable {
     	this.local = local;
 	}
 	
+	/**
+	 * Construct a new object with the given replicated nameservers and local device.
+	 * @param ns
+	 * @param local
+	 */
+	public DeviceUpdater(Device[] ns, Device local) {
+    	this.client = (ns != null ? new NameClient(ns) : null);
+    	this.local = local;
+	}
+	
 	/**
 	 * Get the current list of online devices based on the last ping from
 	 * the name server.
@@ -40,7 +96,36 @@ public class DeviceUpdater implements Runnable {
 	 * @return
 	 */
 	public Device[] getDevices() {
-		return devices;
+		return snapshot;
+	}
+	
+	/**
+	 * Get the version of the devices list. This changes whenever a device is
+	 * added, removed or changed, but not when an existing entry is just refreshed.
+	 * 
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Wait until the version of the devices list is not the given version, or
+	 * until the timeout.
+	 * 
+	 * @param version
+	 * @param timeout in milliseconds
+	 * @return the current version
+	 * @throws InterruptedException
+	 */
+	public long awaitChange(long version, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		synchronized (registry) {
+			long remaining;
+			while (this.version == version && (remaining = deadline - System.currentTimeMillis()) > 0)
+				registry.wait(remaining);
+			return this.version;
+		}
 	}
 	
 	/**
@@ -51,11 +136,7 @@ public class DeviceUpdater implements Runnable {
 	 * @return
 	 */
 	public Device getDevice(String name) {
-		for (int i=0; devices != null && i<devices.length; ++i) {
-			if (name.equals(devices[i].getName())) 
-				return devices[i];
-		}
-		return null;
+		return (name != null ? registry.get(name) : null);
 	}
 	
 	/**
@@ -79,41 +160,97 @@ public class DeviceUpdater implements Runnable {
 		public void removed(Device device);
 	}
 	
-	// listener object to receive device update event.
-	protected Listener listener;
+	// listener objects to receive device update event.
+	private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
 	
 	/**
-	 * Set a listener object which received device update events.
+	 * Set a listener object which received device update events. This replaces
+	 * any other listener.
 	 * @param listener
 	 */
 	public void setListener(Listener listener) {
-		this.listener = listener;
+		listeners.clear();
+		addListener(listener);
 	}
 	
 	/**
-	 * The thread function first adds the local device to the nameserver
-	 * then gets the current list of devices from the nameserver, periodically.
+	 * Add another listener object which receives device update events.
+	 * @param listener
 	 */
-	public void run() {
-		while (true) {
-			client.addDevice(this.local);
-
-	    	Device[] devices = client.getDevices();
-	    	if (devices == null) {
-	    		// if name server is crashed, do not update list of devices to null.
-	    		System.err.println("ERROR: cannot get list of devices from the name server.");
-	    	}
-	    	else {
-	    		setDevices(devices);
-	    	}
-	    	
-			try {
-				System.out.println("  DeviceUpdater: waiting for " + interval + "...");
-				Thread.sleep(interval);
-				System.out.println("  DeviceUpdater: wait completed");
-			} catch (InterruptedException e) {				
-				e.printStackTrace();
+	public void addListener(Listener listener) {
+		if (listener != null)
+			listeners.add(listener);
+	}
+	
+	/**
+	 * Invoke the added callback on all the listeners in the listener thread.
+	 * @param device
+	 */
+	protected void fireAdded(final Device device) {
+		events.execute(new Runnable() {
+			public void run() {
+				for (Iterator<Listener> it=listeners.iterator(); it.hasNext(); )
+					it.next().added(device);
 			}
+		});
+	}
+	
+	/**
+	 * Invoke the removed callback on all the listeners in the listener thread.
+	 * @param device
+	 */
+	protected void fireRemoved(final Device device) {
+		events.execute(new Runnable() {
+			public void run() {
+				for (Iterator<Listener> it=listeners.iterator(); it.hasNext(); )
+					it.next().removed(device);
+			}
+		});
+	}
+	
+	/**
+	 * Refresh the free space, backup load and accepted encodings of the local 
+	 * device, so that the other devices can use it to place and send their backups.
+	 * 
+	 * @return true if the load or encodings changed, or the free space changed by
+	 *   more than 1%
+	 */
+	protected boolean refreshLocal() {
+		if (local != null && BackupdataResource.backup_dir != null) {
+			long free = local.getFree();
+			int load = local.getLoad();
+			String encodings = local.getEncodings();
+			local.setFree(BackupdataResource.getFreeSpace());
+			local.setLoad(BackupdataResource.getLoad());
+			local.setEncodings(Compression.enabled ? "gzip,deflate" : null);
+			return load != local.getLoad() 
+				|| (encodings == null ? local.getEncodings() != null : !encodings.equals(local.getEncodings()))
+				|| Math.abs(free - local.getFree()) > Math.max(free, local.getFree()) / 100;
+		}
+		return false;
+	}
+	
+	/**
+	 * The thread function starts the watch of the devices list, and schedules
+	 * the periodic registration of the local device with the nameserver on the
+	 * TaskScheduler. The registration is done up to four times as often while
+	 * the load or free space of the local device is changing, so that the other
+	 * devices know it sooner, but never less often than the interval, so that 
+	 * the entry does not expire.
+	 */
+	public void run() {
+		startWatch();
+		if (this.local != null) {
+			registration = TaskScheduler.schedule("DeviceUpdater", new TaskScheduler.Adaptive() {
+				private boolean active = false;
+				public void run() {
+					active = refreshLocal();
+					client.addDevice(local);
+				}
+				public boolean isActive() {
+					return active;
+				}
+			}, 0, interval, interval / 4, interval);
 		}
 	}
 	
@@ -125,37 +262,168 @@ public class DeviceUpdater implements Runnable {
 	 * @param devices
 	 */
 	protected void setDevices(Device[] devices) {
-		// update the list of devices with the new list from the name server
-		Device[] old = this.devices;
-		this.devices = devices;
-		
-		if (listener != null) {
-    		for (int j=0; old != null && j<old.length; ++j) {
-    			boolean found = false;
-    			for (int i=0; i<devices.length; ++i) {
-    				if (devices[i].getName().equals(old[j].getName())) {
-    					found = true;
-    					break;
-    				}
-    			}
-    			if (! found) {
-    				System.out.println("removed device: " + old[j].toString());
-    				listener.removed(old[j]);
-    			}
-    		}
-    		for (int i=0; i<devices.length; ++i) {
-    			boolean found = false;
-    			for (int j=0; old != null && j<old.length; ++j) {
-    				if (devices[i].equals(old[j])) {
-    					found = true;
-    					break;
-    				}
-    			}
-    			if (! found) {
-    				System.out.println("added device: " + devices[i].toString());
-    				listener.added(devices[i]);
-    			}
-    		}
+		synchronized (registry) {
+			// update the list of devices with the new list from the name server
+			Map<String, Device> old = new HashMap<String, Device>(registry);
+			Set<String> names = new HashSet<String>();
+			for (int i=0; i<devices.length; ++i)
+				names.add(devices[i].getName());
+			
+			for (Iterator<Device> it=old.values().iterator(); it.hasNext(); ) {
+				Device device = it.next();
+				if (!names.contains(device.getName())) {
+					log.info("removed device: " + device.toString());
+					registry.remove(device.getName());
+					changed();
+					fireRemoved(device);
+				}
+			}
+			for (int i=0; i<devices.length; ++i) {
+				Device existing = old.get(devices[i].getName());
+				registry.put(devices[i].getName(), devices[i]);
+				schedule(devices[i]);
+				if (existing == null || !devices[i].equals(existing)) {
+					log.info("added device: " + devices[i].toString());
+					changed();
+					fireAdded(devices[i]);
+				}
+			}
+			snapshot = registry.values().toArray(new Device[registry.size()]);
 		}
 	}
+	
+	/**
+	 * Add the given device to the devices list, or replace the device of the same
+	 * name. If the existing device is the same, i.e., same ip, port and started, then
+	 * only its expiration time, free space, load and encodings are updated, and
+	 * the existing object is kept.
+	 * 
+	 * @param device
+	 * @return the device object in the list
+	 */
+	protected Device putDevice(Device device) {
+		Device existing = registry.get(device.getName());
+		if (existing != null && existing.equals(device)) {
+			existing.setExpires(device.getExpires());
+			existing.setFree(device.getFree());
+			existing.setLoad(device.getLoad());
+			existing.setEncodings(device.getEncodings());
+			return existing;
+		}
+		synchronized (registry) {
+			existing = registry.put(device.getName(), device);
+			snapshot = registry.values().toArray(new Device[registry.size()]);
+			schedule(device);
+			changed();
+			if (existing != null)
+				fireRemoved(existing);
+			fireAdded(device);
+		}
+		return device;
+	}
+	
+	/**
+	 * Remove the given device object from the devices list, if it is still there.
+	 * 
+	 * @param device
+	 * @return true if removed
+	 */
+	protected boolean removeDevice(Device device) {
+		synchronized (registry) {
+			if (!registry.remove(device.getName(), device))
+				return false;
+			snapshot = registry.values().toArray(new Device[registry.size()]);
+			log.info("removed device: " + device.toString());
+			changed();
+			fireRemoved(device);
+		}
+		return true;
+	}
+	
+	/**
+	 * Clear the list of devices. This is called by the client to clear the list
+	 * before fetching a new list, so that it gets the most-up-to-date devices
+	 * list. The listeners are not called.
+	 */
+	public void clearDevices() {
+		synchronized (registry) {
+			registry.clear();
+			snapshot = null;
+			changed();
+		}
+	}
+	
+	/**
+	 * Start the thread which watches the devices list at the name server, and
+	 * applies the changes to our devices list.
+	 */
+	protected void startWatch() {
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				long since = -1;
+				String epoch = null;
+				while (true) {
+					NameClient.Changes changes = client.watch(since, epoch, watchWait);
+					if (changes == null) {
+						// if name server is crashed, do not update list of devices to null.
+						log.warn("cannot get list of devices from the name server.");
+						since = -1;
+						try {
+							Thread.sleep(interval);
+						} catch (InterruptedException e) {
+							log.error(e);
+							break;
+						}
+						continue;
+					}
+					if (changes.full) {
+						setDevices(changes.devices);
+					}
+					else {
+						for (int i=0; i<changes.devices.length; ++i)
+							putDevice(changes.devices[i]);
+						for (int i=0; i<changes.removed.length; ++i) {
+							Device device = getDevice(changes.removed[i]);
+							if (device != null)
+								removeDevice(device);
+						}
+					}
+					since = changes.version;
+					epoch = changes.epoch;
+				}
+			}
+		}, "DeviceWatch");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Increment the version of the devices list and wake up the threads waiting
+	 * for a change. The caller must hold the lock of the registry.
+	 */
+	private void changed() {
+		++version;
+		registry.notifyAll();
+	}
+	
+	/**
+	 * Schedule the expiration of the given device if it has an expiration time.
+	 */
+	private void schedule(Device device) {
+		if (device.getExpires() > 0)
+			wheel.schedule(device, device.getExpires());
+	}
+	
+	/**
+	 * Remove the given device if it has expired, or else schedule it again because
+	 * its expiration time was refreshed.
+	 */
+	public void expired(Device device) {
+		if (registry.get(device.getName()) != device)
+			return;
+		if (device.hasExpired())
+			removeDevice(device);
+		else
+			schedule(device);
+	}
 }
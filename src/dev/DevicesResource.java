@@ -1,82 +1,178 @@
 package dev;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.util.Date;
+import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.restlet.Context;  
-import org.restlet.data.MediaType;  
-import org.restlet.data.Request;  
-import org.restlet.data.Response;  
+
+import org.restlet.Context;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
 import org.restlet.data.Status;
-import org.restlet.resource.DomRepresentation;
-import org.restlet.resource.Representation;  
-import org.restlet.resource.Resource;  
-import org.restlet.resource.ResourceException;  
-import org.restlet.resource.Variant;  
-import org.w3c.dom.DOMException;
+import org.restlet.resource.InputRepresentation;
+import org.restlet.resource.Representation;
+import org.restlet.resource.Resource;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.StringRepresentation;
+import org.restlet.resource.Variant;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-
-import db.MyReadWriteLock;
+import org.xml.sax.SAXException;
+import db.Log;
 
 /**
  * The DevicesResource is used by the NameServer to represent the list of online
- * devices. Periodically, each device refreshes its entry in the 
+ * devices. Periodically, each device refreshes its entry in the
  * resource. A new entry expires after some time, if not refreshed.
- * 
+ *
+ * The devices are kept in a concurrent map by name. A refresh of an unchanged
+ * device only updates its expiration time, without a lock. The expired devices
+ * are removed by a timing wheel, which checks the expiration time of an entry
+ * when its slot comes and schedules it again if it was refreshed. The XML of the
+ * devices list is serialized once per version, and the same bytes are returned
+ * to all the GET requests until the list changes.
+ *
+ * The devices list has a version which is incremented when a device is added,
+ * removed, restarted or its free space, load or encodings change noticeably, but
+ * not when the device just refreshes its entry. Each Device element has the
+ * version of its last change. A GET with the ?since=version&amp;epoch=epoch
+ * parameters is a watch, which waits until the version is after the given
+ * version or until the wait= milliseconds, and returns only the devices changed
+ * since that version and the removed devices, e.g.,
+ * <pre>
+ * &lt;Devices version="12" epoch="..." since="10"&gt;
+ *   &lt;Device version="11"&gt;...&lt;/Device&gt;
+ *   &lt;Removed name="Laptop" version="12"/&gt;
+ * &lt;/Devices&gt;
+ * </pre>
+ * If the given version is too old or from a previous run of the name server, as
+ * given by the epoch, then all the devices are returned with the full="true"
+ * attribute.
+ *
+ * The name servers may be replicated. A NameReplicator periodically sends the
+ * devices which registered or refreshed at this name server to the other name
+ * servers, with a POST of the ?replica=true list, in which each device has the
+ * remaining time to live instead of the version. The lists are merged by
+ * last-writer-wins on the started time of the device, i.e., a device entry from
+ * an older run of the device is ignored. A GET of ?replica=true returns all the
+ * devices with the time to live, for a name server which just started. Each name
+ * server removes the expired devices by itself.
+ *
  * @author Mamta
  */
-public class DevicesResource extends Resource {  
+public class DevicesResource extends Resource {
+
+	private static final Log log = Log.get(DevicesResource.class);
 	/**
 	 * The configuration item for the expiration of device entries,
 	 * defaults to 20 seconds.
 	 */
 	public static long expiration = 20000;
-  
-	private static Document doc; // devices stored as XML DOM
-	private static XPathFactory xpathFactory;
-	private static MyReadWriteLock lock = new MyReadWriteLock();
-	
+
+	/**
+	 * The maximum time in milliseconds a watch waits for a change.
+	 */
+	public static long maxWait = 60000;
+
+	// the maximum number of removed devices remembered for the watch.
+	private static final int MAX_REMOVED = 1000;
+
+	// the time this name server started, which identifies the versions.
+	private static final long epoch = System.currentTimeMillis();
+
+	/**
+	 * A device in the list.
+	 */
+	private static class Entry {
+		final Device device;
+		final long version; // of the last change
+		volatile long expires;
+
+		Entry(Device device, long version, long expires) {
+			this.device = device;
+			this.version = version;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * The serialized XML of the devices list, or of the changes since a version.
+	 */
+	private static class Snapshot {
+		final long since;
+		final long version;
+		final byte[] data;
+
+		Snapshot(long since, long version, byte[] data) {
+			this.since = since;
+			this.version = version;
+			this.data = data;
+		}
+	}
+
+	private static ConcurrentMap<String, Entry> devices;
+	private static ConcurrentMap<String, Boolean> dirty; // names registered since the last replication
+	private static TimingWheel<Entry> wheel;
+
+	// the following are guarded by the lock of the class.
+	private static long version;
+	private static Map<String, Long> removed; // name to version
+	private static long forgotten; // the latest version of the forgotten removed devices
+
+	// the last serialized full list and the last changes, which are replaced on use.
+	private static volatile Snapshot full;
+	private static volatile Snapshot delta;
+
+	// notified when the version changes.
+	private static final Object changed = new Object();
+
+	// the parser for the POST body in each thread.
+	private static ThreadLocal<DocumentBuilder> parser = new ThreadLocal<DocumentBuilder>();
+
 	/**
 	 * Static constructor must be invoked by the main so that it creates the
-	 * data resource in XML DOM.
-	 * 
+	 * devices list.
+	 *
 	 * @throws ParserConfigurationException
 	 */
-	public static void init() throws ParserConfigurationException {
-		DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-		docFactory.setNamespaceAware(true);
-		DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-		doc = docBuilder.newDocument();
-		Element devices = doc.createElement("Devices");
-		doc.appendChild(devices);
-		
-		xpathFactory = XPathFactory.newInstance();
+	public static synchronized void init() throws ParserConfigurationException {
+		devices = new ConcurrentHashMap<String, Entry>();
+		dirty = new ConcurrentHashMap<String, Boolean>();
+		removed = new LinkedHashMap<String, Long>();
+		version = 0;
+		forgotten = 0;
+		full = delta = null;
+		wheel = new TimingWheel<Entry>("DevicesExpiry", 250, 512, new TimingWheel.Handler<Entry>() {
+			public void expired(Entry entry) {
+				if (entry.expires > System.currentTimeMillis())
+					wheel.schedule(entry, entry.expires);
+				else
+					remove(entry);
+			}
+		});
 	}
-	
+
 	/**
 	 * Construct the resource.
-	 * 
+	 *
 	 * @param context
 	 * @param request
 	 * @param response
 	 */
-	public DevicesResource(Context context, Request request, Response response) {  
-		super(context, request, response);  
-		
+	public DevicesResource(Context context, Request request, Response response) {
+		super(context, request, response);
+
 		getVariants().add(new Variant(MediaType.TEXT_XML));
 	}
 
@@ -87,114 +183,308 @@ public class DevicesResource extends Resource {
 	public boolean allowPost() {
 		return true;
 	}
-	
+
 	/**
-	 * In response to GET, it returns the XML of the devices list.
+	 * In response to GET, it returns the XML of the devices list, or the changes
+	 * for a watch.
 	 */
-	@Override  
+	@Override
 	public Representation represent(Variant variant) throws ResourceException {
-		Representation result = null;
+		Form form = getRequest().getResourceRef().getQueryAsForm();
+		if ("true".equals(form.getFirstValue("replica")))
+			return new StringRepresentation(getReplica(true), MediaType.TEXT_XML);
+		if (form.getFirst("since") != null)
+			return watch(form);
+		return toRepresentation(getSnapshot(-1));
+	}
+
+	/**
+	 * process the POST request for updating the devices in the name server
+	 * implementation, or the list of devices from another name server.
+	 */
+	@Override
+	public void acceptRepresentation(Representation entity) throws ResourceException {
+		boolean replica = "true".equals(getRequest().getResourceRef().getQueryAsForm().getFirstValue("replica"));
 		try {
-			lock.getWriteLock();
-			// first remove any expired devices
-			removeExpired();
-			// then return the devices list
-			result = new DomRepresentation(MediaType.TEXT_XML, doc);
+			DocumentBuilder builder = parser.get();
+			if (builder == null) {
+				builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+				parser.set(builder);
+			}
+			Document doc = builder.parse(entity.getStream());
+			if (replica) {
+				NodeList nodes = doc.getDocumentElement().getElementsByTagName("Device");
+				for (int i=0; i<nodes.getLength(); ++i) {
+					Element node = (Element) nodes.item(i);
+					merge(Device.fromNode(node), Long.parseLong(node.getAttribute("ttl")));
+				}
+			}
+			else {
+				add(Device.fromNode(doc.getDocumentElement()));
+			}
+		} catch (ParserConfigurationException e) {
+			log.error(e);
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "ParserConfigurationException");
+		} catch (SAXException e) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "SAXException: " + e.getMessage());
+		} catch (IOException e) {
+			log.error(e);
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "IOException");
+		} catch (RuntimeException e) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid device: " + e.getMessage());
 		}
-		catch (InterruptedException e) {
-			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "InterruptedException");
+	}
+
+	/**
+	 * Add or refresh the given device with the expiration time which is
+	 * 'expiration' ms after current time.
+	 *
+	 * @param device
+	 */
+	public static void add(Device device) {
+		put(device, System.currentTimeMillis() + expiration);
+		dirty.put(device.getName(), Boolean.TRUE);
+	}
+
+	/**
+	 * Merge the given device from another name server, which expires after the
+	 * given time to live. The device is ignored if it is from an older run of the
+	 * device than the existing entry.
+	 *
+	 * @param device
+	 * @param ttl in milliseconds
+	 */
+	public static void merge(Device device, long ttl) {
+		Entry existing = devices.get(device.getName());
+		if (existing != null && device.getStarted() < existing.device.getStarted())
+			return;
+		put(device, System.currentTimeMillis() + ttl);
+	}
+
+	/**
+	 * Add or refresh the given device with the given expiration time. An
+	 * unchanged device only gets the later expiration time.
+	 */
+	private static void put(Device device, long expires) {
+		Entry existing = devices.get(device.getName());
+		if (existing != null && !isChanged(existing.device, device)) {
+			if (expires > existing.expires)
+				existing.expires = expires;
+			return;
 		}
-		finally {
-			lock.releaseWriteLock();
+		synchronized (DevicesResource.class) {
+			Entry entry = new Entry(device, ++version, expires);
+			devices.put(device.getName(), entry);
+			removed.remove(device.getName());
+			wheel.schedule(entry, expires);
 		}
-		if (result == null) {
-			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "No Devices List");
+		notifyChanged();
+	}
+
+	/**
+	 * Get the XML of the devices for the other name servers, with the remaining
+	 * time to live of each device. If all is false, then only the devices which
+	 * registered since the last call are included, and null is returned if there
+	 * are none.
+	 *
+	 * @param all
+	 * @return
+	 */
+	public static String getReplica(boolean all) {
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Devices>");
+		Iterator<String> it = (all ? devices.keySet() : dirty.keySet()).iterator();
+		if (!all && !it.hasNext())
+			return null;
+		long now = System.currentTimeMillis();
+		while (it.hasNext()) {
+			String name = it.next();
+			if (!all)
+				it.remove();
+			Entry entry = devices.get(name);
+			if (entry != null && entry.expires > now)
+				append(sb, entry, entry.expires - now);
 		}
-		
-		return result;
-	}  
-	
+		sb.append("</Devices>");
+		return sb.toString();
+	}
+
 	/**
-	 * process the POST request for updating the devices in the name server
-	 * implementation.
+	 * Remove the given entry if it is still in the list.
 	 */
-	@Override
-	public void acceptRepresentation(Representation entity) throws ResourceException {
+	private static void remove(Entry entry) {
+		String name = entry.device.getName();
+		synchronized (DevicesResource.class) {
+			if (!devices.remove(name, entry))
+				return;
+			log.debug("removing expired device " + name);
+			removed.put(name, Long.valueOf(++version));
+			if (removed.size() > MAX_REMOVED) {
+				Iterator<Map.Entry<String, Long>> it = removed.entrySet().iterator();
+				forgotten = it.next().getValue().longValue();
+				it.remove();
+			}
+		}
+		notifyChanged();
+	}
+
+	/**
+	 * Wake up the watches.
+	 */
+	private static void notifyChanged() {
+		synchronized (changed) {
+			changed.notifyAll();
+		}
+	}
+
+	/**
+	 * Handle the watch, i.e., wait until the devices list changes after the given
+	 * version, and return the changes.
+	 */
+	private Representation watch(Form form) throws ResourceException {
+		long since, wait;
 		try {
-			lock.getWriteLock();
-			add(new DomRepresentation(entity));
+			since = Long.parseLong(form.getFirstValue("since"));
+			wait = Math.min(Long.parseLong(form.getFirstValue("wait", "30000")), maxWait);
+		} catch (NumberFormatException e) {
+			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid since or wait");
 		}
-		catch (InterruptedException e) {
-			e.printStackTrace();
+		if (!String.valueOf(epoch).equals(form.getFirstValue("epoch")))
+			since = -1;
+		long deadline = System.currentTimeMillis() + wait;
+		try {
+			synchronized (changed) {
+				long remaining;
+				while (since >= 0 && since == getVersion() && (remaining = deadline - System.currentTimeMillis()) > 0)
+					changed.wait(remaining);
+			}
+		} catch (InterruptedException e) {
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "InterruptedException");
-		} catch (DOMException e) {
-			e.printStackTrace();
-			throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "DOMException: " + e.getMessage());
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "IOException");
-		} catch (XPathExpressionException e) {
-			e.printStackTrace();
-			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "XPathExpressionException");
 		}
-		finally {
-			lock.releaseWriteLock();
+		return toRepresentation(getSnapshot(since));
+	}
+
+	/**
+	 * Get the current version of the devices list.
+	 */
+	private static synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Get the serialized changes after the given version, or the full list if
+	 * the version is negative, too old or not known. The last full list and the
+	 * last changes are reused if the version has not changed.
+	 */
+	private static Snapshot getSnapshot(long since) {
+		Snapshot snapshot = (since < 0 ? full : delta);
+		synchronized (DevicesResource.class) {
+			if (since < forgotten || since > version)
+				since = -1;
+			if (since < 0)
+				snapshot = full;
+			if (snapshot != null && snapshot.since == since && snapshot.version == version)
+				return snapshot;
+			snapshot = serialize(since);
+			if (since < 0)
+				full = snapshot;
+			else
+				delta = snapshot;
+			return snapshot;
 		}
 	}
-		
 
 	/**
-	 * Remove any devices for which we haven't received an update in the last 
-	 * interval.
-	 * This function assumes that lock is write-locked, and keeps it write-locked
-	 * after completion.
-	 * 
-	 * @throws InterruptedException 
+	 * Serialize the devices changed after the given version and the removed
+	 * devices, or all the devices if the version is negative. The caller must
+	 * hold the lock of the class.
 	 */
-	private void removeExpired() throws InterruptedException {
-		long now = (new Date()).getTime();
-		NodeList devices = doc.getFirstChild().getChildNodes();
-		List<Node> expired = new LinkedList<Node>();
-		for (int i=0; devices != null && i<devices.getLength(); ++i) {
-			Element device = (Element) devices.item(i);
-			long expires = Long.valueOf(device.getAttribute("expires"));
-			if (expires < now) {
-				expired.add(device);
-			}
+	private static Snapshot serialize(long since) {
+		StringBuilder sb = new StringBuilder(256 + devices.size() * 160);
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Devices version=\"").append(version)
+			.append("\" epoch=\"").append(epoch).append('"');
+		if (since < 0)
+			sb.append(" full=\"true\"");
+		else
+			sb.append(" since=\"").append(since).append('"');
+		sb.append('>');
+		for (Iterator<Entry> it=devices.values().iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			if (since < 0 || entry.version > since)
+				append(sb, entry, -1);
 		}
-		if (expired.size() > 0) {
-			for (Iterator<Node> it=expired.iterator(); it.hasNext(); ) {
-				Node node = it.next();
-				System.out.println("  removing expired device");
-				doc.getFirstChild().removeChild(node);
+		for (Iterator<Map.Entry<String, Long>> it=removed.entrySet().iterator(); since >= 0 && it.hasNext(); ) {
+			Map.Entry<String, Long> entry = it.next();
+			if (entry.getValue().longValue() > since) {
+				sb.append("<Removed name=\"");
+				escape(sb, entry.getKey());
+				sb.append("\" version=\"").append(entry.getValue()).append("\"/>");
 			}
 		}
-		
+		sb.append("</Devices>");
+		try {
+			return new Snapshot(since, version, sb.toString().getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Append the XML of the given device, as in Device.toNode, with the version,
+	 * and the time to live if not negative.
+	 */
+	private static void append(StringBuilder sb, Entry entry, long ttl) {
+		Device device = entry.device;
+		sb.append("<Device version=\"").append(entry.version).append("\" started=\"").append(device.getStarted())
+			.append("\" load=\"").append(device.getLoad()).append('"');
+		if (ttl >= 0)
+			sb.append(" ttl=\"").append(ttl).append('"');
+		if (device.getFree() >= 0)
+			sb.append(" free=\"").append(device.getFree()).append('"');
+		if (device.getEncodings() != null) {
+			sb.append(" encodings=\"");
+			escape(sb, device.getEncodings());
+			sb.append('"');
+		}
+		sb.append("><Name>");
+		escape(sb, device.getName() != null ? device.getName() : "");
+		sb.append("</Name><IP>");
+		escape(sb, device.getIp());
+		sb.append("</IP><Port>").append(device.getPort()).append("</Port></Device>");
 	}
-	
+
 	/**
-	 * Add a new device information in DOM to the devices list with appropriate
-	 * expires attribute.
-	 * This function assumes that lock is write-locked.
-	 * 
-	 * @param dom
-	 * @throws IOException 
-	 * @throws DOMException 
-	 * @throws XPathExpressionException 
+	 * Append the given text with the XML special characters escaped.
 	 */
-	private void add(DomRepresentation dom) throws DOMException, IOException, XPathExpressionException {
-		Node device = doc.importNode(dom.getDocument().getFirstChild(), true);
-		XPath xpath = xpathFactory.newXPath();
-		String deviceName = ((Element) device).getElementsByTagName("Name").item(0).getTextContent();
-		Node existing = (Node) xpath.evaluate("/Devices/Device[Name='" + deviceName + "']", doc, XPathConstants.NODE);
-		if (existing != null) {
-			doc.getFirstChild().removeChild(existing);
+	private static void escape(StringBuilder sb, String text) {
+		for (int i=0; i<text.length(); ++i) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '<': sb.append("&lt;"); break;
+			case '>': sb.append("&gt;"); break;
+			case '&': sb.append("&amp;"); break;
+			case '"': sb.append("&quot;"); break;
+			default: sb.append(c);
+			}
 		}
-		
-		// add an expires attribute which is 'expiration' ms after current time.
-		String expires = String.valueOf((new Date()).getTime() + expiration);
-		((Element) device).setAttribute("expires", expires);
+	}
 
-		doc.getFirstChild().appendChild(device);
+	/**
+	 * Get the representation of the serialized XML.
+	 */
+	private static Representation toRepresentation(Snapshot snapshot) {
+		return new InputRepresentation(new ByteArrayInputStream(snapshot.data), MediaType.TEXT_XML, snapshot.data.length);
+	}
+
+	/**
+	 * Check whether the new device is a noticeable change from the existing one,
+	 * i.e., a different device, or a different load or encodings, or a change of
+	 * free space of more than 1%.
+	 */
+	private static boolean isChanged(Device a, Device b) {
+		if (!a.equals(b) || a.getLoad() != b.getLoad())
+			return true;
+		if (a.getEncodings() == null ? b.getEncodings() != null : !a.getEncodings().equals(b.getEncodings()))
+			return true;
+		return Math.abs(a.getFree() - b.getFree()) > Math.max(a.getFree(), b.getFree()) / 100;
 	}
-}  
+}
@@ -0,0 +1,562 @@
+package dev;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import db.Log;
+
+/**
+ * Extended DeviceUpdater which finds the online devices using a gossip membership
+ * protocol over unicast UDP, similar to SWIM, instead of the name server or the
+ * multicast beacons. It uses the UDP port of the same number as the HTTP port of
+ * the local device.
+ *
+ * In every period, the device pings one other device, chosen in a random round
+ * robin order. If there is no ack within part of the period, then it asks a few
+ * other devices to ping that device on its behalf. If there is still no ack by
+ * the end of the period, then the device is suspected, and if it does not refute
+ * the suspicion within the suspicion timeout, then it is dead and is removed from
+ * the devices list. The membership updates, i.e., alive, suspect and dead, are
+ * piggybacked on the ping and ack messages, and each update is sent a few times
+ * proportional to the log of the number of devices. Hence the messages sent by
+ * each device per period do not grow with the number of devices.
+ *
+ * Each update has the incarnation number of the device, which only that device
+ * increments to refute a suspicion, and the started time, so that a restarted
+ * device replaces its old entry. A new device joins by exchanging all the members
+ * with one of the seed devices, and the devices exchange all the members with a
+ * random device once in a while, so that a partition heals.
+ *
+ * @author Mamta
+ */
+public class GossipUpdater extends DeviceUpdater {
+
+	private static final Log log = Log.get(GossipUpdater.class);
+
+	/**
+	 * Configuration item for the protocol period in milliseconds.
+	 */
+	public static long period = 1000;
+
+	/**
+	 * The number of devices asked to ping a device that did not ack.
+	 */
+	public static int indirectProbes = 3;
+
+	/**
+	 * The maximum number of updates piggybacked on a message.
+	 */
+	public static int maxPiggyback = 8;
+
+	/**
+	 * The number of periods between the exchange of all the members.
+	 */
+	public static int syncPeriods = 30;
+
+	// the message types.
+	private static final byte PING = 1, ACK = 2, PING_REQ = 3, SYNC = 4, SYNC_ACK = 5;
+
+	// the member states.
+	private static final byte ALIVE = 0, SUSPECT = 1, DEAD = 2;
+
+	// the maximum size of a message.
+	private static final int MAX_PACKET = 65000;
+
+	/**
+	 * A device known to the protocol, with its state.
+	 */
+	private static class Member {
+		Device device;
+		InetSocketAddress address;
+		byte state;
+		int incarnation;
+		long changed; // when the state was changed
+	}
+
+	/**
+	 * An update about a member, which is piggybacked a few more times.
+	 */
+	private static class Broadcast {
+		Member member;
+		int transmits;
+	}
+
+	/**
+	 * A ping sent on behalf of another device, whose ack is forwarded to it.
+	 */
+	private static class Forward {
+		InetSocketAddress requester;
+		int seq;
+		long expires;
+	}
+
+	private List<InetSocketAddress> seeds;
+	private DatagramChannel channel;
+	private Selector selector;
+	private ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_PACKET);
+	private Random random = new Random();
+
+	// the following are used only by the thread function.
+	private Member self;
+	private Map<String, Member> members = new HashMap<String, Member>();
+	private List<Broadcast> broadcasts = new LinkedList<Broadcast>();
+	private List<Member> probeOrder = new ArrayList<Member>();
+	private int probeIndex;
+	private Map<Integer, Forward> forwards = new HashMap<Integer, Forward>();
+	private int seq;
+
+	// the current probe.
+	private Member probing;
+	private int probeSeq;
+	private long probeTime;
+	private boolean acked;
+	private boolean indirect;
+
+	// whether this thread is running or not?
+	private volatile boolean running = false;
+
+	/**
+	 * Construct a new gossip updater for the local device, which joins using the
+	 * given seed devices.
+	 *
+	 * @param local
+	 * @param seeds the addresses of some devices to join with
+	 * @throws IOException if the UDP port cannot be opened
+	 */
+	public GossipUpdater(Device local, List<InetSocketAddress> seeds) throws IOException {
+		super((Device) null, local);
+		this.seeds = seeds;
+
+		self = new Member();
+		self.device = local;
+		self.address = new InetSocketAddress(local.getIp(), local.getPort());
+		self.state = ALIVE;
+		members.put(local.getName(), self);
+
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(local.getPort()));
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+		updateDevices();
+	}
+
+	/**
+	 * Parse the comma separated list of seed devices, e.g.,
+	 * "192.168.1.2:5000,192.168.1.3:5000".
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static List<InetSocketAddress> parseSeeds(String value) {
+		List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+		String[] parts = value.split(",");
+		for (int i=0; i<parts.length; ++i) {
+			String part = parts[i].trim();
+			int index = part.lastIndexOf(':');
+			if (index > 0)
+				result.add(new InetSocketAddress(part.substring(0, index), Integer.parseInt(part.substring(index + 1))));
+		}
+		return result;
+	}
+
+	/**
+	 * The client application calls close, to terminate this thread.
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * The thread function probes a device every period, and receives the messages
+	 * in between.
+	 */
+	@Override
+	public void run() {
+		running = true;
+		long nextProbe = System.currentTimeMillis();
+		long nextSync = nextProbe + syncPeriods * period;
+		while (running) {
+			long now = System.currentTimeMillis();
+			try {
+				if (now >= nextProbe) {
+					if (probing != null && !acked)
+						suspect(probing, now);
+					refreshLocal();
+					probe(now);
+					nextProbe = now + period;
+				}
+				if (probing != null && !acked && !indirect && now >= probeTime + period / 2) {
+					indirect = true;
+					probeIndirect();
+				}
+				if (now >= nextSync) {
+					Member member = pickMember(null);
+					if (member != null)
+						send(member.address, SYNC, 0, null);
+					nextSync = now + syncPeriods * period;
+				}
+				expire(now);
+
+				long next = Math.min(nextProbe, nextSync);
+				if (probing != null && !acked && !indirect)
+					next = Math.min(next, probeTime + period / 2);
+				if (selector.select(Math.max(next - System.currentTimeMillis(), 1)) > 0) {
+					selector.selectedKeys().clear();
+					receive();
+				}
+			} catch (IOException e) {
+				log.error(e);
+			}
+		}
+		try {
+			channel.close();
+			selector.close();
+		} catch (IOException e) {
+			log.error(e);
+		}
+	}
+
+	/**
+	 * Ping the next member in the probe order. If there is no other member, then
+	 * exchange all the members with the seed devices to join.
+	 */
+	private void probe(long now) throws IOException {
+		probing = null;
+		if (probeIndex >= probeOrder.size()) {
+			probeOrder.clear();
+			for (Iterator<Member> it=members.values().iterator(); it.hasNext(); ) {
+				Member member = it.next();
+				if (member != self && member.state != DEAD)
+					probeOrder.add(member);
+			}
+			Collections.shuffle(probeOrder, random);
+			probeIndex = 0;
+		}
+		while (probeIndex < probeOrder.size()) {
+			Member member = probeOrder.get(probeIndex++);
+			if (member.state != DEAD && members.get(member.device.getName()) == member) {
+				probing = member;
+				break;
+			}
+		}
+
+		if (probing == null) {
+			for (int i=0; seeds != null && i<seeds.size(); ++i) {
+				if (!seeds.get(i).equals(self.address))
+					send(seeds.get(i), SYNC, 0, null);
+			}
+			return;
+		}
+		probeSeq = ++seq;
+		probeTime = now;
+		acked = false;
+		indirect = false;
+		send(probing.address, PING, probeSeq, null);
+	}
+
+	/**
+	 * Ask a few other members to ping the member being probed.
+	 */
+	private void probeIndirect() throws IOException {
+		List<Member> list = new ArrayList<Member>();
+		for (Iterator<Member> it=members.values().iterator(); it.hasNext(); ) {
+			Member member = it.next();
+			if (member != self && member != probing && member.state == ALIVE)
+				list.add(member);
+		}
+		Collections.shuffle(list, random);
+		for (int i=0; i<list.size() && i<indirectProbes; ++i)
+			send(list.get(i).address, PING_REQ, probeSeq, probing.device.getName());
+	}
+
+	/**
+	 * Get a random alive member other than this device and the given member, or null.
+	 */
+	private Member pickMember(Member exclude) {
+		List<Member> list = new ArrayList<Member>();
+		for (Iterator<Member> it=members.values().iterator(); it.hasNext(); ) {
+			Member member = it.next();
+			if (member != self && member != exclude && member.state == ALIVE)
+				list.add(member);
+		}
+		return (list.isEmpty() ? null : list.get(random.nextInt(list.size())));
+	}
+
+	/**
+	 * Mark the given member as suspected, because it did not ack.
+	 */
+	private void suspect(Member member, long now) {
+		if (member.state == ALIVE) {
+			log.info("suspect " + member.device);
+			member.state = SUSPECT;
+			member.changed = now;
+			enqueue(member);
+		}
+	}
+
+	/**
+	 * Mark the suspected members as dead after the suspicion timeout, and forget
+	 * the dead members and the forwarded pings after a while.
+	 */
+	private void expire(long now) {
+		long timeout = getSuspicionTimeout();
+		boolean changed = false;
+		for (Iterator<Member> it=members.values().iterator(); it.hasNext(); ) {
+			Member member = it.next();
+			if (member.state == SUSPECT && now - member.changed > timeout) {
+				log.info("dead " + member.device);
+				member.state = DEAD;
+				member.changed = now;
+				enqueue(member);
+				changed = true;
+			}
+			else if (member.state == DEAD && now - member.changed > timeout * 10) {
+				it.remove();
+			}
+		}
+		for (Iterator<Forward> it=forwards.values().iterator(); it.hasNext(); ) {
+			if (it.next().expires < now)
+				it.remove();
+		}
+		if (changed)
+			updateDevices();
+	}
+
+	/**
+	 * The time in milliseconds a member stays suspected before it is dead, which
+	 * grows with the log of the number of members.
+	 */
+	private long getSuspicionTimeout() {
+		return 3 * period * Math.max(1, (long) Math.ceil(Math.log10(members.size() + 1)));
+	}
+
+	/**
+	 * Queue an update about the given member to be piggybacked on the next messages.
+	 */
+	private void enqueue(Member member) {
+		for (Iterator<Broadcast> it=broadcasts.iterator(); it.hasNext(); ) {
+			if (it.next().member.device.getName().equals(member.device.getName()))
+				it.remove();
+		}
+		Broadcast broadcast = new Broadcast();
+		broadcast.member = member;
+		broadcast.transmits = 3 * (int) Math.ceil(Math.log(members.size() + 1) / Math.log(2));
+		broadcasts.add(0, broadcast);
+	}
+
+	/**
+	 * Set the devices list to the alive and suspected members.
+	 */
+	private void updateDevices() {
+		List<Device> list = new ArrayList<Device>();
+		for (Iterator<Member> it=members.values().iterator(); it.hasNext(); ) {
+			Member member = it.next();
+			if (member.state != DEAD)
+				list.add(member.device);
+		}
+		setDevices(list.toArray(new Device[list.size()]));
+	}
+
+	/**
+	 * Send a message to the given address. The message has the type, sequence
+	 * number, the sender, the target for PING_REQ, and the piggybacked updates, or
+	 * all the members for SYNC and SYNC_ACK.
+	 */
+	private void send(InetSocketAddress to, byte type, int seq, String target) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeInt(seq);
+		write(out, self);
+		if (type == PING_REQ)
+			out.writeUTF(target);
+
+		List<Member> updates = new ArrayList<Member>();
+		if (type == SYNC || type == SYNC_ACK) {
+			for (Iterator<Member> it=members.values().iterator(); it.hasNext(); ) {
+				Member member = it.next();
+				if (member != self && updates.size() < MAX_PACKET / 128)
+					updates.add(member);
+			}
+		}
+		else {
+			for (Iterator<Broadcast> it=broadcasts.iterator(); it.hasNext() && updates.size() < maxPiggyback; ) {
+				Broadcast broadcast = it.next();
+				updates.add(broadcast.member);
+				if (--broadcast.transmits <= 0)
+					it.remove();
+			}
+		}
+		out.writeShort(updates.size());
+		for (int i=0; i<updates.size(); ++i)
+			write(out, updates.get(i));
+		out.flush();
+		channel.send(ByteBuffer.wrap(bytes.toByteArray()), to);
+	}
+
+	/**
+	 * Write the state of the given member.
+	 */
+	private static void write(DataOutputStream out, Member member) throws IOException {
+		Device device = member.device;
+		out.writeUTF(device.getName());
+		out.writeUTF(device.getIp());
+		out.writeShort(device.getPort());
+		out.writeLong(device.getStarted());
+		out.writeInt(member.incarnation);
+		out.writeByte(member.state);
+		out.writeLong(device.getFree());
+		out.writeInt(device.getLoad());
+		out.writeUTF(device.getEncodings() != null ? device.getEncodings() : "");
+	}
+
+	/**
+	 * Read the state of a member.
+	 */
+	private static Member read(DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		String ip = in.readUTF();
+		int port = in.readShort() & 0xffff;
+		long started = in.readLong();
+		Member member = new Member();
+		member.device = new Device(ip, port, name, started);
+		member.address = new InetSocketAddress(ip, port);
+		member.incarnation = in.readInt();
+		member.state = in.readByte();
+		member.device.setFree(in.readLong());
+		member.device.setLoad(in.readInt());
+		String encodings = in.readUTF();
+		member.device.setEncodings(encodings.length() > 0 ? encodings : null);
+		return member;
+	}
+
+	/**
+	 * Receive all the pending messages and act on them.
+	 */
+	private void receive() throws IOException {
+		while (true) {
+			receiveBuffer.clear();
+			InetSocketAddress from = (InetSocketAddress) channel.receive(receiveBuffer);
+			if (from == null)
+				break;
+			try {
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(receiveBuffer.array(), 0, receiveBuffer.position()));
+				byte type = in.readByte();
+				int msgSeq = in.readInt();
+				boolean changed = apply(read(in));
+				String target = (type == PING_REQ ? in.readUTF() : null);
+				int count = in.readShort();
+				for (int i=0; i<count; ++i)
+					changed |= apply(read(in));
+				if (changed)
+					updateDevices();
+
+				if (type == PING) {
+					send(from, ACK, msgSeq, null);
+				}
+				else if (type == ACK) {
+					if (probing != null && msgSeq == probeSeq) {
+						acked = true;
+					}
+					else {
+						Forward forward = forwards.remove(Integer.valueOf(msgSeq));
+						if (forward != null)
+							send(forward.requester, ACK, forward.seq, null);
+					}
+				}
+				else if (type == PING_REQ) {
+					Member member = members.get(target);
+					if (member != null && member != self) {
+						Forward forward = new Forward();
+						forward.requester = from;
+						forward.seq = msgSeq;
+						forward.expires = System.currentTimeMillis() + period;
+						forwards.put(Integer.valueOf(++seq), forward);
+						send(member.address, PING, seq, null);
+					}
+				}
+				else if (type == SYNC) {
+					send(from, SYNC_ACK, msgSeq, null);
+				}
+			} catch (IOException e) {
+				log.warn("invalid message from " + from + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Apply an update about a member. An update about this device which is not
+	 * alive is refuted with a new incarnation. A restarted device, i.e., with a later
+	 * started time, replaces the old entry. Otherwise a higher incarnation wins, and
+	 * for the same incarnation dead wins over suspect which wins over alive. An alive
+	 * update of the same incarnation refreshes the free space, load and encodings.
+	 *
+	 * @return true if the devices list needs to be updated
+	 */
+	private boolean apply(Member update) {
+		String name = update.device.getName();
+		long now = System.currentTimeMillis();
+		if (name.equals(self.device.getName())) {
+			if (update.state != ALIVE && update.device.getStarted() == self.device.getStarted()
+					&& update.incarnation >= self.incarnation) {
+				self.incarnation = update.incarnation + 1;
+				log.info("refute " + (update.state == SUSPECT ? "suspect" : "dead")
+						+ " with incarnation " + self.incarnation);
+				enqueue(self);
+			}
+			return false;
+		}
+
+		Member member = members.get(name);
+		if (member == null || update.device.getStarted() > member.device.getStarted()) {
+			update.changed = now;
+			members.put(name, update);
+			enqueue(update);
+			return true;
+		}
+		if (update.device.getStarted() < member.device.getStarted())
+			return false;
+
+		if (update.incarnation > member.incarnation || update.incarnation == member.incarnation && update.state > member.state) {
+			boolean changed = (member.state == DEAD) != (update.state == DEAD) || !member.device.equals(update.device);
+			if (changed)
+				member.device = update.device;
+			member.address = update.address;
+			member.incarnation = update.incarnation;
+			member.state = update.state;
+			member.changed = now;
+			enqueue(member);
+			refresh(member.device, update.device);
+			return changed;
+		}
+		if (update.incarnation == member.incarnation && update.state == ALIVE && member.state == ALIVE)
+			refresh(member.device, update.device);
+		return false;
+	}
+
+	/**
+	 * Refresh the free space, load and encodings of the device.
+	 */
+	private static void refresh(Device device, Device update) {
+		device.setFree(update.getFree());
+		device.setLoad(update.getLoad());
+		device.setEncodings(update.getEncodings());
+	}
+}
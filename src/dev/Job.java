@@ -0,0 +1,225 @@
+package dev;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import db.Log;
+
+/**
+ * A job is the backup or restore of all the files in a directory tree, which is
+ * started by one command and whose progress is available at /jobs/{id}. The files
+ * of the job are added when the job is started, and each file is later marked as
+ * succeeded or failed. A failed backup is retried by the BackupScheduler, hence
+ * it may succeed later.
+ *
+ * The finished jobs are kept for some time so that the client can get the result.
+ *
+ * @author Mamta
+ */
+public class Job {
+
+	private static final Log log = Log.get(Job.class);
+
+	/**
+	 * The time in milliseconds to keep a finished job.
+	 */
+	public static long keepTime = 3600000;
+
+	// the maximum number of failed files listed in the job.
+	private static final int MAX_FAILED = 100;
+
+	private static AtomicLong nextId = new AtomicLong();
+	private static Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+	private final String id;
+	private final String userName;
+	private final String command;
+	private final String path;
+	private final long started;
+
+	// the following are guarded by this object.
+	private Set<String> remaining = new HashSet<String>();
+	private Map<String, String> failed = new LinkedHashMap<String, String>(); // subset of remaining
+	private int total;
+	private boolean closed;
+	private long finished;
+
+	/**
+	 * Construct a new job.
+	 */
+	private Job(String userName, String command, String path) {
+		this.id = String.valueOf(nextId.incrementAndGet());
+		this.userName = userName;
+		this.command = command;
+		this.path = path;
+		this.started = System.currentTimeMillis();
+	}
+
+	/**
+	 * Create and register a new job. The old finished jobs are removed.
+	 *
+	 * @param userName
+	 * @param command "backup" or "restore"
+	 * @param path the directory or pattern of the job
+	 * @return
+	 */
+	public static Job create(String userName, String command, String path) {
+		long now = System.currentTimeMillis();
+		for (Iterator<Job> it=jobs.values().iterator(); it.hasNext(); ) {
+			Job job = it.next();
+			synchronized (job) {
+				if (job.finished > 0 && now - job.finished > keepTime)
+					it.remove();
+			}
+		}
+		Job job = new Job(userName, command, path);
+		jobs.put(job.id, job);
+		return job;
+	}
+
+	/**
+	 * Get the job with the given id, or null if not found.
+	 *
+	 * @param id
+	 * @return
+	 */
+	public static Job get(String id) {
+		return (id != null ? jobs.get(id) : null);
+	}
+
+	/**
+	 * Get the jobs of the given user.
+	 *
+	 * @param userName
+	 * @return
+	 */
+	public static List<Job> getJobs(String userName) {
+		List<Job> result = new ArrayList<Job>();
+		for (Iterator<Job> it=jobs.values().iterator(); it.hasNext(); ) {
+			Job job = it.next();
+			if (job.userName.equals(userName))
+				result.add(job);
+		}
+		return result;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * Add a file to the job.
+	 *
+	 * @param key the unique key of the file
+	 */
+	public synchronized void add(String key) {
+		if (remaining.add(key))
+			++total;
+	}
+
+	/**
+	 * Mark that all the files have been added.
+	 */
+	public synchronized void close() {
+		closed = true;
+		check();
+	}
+
+	/**
+	 * Mark the given file as succeeded.
+	 *
+	 * @param key
+	 */
+	public synchronized void succeeded(String key) {
+		failed.remove(key);
+		remaining.remove(key);
+		check();
+	}
+
+	/**
+	 * Mark the given file as failed.
+	 *
+	 * @param key
+	 * @param name the file path to report
+	 */
+	public synchronized void failed(String key, String name) {
+		if (remaining.contains(key)) {
+			failed.put(key, name);
+			check();
+		}
+	}
+
+	/**
+	 * Whether all the files have succeeded or failed.
+	 *
+	 * @return
+	 */
+	public synchronized boolean isFinished() {
+		return closed && remaining.size() == failed.size();
+	}
+
+	/**
+	 * Create the XML element of the job, e.g.,
+	 * <pre>
+	 * &lt;Job id="1" command="backup" path="photos" state="running" total="10"
+	 *      done="4" failed="1" started="..."&gt;
+	 *   &lt;Failed&gt;photos/a.jpg&lt;/Failed&gt;
+	 * &lt;/Job&gt;
+	 * </pre>
+	 * The state is running, done or failed.
+	 *
+	 * @param doc
+	 * @return
+	 */
+	public synchronized Element toNode(Document doc) {
+		Element node = doc.createElement("Job");
+		node.setAttribute("id", id);
+		node.setAttribute("command", command);
+		node.setAttribute("path", path);
+		node.setAttribute("state", !isFinished() ? "running" : failed.isEmpty() ? "done" : "failed");
+		node.setAttribute("total", String.valueOf(total));
+		node.setAttribute("done", String.valueOf(total - remaining.size()));
+		node.setAttribute("failed", String.valueOf(failed.size()));
+		node.setAttribute("started", String.valueOf(started));
+		if (finished > 0)
+			node.setAttribute("finished", String.valueOf(finished));
+		List<String> names = new ArrayList<String>(failed.values());
+		Collections.sort(names);
+		for (int i=0; i<names.size() && i<MAX_FAILED; ++i) {
+			Element child = doc.createElement("Failed");
+			child.setTextContent(names.get(i));
+			node.appendChild(child);
+		}
+		return node;
+	}
+
+	/**
+	 * Update the finished time. The caller must hold the lock of this object.
+	 */
+	private void check() {
+		if (isFinished()) {
+			if (finished == 0) {
+				finished = System.currentTimeMillis();
+				log.info("job " + id + ": " + command + " " + path + " finished with "
+						+ (total - remaining.size()) + " of " + total + " files");
+			}
+		}
+		else {
+			finished = 0;
+		}
+	}
+}
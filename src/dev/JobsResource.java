@@ -0,0 +1,85 @@
+package dev;
+
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.DomRepresentation;
+import org.restlet.resource.Representation;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import api.BaseResource;
+import db.Log;
+
+/**
+ * The JobsResource represents the backup and restore jobs of the authenticated
+ * user. A GET on /jobs returns all the jobs of the user, and a GET on /jobs/{id}
+ * returns the given job, e.g.,
+ * <pre>
+ * &lt;Jobs&gt;
+ *   &lt;Job id="1" command="backup" path="photos" state="running" total="10"
+ *        done="4" failed="0" started="..."/&gt;
+ * &lt;/Jobs&gt;
+ * </pre>
+ *
+ * @author Mamta
+ */
+public class JobsResource extends BaseResource {
+
+	private static final Log log = Log.get(JobsResource.class);
+
+	/**
+	 * Construct the resource.
+	 *
+	 * @param context
+	 * @param request
+	 * @param response
+	 */
+	public JobsResource(Context context, Request request, Response response) {
+		super(context, request, response);
+
+		getVariants().add(new Variant(MediaType.TEXT_XML));
+	}
+
+	/**
+	 * In response to GET, it returns the XML of the job or the jobs list.
+	 */
+	@Override
+	public Representation represent(Variant variant) throws ResourceException {
+		if (!authenticate())
+			return null;
+
+		Document doc;
+		try {
+			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		} catch (ParserConfigurationException e) {
+			log.error(e);
+			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, e.getMessage());
+		}
+
+		String id = (String) getRequest().getAttributes().get("id");
+		if (id != null) {
+			Job job = Job.get(id);
+			if (job == null || !job.getUserName().equals(getUsername()))
+				throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "Job not found");
+			doc.appendChild(job.toNode(doc));
+		}
+		else {
+			Element root = doc.createElement("Jobs");
+			doc.appendChild(root);
+			List<Job> jobs = Job.getJobs(getUsername());
+			for (int i=0; i<jobs.size(); ++i)
+				root.appendChild(jobs.get(i).toNode(doc));
+		}
+		return new DomRepresentation(MediaType.TEXT_XML, doc);
+	}
+}
@@ -1,6 +1,7 @@
 package dev;
 
 import java.io.IOException;
+import java.util.List;
 
 import javax.xml.xpath.XPathExpressionException;
 
@@ -9,16 +10,19 @@ import org.restlet.data.MediaType;
 import org.restlet.data.Request;  
 import org.restlet.data.Response;  
 import org.restlet.data.Status;
+import org.restlet.data.Tag;
 import org.restlet.resource.DomRepresentation;
 import org.restlet.resource.Representation;  
 import org.restlet.resource.Resource;  
 import org.restlet.resource.ResourceException;  
+import org.restlet.resource.StringRepresentation;
 import org.restlet.resource.Variant;  
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import db.Database;
+import db.Log;
 
 /**
  * The metadata resource represents the metadata on a particular device which
@@ -27,7 +31,13 @@ import db.Database;
  * @author Mamta
  */
 public class MetadataResource extends Resource {  
+
+	private static final Log log = Log.get(MetadataResource.class);
   
+	// the last serialized metadata and the catalog version it was created for.
+	private static String cachedText;
+	private static long cachedVersion = -1;
+	
 	/**
 	 * Construct a new resource.
 	 * 
@@ -57,15 +67,34 @@ public class MetadataResource extends Resource {
     	Representation result = null;
 		try {
     		Database db = Database.getInstance();
-			result = createMetadata(db);
+    		long version = db.getCatalogVersion();
+    		Tag tag = new Tag(db.getLocalDevice() + "-" + Long.toHexString(version), false);
+    		
+    		// the conditional processing in Resource.handleGet responds with 304 if
+    		// the tag matches, hence the metadata need not be created in that case.
+    		List<Tag> noneMatch = getRequest().getConditions().getNoneMatch();
+    		if (noneMatch != null && noneMatch.contains(tag)) {
+    			result = new StringRepresentation("", MediaType.TEXT_XML);
+    			result.setTag(tag);
+    			return result;
+    		}
+    		
+    		synchronized (MetadataResource.class) {
+    			if (cachedText == null || cachedVersion != version) {
+    				cachedText = createMetadata(db).getText();
+    				cachedVersion = version;
+    			}
+    			result = new StringRepresentation(cachedText, MediaType.TEXT_XML);
+    		}
+    		result.setTag(tag);
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "IOException");
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "InterruptedException");
 		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "XPathExpressionException");
 		}
 		
@@ -87,10 +116,10 @@ public class MetadataResource extends Resource {
     	try {
 			db.update(dom.getDocument());
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "InterruptedException");
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(e);
 			throw new ResourceException(Status.SERVER_ERROR_INTERNAL, "IOException");
 		}
     }
@@ -2,29 +2,44 @@ package dev;
 
 import java.io.IOException;
 import java.net.ConnectException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.xml.xpath.XPathExpressionException;
 
 import org.restlet.Client;
 import org.restlet.Context;
 import org.restlet.data.Protocol;
+import org.restlet.data.Response;
 import org.restlet.resource.DomRepresentation;
 
 import db.Database;
+import db.Log;
+import db.Metrics;
 import db.Updater;
 
 /**
  * The event handler which updates the metadata with the remote machine
  * whenever the updater or devices signals a change event.
  * 
+ * The replication lag of each device, i.e., the age of the oldest local change 
+ * which was not yet sent to that device, and the time to send the metadata are
+ * kept in the metrics.
+ * 
  * @author Mamta
  */
 public class MetadataUpdater implements Updater.Listener, DeviceUpdater.Listener {
+
+	private static final Log log = Log.get(MetadataUpdater.class);
 	/**
 	 * The current list of devices.
 	 */
 	private DeviceUpdater deviceUpdater;
 	
+	// the time of the oldest local change not yet sent to each device, or 0.
+	private ConcurrentMap<String, AtomicLong> pending = new ConcurrentHashMap<String, AtomicLong>();
+	
 	/**
 	 * Construct a new updater object.
 	 * @param deviceUpdater
@@ -44,15 +59,18 @@ public class MetadataUpdater implements Updater.Listener, DeviceUpdater.Listener
 		client.getContext().getParameters().add("converter", 
 				"com.noelios.restlet.http.HttpClientConverter");
 		
+		long now = System.currentTimeMillis();
 		try {
 			for (int i=0; i<devices.length; ++i) {
 		    	DomRepresentation dom = MetadataResource.createMetadata(db);
 				Device device = devices[i];
 				if (!device.getName().equals(db.getLocalDevice())) {
+					getPending(device.getName()).compareAndSet(0, now);
 					try {
 						String url = "http://" + device.getIp() + ":" + device.getPort() + "/metadata";
-						System.out.println("PUT " + device.getName() + " " + url);
-						client.put(url, dom);
+						log.debug("PUT " + device.getName() + " " + url);
+						long start = System.currentTimeMillis();
+						sent(device.getName(), client.put(url, dom), start);
 						
 						// for some reason, client.post is not declared as throwing IOException, but
 						// it does throw IOException on connect failure. Since catching an unthrown 
@@ -62,17 +80,17 @@ public class MetadataUpdater implements Updater.Listener, DeviceUpdater.Listener
 							throw new IOException();
 					}
 					catch (IOException e) {
-						System.err.println("updated: device is offline " + device.toString());
+						log.warn("updated: device is offline " + device.toString());
 					}
 				}
 				dom.release();
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(e);
 		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+			log.error(e);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error(e);
 		}
 	}
 
@@ -96,20 +114,56 @@ public class MetadataUpdater implements Updater.Listener, DeviceUpdater.Listener
 			DomRepresentation dom = MetadataResource.createMetadata(db);
 			
 			String url = "http://" + device.getIp() + ":" + device.getPort() + "/metadata";
-			System.out.println("PUT " + device.getName() + " " + url);
-			client.put(url, dom);
+			log.debug("PUT " + device.getName() + " " + url);
+			long start = System.currentTimeMillis();
+			sent(device.getName(), client.put(url, dom), start);
 			dom.release();
 		} catch (ConnectException e) {
-			System.err.println("added: device is offline " + device.toString());
+			log.warn("added: device is offline " + device.toString());
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(e);
 		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+			log.error(e);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error(e);
 		}
 	}
 
+	/**
+	 * Record the response of sending the metadata to the given device. On success,
+	 * the device has all the local changes.
+	 */
+	private void sent(String name, Response response, long start) {
+		if (response.getStatus().isSuccess()) {
+			getPending(name).set(0);
+			Metrics.histogram("filesync_replication_seconds", "Time to send the metadata to a device", "peer", name)
+				.observe(System.currentTimeMillis() - start);
+		}
+		else {
+			Metrics.counter("filesync_replication_failures_total", "Failures to send the metadata to a device", "peer", name).inc();
+		}
+	}
+	
+	/**
+	 * Get the time of the oldest local change not sent to the given device, creating
+	 * it and its replication lag metric if needed.
+	 */
+	private AtomicLong getPending(String name) {
+		AtomicLong result = pending.get(name);
+		if (result == null) {
+			pending.putIfAbsent(name, new AtomicLong());
+			result = pending.get(name);
+			final AtomicLong since = result;
+			Metrics.gauge("filesync_replication_lag_seconds", "Age of the oldest local change not yet sent to a device", new Metrics.Source() {
+				public double value() {
+					long time = since.get();
+					return (time > 0 ? (System.currentTimeMillis() - time) / 1000.0 : 0);
+				}
+			}, "peer", name);
+		}
+		return result;
+	}
+	
 	/**
 	 * This is invoked when a device goes offline. It just changes the device
 	 * status to be offline in the database.
@@ -123,9 +177,9 @@ public class MetadataUpdater implements Updater.Listener, DeviceUpdater.Listener
 		try {
 			db.setDeviceStatus(device.getName(), "offline");
 		} catch (XPathExpressionException e) {
-			e.printStackTrace();
+			log.error(e);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			log.error(e);
 		}
 	}
 }
@@ -1,31 +1,73 @@
 package dev;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import org.restlet.Client;
 import org.restlet.Context;
 import org.restlet.data.MediaType;
+import org.restlet.data.Method;
 import org.restlet.data.Protocol;
+import org.restlet.data.Request;
 import org.restlet.data.Response;
+import org.restlet.data.Status;
 import org.restlet.resource.DomRepresentation;
+import org.restlet.resource.Representation;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import dev.Device;
+import db.Log;
 
 /**
  * The client to get or post a devices resource.
  *
+ * The client may be given a list of replicated name servers. It starts with a
+ * random one, so that the devices are spread among the name servers, and uses it
+ * until it fails, and then tries the next one in the list.
+ *
  * @author Mamta
  */
 public class NameClient {
 
+	private static final Log log = Log.get(NameClient.class);
+	
+	/**
+	 * The changes of the devices list returned by watch.
+	 */
+	public static class Changes {
+		/**
+		 * The version and epoch to use in the next watch.
+		 */
+		public long version;
+		public String epoch;
+		
+		/**
+		 * Whether the devices are all the devices, or only the changed ones.
+		 */
+		public boolean full;
+		
+		/**
+		 * The added or changed devices, without the expiration time.
+		 */
+		public Device[] devices;
+		
+		/**
+		 * The names of the removed devices.
+		 */
+		public String[] removed;
+	}
+
 	// the client object
 	private Client client;
 	
-	// the name server device 
-	private Device server;
+	// the name server devices, and the index of the one in use.
+	private Device[] servers;
+	private volatile int current;
 	
 	/**
 	 * Create a new name client connecting to the given name server device.
@@ -33,7 +75,17 @@ public class NameClient {
 	 * @param device
 	 */
 	public NameClient(Device server) {
-		this.server = server;
+		this(new Device[] { server });
+	}
+	
+	/**
+	 * Create a new name client connecting to any of the given name server devices.
+	 * 
+	 * @param servers
+	 */
+	public NameClient(Device[] servers) {
+		this.servers = servers;
+		this.current = new Random().nextInt(servers.length);
 		client = new Client(new Context(), Protocol.HTTP);
 		client.getContext().getParameters().add("converter", 
 				"com.noelios.restlet.http.HttpClientConverter");
@@ -45,9 +97,7 @@ public class NameClient {
 	 * @return
 	 */
     public Device[] getDevices() {
-    	String url = "http://" + server.getIp() + ":" + String.valueOf(server.getPort()) + "/devices";
-    	//System.out.println("GET " + url);
-    	Response response = client.get(url);
+    	Response response = request(Method.GET, "/devices", null);
     	DomRepresentation dom = response.getEntityAsDom();
     	try {
     		Document doc = dom.getDocument();
@@ -62,8 +112,53 @@ public class NameClient {
     		}
     	}
     	catch (Exception e) {
-    		System.out.println("Exception receiving response: " + e.getMessage());
-    		e.printStackTrace();
+    		log.warn("Exception receiving response: " + e.getMessage());
+    		log.error(e);
+    	}
+    	return null;
+    }
+    
+    /**
+     * Watch the devices list on the name server, i.e., wait until it changes after
+     * the given version or until the given wait time, and get the changes. The
+     * devices do not have the expiration time, since the name server reports the
+     * removed devices. Use a negative version to get all the devices.
+     * 
+     * @param version the version returned by the previous watch
+     * @param epoch the epoch returned by the previous watch, or null
+     * @param wait the time in milliseconds
+     * @return the changes, or null on failure
+     */
+    public Changes watch(long version, String epoch, long wait) {
+    	Response response = request(Method.GET, "/devices?since=" + version + "&wait=" + wait 
+    		+ (epoch != null ? "&epoch=" + epoch : ""), null);
+    	if (!response.getStatus().isSuccess()) {
+    		log.warn("received a failure response: " + response.getStatus().toString());
+    		return null;
+    	}
+    	try {
+    		Element root = response.getEntityAsDom().getDocument().getDocumentElement();
+    		if (!root.getNodeName().equals("Devices"))
+    			return null;
+    		Changes result = new Changes();
+    		result.version = Long.parseLong(root.getAttribute("version"));
+    		result.epoch = root.getAttribute("epoch");
+    		result.full = "true".equals(root.getAttribute("full"));
+    		NodeList nodes = root.getElementsByTagName("Device");
+    		result.devices = new Device[nodes.getLength()];
+    		for (int i=0; i<nodes.getLength(); ++i) {
+    			result.devices[i] = Device.fromNode(nodes.item(i));
+    			result.devices[i].setExpires(0);
+    		}
+    		nodes = root.getElementsByTagName("Removed");
+    		result.removed = new String[nodes.getLength()];
+    		for (int i=0; i<nodes.getLength(); ++i)
+    			result.removed[i] = ((Element) nodes.item(i)).getAttribute("name");
+    		return result;
+    	}
+    	catch (Exception e) {
+    		log.warn("Exception receiving response: " + e.getMessage());
+    		log.error(e);
     	}
     	return null;
     }
@@ -79,11 +174,64 @@ public class NameClient {
 	    	Document doc = dom.getDocument();
 	    	doc.appendChild(device.toNode(doc));
 	    	
-	    	String url = "http://" + server.getIp() + ":" + String.valueOf(server.getPort()) + "/devices";
-	    	System.out.println("POST " + url);
-	    	client.post(url, dom);
+	    	Response response = request(Method.POST, "/devices", dom);
+	    	if (!response.getStatus().isSuccess())
+	    		log.warn("received a failure response: " + response.getStatus().toString());
 		} catch (IOException e) {
-			e.printStackTrace();
+			log.error(e);
 		}
     }
+    
+    /**
+     * Send the request to the current name server, and if it fails, to the next
+     * ones in turn. The name server which responds becomes the current one.
+     * 
+     * @param method GET or POST
+     * @param path the path and query
+     * @param entity the entity for POST
+     * @return the response of the last name server tried
+     */
+    private Response request(Method method, String path, Representation entity) {
+    	Response response = null;
+    	int start = current;
+    	for (int i=0; i<servers.length; ++i) {
+    		int index = (start + i) % servers.length;
+    		Device server = servers[index];
+    		String url = "http://" + server.getIp() + ":" + String.valueOf(server.getPort()) + path;
+    		if (method == Method.POST)
+    			log.debug("POST " + url);
+    		response = client.handle(new Request(method, url, entity));
+    		Status status = response.getStatus();
+    		if (!status.isConnectorError() && !status.isServerError()) {
+    			current = index;
+    			return response;
+    		}
+    		if (servers.length > 1)
+    			log.warn("name server " + server + " failed: " + status.toString());
+    	}
+    	return response;
+    }
+    
+    /**
+     * Parse a comma separated list of name servers, each "ip" or "ip:port".
+     * 
+     * @param value
+     * @param port the port if not specified
+     * @return
+     */
+    public static Device[] parse(String value, int port) {
+    	String[] parts = value.split(",");
+    	List<Device> result = new ArrayList<Device>();
+    	for (int i=0; i<parts.length; ++i) {
+    		String part = parts[i].trim();
+    		if (part.length() == 0)
+    			continue;
+    		int index = part.lastIndexOf(':');
+    		if (index > 0)
+    			result.add(new Device(part.substring(0, index), Integer.parseInt(part.substring(index + 1))));
+    		else
+    			result.add(new Device(part, port));
+    	}
+    	return result.toArray(new Device[result.size()]);
+    }
 }
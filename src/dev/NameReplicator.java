@@ -0,0 +1,114 @@
+package dev;
+
+import org.restlet.Client;
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Protocol;
+import org.restlet.data.Response;
+import org.restlet.resource.StringRepresentation;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import db.Log;
+import db.TaskScheduler;
+
+/**
+ * The replicator task of a name server, which sends the devices registered at
+ * this name server to the other name servers, so that any of them can be used by
+ * the devices and clients.
+ *
+ * When started, it first gets all the devices from one of the other name servers.
+ * Then, every period, it sends the devices which registered or refreshed since the
+ * last time to all the other name servers. A name server which is down misses
+ * those, but gets the devices again when they refresh, or when it restarts.
+ *
+ * @author Mamta
+ */
+public class NameReplicator implements Runnable {
+
+	private static final Log log = Log.get(NameReplicator.class);
+	/**
+	 * Configuration item for the interval in milliseconds to send the devices to
+	 * the other name servers.
+	 */
+	public static long period = 1000;
+
+	// the other name servers.
+	private Device[] peers;
+
+	// the Restlet client.
+	private Client client;
+	
+	// whether the devices were received from another name server.
+	private boolean bootstrapped = false;
+
+	/**
+	 * Construct a new replicator with the other name servers.
+	 *
+	 * @param peers
+	 */
+	public NameReplicator(Device[] peers) {
+		this.peers = peers;
+		client = new Client(new Context(), Protocol.HTTP);
+		client.getContext().getParameters().add("converter",
+				"com.noelios.restlet.http.HttpClientConverter");
+	}
+
+	/**
+	 * Schedule this replicator to run every period on the TaskScheduler.
+	 * 
+	 * @return the scheduled task
+	 */
+	public TaskScheduler.Task start() {
+		return TaskScheduler.schedule("NameReplicator", this, 0, period);
+	}
+
+	/**
+	 * The first run gets the devices from another name server. Every run sends
+	 * the registered devices since the previous run.
+	 */
+	public void run() {
+		for (int i=0; !bootstrapped && i<peers.length && !bootstrap(peers[i]); ++i)
+			;
+		bootstrapped = true;
+		String replica = DevicesResource.getReplica(false);
+		for (int i=0; replica != null && i<peers.length; ++i) {
+			Response response = client.post(getURL(peers[i]), new StringRepresentation(replica, MediaType.TEXT_XML));
+			if (!response.getStatus().isSuccess())
+				log.warn("cannot replicate to name server " + peers[i] + ": " + response.getStatus().toString());
+		}
+	}
+
+	/**
+	 * Get all the devices from the given name server.
+	 *
+	 * @param peer
+	 * @return true on success
+	 */
+	private boolean bootstrap(Device peer) {
+		Response response = client.get(getURL(peer));
+		if (!response.getStatus().isSuccess()) {
+			log.warn("cannot get devices from name server " + peer + ": " + response.getStatus().toString());
+			return false;
+		}
+		try {
+			NodeList nodes = response.getEntityAsDom().getDocument().getElementsByTagName("Device");
+			for (int i=0; i<nodes.getLength(); ++i) {
+				Element node = (Element) nodes.item(i);
+				DevicesResource.merge(Device.fromNode(node), Long.parseLong(node.getAttribute("ttl")));
+			}
+			log.info("got " + nodes.getLength() + " devices from name server " + peer);
+			return true;
+		} catch (Exception e) {
+			log.warn("Exception receiving response: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Get the URL of the replica devices list on the given name server.
+	 */
+	private static String getURL(Device peer) {
+		return "http://" + peer.getIp() + ":" + peer.getPort() + "/devices?replica=true";
+	}
+}
@@ -0,0 +1,461 @@
+package dev;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.restlet.Client;
+import org.restlet.Context;
+import org.restlet.data.Method;
+import org.restlet.data.Protocol;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import db.Compression;
+import db.Log;
+import db.Metrics;
+import db.TaskScheduler;
+
+/**
+ * The restore of a file from several devices which have the same backup. The file
+ * is split into ranges, and each device fetches the next range which is not yet
+ * fetched, so that a faster device fetches more ranges. The ranges are written at
+ * their offset in the target file. If a device fails, then its range is fetched
+ * by another device. Finally the whole file is verified using its SHA-1.
+ *
+ * Only the devices which report the same size and SHA-1 of the backup are used
+ * together.
+ *
+ * The requests have the same connect and read timeouts as the backup transfers.
+ * In addition, a range must complete within the timeout plus the time to fetch
+ * it at the minimum transfer rate, or else the sockets of its worker are closed,
+ * which fails the range, so that a device which is hung, or too slow, does not
+ * hold up the restore.
+ *
+ * @author Mamta
+ */
+public class ParallelRestore {
+
+	private static final Log log = Log.get(ParallelRestore.class);
+
+	/**
+	 * The minimum size of a range in bytes.
+	 */
+	public static long rangeSize = 1048576;
+
+	/**
+	 * The number of ranges per device, if the file is large enough.
+	 */
+	public static int rangesPerDevice = 4;
+
+	/**
+	 * The time in milliseconds to wait for the devices to report their backup.
+	 */
+	public static long infoTimeout = 10000;
+
+	private Client client;
+	private String path;
+
+	/**
+	 * Construct a restore of the given path in the backup directory.
+	 *
+	 * @param path
+	 */
+	public ParallelRestore(String path) {
+		this.path = path;
+		client = new Client(new Context(), Protocol.HTTP);
+		client.getContext().getParameters().add("converter",
+				"com.noelios.restlet.http.HttpClientConverter");
+		
+		// fail the requests to a device which stops responding.
+		client.setConnectTimeout((int) BackupThread.transfers.getTimeout());
+		client.getContext().getParameters().add("readTimeout", String.valueOf(BackupThread.transfers.getTimeout()));
+	}
+
+	/**
+	 * Fetch the backup from the given devices to the target file, and verify it
+	 * using the given checksum.
+	 *
+	 * @param devices
+	 * @param checksum the SHA-1 of the file, or empty if not known
+	 * @param target the temporary file to write
+	 * @return true if the file was fetched and verified, else false
+	 * @throws IOException if the target cannot be written
+	 */
+	public boolean fetch(List<Device> devices, String checksum, File target) throws IOException {
+		// first find the devices which have the backup with the same checksum,
+		// asking all of them in parallel.
+		// The sockets of the calls are closed after the timeout, so that a call
+		// which was cancelled does not stay blocked on its socket.
+		TimeoutClientHelper.Sockets sockets = new TimeoutClientHelper.Sockets();
+		List<Callable<String>> calls = new ArrayList<Callable<String>>();
+		for (int i=0; i<devices.size(); ++i)
+			calls.add(newInfo(devices.get(i), sockets));
+		List<String> infos;
+		try {
+			infos = TaskScheduler.invokeAll(calls, infoTimeout);
+		} catch (InterruptedException e) {
+			log.error(e);
+			return false;
+		} finally {
+			sockets.close();
+		}
+		List<Device> sources = new ArrayList<Device>();
+		long size = -1;
+		for (int i=0; i<devices.size(); ++i) {
+			Device dev = devices.get(i);
+			if (infos.get(i) == null)
+				continue;
+			String[] info = infos.get(i).trim().split(" ");
+			String sha1 = (info.length > 1 ? info[1] : "");
+			if (checksum.length() == 0 && sha1.length() > 0)
+				checksum = sha1;
+			if (sha1.length() > 0 && !sha1.equals(checksum)) {
+				log.warn("backup on " + dev.getName() + " does not match the checksum");
+				continue;
+			}
+			long devSize;
+			try {
+				devSize = Long.parseLong(info[0]);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (size < 0)
+				size = devSize;
+			if (devSize == size)
+				sources.add(dev);
+		}
+		if (sources.isEmpty())
+			return false;
+
+		// split the file in ranges, and fetch them using a worker per device. If
+		// a device fails, then its ranges are fetched by the other devices.
+		long length = Math.max(rangeSize, (size + sources.size() * rangesPerDevice - 1) / (sources.size() * rangesPerDevice));
+		Queue<long[]> ranges = new ConcurrentLinkedQueue<long[]>();
+		for (long offset=0; offset<size; offset+=length)
+			ranges.add(new long[] {offset, Math.min(length, size - offset)});
+		AtomicLong done = new AtomicLong();
+
+		log.info("restore " + path + " of " + size + " bytes in " + ranges.size() + " ranges from " + sources.size() + " devices");
+		RandomAccessFile file = new RandomAccessFile(target, "rw");
+		// the restore itself may run on a worker, hence the ranges run as subtasks.
+		ExecutorService executor = TaskScheduler.getSubtasks();
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		List<Worker> workers = new ArrayList<Worker>();
+		try {
+			file.setLength(size);
+			FileChannel channel = file.getChannel();
+			for (int i=0; i<sources.size(); ++i) {
+				workers.add(new Worker(sources.get(i), ranges, channel, done));
+				futures.add(executor.submit(workers.get(i)));
+			}
+
+			// wait for all the workers. A device which failed is not used again.
+			// If a device failed after the others finished, then its ranges are
+			// fetched again by the devices which finished successfully, until all
+			// the ranges are fetched or no device is left.
+			while (true) {
+				boolean live = false;
+				for (int i=0; i<futures.size(); ++i) {
+					if (futures.get(i) == null)
+						continue;
+					if (await(futures.get(i), workers.get(i)))
+						live = true;
+					else
+						futures.set(i, null);
+				}
+				if (ranges.isEmpty() || !live)
+					break;
+				for (int i=0; i<futures.size(); ++i) {
+					if (futures.get(i) != null) {
+						workers.set(i, new Worker(sources.get(i), ranges, channel, done));
+						futures.set(i, executor.submit(workers.get(i)));
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			log.error(e);
+			return false;
+		} catch (ExecutionException e) {
+			log.error(e);
+			return false;
+		} finally {
+			// do not leave any worker writing to the file.
+			for (int i=0; i<futures.size(); ++i) {
+				if (futures.get(i) != null) {
+					futures.get(i).cancel(true);
+					workers.get(i).abort();
+				}
+			}
+			file.close();
+		}
+		if (done.get() != size)
+			return false;
+
+		if (checksum.length() > 0 && !checksum.equals(ChunkStore.checksum(target))) {
+			log.warn("restore data does not match the checksum");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Restore the given file from the online devices which have its backup, as in
+	 * the Location elements of the given File element. The latest backup is fetched
+	 * from all its devices together, and if that fails, then from each device, and
+	 * then the older backups are tried. The file is written to a temporary file 
+	 * which replaces the local file only if it is verified.
+	 *
+	 * @param fileNode
+	 * @param path the path of the file in the backup directory
+	 * @param file the local file to write
+	 * @param deviceUpdater to find the online devices
+	 * @return true if the file was restored, else false
+	 */
+	public static boolean restore(Element fileNode, String path, File file, DeviceUpdater deviceUpdater) {
+		Element backup = (Element) fileNode.getElementsByTagName("Backup").item(0);
+		if (backup == null)
+			return false;
+		NodeList locationNodes = backup.getElementsByTagName("Location");
+		
+		// sort the locations in decreasing order of modified attribute
+		List<Node> locations = new LinkedList<Node>();
+		for (int i=0; i<locationNodes.getLength(); ++i) {
+			locations.add(locationNodes.item(i));
+		}
+		Comparator<Node> compare = new Comparator<Node>() {
+			public int compare(Node o1, Node o2) {
+				long m1 = Long.parseLong(((Element) o1).getAttribute("modified"));
+				long m2 = Long.parseLong(((Element) o2).getAttribute("modified"));
+				return (m1 < m2 ? 1 : (m1 > m2 ? -1 : 0));
+			}
+			public boolean equals(Object obj) {
+				return obj == this;
+			}
+		};
+		Collections.sort(locations, compare);
+		
+		File parent = file.getParentFile();
+		parent.mkdirs();
+		
+		// fetch the latest version from all its online locations together, or else
+		// try the older versions.
+		int index = 0;
+		while (index < locations.size()) {
+			String modified = ((Element) locations.get(index)).getAttribute("modified");
+			String checksum = "";
+			List<Device> devices = new ArrayList<Device>();
+			for (; index < locations.size() && modified.equals(((Element) locations.get(index)).getAttribute("modified")); ++index) {
+				Element location = (Element) locations.get(index);
+				if (checksum.length() == 0)
+					checksum = location.getAttribute("sha1");
+				Device dev = deviceUpdater.getDevice(location.getTextContent());
+				if (dev != null)
+					devices.add(dev);
+			}
+			if (devices.isEmpty())
+				continue;
+			
+			File temp = null;
+			try {
+				temp = File.createTempFile("restore", ".tmp", parent);
+				ParallelRestore restore = new ParallelRestore(path);
+				boolean done = restore.fetch(devices, checksum, temp);
+				
+				// one of the devices may have a bad copy, hence try them one by one.
+				for (int j=0; !done && devices.size() > 1 && j<devices.size(); ++j)
+					done = restore.fetch(devices.subList(j, j+1), checksum, temp);
+				
+				if (done) {
+					if (!temp.renameTo(file)) {
+						// some platforms do not replace on rename
+						file.delete();
+						if (!temp.renameTo(file))
+							throw new IOException("Cannot replace the file " + file.getPath());
+					}
+					return true;
+				}
+			} catch (IOException e) {
+				log.error(e);
+			} finally {
+				if (temp != null)
+					temp.delete();
+			}
+		}
+		
+		return false;
+	}
+
+	/**
+	 * Create a call which gets the size and SHA-1 of the backup on the given
+	 * device, or null on failure.
+	 */
+	private Callable<String> newInfo(final Device dev, final TimeoutClientHelper.Sockets sockets) {
+		return new Callable<String>() {
+			public String call() throws Exception {
+				TimeoutClientHelper.collect(sockets);
+				try {
+					Response response = client.get(getUrl(dev) + "?info");
+					if (!response.getStatus().isSuccess()) {
+						log.warn("received a failure response: " + response.getStatus().toString());
+						return null;
+					}
+					return response.getEntity().getText();
+				}
+				finally {
+					TimeoutClientHelper.collect(null);
+				}
+			}
+		};
+	}
+
+	/**
+	 * The worker which fetches the ranges from a device until there is no range
+	 * left or the device fails. A range which fails is put back for another device.
+	 * The sockets of the worker can be closed by another thread, which fails the
+	 * range in progress.
+	 */
+	private class Worker implements Callable<Boolean> {
+		private Device dev;
+		private Queue<long[]> ranges;
+		private FileChannel channel;
+		private AtomicLong done;
+		private TimeoutClientHelper.Sockets sockets = new TimeoutClientHelper.Sockets();
+
+		// the time by which the range in progress must complete, if any.
+		private volatile long deadline = Long.MAX_VALUE;
+
+		// the time when the sockets were closed, or zero.
+		private volatile long aborted = 0;
+
+		Worker(Device dev, Queue<long[]> ranges, FileChannel channel, AtomicLong done) {
+			this.dev = dev;
+			this.ranges = ranges;
+			this.channel = channel;
+			this.done = done;
+		}
+
+		public Boolean call() throws Exception {
+			Metrics.Counter received = Metrics.counter("filesync_transfer_bytes_total", "Bytes of the backups transferred with a device", 
+					"peer", dev.getName(), "direction", "received");
+			TimeoutClientHelper.collect(sockets);
+			try {
+				long[] range;
+				while ((range = ranges.poll()) != null) {
+					deadline = System.currentTimeMillis() + BackupThread.transfers.getTimeout() 
+							+ range[1] * 1000 / TransferExecutor.minRate;
+					try {
+						fetch(dev, range[0], range[1], channel);
+						done.addAndGet(range[1]);
+						received.add(range[1]);
+					} catch (IOException e) {
+						log.warn("restore from " + dev.getName() + " failed: " + e.getMessage());
+						ranges.add(range);
+						return Boolean.FALSE;
+					} finally {
+						deadline = Long.MAX_VALUE;
+					}
+				}
+				return Boolean.TRUE;
+			}
+			finally {
+				TimeoutClientHelper.collect(null);
+			}
+		}
+
+		/**
+		 * Close the sockets, so that the range in progress fails.
+		 */
+		void abort() {
+			if (aborted == 0)
+				aborted = System.currentTimeMillis();
+			sockets.close();
+		}
+	}
+
+	/**
+	 * Wait for the given worker to complete. If its range does not complete by the
+	 * deadline, then its sockets are closed, and if it still does not return within
+	 * the timeout, then it is cancelled and treated as failed.
+	 *
+	 * @return true if the worker fetched all the ranges, or false if it failed
+	 */
+	private static boolean await(Future<Boolean> future, Worker worker) throws InterruptedException, ExecutionException {
+		long timeout = BackupThread.transfers.getTimeout();
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (worker.aborted > 0 && now >= worker.aborted + timeout) {
+				log.warn("restore from " + worker.dev.getName() + " did not stop in time");
+				future.cancel(true);
+				return false;
+			}
+			if (worker.aborted == 0 && now >= worker.deadline) {
+				log.warn("restore from " + worker.dev.getName() + " timed out");
+				worker.abort();
+			}
+			try {
+				return future.get(Math.max(Math.min(worker.deadline - now, 1000), 1), TimeUnit.MILLISECONDS).booleanValue();
+			} catch (TimeoutException e) {
+				// check the deadline again
+			}
+		}
+	}
+
+	/**
+	 * Fetch the given range from the given device, and write it at its offset.
+	 */
+	private void fetch(Device dev, long offset, long length, FileChannel channel) throws IOException {
+		String url = getUrl(dev) + "?offset=" + offset + "&length=" + length;
+		log.debug("GET " + dev.getName() + " " + url);
+		Request request = new Request(Method.GET, url);
+		Compression.accept(request.getClientInfo());
+		Response response = client.handle(request);
+		if (!response.getStatus().isSuccess())
+			throw new IOException("Failure response: " + response.getStatus());
+
+		InputStream in = Compression.decode(response.getEntity());
+		if (in == null)
+			throw new IOException("Empty response");
+		try {
+			byte[] buffer = new byte[65536];
+			long position = offset;
+			int count;
+			while (position < offset + length && (count = in.read(buffer, 0, (int) Math.min(buffer.length, offset + length - position))) > 0) {
+				ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+				while (data.hasRemaining())
+					position += channel.write(data, position);
+			}
+			if (position != offset + length)
+				throw new IOException("Short response of " + (position - offset) + " bytes");
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Get the URL of the backup on the given device.
+	 */
+	private String getUrl(Device dev) {
+		return "http://" + dev.getIp() + ":" + dev.getPort() + "/backupdata/" + path;
+	}
+}
@@ -0,0 +1,155 @@
+package dev;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import db.Metrics;
+
+/**
+ * The transfer statistics of another device as measured by this device: the
+ * round trip time, the throughput and the number of backups being sent to it.
+ * The time and throughput are moving averages of the recent transfers. After a 
+ * failed backup, the device is not used for a backoff time which is doubled on 
+ * each failure. The bytes sent and the throughput are also kept in the metrics.
+ * 
+ * @author Mamta
+ */
+public class PeerStats {
+
+	/**
+	 * The weight of a new measurement in the moving average.
+	 */
+	private static final double ALPHA = 0.25;
+	
+	/**
+	 * The backoff time in milliseconds after the first failure.
+	 */
+	public static long backoff = 5000;
+	
+	/**
+	 * The maximum backoff time in milliseconds.
+	 */
+	public static long maxBackoff = 3600000;
+	
+	private static Map<String, PeerStats> peers = new ConcurrentHashMap<String, PeerStats>();
+	
+	private double rtt = -1;        // in milliseconds, or -1 if not known
+	private double throughput = -1; // in bytes per millisecond, or -1 if not known
+	private int active = 0;
+	private int failures = 0;
+	private long retryAt = 0;
+	private Metrics.Counter sent;
+	
+	/**
+	 * Construct the statistics of the given device.
+	 */
+	private PeerStats(String name) {
+		sent = Metrics.counter("filesync_transfer_bytes_total", "Bytes of the backups transferred with a device", 
+				"peer", name, "direction", "sent");
+		Metrics.gauge("filesync_transfer_throughput_bytes", "Average throughput of the backups sent to a device in bytes per second", 
+				new Metrics.Source() {
+			public double value() {
+				return Math.max(getThroughput(), 0) * 1000;
+			}
+		}, "peer", name);
+	}
+	
+	/**
+	 * Get the statistics of the given device, creating it if needed.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public static PeerStats get(String name) {
+		PeerStats result = peers.get(name);
+		if (result == null) {
+			synchronized (peers) {
+				result = peers.get(name);
+				if (result == null) {
+					result = new PeerStats(name);
+					peers.put(name, result);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Record the time of a request which has a small request and response.
+	 * 
+	 * @param millis
+	 */
+	public synchronized void recordRtt(long millis) {
+		rtt = (rtt < 0 ? millis : (1 - ALPHA) * rtt + ALPHA * millis);
+	}
+	
+	/**
+	 * Record a transfer of the given bytes in the given time.
+	 * 
+	 * @param bytes
+	 * @param millis
+	 */
+	public synchronized void recordTransfer(long bytes, long millis) {
+		sent.add(bytes);
+		double value = (double) bytes / Math.max(millis, 1);
+		throughput = (throughput < 0 ? value : (1 - ALPHA) * throughput + ALPHA * value);
+	}
+	
+	/**
+	 * Record a failed backup, so that the device is not used until the backoff.
+	 */
+	public synchronized void recordFailure() {
+		++failures;
+		retryAt = System.currentTimeMillis() + Math.min(backoff << Math.min(failures - 1, 20), maxBackoff);
+	}
+	
+	/**
+	 * Record a successful backup, which resets the backoff.
+	 */
+	public synchronized void recordSuccess() {
+		failures = 0;
+		retryAt = 0;
+	}
+	
+	/**
+	 * Check whether the device is not to be used because of a recent failure.
+	 */
+	public synchronized boolean isBackedOff() {
+		return retryAt > System.currentTimeMillis();
+	}
+	
+	/**
+	 * Get the average round trip time in milliseconds, or -1 if not known.
+	 */
+	public synchronized double getRtt() {
+		return rtt;
+	}
+	
+	/**
+	 * Get the average throughput in bytes per millisecond, or -1 if not known.
+	 */
+	public synchronized double getThroughput() {
+		return throughput;
+	}
+	
+	/**
+	 * Mark the start of a backup to this device.
+	 */
+	public synchronized void begin() {
+		++active;
+	}
+	
+	/**
+	 * Mark the end of a backup to this device.
+	 */
+	public synchronized void end() {
+		--active;
+	}
+	
+	/**
+	 * Get the number of backups being sent to this device.
+	 */
+	public synchronized int getActive() {
+		return active;
+	}
+}
@@ -0,0 +1,23 @@
+package dev;
+
+import java.util.List;
+
+/**
+ * The placement policy selects the device to store the next backup of a file
+ * from the online devices which do not have the backup yet.
+ * 
+ * @see RandomPlacement
+ * @see BalancedPlacement
+ * @author Mamta
+ */
+public interface PlacementPolicy {
+
+	/**
+	 * Select the device for the backup of a file of the given size.
+	 * 
+	 * @param candidates the devices which can store the backup
+	 * @param size the file size in bytes
+	 * @return the selected device, or null if none of the candidates is suitable
+	 */
+	public Device select(List<Device> candidates, long size);
+}
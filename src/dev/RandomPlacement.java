@@ -0,0 +1,22 @@
+package dev;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The placement policy which selects a random device.
+ * 
+ * @author Mamta
+ */
+public class RandomPlacement implements PlacementPolicy {
+
+	private Random random = new Random();
+	
+	public Device select(List<Device> candidates, long size) {
+		if (candidates.isEmpty())
+			return null;
+		synchronized (random) {
+			return candidates.get(random.nextInt(candidates.size()));
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package dev;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipException;
+
+import org.restlet.Client;
+import org.restlet.Context;
+import org.restlet.data.Protocol;
+import org.restlet.data.Reference;
+import org.restlet.data.Response;
+import org.restlet.resource.StringRepresentation;
+
+import db.Database;
+import db.Log;
+
+/**
+ * The scrubber is a low priority thread which periodically re-reads the backups
+ * stored in the backup directory, and verifies them against the SHA-1 that was
+ * sent with the backup. A chunk which does not match its hash is deleted. A backup
+ * which is corrupt or has a missing chunk is deleted, and is reported to the device
+ * which owns the file, so that it removes the backup Location and sends the backup
+ * again to some device. After verifying the backups, it deletes the chunks which
+ * are no longer used by any manifest.
+ *
+ * The data is read at most at the given rate, and the scrubber waits while backups
+ * are being received, so that it does not slow down the other disk access.
+ *
+ * @author Mamta
+ */
+public class Scrubber implements Runnable {
+
+	private static final Log log = Log.get(Scrubber.class);
+
+	/**
+	 * The maximum rate of reading the backups in bytes per second.
+	 */
+	public static long rate = 1048576;
+
+	/**
+	 * The interval in milliseconds between the start of two scrubs of all the
+	 * backups.
+	 */
+	public static long interval = 86400000;
+
+	// the interval to report the corrupt backups again if the owner was offline.
+	private static final long REPORT_INTERVAL = 60000;
+
+	// the time to keep an unused chunk, for a backup which is still being received.
+	private static final long CHUNK_GRACE = 86400000;
+
+	private String backupDir;
+	private ChunkStore store;
+	private DeviceUpdater deviceUpdater;
+	private TokenBucket bucket;
+	private Client client;
+
+	// the corrupt backups not yet reported, from path to the owner device.
+	private Map<String, String> pending = new LinkedHashMap<String, String>();
+
+	/**
+	 * Construct a new scrubber for the given backup directory.
+	 *
+	 * @param backupDir
+	 * @param store the chunk store in the backup directory
+	 * @param deviceUpdater to find the owner devices
+	 */
+	public Scrubber(String backupDir, ChunkStore store, DeviceUpdater deviceUpdater) {
+		this.backupDir = backupDir;
+		this.store = store;
+		this.deviceUpdater = deviceUpdater;
+		this.bucket = new TokenBucket(rate, Math.max(rate / 4, 65536));
+
+		client = new Client(new Context(), Protocol.HTTP);
+		client.getContext().getParameters().add("converter",
+			"com.noelios.restlet.http.HttpClientConverter");
+	}
+
+	/**
+	 * The thread function scrubs all the backups after every interval, and reports
+	 * the pending corrupt backups in between.
+	 */
+	public void run() {
+		long last = System.currentTimeMillis();
+		while (true) {
+			try {
+				Thread.sleep(Math.min(interval, REPORT_INTERVAL));
+				report();
+				if (System.currentTimeMillis() - last >= interval) {
+					last = System.currentTimeMillis();
+					scrub();
+				}
+			} catch (InterruptedException e) {
+				log.error(e);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Verify all the backups which have a checksum or a manifest, and delete the
+	 * unused chunks.
+	 *
+	 * @return the number of corrupt backups
+	 * @throws InterruptedException
+	 */
+	public int scrub() throws InterruptedException {
+		Set<String> paths = new TreeSet<String>();
+		list(new File(backupDir, ".checksums"), "", paths);
+		list(new File(backupDir, ".manifests"), "", paths);
+		log.info("verifying " + paths.size() + " backups");
+
+		int corrupt = 0;
+		for (Iterator<String> it=paths.iterator(); it.hasNext(); ) {
+			String path = it.next();
+
+			// wait while backups are being received.
+			while (BackupdataResource.getLoad() > 0)
+				Thread.sleep(1000);
+
+			try {
+				if (!verify(path)) {
+					++corrupt;
+					String[] checksum = store.readChecksum(path);
+					log.warn("backup of " + path + " is corrupt");
+					store.deleteBackup(path);
+					if (checksum != null && checksum[1].length() > 0) {
+						synchronized (pending) {
+							pending.put(path, checksum[1]);
+						}
+					}
+				}
+			} catch (IOException e) {
+				log.error(e);
+			}
+		}
+		log.info("found " + corrupt + " corrupt backups");
+		report();
+
+		while (BackupdataResource.getLoad() > 0)
+			Thread.sleep(1000);
+		try {
+			log.info("deleted " + store.collect(CHUNK_GRACE) + " unused chunks");
+		} catch (IOException e) {
+			log.error(e);
+		}
+		return corrupt;
+	}
+
+	/**
+	 * Verify the backup of the given path. If the backup is replaced while it is
+	 * being verified, it is assumed to be correct.
+	 *
+	 * @param path
+	 * @return false if the backup is corrupt, else true
+	 * @throws IOException if the backup could not be read
+	 * @throws InterruptedException
+	 */
+	public boolean verify(String path) throws IOException, InterruptedException {
+		File checksumFile = store.getChecksumFile(path);
+		File manifestFile = store.getManifestFile(path);
+		File file = new File(backupDir, path);
+		long checksumModified = checksumFile.lastModified();
+		long manifestModified = manifestFile.lastModified();
+		long fileModified = file.lastModified();
+
+		String[] checksum = store.readChecksum(path);
+		List<ChunkStore.Chunk> chunks = store.readManifest(path);
+		MessageDigest whole = newDigest();
+		boolean valid = true;
+		if (chunks != null) {
+			MessageDigest part = newDigest();
+			for (int i=0; valid && i<chunks.size(); ++i) {
+				String hash = chunks.get(i).hash;
+				if (!store.has(hash)) {
+					valid = false;
+					break;
+				}
+				try {
+					read(store.openChunk(hash), part, whole);
+				} catch (ZipException e) {
+					// the compressed chunk cannot be inflated.
+				}
+				if (!hash.equals(ChunkStore.toHex(part.digest()))) {
+					log.warn("chunk " + hash + " is corrupt");
+					store.deleteChunk(hash);
+					valid = false;
+				}
+			}
+		}
+		else if (file.isFile()) {
+			read(new FileInputStream(file), null, whole);
+		}
+		else {
+			// the checksum of a deleted backup.
+			checksumFile.delete();
+			return true;
+		}
+
+		if (valid && checksum != null && !checksum[0].equals(ChunkStore.toHex(whole.digest())))
+			valid = false;
+		if (!valid && (checksumFile.lastModified() != checksumModified
+				|| manifestFile.lastModified() != manifestModified || file.lastModified() != fileModified))
+			return true;
+		return valid;
+	}
+
+	/**
+	 * Report the corrupt backups to their owner devices which are online.
+	 */
+	public void report() {
+		Map<String, String> copy;
+		synchronized (pending) {
+			copy = new LinkedHashMap<String, String>(pending);
+		}
+		String local = Database.getInstance().getLocalDevice();
+		for (Iterator<Map.Entry<String, String>> it=copy.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, String> entry = it.next();
+			Device dev = deviceUpdater.getDevice(entry.getValue());
+			if (dev == null)
+				continue;
+			String url = "http://" + dev.getIp() + ":" + dev.getPort() + "/backupdata/" + entry.getKey()
+					+ "?corrupt=" + Reference.encode(local);
+			log.debug("POST " + dev.getName() + " " + url);
+			Response response = client.post(url, new StringRepresentation(""));
+			if (response.getStatus().isSuccess()) {
+				synchronized (pending) {
+					pending.remove(entry.getKey());
+				}
+			}
+			else {
+				log.warn("received a failure response: " + response.getStatus().toString());
+			}
+		}
+	}
+
+	/**
+	 * Read the stream at the allowed rate, update the digests, and close it.
+	 */
+	private void read(InputStream in, MessageDigest part, MessageDigest whole) throws IOException, InterruptedException {
+		try {
+			byte[] buffer = new byte[16384];
+			int count;
+			while ((count = in.read(buffer)) > 0) {
+				bucket.take(count);
+				if (part != null)
+					part.update(buffer, 0, count);
+				whole.update(buffer, 0, count);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Add the relative paths of the files in the given directory to the set,
+	 * except the temporary files.
+	 */
+	private static void list(File dir, String prefix, Set<String> paths) {
+		File[] files = dir.listFiles();
+		for (int i=0; files != null && i<files.length; ++i) {
+			if (files[i].isDirectory())
+				list(files[i], prefix + files[i].getName() + "/", paths);
+			else if (!files[i].getName().endsWith(".tmp"))
+				paths.add(prefix + files[i].getName());
+		}
+	}
+
+	/**
+	 * Create a new SHA-1 digest.
+	 */
+	private static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 is not supported");
+		}
+	}
+}
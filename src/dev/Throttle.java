@@ -0,0 +1,142 @@
+package dev;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The bandwidth limit of the backup transfers, using a global token bucket for 
+ * all the transfers and another token bucket for each device. Only the backup
+ * data is throttled, so that the other traffic, e.g., the browser requests, is
+ * not slowed down.
+ * 
+ * @author Mamta
+ */
+public class Throttle {
+
+	/**
+	 * The maximum rate of all the backup transfers in bytes per second, or 0
+	 * for unlimited. Set by main before the first transfer.
+	 */
+	public static long rate = 0;
+	
+	/**
+	 * The maximum rate of the backup transfers to one device in bytes per second,
+	 * or 0 for unlimited. Set by main before the first transfer.
+	 */
+	public static long peerRate = 0;
+	
+	/**
+	 * The number of bytes read or written at a time.
+	 */
+	private static final int BLOCK = 16384;
+	
+	private static TokenBucket global;
+	private static Map<String, TokenBucket> peers = new ConcurrentHashMap<String, TokenBucket>();
+	
+	/**
+	 * Get the global bucket.
+	 */
+	private static synchronized TokenBucket getGlobal() {
+		if (global == null)
+			global = new TokenBucket(rate, Math.max(rate / 4, BLOCK));
+		return global;
+	}
+	
+	/**
+	 * Get the bucket of the given device.
+	 */
+	private static TokenBucket getPeer(String name) {
+		TokenBucket result = peers.get(name);
+		if (result == null) {
+			synchronized (peers) {
+				result = peers.get(name);
+				if (result == null) {
+					result = new TokenBucket(peerRate, Math.max(peerRate / 4, BLOCK));
+					peers.put(name, result);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Get the lowest rate that applies to a transfer to a device, or 0 for
+	 * unlimited.
+	 */
+	public static long getRate() {
+		if (rate > 0 && peerRate > 0)
+			return Math.min(rate, peerRate);
+		return Math.max(rate, peerRate);
+	}
+	
+	/**
+	 * Wait for the given number of bytes to be sent to the given device.
+	 */
+	private static void take(String name, long count) throws IOException {
+		try {
+			getGlobal().take(count);
+			getPeer(name).take(count);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted");
+		}
+	}
+	
+	/**
+	 * Wrap the given stream so that it is read at the allowed rate for the device.
+	 * 
+	 * @param in
+	 * @param name the device name
+	 * @return
+	 */
+	public static InputStream wrap(InputStream in, final String name) {
+		if (getRate() <= 0)
+			return in;
+		return new FilterInputStream(in) {
+			public int read() throws IOException {
+				int result = super.read();
+				if (result >= 0)
+					take(name, 1);
+				return result;
+			}
+			public int read(byte[] b, int off, int len) throws IOException {
+				int result = super.read(b, off, Math.min(len, BLOCK));
+				if (result > 0)
+					take(name, result);
+				return result;
+			}
+		};
+	}
+	
+	/**
+	 * Wrap the given stream so that it is written at the allowed rate for the device.
+	 * 
+	 * @param out
+	 * @param name the device name
+	 * @return
+	 */
+	public static OutputStream wrap(OutputStream out, final String name) {
+		if (getRate() <= 0)
+			return out;
+		return new FilterOutputStream(out) {
+			public void write(int b) throws IOException {
+				take(name, 1);
+				out.write(b);
+			}
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int count = Math.min(len, BLOCK);
+					take(name, count);
+					out.write(b, off, count);
+					off += count;
+					len -= count;
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,137 @@
+package dev;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.restlet.Client;
+import org.restlet.data.Request;
+
+import com.noelios.restlet.Engine;
+import com.noelios.restlet.http.HttpClientCall;
+import com.noelios.restlet.http.StreamClientCall;
+import com.noelios.restlet.http.StreamClientHelper;
+
+/**
+ * The HTTP client connector with the connect and read timeouts of the socket.
+ * The internal HTTP client of Restlet connects and reads without a timeout, hence
+ * a request to a device which is hung, but not disconnected, blocks its thread
+ * forever, and interrupting the thread does not unblock the socket.
+ *
+ * The connect timeout is of the client, e.g., client.setConnectTimeout(10000), and
+ * the read timeout is the "readTimeout" parameter in milliseconds of the client
+ * context. Both are zero, i.e., no timeout, by default, e.g., for a watch of the
+ * devices list which waits for a long time.
+ *
+ * A thread which sends requests can also collect the sockets which it opens in
+ * a Sockets object, so that another thread can close them, e.g., to abort a
+ * transfer which did not complete in time.
+ *
+ * The register method must be called before the clients are created, so that
+ * this connector is used instead of the internal one.
+ *
+ * @author Mamta
+ */
+public class TimeoutClientHelper extends StreamClientHelper {
+
+	/**
+	 * The sockets opened by a thread, which can be closed by another thread.
+	 */
+	public static class Sockets {
+		private List<Socket> sockets = new ArrayList<Socket>();
+		private boolean closed = false;
+
+		/**
+		 * Add the socket, or close it right away if this is already closed.
+		 *
+		 * @param socket
+		 */
+		public synchronized void add(Socket socket) {
+			if (closed)
+				close(socket);
+			else
+				sockets.add(socket);
+		}
+
+		/**
+		 * Close all the sockets, and any socket added later.
+		 */
+		public synchronized void close() {
+			closed = true;
+			for (int i=0; i<sockets.size(); ++i)
+				close(sockets.get(i));
+			sockets.clear();
+		}
+
+		private static void close(Socket socket) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	// the sockets collected for the current thread, if any.
+	private static ThreadLocal<Sockets> current = new ThreadLocal<Sockets>();
+
+	/**
+	 * Construct the connector for the given client.
+	 *
+	 * @param client
+	 */
+	public TimeoutClientHelper(Client client) {
+		super(client);
+	}
+
+	/**
+	 * Register this connector for HTTP, before the internal connector.
+	 */
+	public static void register() {
+		Engine.getInstance().getRegisteredClients().add(0, new TimeoutClientHelper(null));
+	}
+
+	/**
+	 * Collect the sockets opened by the current thread in the given object, or
+	 * stop collecting if null.
+	 *
+	 * @param sockets
+	 */
+	public static void collect(Sockets sockets) {
+		if (sockets != null)
+			current.set(sockets);
+		else
+			current.remove();
+	}
+
+	/**
+	 * Get the read timeout in milliseconds, or zero for no timeout.
+	 *
+	 * @return
+	 */
+	public int getReadTimeout() {
+		return Integer.parseInt(getHelpedParameters().getFirstValue("readTimeout", "0"));
+	}
+
+	/**
+	 * Create the call which opens the socket with the timeouts.
+	 */
+	@Override
+	public HttpClientCall create(Request request) {
+		request.getClientInfo().setAgent("Noelios-Restlet-Engine/1.1.5");
+		return new StreamClientCall(this, request) {
+			@Override
+			public Socket createSocket(String hostDomain, int hostPort) throws IOException {
+				Socket socket = new Socket();
+				Sockets sockets = current.get();
+				if (sockets != null)
+					sockets.add(socket);
+				socket.connect(new InetSocketAddress(hostDomain, hostPort), getHelped().getConnectTimeout());
+				socket.setSoTimeout(getReadTimeout());
+				return socket;
+			}
+		};
+	}
+}
@@ -0,0 +1,147 @@
+package dev;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import db.Log;
+
+/**
+ * A hashed timing wheel which calls the handler for each item after its deadline.
+ * The wheel has a number of slots, each of one tick, and an item is put in the
+ * slot of its deadline, with the number of rounds of the wheel to wait. Hence the
+ * cost of scheduling an item and of each tick does not depend on the number of
+ * items. The deadline is accurate only up to a tick.
+ *
+ * An item which is refreshed need not be scheduled again. Instead the handler may
+ * check whether the item has actually expired, and if not, schedule it again for
+ * its new deadline.
+ *
+ * The wheel thread is a daemon, started when the first item is scheduled. It does
+ * not wake up on every tick while the wheel is empty.
+ *
+ * @author Mamta
+ */
+public class TimingWheel<T> implements Runnable {
+
+	private static final Log log = Log.get(TimingWheel.class);
+
+	/**
+	 * The handler of the items whose deadline has passed.
+	 */
+	public static interface Handler<T> {
+		/**
+		 * Called in the wheel thread after the deadline of the item.
+		 * @param item
+		 */
+		public void expired(T item);
+	}
+
+	/**
+	 * An item in a slot.
+	 */
+	private static class Entry<T> {
+		T item;
+		long rounds;
+	}
+
+	private String name;
+	private long tick;
+	private List<List<Entry<T>>> slots;
+	private Handler<T> handler;
+
+	// the following are guarded by this object.
+	private long current; // the tick being processed
+	private int count = 0; // the number of items in the slots
+	private Thread thread;
+
+	/**
+	 * Construct a new wheel.
+	 *
+	 * @param name the name of the wheel thread
+	 * @param tick the duration of a slot in milliseconds
+	 * @param size the number of slots
+	 * @param handler
+	 */
+	public TimingWheel(String name, long tick, int size, Handler<T> handler) {
+		this.name = name;
+		this.tick = tick;
+		this.handler = handler;
+		this.slots = new ArrayList<List<Entry<T>>>(size);
+		for (int i=0; i<size; ++i)
+			slots.add(new LinkedList<Entry<T>>());
+		this.current = System.currentTimeMillis() / tick;
+	}
+
+	/**
+	 * Schedule the given item to be handled after the given deadline.
+	 *
+	 * @param item
+	 * @param deadline the absolute time in milliseconds
+	 */
+	public synchronized void schedule(T item, long deadline) {
+		if (count == 0) {
+			// the wheel was idle, hence no tick needs to be processed.
+			current = Math.max(current, System.currentTimeMillis() / tick);
+			notify();
+		}
+		long ticks = Math.max((deadline + tick - 1) / tick, current + 1);
+		Entry<T> entry = new Entry<T>();
+		entry.item = item;
+		entry.rounds = (ticks - current - 1) / slots.size();
+		slots.get((int) (ticks % slots.size())).add(entry);
+		++count;
+		if (thread == null) {
+			thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * The thread function handles the items of each slot at every tick.
+	 */
+	public void run() {
+		while (true) {
+			List<T> expired = new ArrayList<T>();
+			synchronized (this) {
+				try {
+					while (count == 0)
+						wait();
+				} catch (InterruptedException e) {
+					log.error(e);
+					break;
+				}
+				long now = System.currentTimeMillis() / tick;
+				while (current < now) {
+					++current;
+					List<Entry<T>> slot = slots.get((int) (current % slots.size()));
+					for (Iterator<Entry<T>> it=slot.iterator(); it.hasNext(); ) {
+						Entry<T> entry = it.next();
+						if (entry.rounds <= 0) {
+							expired.add(entry.item);
+							it.remove();
+							--count;
+						}
+						else {
+							--entry.rounds;
+						}
+					}
+				}
+			}
+			for (int i=0; i<expired.size(); ++i) {
+				try {
+					handler.expired(expired.get(i));
+				} catch (RuntimeException e) {
+					log.error(e);
+				}
+			}
+			try {
+				Thread.sleep(tick - System.currentTimeMillis() % tick);
+			} catch (InterruptedException e) {
+				log.error(e);
+				break;
+			}
+		}
+	}
+}
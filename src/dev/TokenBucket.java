@@ -0,0 +1,58 @@
+package dev;
+
+/**
+ * The token bucket to limit a rate in bytes per second. The bucket holds at 
+ * most burst tokens, and is refilled at the given rate. Taking more tokens than 
+ * available waits until they are refilled, so a large request is allowed but 
+ * delays the next one. A rate of 0 or less is unlimited.
+ * 
+ * @author Mamta
+ */
+public class TokenBucket {
+
+	private long rate;
+	private long burst;
+	private double tokens;
+	private long last;
+	
+	/**
+	 * Construct a new bucket which is full.
+	 * 
+	 * @param rate in bytes per second, or 0 for unlimited
+	 * @param burst the maximum tokens
+	 */
+	public TokenBucket(long rate, long burst) {
+		this.rate = rate;
+		this.burst = burst;
+		this.tokens = burst;
+		this.last = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Get the rate in bytes per second, or 0 or less if unlimited.
+	 */
+	public long getRate() {
+		return rate;
+	}
+	
+	/**
+	 * Take the given number of tokens, waiting until they are available.
+	 * 
+	 * @param count
+	 * @throws InterruptedException
+	 */
+	public void take(long count) throws InterruptedException {
+		if (rate <= 0 || count <= 0)
+			return;
+		long wait;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			tokens = Math.min(burst, tokens + (now - last) * rate / 1000.0);
+			last = now;
+			tokens -= count;
+			wait = (tokens < 0 ? (long) (-tokens * 1000 / rate) : 0);
+		}
+		if (wait > 0)
+			Thread.sleep(wait);
+	}
+}
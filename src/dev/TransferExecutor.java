@@ -0,0 +1,151 @@
+package dev;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.restlet.data.Response;
+
+import db.TaskScheduler;
+
+/**
+ * The executor which runs the backup requests to other devices on the shared
+ * workers, at most the given number at a time, so that the data of a file can
+ * be sent in parallel, and a request which does not complete in time is treated
+ * as failed. The timeout of a request depends on the number of bytes sent, so
+ * that a large transfer is not failed while it is progressing at the minimum
+ * rate.
+ * 
+ * The client of a request should have the read timeout, so that a device which
+ * stops responding fails the request. In addition, the sockets opened by a
+ * request are closed when it times out or is cancelled, because interrupting the
+ * thread does not unblock the socket, e.g., while writing to a device which is
+ * hung. A request which still does not return is detached from the executor, so
+ * that it no longer holds up the other requests.
+ * 
+ * @author Mamta
+ */
+public class TransferExecutor {
+
+	/**
+	 * The slowest rate in bytes per second which is not treated as a failure.
+	 */
+	public static long minRate = 10240;
+	
+	/**
+	 * The request which closes its sockets when cancelled.
+	 */
+	private static class Transfer extends FutureTask<Response> {
+		private TimeoutClientHelper.Sockets sockets = new TimeoutClientHelper.Sockets();
+
+		Transfer(Callable<Response> call) {
+			super(call);
+		}
+
+		public void run() {
+			TimeoutClientHelper.collect(sockets);
+			try {
+				super.run();
+			}
+			finally {
+				TimeoutClientHelper.collect(null);
+			}
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!super.cancel(mayInterruptIfRunning))
+				return false;
+			sockets.close();
+			return true;
+		}
+	}
+
+	private TaskScheduler.Limited executor;
+	private long timeout;
+	
+	/**
+	 * Construct a new executor.
+	 * 
+	 * @param threads the number of parallel requests
+	 * @param timeout the timeout in milliseconds of a request without data
+	 */
+	public TransferExecutor(int threads, long timeout) {
+		this.timeout = timeout;
+		executor = new TaskScheduler.Limited("TransferExecutor", threads);
+	}
+	
+	/**
+	 * Start the request on the executor.
+	 * 
+	 * @param call which sends the request and returns the response
+	 * @return
+	 */
+	public Future<Response> submit(Callable<Response> call) {
+		Transfer transfer = new Transfer(call);
+		executor.execute(transfer);
+		return transfer;
+	}
+
+	/**
+	 * Get the timeout in milliseconds of a request without data, e.g., for the
+	 * read timeout of the client.
+	 *
+	 * @return
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Cancel the request started by submit if it is not complete, close its
+	 * connection, and let the next request run.
+	 *
+	 * @param future
+	 */
+	public void cancel(Future<Response> future) {
+		if (future.cancel(true) && future instanceof Runnable)
+			executor.detach((Runnable) future);
+	}
+	
+	/**
+	 * Wait for the response of the request started by submit.
+	 * 
+	 * @param future
+	 * @param bytes the number of bytes sent or received by the request
+	 * @return
+	 * @throws IOException if the request failed or timed out
+	 */
+	public Response get(Future<Response> future, long bytes) throws IOException {
+		long rate = Throttle.getRate();
+		rate = (rate > 0 ? Math.min(rate, minRate) : minRate);
+		try {
+			return future.get(timeout + bytes * 1000 / rate, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			cancel(future);
+			throw new IOException("Transfer timed out");
+		} catch (InterruptedException e) {
+			cancel(future);
+			throw new IOException("Transfer interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Transfer failed: " + e.getCause());
+		}
+	}
+	
+	/**
+	 * Send the request on the executor and wait for the response.
+	 * 
+	 * @param call
+	 * @param bytes
+	 * @return
+	 * @throws IOException
+	 */
+	public Response handle(Callable<Response> call, long bytes) throws IOException {
+		return get(submit(call), bytes);
+	}
+}
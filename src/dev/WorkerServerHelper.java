@@ -0,0 +1,139 @@
+package dev;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.restlet.Server;
+import org.restlet.data.Protocol;
+
+import com.noelios.restlet.Engine;
+import com.noelios.restlet.http.HttpServerHelper;
+import com.noelios.restlet.http.StreamServerCall;
+
+import db.Log;
+import db.TaskScheduler;
+
+/**
+ * The HTTP server connector which handles each connection on a connection thread
+ * of the TaskScheduler. The internal HTTP server of Restlet handles the
+ * connections on a fixed pool of ten threads, hence a few slow requests, such as
+ * a watch of the devices list or a large download, block all the other requests.
+ * 
+ * The accept loop never handles a connection itself. If all the connection
+ * threads are in use, the new connection is answered with 503 Service
+ * Unavailable and closed, so that the client can retry or use another server.
+ *
+ * The register method must be called before the HTTP server is added to the
+ * component, so that this connector is used instead of the internal one.
+ *
+ * @author Mamta
+ */
+public class WorkerServerHelper extends HttpServerHelper {
+
+	private static final Log log = Log.get(WorkerServerHelper.class);
+
+	private volatile ServerSocketChannel serverSocketChannel;
+
+	/**
+	 * Construct the connector for the given server.
+	 *
+	 * @param server
+	 */
+	public WorkerServerHelper(Server server) {
+		super(server);
+		getProtocols().add(Protocol.HTTP);
+	}
+
+	/**
+	 * Register this connector for HTTP, before the internal connector.
+	 */
+	public static void register() {
+		Engine.getInstance().getRegisteredServers().add(0, new WorkerServerHelper(null));
+	}
+
+	/**
+	 * Start listening, and handle each connection on a worker.
+	 */
+	@Override
+	public synchronized void start() throws Exception {
+		super.start();
+		Server server = getHelped();
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.socket().setReuseAddress(true);
+		serverSocketChannel.socket().bind(server.getAddress() == null ? new InetSocketAddress(server.getPort())
+				: new InetSocketAddress(server.getAddress(), server.getPort()));
+		setEphemeralPort(serverSocketChannel.socket());
+		final ServerSocketChannel channel = serverSocketChannel;
+		Thread listener = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					final Socket socket;
+					try {
+						socket = channel.accept().socket();
+					} catch (ClosedChannelException e) {
+						break;
+					} catch (IOException e) {
+						log.error(e);
+						continue;
+					}
+					try {
+						TaskScheduler.getConnections().execute(new Runnable() {
+							public void run() {
+								try {
+									handle(new StreamServerCall(getHelped(), new BufferedInputStream(socket.getInputStream()),
+											new BufferedOutputStream(socket.getOutputStream()), socket));
+								} catch (IOException e) {
+									log.error(e);
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						reject(socket);
+					}
+				}
+			}
+		}, "HttpListener-" + server.getPort());
+		listener.start(); // not a daemon, to keep the server running
+	}
+
+	/**
+	 * Answer the connection with 503 Service Unavailable and close it. The short
+	 * response fits in the socket buffer, hence this does not block.
+	 */
+	private static void reject(Socket socket) {
+		log.warn("too many connections, rejecting " + socket.getRemoteSocketAddress());
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\n"
+					+ "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+			out.flush();
+		} catch (IOException e) {
+			// closed anyway
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Stop listening. The requests in progress complete on their threads.
+	 */
+	@Override
+	public synchronized void stop() throws Exception {
+		super.stop();
+		if (serverSocketChannel != null) {
+			serverSocketChannel.close();
+			serverSocketChannel = null;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package dev;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The round-trip test of the delta transfer. It writes the delta of a new file
+ * against the signature of an old copy, applies it on the old copy, and checks
+ * that the result is the same as the new file, for new files which share none,
+ * some or all of the blocks of the old copy, including an unmatched tail longer
+ * than the literal data of one operation.
+ *
+ * Run it with the compiled src and test classes and the lib jars in the class
+ * path, e.g., java -cp classes:lib/* dev.DeltaTest. It exits with a non-zero
+ * status if a check fails.
+ *
+ * @author Mamta
+ */
+public class DeltaTest {
+
+	// the number of the failed checks.
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(1);
+		byte[] base = new byte[16 * 1024 * 1024];
+		random.nextBytes(base);
+		File baseFile = write(base);
+
+		check("same file", roundTrip(baseFile, base));
+
+		int[] tails = {1000, 62000, 66000, 67000, 69000, 200000};
+		for (int i=0; i<tails.length; ++i) {
+			byte[] tail = new byte[tails[i]];
+			random.nextBytes(tail);
+			check("unmatched tail of " + tails[i] + " bytes", roundTrip(baseFile, concat(base, tail)));
+		}
+
+		byte[] modified = base.clone();
+		byte[] middle = new byte[300000];
+		random.nextBytes(middle);
+		System.arraycopy(middle, 0, modified, 5000000, middle.length);
+		check("modified middle", roundTrip(baseFile, modified));
+
+		byte[] other = new byte[1000000];
+		random.nextBytes(other);
+		check("unrelated file", roundTrip(baseFile, other));
+
+		check("empty file", roundTrip(baseFile, new byte[0]));
+
+		baseFile.delete();
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+	}
+
+	/**
+	 * Write the delta of the new data against the old copy, apply it, and compare.
+	 */
+	private static boolean roundTrip(File baseFile, byte[] data) throws IOException {
+		File file = write(data);
+		File target = File.createTempFile("delta", ".tmp");
+		try {
+			InputStream in = new FileInputStream(baseFile);
+			String signature;
+			try {
+				signature = Delta.signature(in, baseFile.length());
+			} finally {
+				in.close();
+			}
+			ByteArrayOutputStream delta = new ByteArrayOutputStream();
+			Delta.writeDelta(file, signature, delta);
+
+			Delta.Base base = new Delta.FileBase(baseFile);
+			try {
+				Delta.applyDelta(new ByteArrayInputStream(delta.toByteArray()), base, 
+						Delta.getBlockSize(baseFile.length()), target);
+			} finally {
+				base.close();
+			}
+			return Arrays.equals(data, read(target));
+		} catch (IOException e) {
+			System.out.println(e);
+			return false;
+		} finally {
+			file.delete();
+			target.delete();
+		}
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	private static File write(byte[] data) throws IOException {
+		File file = File.createTempFile("delta", ".bin");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static byte[] read(File file) throws IOException {
+		byte[] result = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int done = 0, count;
+			while (done < result.length && (count = in.read(result, done, result.length - done)) > 0)
+				done += count;
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	private static void check(String name, boolean passed) {
+		System.out.println((passed ? "PASS " : "FAIL ") + name);
+		if (!passed)
+			++failures;
+	}
+}
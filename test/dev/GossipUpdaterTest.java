@@ -0,0 +1,360 @@
+package dev;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The in-process test of the gossip membership. It starts three gossip updaters
+ * which join using the first one as the seed, and checks that each one lists all
+ * the devices. A test peer, which sends and receives the gossip messages on its
+ * own UDP port, then suspects one device, and checks that the device refutes the
+ * suspicion and that the others learn the refutation. Finally it stops that
+ * device, and checks that the others suspect it, and then remove it as dead.
+ *
+ * The test peer writes and reads the messages in the same format as the
+ * GossipUpdater, and acks the pings it receives, so that it stays alive. It reads
+ * the member states of a device using the SYNC message, which is answered with
+ * all the members.
+ *
+ * Run it with the compiled src and test classes and the lib jars in the class
+ * path, e.g., java -cp classes:lib/* dev.GossipUpdaterTest. It exits with a
+ * non-zero status if a check fails.
+ *
+ * @author Mamta
+ */
+public class GossipUpdaterTest {
+
+	/**
+	 * The time in milliseconds to wait for the membership to change.
+	 */
+	private static final long TIMEOUT = 10000;
+
+	// the message types and member states of GossipUpdater.
+	private static final byte PING = 1, ACK = 2, PING_REQ = 3, SYNC = 4, SYNC_ACK = 5;
+	private static final byte ALIVE = 0, SUSPECT = 1, DEAD = 2;
+
+	/**
+	 * The state of a member in a message.
+	 */
+	private static class State {
+		Device device;
+		int incarnation;
+		byte state;
+
+		State(Device device, int incarnation, byte state) {
+			this.device = device;
+			this.incarnation = incarnation;
+			this.state = state;
+		}
+	}
+
+	/**
+	 * A received message with the states of the sender and the other members in
+	 * it, indexed by the device name.
+	 */
+	private static class Message {
+		InetSocketAddress from;
+		byte type;
+		int seq;
+		Map<String, State> states = new HashMap<String, State>();
+	}
+
+	/**
+	 * The test peer, which sends messages and keeps the received ones, except the
+	 * pings which it acks.
+	 */
+	private static class Peer implements Runnable {
+		private DatagramSocket socket;
+		private State self;
+		private BlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+		private int seq;
+
+		Peer(String name) throws IOException {
+			socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+			self = new State(new Device("127.0.0.1", socket.getLocalPort(), name, System.currentTimeMillis()), 0, ALIVE);
+			Thread thread = new Thread(this, "GossipPeer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void run() {
+			byte[] buffer = new byte[65536];
+			while (!socket.isClosed()) {
+				try {
+					DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+					socket.receive(packet);
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), 0, packet.getLength()));
+					Message message = new Message();
+					message.from = (InetSocketAddress) packet.getSocketAddress();
+					message.type = in.readByte();
+					message.seq = in.readInt();
+					State sender = read(in);
+					message.states.put(sender.device.getName(), sender);
+					if (message.type == PING_REQ)
+						in.readUTF(); // the target of PING_REQ
+					int count = in.readShort();
+					for (int i=0; i<count; ++i) {
+						State state = read(in);
+						message.states.put(state.device.getName(), state);
+					}
+					if (message.type == PING)
+						send(message.from, ACK, message.seq, new ArrayList<State>());
+					else
+						received.add(message);
+				} catch (IOException e) {
+					// closed, or an invalid message
+				}
+			}
+		}
+
+		/**
+		 * Send the message and wait for the reply of the given type.
+		 *
+		 * @return the reply, or null if there is none within a second
+		 */
+		Message request(InetSocketAddress to, byte type, byte reply, List<State> updates)
+				throws IOException, InterruptedException {
+			int id = ++seq;
+			send(to, type, id, updates);
+			long end = System.currentTimeMillis() + 1000;
+			for (long now = System.currentTimeMillis(); now < end; now = System.currentTimeMillis()) {
+				Message message = received.poll(end - now, TimeUnit.MILLISECONDS);
+				if (message != null && message.type == reply && message.seq == id && message.from.equals(to))
+					return message;
+			}
+			return null;
+		}
+
+		/**
+		 * Get the states of all the members known to the device at the given address.
+		 *
+		 * @return the states, or null if the device did not reply
+		 */
+		Map<String, State> getStates(InetSocketAddress to) throws IOException, InterruptedException {
+			Message message = request(to, SYNC, SYNC_ACK, new ArrayList<State>());
+			return (message != null ? message.states : null);
+		}
+
+		private synchronized void send(InetSocketAddress to, byte type, int id, List<State> updates) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(type);
+			out.writeInt(id);
+			write(out, self);
+			out.writeShort(updates.size());
+			for (int i=0; i<updates.size(); ++i)
+				write(out, updates.get(i));
+			out.flush();
+			byte[] data = bytes.toByteArray();
+			socket.send(new DatagramPacket(data, data.length, to));
+		}
+
+		void close() {
+			socket.close();
+		}
+	}
+
+	// the number of the failed checks.
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		GossipUpdater.period = 200;
+		long started = System.currentTimeMillis();
+		Device a = new Device("127.0.0.1", getFreePort(), "Home-PC", started);
+		Device b = new Device("127.0.0.1", getFreePort(), "Laptop", started);
+		Device c = new Device("127.0.0.1", getFreePort(), "Office-PC", started);
+		List<InetSocketAddress> seeds = GossipUpdater.parseSeeds("127.0.0.1:" + a.getPort());
+		GossipUpdater updaterA = start(a, seeds), updaterB = start(b, seeds), updaterC = start(c, seeds);
+
+		// join using A as the seed.
+		check("A lists all the devices", waitFor(updaterA, true, "Home-PC", "Laptop", "Office-PC"));
+		check("B lists all the devices", waitFor(updaterB, true, "Home-PC", "Laptop", "Office-PC"));
+		check("C lists all the devices", waitFor(updaterC, true, "Home-PC", "Laptop", "Office-PC"));
+
+		// tell C that it is suspected. It refutes with a new incarnation, which the
+		// others learn from the gossip.
+		Peer peer = new Peer("Test-Peer");
+		InetSocketAddress addressA = address(a), addressB = address(b), addressC = address(c);
+		List<State> suspect = new ArrayList<State>();
+		suspect.add(new State(c, 0, SUSPECT));
+		Message ack = peer.request(addressC, PING, ACK, suspect);
+		State refuted = (ack != null ? ack.states.get("Office-PC") : null);
+		check("C refutes the suspicion", refuted != null && refuted.state == ALIVE && refuted.incarnation > 0);
+		check("A learns the refutation", waitForState(peer, addressA, "Office-PC", ALIVE, 1));
+		check("B learns the refutation", waitForState(peer, addressB, "Office-PC", ALIVE, 1));
+		check("A still lists C", contains(updaterA.getDevices(), "Office-PC"));
+
+		// stop C. A and B suspect it, and then remove it as dead.
+		updaterC.close();
+		boolean suspected = false;
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (System.currentTimeMillis() < end && (contains(updaterA.getDevices(), "Office-PC")
+				|| contains(updaterB.getDevices(), "Office-PC"))) {
+			suspected |= hasState(peer.getStates(addressA), "Office-PC", SUSPECT, 0)
+					|| hasState(peer.getStates(addressB), "Office-PC", SUSPECT, 0);
+			Thread.sleep(20);
+		}
+		check("C is suspected after it stops", suspected);
+		check("A removes C", waitFor(updaterA, false, "Office-PC"));
+		check("B removes C", waitFor(updaterB, false, "Office-PC"));
+		check("A knows that C is dead", hasState(peer.getStates(addressA), "Office-PC", DEAD, 0));
+		check("A and B still list each other", contains(updaterA.getDevices(), "Home-PC", "Laptop")
+				&& contains(updaterB.getDevices(), "Home-PC", "Laptop"));
+
+		updaterA.close();
+		updaterB.close();
+		peer.close();
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+		System.exit(0);
+	}
+
+	/**
+	 * Start the gossip updater of the given device in its own thread.
+	 */
+	private static GossipUpdater start(Device device, List<InetSocketAddress> seeds) throws IOException {
+		GossipUpdater updater = new GossipUpdater(device, seeds);
+		Thread thread = new Thread(updater, "GossipUpdater-" + device.getName());
+		thread.setDaemon(true);
+		thread.start();
+		return updater;
+	}
+
+	/**
+	 * Wait until the devices list of the updater has, or does not have, all the
+	 * given names.
+	 *
+	 * @return true if it does before the timeout
+	 */
+	private static boolean waitFor(GossipUpdater updater, boolean present, String... names) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (present ? !contains(updater.getDevices(), names) : containsAny(updater.getDevices(), names)) {
+			if (System.currentTimeMillis() > end)
+				return false;
+			Thread.sleep(50);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until the device at the given address has the given state and at least
+	 * the given incarnation for the member.
+	 *
+	 * @return true if it does before the timeout
+	 */
+	private static boolean waitForState(Peer peer, InetSocketAddress to, String name, byte state, int incarnation)
+			throws IOException, InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (!hasState(peer.getStates(to), name, state, incarnation)) {
+			if (System.currentTimeMillis() > end)
+				return false;
+			Thread.sleep(50);
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the states have the given state and at least the given incarnation
+	 * for the member.
+	 */
+	private static boolean hasState(Map<String, State> states, String name, byte state, int incarnation) {
+		State found = (states != null ? states.get(name) : null);
+		return found != null && found.state == state && found.incarnation >= incarnation;
+	}
+
+	/**
+	 * Whether the devices include all the given names.
+	 */
+	private static boolean contains(Device[] devices, String... names) {
+		if (devices == null)
+			return false;
+		Set<String> found = new HashSet<String>();
+		for (int i=0; i<devices.length; ++i)
+			found.add(devices[i].getName());
+		for (int i=0; i<names.length; ++i) {
+			if (!found.contains(names[i]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the devices include any of the given names.
+	 */
+	private static boolean containsAny(Device[] devices, String... names) {
+		for (int i=0; i<names.length; ++i) {
+			if (contains(devices, names[i]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Write the state of a member in the format of GossipUpdater.
+	 */
+	private static void write(DataOutputStream out, State member) throws IOException {
+		Device device = member.device;
+		out.writeUTF(device.getName());
+		out.writeUTF(device.getIp());
+		out.writeShort(device.getPort());
+		out.writeLong(device.getStarted());
+		out.writeInt(member.incarnation);
+		out.writeByte(member.state);
+		out.writeLong(device.getFree());
+		out.writeInt(device.getLoad());
+		out.writeUTF(device.getEncodings() != null ? device.getEncodings() : "");
+	}
+
+	/**
+	 * Read the state of a member in the format of GossipUpdater.
+	 */
+	private static State read(DataInputStream in) throws IOException {
+		String name = in.readUTF();
+		String ip = in.readUTF();
+		int port = in.readShort() & 0xffff;
+		long started = in.readLong();
+		int incarnation = in.readInt();
+		byte state = in.readByte();
+		in.readLong(); // free
+		in.readInt(); // load
+		in.readUTF(); // encodings
+		return new State(new Device(ip, port, name, started), incarnation, state);
+	}
+
+	private static InetSocketAddress address(Device device) {
+		return new InetSocketAddress(device.getIp(), device.getPort());
+	}
+
+	private static void check(String name, boolean passed) {
+		System.out.println((passed ? "PASS " : "FAIL ") + name);
+		if (!passed)
+			++failures;
+	}
+
+	private static int getFreePort() throws Exception {
+		DatagramSocket socket = new DatagramSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
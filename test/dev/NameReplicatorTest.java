@@ -0,0 +1,218 @@
+package dev;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.restlet.Application;
+import org.restlet.Component;
+import org.restlet.Restlet;
+import org.restlet.Router;
+import org.restlet.data.Protocol;
+
+import db.TaskScheduler;
+
+/**
+ * The in-process test of the replicated name servers. It starts two name servers
+ * which replicate with each other, registers the devices through a NameClient
+ * configured with both, stops one name server and restarts it, and checks that
+ * the client fails over to the other name server, and that the restarted name
+ * server gets the devices again from the other one.
+ *
+ * The devices list of a name server is static, hence each name server runs in its
+ * own class loader, so that the two have separate lists, and a restarted name
+ * server starts with an empty list as a new process does.
+ *
+ * Run it with the compiled src and test classes and the lib jars in the class
+ * path, e.g., java -cp classes:lib/* dev.NameReplicatorTest. It exits with a
+ * non-zero status if a check fails.
+ *
+ * @author Mamta
+ */
+public class NameReplicatorTest {
+
+	/**
+	 * The time in milliseconds to wait for the replication.
+	 */
+	private static final long TIMEOUT = 10000;
+
+	/**
+	 * A name server, which is loaded in its own class loader. It is started in
+	 * the same way as NameServer.main, with a short replication period.
+	 */
+	public static class Instance {
+		private static Component component;
+		private static TaskScheduler.Task replicator;
+
+		/**
+		 * Start the name server at the given port, replicating with the given
+		 * other name servers.
+		 *
+		 * @param port
+		 * @param peers comma separated list of ip:port
+		 * @throws Exception
+		 */
+		public static void start(int port, String peers) throws Exception {
+			DevicesResource.init();
+			NameReplicator.period = 200;
+			replicator = new NameReplicator(NameClient.parse(peers, 2500)).start();
+
+			WorkerServerHelper.register();
+			component = new Component();
+			component.getServers().add(Protocol.HTTP, port);
+			component.getDefaultHost().attach(new Application() {
+				@Override
+				public Restlet createRoot() {
+					Router router = new Router(getContext());
+					router.attach("/devices", DevicesResource.class);
+					return router;
+				}
+			});
+			component.start();
+		}
+
+		/**
+		 * Stop the name server and its replication.
+		 *
+		 * @throws Exception
+		 */
+		public static void stop() throws Exception {
+			replicator.cancel();
+			component.stop();
+		}
+	}
+
+	// the class path to load each name server.
+	private static URL[] classPath;
+
+	// the number of the failed checks.
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		String[] paths = System.getProperty("java.class.path").split(File.pathSeparator);
+		classPath = new URL[paths.length];
+		for (int i=0; i<paths.length; ++i)
+			classPath[i] = new File(paths[i]).toURI().toURL();
+
+		int portA = getFreePort(), portB = getFreePort();
+		String a = "127.0.0.1:" + portA, b = "127.0.0.1:" + portB;
+
+		ClassLoader serverA = start(portA, b);
+		ClassLoader serverB = start(portB, a);
+
+		// register the devices through the client of both name servers, and wait
+		// until each name server has them.
+		NameClient client = new NameClient(NameClient.parse(a + "," + b, 2500));
+		long started = System.currentTimeMillis();
+		client.addDevice(new Device("127.0.0.1", 3001, "Home-PC", started));
+		client.addDevice(new Device("127.0.0.1", 3002, "Laptop", started));
+		check("name server A has the devices", waitFor(a, "Home-PC", "Laptop"));
+		check("name server B has the devices", waitFor(b, "Home-PC", "Laptop"));
+
+		// stop A. A client which starts with A fails over to B.
+		stop(serverA);
+		for (int i=0; i<8; ++i) {
+			NameClient other = new NameClient(NameClient.parse(a + "," + b, 2500));
+			check("client " + i + " fails over to B", contains(other.getDevices(), "Home-PC", "Laptop"));
+		}
+		client.addDevice(new Device("127.0.0.1", 3003, "Office-PC", started));
+		check("client lists the devices while A is down",
+				contains(client.getDevices(), "Home-PC", "Laptop", "Office-PC"));
+
+		// restart A with an empty list. It gets the devices from B.
+		serverA = start(portA, b);
+		check("restarted name server A has the devices", waitFor(a, "Home-PC", "Laptop", "Office-PC"));
+		check("client lists the devices after A restarts",
+				contains(client.getDevices(), "Home-PC", "Laptop", "Office-PC"));
+
+		stop(serverA);
+		stop(serverB);
+		if (failures > 0) {
+			System.out.println(failures + " checks failed");
+			System.exit(1);
+		}
+		System.out.println("all checks passed");
+		System.exit(0);
+	}
+
+	/**
+	 * Start a name server in a new class loader. The loader is also the context 
+	 * class loader of the call, where Restlet finds its engine, and hence of the
+	 * threads of the name server.
+	 */
+	private static ClassLoader start(int port, String peers) throws Exception {
+		ClassLoader loader = new URLClassLoader(classPath, null);
+		ClassLoader previous = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(loader);
+		try {
+			loader.loadClass(Instance.class.getName()).getMethod("start", int.class, String.class)
+				.invoke(null, Integer.valueOf(port), peers);
+		} finally {
+			Thread.currentThread().setContextClassLoader(previous);
+		}
+		return loader;
+	}
+
+	/**
+	 * Stop the name server of the given class loader.
+	 */
+	private static void stop(ClassLoader loader) throws Exception {
+		ClassLoader previous = Thread.currentThread().getContextClassLoader();
+		Thread.currentThread().setContextClassLoader(loader);
+		try {
+			loader.loadClass(Instance.class.getName()).getMethod("stop").invoke(null);
+		} finally {
+			Thread.currentThread().setContextClassLoader(previous);
+		}
+	}
+
+	/**
+	 * Wait until the name server at the given ip:port lists all the given devices.
+	 *
+	 * @return true if it does before the timeout
+	 */
+	private static boolean waitFor(String server, String... names) throws InterruptedException {
+		NameClient client = new NameClient(NameClient.parse(server, 2500));
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (!contains(client.getDevices(), names)) {
+			if (System.currentTimeMillis() > end)
+				return false;
+			Thread.sleep(100);
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the devices include all the given names.
+	 */
+	private static boolean contains(Device[] devices, String... names) {
+		if (devices == null)
+			return false;
+		Set<String> found = new HashSet<String>();
+		for (int i=0; i<devices.length; ++i)
+			found.add(devices[i].getName());
+		for (int i=0; i<names.length; ++i) {
+			if (!found.contains(names[i]))
+				return false;
+		}
+		return true;
+	}
+
+	private static void check(String name, boolean passed) {
+		System.out.println((passed ? "PASS " : "FAIL ") + name);
+		if (!passed)
+			++failures;
+	}
+
+	private static int getFreePort() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}